@@ -0,0 +1,91 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import org.ietf.jgss.GSSCredential;
+
+/**
+ * Outcome of a successfully accepted SPNEGO / Kerberos token.
+ */
+class AcceptResult {
+
+	private final String principalName;
+	private final byte[] responseToken;
+	private final GSSCredential delegatedCredential;
+	private final byte[] pac;
+	private final int etype;
+	private final long ticketEndTime;
+	private final boolean delegationRequested;
+
+	AcceptResult(final String principalName, final byte[] responseToken, final GSSCredential delegatedCredential,
+			final byte[] pac) {
+		this(principalName, responseToken, delegatedCredential, pac, TicketMetrics.UNKNOWN, 0,
+				delegatedCredential != null);
+	}
+
+	AcceptResult(final String principalName, final byte[] responseToken, final GSSCredential delegatedCredential,
+			final byte[] pac, final int etype, final long ticketEndTime, final boolean delegationRequested) {
+		this.principalName = principalName;
+		this.responseToken = responseToken;
+		this.delegatedCredential = delegatedCredential;
+		this.pac = pac;
+		this.etype = etype;
+		this.ticketEndTime = ticketEndTime;
+		this.delegationRequested = delegationRequested;
+	}
+
+	/**
+	 * Returns the client's principal name including the realm, e.g.
+	 * <code>user1@EXAMPLE.COM</code>.
+	 */
+	String getPrincipalName() {
+		return principalName;
+	}
+
+	byte[] getResponseToken() {
+		return responseToken;
+	}
+
+	GSSCredential getDelegatedCredential() {
+		return delegatedCredential;
+	}
+
+	byte[] getPac() {
+		return pac;
+	}
+
+	/**
+	 * Returns the Kerberos encryption type of the ticket (native engine) or of
+	 * its session key (JGSS, which doesn't expose the ticket's one), or
+	 * {@link TicketMetrics#UNKNOWN}.
+	 */
+	int getEtype() {
+		return etype;
+	}
+
+	/**
+	 * Returns the ticket's end time in milliseconds, or 0 if it's unknown.
+	 */
+	long getTicketEndTime() {
+		return ticketEndTime;
+	}
+
+	boolean isDelegationRequested() {
+		return delegationRequested;
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.Collection;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Short-lived cookie asserting a successful SPNEGO negotiation. It's bound to
+ * the user name, the SPNEGO configuration and the client (User-Agent and
+ * remote address), and allows to re-establish a lost session without another
+ * Kerberos round-trip.
+ */
+final class AssertionCookie {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AssertionCookie.class);
+
+	private static final String TYPE = "assertion";
+	private static final String VERSION = "1";
+
+	private final TokenSigner signer;
+	private final String name;
+	private final long ttlSeconds;
+
+	AssertionCookie(final TokenSigner signer, final String name, final long ttlSeconds) {
+		this.signer = signer;
+		this.name = name;
+		this.ttlSeconds = ttlSeconds;
+	}
+
+	void issue(final HttpServletRequest request, final HttpServletResponse response, final String userName,
+			final String configName) {
+		long expires = System.currentTimeMillis() / 1000 + ttlSeconds;
+		String claims = TYPE + '\n' + VERSION + '\n' + expires + '\n' + configName + '\n' + userName;
+		Cookie cookie = new Cookie(name, signer.sign(claims, fingerprint(request)));
+		cookie.setPath(request.getContextPath() != null && !request.getContextPath().isEmpty()
+				? request.getContextPath()
+				: "/");
+		cookie.setMaxAge((int) ttlSeconds);
+		cookie.setHttpOnly(true);
+		cookie.setSecure(request.isSecure());
+		response.addCookie(cookie);
+	}
+
+	/**
+	 * Returns the user name from a valid assertion cookie, or <code>null</code>
+	 * if there's none or it's expired, forged, presented by a different client or
+	 * issued for an unknown SPNEGO configuration.
+	 */
+	String verify(final HttpServletRequest request, final Collection<String> configNames) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies == null) {
+			return null;
+		}
+		for (Cookie cookie : cookies) {
+			if (name.equals(cookie.getName())) {
+				String claims = signer.verify(cookie.getValue(), fingerprint(request));
+				if (claims == null) {
+					LOG.debug("Invalid assertion cookie in request for URI '{}'", request.getRequestURI());
+					return null;
+				}
+				String[] values = claims.split("\n", 5);
+				if (values.length != 5 || !TYPE.equals(values[0]) || !VERSION.equals(values[1])) {
+					LOG.debug("Assertion cookie of other type in request for URI '{}'", request.getRequestURI());
+					return null;
+				}
+				try {
+					if (Long.parseLong(values[2]) < System.currentTimeMillis() / 1000) {
+						LOG.debug("Expired assertion cookie for user '{}'", values[4]);
+						return null;
+					}
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				return configNames.contains(values[3]) ? values[4] : null;
+			}
+		}
+		return null;
+	}
+
+	private static String fingerprint(final HttpServletRequest request) {
+		String userAgent = request.getHeader("User-Agent");
+		return (userAgent != null ? userAgent : "") + '\n' + request.getRemoteAddr();
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Audit log of SPNEGO logins. Request threads put the records into a
+ * pre-allocated lock-free ring buffer (a record is dropped if the buffer is
+ * full), a background thread appends them to a file with one tab-separated
+ * line per record:
+ *
+ * <pre>
+ * time  result  user  configuration  client  latency (microseconds)
+ * </pre>
+ *
+ * If the file exceeds the maximum size it's rolled over to
+ * <code>&lt;file&gt;.1</code> (and the previous ones to
+ * <code>&lt;file&gt;.2</code> etc.).
+ */
+final class AuditLog {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AuditLog.class);
+
+	static final String AUTHENTICATED = "authenticated";
+	static final String ASSERTED = "asserted";
+	static final String BEARER = "bearer";
+	static final String FAILED = "failed";
+	static final String NOT_FOUND = "not-found";
+	static final String UNAUTHORISED = "unauthorised";
+
+	private static final String HEADER = "# time\tresult\tuser\tconfig\tclient\tlatency_us\n";
+	private static final long WRITE_INTERVAL = 50;
+	private static final long SHUTDOWN_TIMEOUT = 10;
+
+	private final Path file;
+	private final long maxFileSize;
+	private final int maxFiles;
+	private final Record[] records;
+	private final int mask;
+
+	// sequence + 1 of the record published in each slot
+	private final AtomicLongArray published;
+	private final AtomicLong claimed = new AtomicLong();
+	private volatile long consumed;
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private ScheduledExecutorService writer;
+	private FileOutputStream stream;
+	private Writer out;
+
+	AuditLog(final Path file, final int capacity, final long maxFileSize, final int maxFiles) {
+		this.file = file;
+		this.maxFileSize = maxFileSize;
+		this.maxFiles = maxFiles;
+		int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+		this.records = new Record[size];
+		for (int i = 0; i < size; i++) {
+			records[i] = new Record();
+		}
+		this.mask = size - 1;
+		this.published = new AtomicLongArray(size);
+	}
+
+	/**
+	 * Starts the background thread which writes the records every few
+	 * milliseconds.
+	 */
+	synchronized void start() {
+		writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, "spnego-audit");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, WRITE_INTERVAL, WRITE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Puts a record into the ring buffer. Returns <code>false</code> if the
+	 * buffer is full and the record was dropped.
+	 */
+	boolean append(final long time, final String result, final String userName, final String config,
+			final String client, final long latencyNanos) {
+		long sequence;
+		do {
+			sequence = claimed.get();
+			if (sequence - consumed >= records.length) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		} while (!claimed.compareAndSet(sequence, sequence + 1));
+		int index = (int) sequence & mask;
+		Record record = records[index];
+		record.time = time;
+		record.result = result;
+		record.userName = userName;
+		record.config = config;
+		record.client = client;
+		record.latencyNanos = latencyNanos;
+		published.lazySet(index, sequence + 1);
+		return true;
+	}
+
+	/**
+	 * Writes all published records to the file. Must only be called by one
+	 * thread at a time.
+	 */
+	void write() {
+		try {
+			long sequence = consumed;
+			int count = 0;
+			int index;
+			while (published.get(index = (int) sequence & mask) == sequence + 1) {
+				if (out == null) {
+					open();
+				}
+				records[index].writeTo(out);
+				sequence++;
+				consumed = sequence;
+				count++;
+			}
+			if (count > 0) {
+				out.flush();
+				written.addAndGet(count);
+				if (stream.getChannel().position() >= maxFileSize) {
+					roll();
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("Writing audit log '{}' failed", file, e);
+			closeFile();
+		}
+	}
+
+	private void open() throws IOException {
+		stream = new FileOutputStream(file.toFile(), true);
+		out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+		if (stream.getChannel().position() == 0) {
+			out.write(HEADER);
+		}
+	}
+
+	private void roll() throws IOException {
+		closeFile();
+		for (int i = maxFiles - 1; i > 0; i--) {
+			Path rolled = file.resolveSibling(file.getFileName() + "." + i);
+			if (Files.exists(rolled)) {
+				Files.move(rolled, file.resolveSibling(file.getFileName() + "." + (i + 1)),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+		LOG.debug("Rolled audit log '{}'", file);
+	}
+
+	private void closeFile() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOG.warn("Closing audit log '{}' failed: {}", file, e.getMessage());
+			}
+			out = null;
+			stream = null;
+		}
+	}
+
+	/**
+	 * Stops the background thread and writes the remaining records.
+	 */
+	synchronized void close() {
+		if (writer != null) {
+			writer.shutdown();
+			try {
+				writer.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		write();
+		closeFile();
+	}
+
+	long getWritten() {
+		return written.get();
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	// pre-allocated and reused, so appending doesn't allocate any objects
+	private static final class Record {
+
+		private long time;
+		private String result;
+		private String userName;
+		private String config;
+		private String client;
+		private long latencyNanos;
+
+		void writeTo(final Writer out) throws IOException {
+			out.write(Instant.ofEpochMilli(time).toString());
+			out.write('\t');
+			out.write(result);
+			out.write('\t');
+			writeValue(out, userName);
+			out.write('\t');
+			writeValue(out, config);
+			out.write('\t');
+			writeValue(out, client);
+			out.write('\t');
+			out.write(Long.toString(latencyNanos / 1000));
+			out.write('\n');
+		}
+
+		private static void writeValue(final Writer out, final String value) throws IOException {
+			if (value == null) {
+				out.write('-');
+			} else {
+				for (int i = 0; i < value.length(); i++) {
+					char c = value.charAt(i);
+					out.write(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+				}
+			}
+		}
+	}
+}
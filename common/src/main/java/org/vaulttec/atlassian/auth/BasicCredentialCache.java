@@ -0,0 +1,121 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Cache of Basic authentication credentials which were successfully verified
+ * against the KDC. Passwords are only kept as salted PBKDF2 hashes.
+ */
+class BasicCredentialCache {
+
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 256;
+
+	private final ExpiringCache<String, Entry> entries;
+	private final int iterations;
+	private final SecureRandom random = new SecureRandom();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	BasicCredentialCache(final int maxSize, final long ttlMillis, final int iterations) {
+		this.entries = new ExpiringCache<String, Entry>(maxSize, ttlMillis);
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Returns the cached entry if the given password matches the verified one.
+	 * Otherwise the user's entry is invalidated and <code>null</code> is
+	 * returned.
+	 */
+	Entry verify(final String userName, final String password) throws GeneralSecurityException {
+		Entry entry = entries.get(userName);
+		if (entry != null) {
+			if (MessageDigest.isEqual(entry.hash, hash(password, entry.salt))) {
+				hits.incrementAndGet();
+				return entry;
+			}
+			entries.remove(userName);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	void put(final String userName, final String password, final String principalName,
+			final Map<String, String> config) throws GeneralSecurityException {
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		entries.put(userName, new Entry(salt, hash(password, salt), principalName, config));
+	}
+
+	void invalidate(final String userName) {
+		entries.remove(userName);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	private byte[] hash(final String password, final byte[] salt) throws GeneralSecurityException {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH);
+		try {
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	static class Entry {
+
+		private final byte[] salt;
+		private final byte[] hash;
+		private final String principalName;
+		private final Map<String, String> config;
+
+		Entry(final byte[] salt, final byte[] hash, final String principalName, final Map<String, String> config) {
+			this.salt = salt;
+			this.hash = hash;
+			this.principalName = principalName;
+			this.config = config;
+		}
+
+		String getPrincipalName() {
+			return principalName;
+		}
+
+		Map<String, String> getConfig() {
+			return config;
+		}
+	}
+}
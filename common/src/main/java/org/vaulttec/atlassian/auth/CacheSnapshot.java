@@ -0,0 +1,252 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the authentication caches (ticket groups, learned exclusions and the
+ * node-local failure counters and backoffs of clients) with their expiry times
+ * to a local file and restores them from it, so a restarted node doesn't start
+ * with empty caches, and a failing client isn't let in again by a restart.
+ * <p>
+ * File format (big-endian): magic <code>"SPNC"</code>, format version (short)
+ * and a list of sections, each with a type (byte), payload length (int) and
+ * payload, terminated by section type 0 followed by the CRC32 (long) of all
+ * preceding bytes. Sections of unknown types are skipped, files with another
+ * format version are ignored.
+ */
+final class CacheSnapshot {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CacheSnapshot.class);
+
+	static final int MAGIC = 0x53504E43;
+	static final short VERSION = 1;
+
+	private static final byte SECTION_END = 0;
+	private static final byte SECTION_TICKET_GROUPS = 1;
+	private static final byte SECTION_LEARNED_EXCLUSIONS = 2;
+	private static final byte SECTION_CLIENT_FAILURES = 3;
+
+	private static final String[] CLIENT_NAMESPACES = { SharedAuthState.FAILURES, SharedAuthState.BACKOFF };
+
+	private final Path file;
+
+	CacheSnapshot(final Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Writes the unexpired entries of the given caches (each one may be
+	 * <code>null</code>) via a temporary file which replaces the snapshot file
+	 * afterwards. Returns the number of written entries.
+	 */
+	int write(final ExpiringCache<String, Set<String>> ticketGroups, final ExclusionLearner exclusionLearner,
+			final ClientFailureTracker clientFailures) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		int entries = 0;
+		if (ticketGroups != null) {
+			final ByteArrayOutputStream section = new ByteArrayOutputStream();
+			final DataOutputStream sectionOut = new DataOutputStream(section);
+			final int[] count = new int[1];
+			final IOException[] error = new IOException[1];
+			ticketGroups.visit(new ExpiringCache.Visitor<String, Set<String>>() {
+				@Override
+				public void visit(final String userName, final Set<String> groups, final long expires) {
+					try {
+						sectionOut.writeUTF(userName);
+						sectionOut.writeLong(expires);
+						sectionOut.writeInt(groups.size());
+						for (String group : groups) {
+							sectionOut.writeUTF(group);
+						}
+						count[0]++;
+					} catch (IOException e) {
+						error[0] = e;
+					}
+				}
+			});
+			if (error[0] != null) {
+				throw error[0];
+			}
+			writeSection(out, SECTION_TICKET_GROUPS, count[0], section);
+			entries += count[0];
+		}
+		if (exclusionLearner != null) {
+			ByteArrayOutputStream section = new ByteArrayOutputStream();
+			DataOutputStream sectionOut = new DataOutputStream(section);
+			Map<String, Long> exclusions = exclusionLearner.getExclusionExpiries();
+			for (Map.Entry<String, Long> exclusion : exclusions.entrySet()) {
+				sectionOut.writeUTF(exclusion.getKey());
+				sectionOut.writeLong(exclusion.getValue());
+			}
+			writeSection(out, SECTION_LEARNED_EXCLUSIONS, exclusions.size(), section);
+			entries += exclusions.size();
+		}
+		LocalAuthState clientState = clientFailures != null ? clientFailures.getLocalState() : null;
+		if (clientState != null) {
+			final ByteArrayOutputStream section = new ByteArrayOutputStream();
+			final DataOutputStream sectionOut = new DataOutputStream(section);
+			final int[] count = new int[1];
+			final IOException[] error = new IOException[1];
+			for (final String namespace : CLIENT_NAMESPACES) {
+				clientState.visit(namespace, new ExpiringCache.Visitor<String, AtomicLong>() {
+					@Override
+					public void visit(final String client, final AtomicLong value, final long expires) {
+						try {
+							sectionOut.writeUTF(namespace);
+							sectionOut.writeUTF(client);
+							sectionOut.writeLong(value.get());
+							sectionOut.writeLong(expires);
+							count[0]++;
+						} catch (IOException e) {
+							error[0] = e;
+						}
+					}
+				});
+			}
+			if (error[0] != null) {
+				throw error[0];
+			}
+			writeSection(out, SECTION_CLIENT_FAILURES, count[0], section);
+			entries += count[0];
+		}
+		out.writeByte(SECTION_END);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		out.flush();
+
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temp, bytes.toByteArray());
+		try {
+			Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+		} catch (UnsupportedOperationException e) {
+			// no POSIX file system
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return entries;
+	}
+
+	private static void writeSection(final DataOutputStream out, final byte type, final int count,
+			final ByteArrayOutputStream section) throws IOException {
+		out.writeByte(type);
+		out.writeInt(4 + section.size());
+		out.writeInt(count);
+		section.writeTo(out);
+	}
+
+	/**
+	 * Restores the unexpired entries of the snapshot file into the given caches
+	 * (each one may be <code>null</code>). Returns the number of restored
+	 * entries, or -1 if there's no usable snapshot file.
+	 */
+	int read(final ExpiringCache<String, Set<String>> ticketGroups, final ExclusionLearner exclusionLearner,
+			final ClientFailureTracker clientFailures) throws IOException {
+		if (!Files.exists(file)) {
+			return -1;
+		}
+		byte[] bytes = Files.readAllBytes(file);
+		if (bytes.length < 8 + 6) {
+			LOG.warn("Ignoring truncated cache snapshot '{}'", file);
+			return -1;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 8);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		if (in.readInt() != MAGIC) {
+			LOG.warn("Ignoring cache snapshot '{}' - not a snapshot file", file);
+			return -1;
+		}
+		short version = in.readShort();
+		if (version != VERSION) {
+			LOG.warn("Ignoring cache snapshot '{}' - unsupported version {}", file, version);
+			return -1;
+		}
+		long expectedCrc = ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong();
+		if (crc.getValue() != expectedCrc) {
+			LOG.warn("Ignoring corrupted cache snapshot '{}'", file);
+			return -1;
+		}
+		LocalAuthState clientState = clientFailures != null ? clientFailures.getLocalState() : null;
+		int restored = 0;
+		try {
+			byte type;
+			while ((type = in.readByte()) != SECTION_END) {
+				int length = in.readInt();
+				if (type == SECTION_TICKET_GROUPS && ticketGroups != null) {
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						String userName = in.readUTF();
+						long expires = in.readLong();
+						int size = in.readInt();
+						Set<String> groups = new HashSet<String>();
+						for (int j = 0; j < size; j++) {
+							groups.add(in.readUTF());
+						}
+						if (ticketGroups.restore(userName, groups, expires)) {
+							restored++;
+						}
+					}
+				} else if (type == SECTION_LEARNED_EXCLUSIONS && exclusionLearner != null) {
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						if (exclusionLearner.restore(in.readUTF(), in.readLong())) {
+							restored++;
+						}
+					}
+				} else if (type == SECTION_CLIENT_FAILURES && clientState != null) {
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						if (clientState.restore(in.readUTF(), in.readUTF(), in.readLong(), in.readLong())) {
+							restored++;
+						}
+					}
+				} else {
+
+					// unknown section or cache not enabled anymore
+					in.skipBytes(length);
+				}
+			}
+		} catch (EOFException e) {
+			LOG.warn("Ignoring rest of truncated cache snapshot '{}'", file);
+		}
+		return restored;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Precomputed body of the 401 response with the SPNEGO challenge. The
+ * {@link SpnegoChallengeFilter} completes a challenged response with it and
+ * stops the filter chain, so the page behind the challenge isn't rendered
+ * anymore just to be thrown away by the browser.
+ * <p>
+ * Browsers which can't negotiate show the body, so it can be replaced by an
+ * HTML file (e.g. with a link to the login form).
+ */
+final class ChallengeResponse {
+
+	static final String DEFAULT_BODY = "<html><body>Authentication required</body></html>";
+
+	private final String body;
+	private final int contentLength;
+	private final AtomicLong challenges = new AtomicLong();
+	private final AtomicLong renderingsAvoided = new AtomicLong();
+
+	ChallengeResponse(final String body) {
+		this.body = body;
+		this.contentLength = body.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	static ChallengeResponse create(final String bodyFile) throws IOException {
+		if (bodyFile == null) {
+			return new ChallengeResponse(DEFAULT_BODY);
+		}
+		return new ChallengeResponse(new String(Files.readAllBytes(Paths.get(bodyFile)), StandardCharsets.UTF_8));
+	}
+
+	void recordChallenge() {
+		challenges.incrementAndGet();
+	}
+
+	/**
+	 * Writes the body to the given response if it's still the uncommitted
+	 * challenge. Returns <code>false</code> if the response was changed in the
+	 * meantime (e.g. to a redirect) and has to be processed as usual.
+	 */
+	boolean complete(final HttpServletResponse response) throws IOException {
+		if (response.isCommitted() || response.getStatus() != HttpServletResponse.SC_UNAUTHORIZED) {
+			return false;
+		}
+		PrintWriter writer;
+		try {
+			response.resetBuffer();
+			response.setContentType("text/html");
+			response.setCharacterEncoding("UTF-8");
+			response.setContentLength(contentLength);
+			writer = response.getWriter();
+		} catch (IllegalStateException e) {
+
+			// output stream already in use
+			return false;
+		}
+		writer.write(body);
+		response.flushBuffer();
+		renderingsAvoided.incrementAndGet();
+		return true;
+	}
+
+	long getChallenges() {
+		return challenges.get();
+	}
+
+	long getRenderingsAvoided() {
+		return renderingsAvoided.get();
+	}
+}
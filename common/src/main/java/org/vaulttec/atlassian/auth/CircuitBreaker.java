@@ -0,0 +1,124 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker of a single SPNEGO configuration. It opens after a number of
+ * consecutive KDC / login failures, and while it's open the configuration is
+ * skipped. An open breaker is only closed again by a successful probe.
+ */
+final class CircuitBreaker {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	interface Probe {
+
+		void run() throws Exception;
+	}
+
+	private final String name;
+	private final int threshold;
+	private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile long stateChanged = System.currentTimeMillis();
+
+	CircuitBreaker(final String name, final int threshold) {
+		this.name = name;
+		this.threshold = threshold;
+	}
+
+	boolean isClosed() {
+		return state.get() == State.CLOSED;
+	}
+
+	State getState() {
+		return state.get();
+	}
+
+	void recordSuccess() {
+		failures.set(0);
+	}
+
+	void recordFailure(final Throwable cause) {
+		if (failures.incrementAndGet() >= threshold && state.compareAndSet(State.CLOSED, State.OPEN)) {
+			stateChanged = System.currentTimeMillis();
+			LOG.warn("Circuit breaker of configuration '{}' opened after {} failures: {}", name, failures.get(),
+					cause.getMessage());
+		}
+	}
+
+	/**
+	 * Runs the given probe if the breaker is open, and closes the breaker if the
+	 * probe succeeds.
+	 */
+	void probe(final Probe probe) {
+		if (!state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+			return;
+		}
+		try {
+			probe.run();
+			failures.set(0);
+			state.set(State.CLOSED);
+			stateChanged = System.currentTimeMillis();
+			LOG.info("Circuit breaker of configuration '{}' closed", name);
+		} catch (Exception e) {
+			state.set(State.OPEN);
+			LOG.debug("Probe of configuration '{}' failed: {}", name, e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the given exception was caused by an
+	 * unreachable KDC (network error or no KDC found) instead of e.g. invalid
+	 * credentials.
+	 */
+	static boolean isKdcFailure(final Throwable exception) {
+		for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException && cause.getClass().getName().startsWith("java.net.")) {
+				return true;
+			}
+			String message = cause.getMessage();
+			if (message != null && (message.contains("Cannot contact any KDC") || message.contains("Cannot locate KDC")
+					|| message.contains("Receive timed out"))) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + state.get() + " (" + failures.get() + " consecutive failures, since "
+				+ new Date(stateChanged) + ")";
+	}
+}
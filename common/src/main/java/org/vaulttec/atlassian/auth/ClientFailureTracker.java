@@ -0,0 +1,114 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the consecutive failed SPNEGO authentications per client (IP
+ * address). After a number of failures the client's tokens are skipped for an
+ * exponentially growing backoff time, so a single machine with e.g. a skewed
+ * clock or stale tickets can't keep the acceptors busy. A successful
+ * authentication resets the client.
+ * <p>
+ * The failure counters and backoffs are kept in a {@link SharedAuthState}, so
+ * with a cluster-wide state a client in backoff is skipped by all nodes.
+ */
+final class ClientFailureTracker {
+
+	private final SharedAuthState state;
+	private final int threshold;
+	private final long backoffMillis;
+	private final long maxBackoffMillis;
+	private final AtomicLong skipped = new AtomicLong();
+
+	ClientFailureTracker(final int maxSize, final int threshold, final long backoffMillis,
+			final long maxBackoffMillis) {
+		this(new LocalAuthState(maxSize), threshold, backoffMillis, maxBackoffMillis);
+	}
+
+	ClientFailureTracker(final SharedAuthState state, final int threshold, final long backoffMillis,
+			final long maxBackoffMillis) {
+		this.state = state;
+		this.threshold = threshold;
+		this.backoffMillis = backoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Returns <code>true</code> if the given client is in backoff and its token
+	 * should be skipped.
+	 */
+	boolean isBackedOff(final String client) {
+		if (client != null && state.get(SharedAuthState.BACKOFF, client) > System.currentTimeMillis()) {
+			skipped.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Counts a failed authentication of the given client. Returns the backoff
+	 * time in milliseconds if the client is in backoff from now on, otherwise 0.
+	 */
+	long recordFailure(final String client) {
+		if (client == null) {
+			return 0;
+		}
+
+		// a client's failures are forgotten if it doesn't fail again within twice
+		// the maximum backoff
+		long count = state.increment(SharedAuthState.FAILURES, client, 2 * maxBackoffMillis);
+		if (count < threshold) {
+			return 0;
+		}
+		int exponent = (int) Math.min(count - threshold, 30);
+		long backoff = Math.min(backoffMillis << exponent, maxBackoffMillis);
+		state.put(SharedAuthState.BACKOFF, client, System.currentTimeMillis() + backoff, backoff);
+		return backoff;
+	}
+
+	void recordSuccess(final String client) {
+
+		// checking first avoids writing the (shared) state for each login
+		if (client != null && state.get(SharedAuthState.FAILURES, client) != 0) {
+			state.remove(SharedAuthState.FAILURES, client);
+			state.remove(SharedAuthState.BACKOFF, client);
+		}
+	}
+
+	/**
+	 * Returns the number of clients which are currently in backoff.
+	 */
+	int getBackedOff() {
+		return state.size(SharedAuthState.BACKOFF);
+	}
+
+	long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Returns the node-local failure counters and backoffs (e.g. to write them
+	 * to a snapshot), or <code>null</code> if they're kept in a cluster-wide
+	 * state which survives the restart of a node anyway.
+	 */
+	LocalAuthState getLocalState() {
+		return state instanceof LocalAuthState ? (LocalAuthState) state : null;
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size-bounded store of the users' delegated Kerberos credentials with a
+ * time-to-live per credential (at most the credential's remaining lifetime).
+ * Only the latest credential per user is kept, credentials are disposed when
+ * they're replaced, evicted, expired or the user's session ends.
+ * <p>
+ * Credentials are only stored after a successful authentication, so a single
+ * lock is used instead of the lock-free {@link ExpiringCache}.
+ */
+final class DelegatedCredentialStore {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DelegatedCredentialStore.class);
+
+	private static final long SWEEP_INTERVAL = 1000;
+
+	private final int maxSize;
+	private final long ttlMillis;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	private final AtomicLong stored = new AtomicLong();
+	private final AtomicLong disposed = new AtomicLong();
+	private long lastSweep;
+
+	DelegatedCredentialStore(final int maxSize, final long ttlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Stores the given credential as the user's current one, disposing the
+	 * previous one.
+	 */
+	void store(final String userName, final GSSCredential credential) {
+		long now = System.currentTimeMillis();
+		long expires = now + ttlMillis;
+		try {
+			int remaining = credential.getRemainingLifetime();
+			if (remaining != GSSCredential.INDEFINITE_LIFETIME) {
+				expires = Math.min(expires, now + remaining * 1000L);
+			}
+		} catch (GSSException e) {
+			LOG.debug("Remaining lifetime of delegated credential unknown: {}", e.getMessage());
+		}
+		List<GSSCredential> disposable = new ArrayList<GSSCredential>();
+		synchronized (entries) {
+			Entry previous = entries.remove(userName);
+			if (previous != null) {
+				disposable.add(previous.credential);
+			}
+			entries.put(userName, new Entry(credential, expires));
+			sweep(now, disposable);
+
+			// evict the oldest credentials if the store is full
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (entries.size() > maxSize && iterator.hasNext()) {
+				disposable.add(iterator.next().credential);
+				iterator.remove();
+			}
+		}
+		stored.incrementAndGet();
+		dispose(disposable);
+	}
+
+	/**
+	 * Returns the user's unexpired delegated credential, or <code>null</code>
+	 * if there's none.
+	 */
+	GSSCredential get(final String userName) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(userName);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expires > System.currentTimeMillis()) {
+				return entry.credential;
+			}
+			entries.remove(userName);
+		}
+		dispose(entry.credential);
+		return null;
+	}
+
+	/**
+	 * Removes and disposes the given credential if it's still the user's current
+	 * one. Returns <code>true</code> if it was released.
+	 */
+	boolean release(final String userName, final GSSCredential credential) {
+		synchronized (entries) {
+			Entry entry = entries.get(userName);
+			if (entry == null || entry.credential != credential) {
+				return false;
+			}
+			entries.remove(userName);
+		}
+		dispose(credential);
+		return true;
+	}
+
+	/**
+	 * Removes and disposes all credentials.
+	 */
+	void clear() {
+		List<GSSCredential> disposable = new ArrayList<GSSCredential>();
+		synchronized (entries) {
+			for (Entry entry : entries.values()) {
+				disposable.add(entry.credential);
+			}
+			entries.clear();
+		}
+		dispose(disposable);
+	}
+
+	int size() {
+		List<GSSCredential> disposable = new ArrayList<GSSCredential>();
+		int size;
+		synchronized (entries) {
+			sweep(System.currentTimeMillis(), disposable);
+			size = entries.size();
+		}
+		dispose(disposable);
+		return size;
+	}
+
+	long getStored() {
+		return stored.get();
+	}
+
+	long getDisposed() {
+		return disposed.get();
+	}
+
+	/**
+	 * Removes the expired credentials, but only once per sweep interval.
+	 */
+	private void sweep(final long now, final List<GSSCredential> disposable) {
+		if (now - lastSweep < SWEEP_INTERVAL) {
+			return;
+		}
+		lastSweep = now;
+		for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext();) {
+			Entry entry = iterator.next();
+			if (entry.expires <= now) {
+				disposable.add(entry.credential);
+				iterator.remove();
+			}
+		}
+	}
+
+	private void dispose(final List<GSSCredential> credentials) {
+		for (GSSCredential credential : credentials) {
+			dispose(credential);
+		}
+	}
+
+	void dispose(final GSSCredential credential) {
+		try {
+			credential.dispose();
+			disposed.incrementAndGet();
+		} catch (GSSException e) {
+			LOG.debug("Disposing delegated credential failed: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Creates a session attribute which releases the given credential when the
+	 * session ends (or the attribute is replaced).
+	 */
+	Object bindToSession(final String userName, final GSSCredential credential) {
+		return new SessionBinding(this, userName, credential);
+	}
+
+	private static final class Entry {
+
+		private final GSSCredential credential;
+		private final long expires;
+
+		Entry(final GSSCredential credential, final long expires) {
+			this.credential = credential;
+			this.expires = expires;
+		}
+	}
+
+	// serializable (without the credential) so persisted or replicated sessions
+	// keep working
+	private static final class SessionBinding implements HttpSessionBindingListener, Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient DelegatedCredentialStore store;
+		private final String userName;
+		private final transient GSSCredential credential;
+
+		SessionBinding(final DelegatedCredentialStore store, final String userName, final GSSCredential credential) {
+			this.store = store;
+			this.userName = userName;
+			this.credential = credential;
+		}
+
+		@Override
+		public void valueBound(final HttpSessionBindingEvent event) {
+		}
+
+		@Override
+		public void valueUnbound(final HttpSessionBindingEvent event) {
+			if (store != null && store.release(userName, credential)) {
+				LOG.debug("Released delegated credential of user '{}' with session", userName);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "DelegatedCredential[" + userName + "]";
+		}
+	}
+}
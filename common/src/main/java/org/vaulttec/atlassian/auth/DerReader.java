@@ -0,0 +1,246 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Minimal reader for the DER encoded ASN.1 structures used by Kerberos and
+ * SPNEGO. Only definite lengths and single byte tags are supported.
+ */
+class DerReader {
+
+	static final int TAG_INTEGER = 0x02;
+	static final int TAG_BIT_STRING = 0x03;
+	static final int TAG_OCTET_STRING = 0x04;
+	static final int TAG_OID = 0x06;
+	static final int TAG_ENUMERATED = 0x0a;
+	static final int TAG_GENERALIZED_TIME = 0x18;
+	static final int TAG_GENERAL_STRING = 0x1b;
+	static final int TAG_SEQUENCE = 0x30;
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private final byte[] data;
+	private final int end;
+	private int position;
+
+	DerReader(final byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	DerReader(final byte[] data, final int offset, final int length) {
+		this.data = data;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	boolean hasMore() {
+		return position < end;
+	}
+
+	int peekTag() throws IOException {
+		if (position >= end) {
+			throw new IOException("Unexpected end of DER data");
+		}
+		return data[position] & 0xff;
+	}
+
+	/**
+	 * Reads the next element with the given tag and returns a reader for its
+	 * content.
+	 */
+	DerReader read(final int tag) throws IOException {
+		int actualTag = peekTag();
+		if (actualTag != tag) {
+			throw new IOException("Unexpected DER tag 0x" + Integer.toHexString(actualTag) + " (expected 0x"
+					+ Integer.toHexString(tag) + ")");
+		}
+		position++;
+		int length = readLength();
+		DerReader content = new DerReader(data, position, length);
+		position += length;
+		return content;
+	}
+
+	/**
+	 * Reads the next element if it's a context-specific constructed element with
+	 * the given number, e.g. <code>[1]</code>, otherwise returns
+	 * <code>null</code>.
+	 */
+	DerReader readOptional(final int contextNumber) throws IOException {
+		if (hasMore() && peekTag() == (0xa0 | contextNumber)) {
+			return read(0xa0 | contextNumber);
+		}
+		return null;
+	}
+
+	DerReader readContext(final int contextNumber) throws IOException {
+		return read(0xa0 | contextNumber);
+	}
+
+	DerReader readApplication(final int applicationNumber) throws IOException {
+		return read(0x60 | applicationNumber);
+	}
+
+	DerReader readSequence() throws IOException {
+		return read(TAG_SEQUENCE);
+	}
+
+	long readInteger() throws IOException {
+		DerReader content = read(TAG_INTEGER);
+		if (content.end - content.position > 8 || content.end == content.position) {
+			throw new IOException("Unsupported DER integer length");
+		}
+		long value = content.data[content.position];
+		for (int i = content.position + 1; i < content.end; i++) {
+			value = (value << 8) | (content.data[i] & 0xff);
+		}
+		return value;
+	}
+
+	byte[] readOctetString() throws IOException {
+		return read(TAG_OCTET_STRING).remaining();
+	}
+
+	String readGeneralString() throws IOException {
+		return new String(read(TAG_GENERAL_STRING).remaining(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads an object identifier in dotted notation, e.g.
+	 * <code>1.2.840.113554.1.2.2</code>.
+	 */
+	String readOid() throws IOException {
+		DerReader content = read(TAG_OID);
+		if (!content.hasMore()) {
+			throw new IOException("Empty DER object identifier");
+		}
+		StringBuilder oid = new StringBuilder();
+		long value = 0;
+		boolean first = true;
+		while (content.hasMore()) {
+			int b = content.data[content.position++] & 0xff;
+			value = (value << 7) | (b & 0x7f);
+			if ((b & 0x80) == 0) {
+				if (first) {
+					int arc = (int) Math.min(value / 40, 2);
+					oid.append(arc).append('.').append(value - arc * 40);
+					first = false;
+				} else {
+					oid.append('.').append(value);
+				}
+				value = 0;
+			}
+		}
+		return oid.toString();
+	}
+
+	/**
+	 * Reads a Kerberos bit string (e.g. ticket flags) of up to 32 bits. Bit 0 is
+	 * returned as the most significant bit.
+	 */
+	int readFlags() throws IOException {
+		DerReader content = read(TAG_BIT_STRING);
+		if (!content.hasMore()) {
+			throw new IOException("Empty DER bit string");
+		}
+		content.position++; // unused bits
+		int flags = 0;
+		for (int i = 0; i < 4; i++) {
+			flags <<= 8;
+			if (content.hasMore()) {
+				flags |= content.data[content.position++] & 0xff;
+			}
+		}
+		return flags;
+	}
+
+	/**
+	 * Reads a Kerberos time (GeneralizedTime without fractions, e.g.
+	 * <code>20190101120000Z</code>) and returns it in milliseconds since the
+	 * epoch.
+	 */
+	long readKerberosTime() throws IOException {
+		DerReader content = read(TAG_GENERALIZED_TIME);
+		if (content.remainingLength() != 15 || content.data[content.end - 1] != 'Z') {
+			throw new IOException("Unsupported DER time format");
+		}
+		int[] fields = new int[6];
+		int position = content.position;
+		for (int i = 0; i < fields.length; i++) {
+			int digits = i == 0 ? 4 : 2;
+			for (int j = 0; j < digits; j++) {
+				int digit = content.data[position++] - '0';
+				if (digit < 0 || digit > 9) {
+					throw new IOException("Invalid DER time");
+				}
+				fields[i] = fields[i] * 10 + digit;
+			}
+		}
+		Calendar calendar = new GregorianCalendar(UTC);
+		calendar.clear();
+		calendar.set(fields[0], fields[1] - 1, fields[2], fields[3], fields[4], fields[5]);
+		return calendar.getTimeInMillis();
+	}
+
+	void skip() throws IOException {
+		peekTag();
+		position++;
+		position += readLength();
+	}
+
+	byte[] remaining() {
+		return Arrays.copyOfRange(data, position, end);
+	}
+
+	int remainingLength() {
+		return end - position;
+	}
+
+	private int readLength() throws IOException {
+		if (position >= end) {
+			throw new IOException("Unexpected end of DER data");
+		}
+		int length = data[position++] & 0xff;
+		if (length > 0x80) {
+			int count = length & 0x7f;
+			if (count > 4) {
+				throw new IOException("Unsupported DER length");
+			}
+			length = 0;
+			for (int i = 0; i < count; i++) {
+				if (position >= end) {
+					throw new IOException("Unexpected end of DER data");
+				}
+				length = (length << 8) | (data[position++] & 0xff);
+			}
+		} else if (length == 0x80) {
+			throw new IOException("Indefinite DER length not supported");
+		}
+		if (length < 0 || length > end - position) {
+			throw new IOException("DER length exceeds data");
+		}
+		return length;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Minimal encoder for the DER encoded ASN.1 structures used by Kerberos and
+ * SPNEGO (counterpart of {@link DerReader}).
+ */
+final class DerWriter {
+
+	private DerWriter() {
+	}
+
+	static byte[] element(final int tag, final byte[]... contents) {
+		int length = 0;
+		for (byte[] content : contents) {
+			length += content.length;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+		out.write(tag);
+		if (length < 0x80) {
+			out.write(length);
+		} else {
+			int count = length > 0xffffff ? 4 : length > 0xffff ? 3 : length > 0xff ? 2 : 1;
+			out.write(0x80 | count);
+			for (int i = count - 1; i >= 0; i--) {
+				out.write(length >>> (8 * i));
+			}
+		}
+		for (byte[] content : contents) {
+			out.write(content, 0, content.length);
+		}
+		return out.toByteArray();
+	}
+
+	static byte[] sequence(final byte[]... contents) {
+		return element(DerReader.TAG_SEQUENCE, contents);
+	}
+
+	static byte[] context(final int contextNumber, final byte[]... contents) {
+		return element(0xa0 | contextNumber, contents);
+	}
+
+	static byte[] application(final int applicationNumber, final byte[]... contents) {
+		return element(0x60 | applicationNumber, contents);
+	}
+
+	static byte[] integer(final long value) {
+		int length = 1;
+		while (length < 8 && (value >> (8 * length - 1)) != 0 && (value >> (8 * length - 1)) != -1) {
+			length++;
+		}
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) (value >>> (8 * (length - 1 - i)));
+		}
+		return element(DerReader.TAG_INTEGER, content);
+	}
+
+	static byte[] enumerated(final int value) {
+		return element(DerReader.TAG_ENUMERATED, new byte[] { (byte) value });
+	}
+
+	static byte[] octetString(final byte[] value) {
+		return element(DerReader.TAG_OCTET_STRING, value);
+	}
+
+	static byte[] generalString(final String value) {
+		return element(DerReader.TAG_GENERAL_STRING, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Encodes the given flags as 32 bit Kerberos bit string (bit 0 is the most
+	 * significant bit).
+	 */
+	static byte[] flags(final int flags) {
+		return element(DerReader.TAG_BIT_STRING,
+				new byte[] { 0, (byte) (flags >>> 24), (byte) (flags >>> 16), (byte) (flags >>> 8), (byte) flags });
+	}
+
+	static byte[] kerberosTime(final long millis) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return element(DerReader.TAG_GENERALIZED_TIME,
+				format.format(new Date(millis)).getBytes(StandardCharsets.US_ASCII));
+	}
+
+	static byte[] oid(final String oid) {
+		String[] arcs = oid.split("\\.");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeBase128(out, Long.parseLong(arcs[0]) * 40 + Long.parseLong(arcs[1]));
+		for (int i = 2; i < arcs.length; i++) {
+			writeBase128(out, Long.parseLong(arcs[i]));
+		}
+		return element(DerReader.TAG_OID, out.toByteArray());
+	}
+
+	private static void writeBase128(final ByteArrayOutputStream out, final long value) {
+		int groups = 1;
+		while (groups < 10 && (value >>> (7 * groups)) != 0) {
+			groups++;
+		}
+		for (int i = groups - 1; i >= 0; i--) {
+			out.write((int) ((value >>> (7 * i)) & 0x7f) | (i > 0 ? 0x80 : 0));
+		}
+	}
+}
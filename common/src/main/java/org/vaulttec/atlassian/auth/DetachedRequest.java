@@ -0,0 +1,170 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Copy of the client information of a request which can be used after the
+ * request is finished (e.g. by write-behind tasks) - the servlet container
+ * recycles the original request object. Only what a login recording reads is
+ * copied, never credentials (the <code>Authorization</code> and
+ * <code>Cookie</code> headers or the query string with e.g.
+ * <code>os_password</code>). The request and its session have attributes of
+ * their own, everything else (parameters, body) isn't available.
+ */
+final class DetachedRequest implements InvocationHandler {
+
+	private static final String[] HEADERS = { "User-Agent", "X-Forwarded-For" };
+
+	private final Map<String, Object> values = new HashMap<String, Object>();
+	private final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+	private DetachedRequest(final HttpServletRequest request) {
+		values.put("getRemoteAddr", request.getRemoteAddr());
+		values.put("getRemoteHost", request.getRemoteHost());
+		values.put("getRemotePort", request.getRemotePort());
+		values.put("getMethod", request.getMethod());
+		values.put("getScheme", request.getScheme());
+		values.put("getServerName", request.getServerName());
+		values.put("getServerPort", request.getServerPort());
+		values.put("isSecure", request.isSecure());
+		values.put("getContextPath", request.getContextPath());
+		values.put("getServletPath", request.getServletPath());
+		values.put("getRequestURI", request.getRequestURI());
+		for (String name : HEADERS) {
+			String value = request.getHeader(name);
+			if (value != null) {
+				headers.put(name.toLowerCase(Locale.ENGLISH), Collections.singletonList(value));
+			}
+		}
+		HttpSession session = request.getSession(false);
+		values.put("getSession", Proxy.newProxyInstance(DetachedRequest.class.getClassLoader(),
+				new Class<?>[] { HttpSession.class }, new Session(session != null ? session.getId() : null)));
+	}
+
+	static HttpServletRequest snapshot(final HttpServletRequest request) {
+		return (HttpServletRequest) Proxy.newProxyInstance(DetachedRequest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new DetachedRequest(request));
+	}
+
+	@Override
+	public Object invoke(final Object proxy, final Method method, final Object[] args) {
+		String name = method.getName();
+		if (values.containsKey(name)) {
+			return values.get(name);
+		}
+		if ("getHeader".equals(name)) {
+			List<String> header = headers.get(((String) args[0]).toLowerCase(Locale.ENGLISH));
+			return header != null && !header.isEmpty() ? header.get(0) : null;
+		}
+		if ("getHeaders".equals(name)) {
+			List<String> header = headers.get(((String) args[0]).toLowerCase(Locale.ENGLISH));
+			return Collections.enumeration(header != null ? header : Collections.<String>emptyList());
+		}
+		if ("getHeaderNames".equals(name)) {
+			return Collections.enumeration(new ArrayList<String>(headers.keySet()));
+		}
+		if ("toString".equals(name)) {
+			return "DetachedRequest" + values;
+		}
+		return invokeDefault(proxy, method, args, attributes);
+	}
+
+	/**
+	 * Handles the attribute methods with the given map, and answers all other
+	 * methods with an empty value.
+	 */
+	private static Object invokeDefault(final Object proxy, final Method method, final Object[] args,
+			final Map<String, Object> attributes) {
+		String name = method.getName();
+		if ("getAttribute".equals(name)) {
+			return attributes.get(args[0]);
+		}
+		if ("setAttribute".equals(name)) {
+			if (args[1] != null) {
+				attributes.put((String) args[0], args[1]);
+			} else {
+				attributes.remove(args[0]);
+			}
+			return null;
+		}
+		if ("removeAttribute".equals(name)) {
+			attributes.remove(args[0]);
+			return null;
+		}
+		if ("getAttributeNames".equals(name)) {
+			return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+		}
+		if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		}
+		if ("equals".equals(name)) {
+			return proxy == args[0];
+		}
+
+		// everything else isn't available anymore
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+	/**
+	 * Stands in for the request's session, with its id (e.g. for a login event)
+	 * but without its attributes. Invalidating it doesn't affect the session.
+	 */
+	private static final class Session implements InvocationHandler {
+
+		private final String id;
+		private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+		Session(final String id) {
+			this.id = id;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) {
+			String name = method.getName();
+			if ("getId".equals(name)) {
+				return id;
+			}
+			if ("toString".equals(name)) {
+				return "DetachedSession[" + id + "]";
+			}
+			return invokeDefault(proxy, method, args, attributes);
+		}
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Learns URI prefixes whose challenges are never answered with an
+ * authentication header (e.g. REST endpoints polled by scripts), and excludes
+ * them from SPNEGO negotiation for a while.
+ * <p>
+ * The challenges and negotiations per URI prefix are counted with the
+ * space-saving algorithm, i.e. only a fixed number of counters is kept. If a
+ * new prefix doesn't find a free counter then it takes over the counter with
+ * the fewest challenges, and the taken over count is remembered as the
+ * counter's possible overestimation. So a prefix is only excluded if at least
+ * the threshold of challenges was issued for it (without any negotiation)
+ * since it got its counter.
+ * <p>
+ * The counters are updated without locking. Only taking over a counter is
+ * serialized, and it looks at a sample of counters (continuing where the
+ * previous takeover stopped) instead of searching all of them.
+ */
+final class ExclusionLearner {
+
+	private static final int EVICTION_SAMPLES = 8;
+
+	private final int depth;
+	private final int threshold;
+	private final long ttlMillis;
+	private final int capacity;
+	private final ConcurrentHashMap<String, Counter> counters;
+	private final ConcurrentHashMap<String, Long> exclusions = new ConcurrentHashMap<String, Long>();
+	private final Object evictionLock = new Object();
+	private Iterator<Map.Entry<String, Counter>> evictionHand;
+
+	ExclusionLearner(final int depth, final int threshold, final long ttlMillis, final int capacity) {
+		this.depth = depth;
+		this.threshold = threshold;
+		this.ttlMillis = ttlMillis;
+		this.capacity = capacity;
+		this.counters = new ConcurrentHashMap<String, Counter>(capacity * 2);
+	}
+
+	/**
+	 * Returns the first path segments (up to the configured depth) of the given
+	 * URI, e.g. <code>/rest/api/2</code> for <code>/rest/api/2/issue/X-1</code>
+	 * with a depth of 3.
+	 */
+	String getPrefix(final String uri) {
+		int end = 0;
+		for (int segments = 0; segments < depth; segments++) {
+			end = uri.indexOf('/', end + 1);
+			if (end == -1) {
+				return uri;
+			}
+		}
+		return uri.substring(0, end);
+	}
+
+	/**
+	 * Returns <code>true</code> if the given URI's prefix is currently excluded.
+	 */
+	boolean isExcluded(final String uri) {
+		if (exclusions.isEmpty()) {
+			return false;
+		}
+		String prefix = getPrefix(uri);
+		Long expires = exclusions.get(prefix);
+		if (expires == null) {
+			return false;
+		}
+		if (expires > System.currentTimeMillis()) {
+			return true;
+		}
+		exclusions.remove(prefix, expires);
+		return false;
+	}
+
+	/**
+	 * Counts a challenge for the given URI. Returns <code>true</code> if the
+	 * URI's prefix is excluded from now on.
+	 */
+	boolean recordChallenge(final String uri) {
+		String prefix = getPrefix(uri);
+		Counter counter = counters.get(prefix);
+		if (counter == null) {
+			counter = acquireCounter(prefix);
+		}
+		long challenges = counter.challenges.incrementAndGet();
+		if (counter.negotiations.get() > 0 || challenges - counter.error < threshold
+				|| !counters.remove(prefix, counter)) {
+			return false;
+		}
+		exclusions.put(prefix, System.currentTimeMillis() + ttlMillis);
+		return true;
+	}
+
+	/**
+	 * Counts a negotiation (a request with an authentication header) for the
+	 * given URI.
+	 */
+	void recordNegotiation(final String uri) {
+		Counter counter = counters.get(getPrefix(uri));
+		if (counter != null) {
+			counter.negotiations.incrementAndGet();
+		}
+	}
+
+	private Counter acquireCounter(final String prefix) {
+		long error = 0;
+		if (counters.size() >= capacity) {
+			synchronized (evictionLock) {
+				if (counters.size() >= capacity) {
+					error = evict();
+				}
+			}
+		}
+		Counter counter = new Counter(error);
+		Counter existing = counters.putIfAbsent(prefix, counter);
+		return existing != null ? existing : counter;
+	}
+
+	/**
+	 * Removes the counter with the fewest challenges from a sample of counters
+	 * and returns its count.
+	 */
+	private long evict() {
+		Map.Entry<String, Counter> min = null;
+		for (int i = 0; i < EVICTION_SAMPLES; i++) {
+			if (evictionHand == null || !evictionHand.hasNext()) {
+				evictionHand = counters.entrySet().iterator();
+				if (!evictionHand.hasNext()) {
+					break;
+				}
+			}
+			Map.Entry<String, Counter> entry = evictionHand.next();
+			if (min == null || entry.getValue().challenges.get() < min.getValue().challenges.get()) {
+				min = entry;
+			}
+		}
+		if (min == null || !counters.remove(min.getKey(), min.getValue())) {
+			return 0;
+		}
+		return min.getValue().challenges.get();
+	}
+
+	/**
+	 * Returns the currently excluded URIs in the syntax of the
+	 * <code>exclude.uris</code> parameter, see {@link #getUris(String)}.
+	 */
+	List<String> getExclusions() {
+		long now = System.currentTimeMillis();
+		List<String> uris = new ArrayList<String>();
+		for (Map.Entry<String, Long> entry : exclusions.entrySet()) {
+			if (entry.getValue() > now) {
+				uris.addAll(getUris(entry.getKey()));
+			}
+		}
+		return uris;
+	}
+
+	/**
+	 * Returns the URIs which are excluded by the given prefix in the syntax of
+	 * the <code>exclude.uris</code> parameter, i.e. the prefix itself and, if it
+	 * has the configured depth, the URIs below it (e.g. <code>/rest/poll</code>
+	 * and <code>/rest/poll/*</code> but not <code>/rest/polling</code>). A
+	 * shorter prefix is a complete URI which is excluded on its own.
+	 */
+	List<String> getUris(final String prefix) {
+		int segments = 0;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (prefix.charAt(i) == '/') {
+				segments++;
+			}
+		}
+		if (segments < depth || prefix.endsWith("/")) {
+			return Collections.singletonList(prefix);
+		}
+		return Arrays.asList(prefix, prefix + "/*");
+	}
+
+	/**
+	 * Returns the currently excluded URI prefixes with their expiry time.
+	 */
+	Map<String, Long> getExclusionExpiries() {
+		long now = System.currentTimeMillis();
+		Map<String, Long> expiries = new HashMap<String, Long>();
+		for (Map.Entry<String, Long> entry : exclusions.entrySet()) {
+			if (entry.getValue() > now) {
+				expiries.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return expiries;
+	}
+
+	/**
+	 * Excludes the given URI prefix until the given expiry time (e.g. from a
+	 * snapshot). Returns <code>true</code> if the prefix wasn't excluded yet.
+	 */
+	boolean restore(final String prefix, final long expires) {
+		return expires > System.currentTimeMillis() && exclusions.putIfAbsent(prefix, expires) == null;
+	}
+
+	void clear() {
+		counters.clear();
+		exclusions.clear();
+	}
+
+	private static class Counter {
+
+		private final AtomicLong challenges;
+		private final AtomicLong negotiations = new AtomicLong();
+		private final long error;
+
+		Counter(final long error) {
+			this.challenges = new AtomicLong(error);
+			this.error = error;
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded cache with a time-to-live per entry. Reads are lock-free, if the
+ * maximum size is exceeded the oldest entries are evicted first.
+ */
+class ExpiringCache<K, V> {
+
+	private final int maxSize;
+	private final long ttlMillis;
+	private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<K, Entry<K, V>>();
+	private final Queue<Entry<K, V>> insertionOrder = new ConcurrentLinkedQueue<Entry<K, V>>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	ExpiringCache(final int maxSize, final long ttlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+	}
+
+	V get(final K key) {
+		Entry<K, V> entry = entries.get(key);
+		if (entry != null) {
+			if (entry.expires > System.currentTimeMillis()) {
+				hits.incrementAndGet();
+				return entry.value;
+			}
+			entries.remove(key, entry);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	void put(final K key, final V value) {
+		put(key, value, ttlMillis);
+	}
+
+	/**
+	 * Adds the given value with its own time-to-live instead of the cache's one.
+	 */
+	void put(final K key, final V value, final long ttlMillis) {
+		Entry<K, V> entry = new Entry<K, V>(key, value, System.currentTimeMillis() + ttlMillis);
+		entries.put(key, entry);
+		track(entry);
+	}
+
+	/**
+	 * Adds the given value only if there's no unexpired entry for the key yet.
+	 * Returns <code>false</code> if there is one.
+	 */
+	boolean putIfAbsent(final K key, final V value) {
+		return putIfAbsent(key, value, ttlMillis);
+	}
+
+	boolean putIfAbsent(final K key, final V value, final long ttlMillis) {
+		long now = System.currentTimeMillis();
+		Entry<K, V> entry = new Entry<K, V>(key, value, now + ttlMillis);
+		Entry<K, V> existing;
+		while ((existing = entries.putIfAbsent(key, entry)) != null) {
+			if (existing.expires > now) {
+				return false;
+			}
+			if (entries.replace(key, existing, entry)) {
+				break;
+			}
+		}
+		track(entry);
+		return true;
+	}
+
+	/**
+	 * Adds the given value with its original expiry time (e.g. from a snapshot),
+	 * unless it's expired already or there's an entry for the key already.
+	 * Returns <code>true</code> if the value was added.
+	 */
+	boolean restore(final K key, final V value, final long expires) {
+		if (expires > System.currentTimeMillis()) {
+			Entry<K, V> entry = new Entry<K, V>(key, value, expires);
+			if (entries.putIfAbsent(key, entry) == null) {
+				track(entry);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Passes all unexpired entries with their expiry time to the given visitor.
+	 */
+	void visit(final Visitor<K, V> visitor) {
+		long now = System.currentTimeMillis();
+		for (Entry<K, V> entry : entries.values()) {
+			if (entry.expires > now) {
+				visitor.visit(entry.key, entry.value, entry.expires);
+			}
+		}
+	}
+
+	interface Visitor<K, V> {
+
+		void visit(K key, V value, long expires);
+	}
+
+	private void track(final Entry<K, V> entry) {
+		insertionOrder.add(entry);
+		if (queued.incrementAndGet() > 2 * maxSize) {
+			purge();
+		}
+
+		// evict the oldest entries if the cache is full
+		while (entries.size() > maxSize) {
+			Entry<K, V> oldest = insertionOrder.poll();
+			if (oldest == null) {
+				break;
+			}
+			queued.decrementAndGet();
+			entries.remove(oldest.key, oldest);
+		}
+	}
+
+	V remove(final K key) {
+		Entry<K, V> entry = entries.remove(key);
+		return entry != null ? entry.value : null;
+	}
+
+	void clear() {
+		entries.clear();
+		insertionOrder.clear();
+		queued.set(0);
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Drops the insertion order records of entries which were replaced or removed
+	 * in the meantime.
+	 */
+	private void purge() {
+		for (Iterator<Entry<K, V>> iterator = insertionOrder.iterator(); iterator.hasNext();) {
+			Entry<K, V> entry = iterator.next();
+			if (entries.get(entry.key) != entry) {
+				iterator.remove();
+				queued.decrementAndGet();
+			}
+		}
+	}
+
+	private static class Entry<K, V> {
+
+		private final K key;
+		private final V value;
+		private final long expires;
+
+		Entry(final K key, final V value, final long expires) {
+			this.key = key;
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
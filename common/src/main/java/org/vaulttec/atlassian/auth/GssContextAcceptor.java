@@ -0,0 +1,213 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.security.Key;
+import java.security.URIParameter;
+import java.util.Map;
+
+import javax.security.auth.Subject;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.NameCallback;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.login.LoginContext;
+import javax.security.auth.login.LoginException;
+
+import org.ietf.jgss.GSSContext;
+import org.ietf.jgss.GSSCredential;
+import org.ietf.jgss.GSSException;
+import org.ietf.jgss.GSSManager;
+import org.ietf.jgss.Oid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.security.jgss.AuthorizationDataEntry;
+import com.sun.security.jgss.ExtendedGSSContext;
+import com.sun.security.jgss.InquireType;
+
+/**
+ * Accepts SPNEGO / Kerberos tokens via JGSS with a server credential which is
+ * created once per configuration. In contrast to the SPNEGO library this gives
+ * access to the established GSS context, e.g. to the ticket's authorization
+ * data (PAC).
+ */
+class GssContextAcceptor implements TokenAcceptor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(GssContextAcceptor.class);
+
+	private static final GSSManager MANAGER = GSSManager.getInstance();
+
+	private final String name;
+	private final LoginContext loginContext;
+	private final GSSCredential serverCredential;
+
+	GssContextAcceptor(final Map<String, String> config) throws LoginException, PrivilegedActionException {
+		this.name = config.get("name");
+
+		loginContext = login(config);
+		serverCredential = Subject.doAs(loginContext.getSubject(), new PrivilegedExceptionAction<GSSCredential>() {
+			@Override
+			public GSSCredential run() throws GSSException {
+				return MANAGER.createCredential(null, GSSCredential.INDEFINITE_LIFETIME,
+						new Oid[] { new Oid("1.3.6.1.5.5.2"), new Oid("1.2.840.113554.1.2.2") },
+						GSSCredential.ACCEPT_ONLY);
+			}
+		});
+		LOG.debug("Created GSS acceptor for configuration '{}'", name);
+	}
+
+	/**
+	 * Performs the JAAS login of the server module of the given SPNEGO
+	 * configuration.
+	 */
+	static LoginContext login(final Map<String, String> config) throws LoginException {
+
+		// the login configuration is read per SPNEGO configuration instead of via
+		// the JVM-wide system property (krb5.conf is applied once by SpnegoSupport)
+		final String username = config.get("spnego.preauth.username");
+		final String password = config.get("spnego.preauth.password");
+		LoginContext loginContext = new LoginContext(config.get("spnego.login.server.module"), null,
+				username != null && !username.isEmpty() ? new PreauthCallbackHandler(username, password) : null,
+				getLoginConfiguration(config));
+		loginContext.login();
+		return loginContext;
+	}
+
+	private static Configuration getLoginConfiguration(final Map<String, String> config) throws LoginException {
+		String loginConf = config.get("spnego.login.conf");
+		if (loginConf == null) {
+			return Configuration.getConfiguration();
+		}
+		try {
+			return Configuration.getInstance("JavaLoginConfig", new URIParameter(new File(loginConf).toURI()));
+		} catch (NoSuchAlgorithmException e) {
+			LoginException loginException = new LoginException("Reading login configuration failed");
+			loginException.initCause(e);
+			throw loginException;
+		}
+	}
+
+	@Override
+	public AcceptResult accept(final byte[] token, final boolean extractPac) throws GSSException {
+		GSSContext context = MANAGER.createContext(serverCredential);
+		try {
+			byte[] responseToken = context.acceptSecContext(token, 0, token.length);
+			if (!context.isEstablished()) {
+				LOG.debug("GSS context not established with configuration '{}'", name);
+				return null;
+			}
+			boolean delegation = context.getCredDelegState();
+			GSSCredential delegatedCredential = delegation ? context.getDelegCred() : null;
+			byte[] pac = extractPac ? extractPac(context) : null;
+			int lifetime = context.getLifetime();
+			return new AcceptResult(context.getSrcName().toString(), responseToken, delegatedCredential, pac,
+					getSessionKeyType(context),
+					lifetime != GSSContext.INDEFINITE_LIFETIME && lifetime > 0
+							? System.currentTimeMillis() + lifetime * 1000L
+							: 0,
+					delegation);
+		} finally {
+			context.dispose();
+		}
+	}
+
+	@Override
+	public void dispose() {
+		try {
+			serverCredential.dispose();
+			loginContext.logout();
+		} catch (GSSException | LoginException e) {
+			LOG.warn("Disposing GSS acceptor for configuration '{}' failed: {}", name, e.getMessage());
+		}
+	}
+
+	private byte[] extractPac(final GSSContext context) {
+		if (context instanceof ExtendedGSSContext) {
+			try {
+				AuthorizationDataEntry[] entries = (AuthorizationDataEntry[]) ((ExtendedGSSContext) context)
+						.inquireSecContext(InquireType.KRB5_GET_AUTHZ_DATA);
+				if (entries != null) {
+					for (AuthorizationDataEntry entry : entries) {
+						byte[] pac = PacDecoder.findPac(entry.getType(), entry.getData());
+						if (pac != null) {
+							return pac;
+						}
+					}
+				}
+			} catch (GSSException | IOException e) {
+				LOG.warn("Reading authorization data with configuration '{}' failed: {}", name, e.getMessage());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the encryption type of the context's session key as JGSS doesn't
+	 * expose the one of the ticket itself.
+	 * <p>
+	 * Its replacement <code>KRB5_GET_SESSION_KEY_EX</code> returns an
+	 * <code>EncryptionKey</code>, and both only exist since Java 9 - the build
+	 * still supports JDK 8, where the deprecated inquire type is the only one.
+	 */
+	@SuppressWarnings("deprecation")
+	private int getSessionKeyType(final GSSContext context) {
+		if (context instanceof ExtendedGSSContext) {
+			try {
+				Key key = (Key) ((ExtendedGSSContext) context).inquireSecContext(InquireType.KRB5_GET_SESSION_KEY);
+				if (key != null) {
+					return Integer.parseInt(key.getAlgorithm());
+				}
+			} catch (GSSException | RuntimeException e) {
+				LOG.debug("Reading session key type with configuration '{}' failed: {}", name, e.getMessage());
+			}
+		}
+		return TicketMetrics.UNKNOWN;
+	}
+
+	private static class PreauthCallbackHandler implements CallbackHandler {
+
+		private final String username;
+		private final String password;
+
+		PreauthCallbackHandler(final String username, final String password) {
+			this.username = username;
+			this.password = password;
+		}
+
+		@Override
+		public void handle(final Callback[] callbacks) throws IOException, UnsupportedCallbackException {
+			for (Callback callback : callbacks) {
+				if (callback instanceof NameCallback) {
+					((NameCallback) callback).setName(username);
+				} else if (callback instanceof PasswordCallback) {
+					((PasswordCallback) callback).setPassword(password != null ? password.toCharArray() : null);
+				} else {
+					throw new UnsupportedCallbackException(callback);
+				}
+			}
+		}
+	}
+}
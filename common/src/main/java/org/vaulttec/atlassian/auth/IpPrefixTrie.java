@@ -0,0 +1,330 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+/**
+ * Compressed radix (PATRICIA) trie of IPv4 / IPv6 address prefixes (CIDR
+ * notation). Each prefix is associated with a bit mask, and a lookup returns
+ * the combined bit mask of all prefixes containing the given address.
+ * <p>
+ * Addresses are handled as 128 bit keys, IPv4 addresses are mapped into the
+ * IPv6 address space (<code>::ffff:0:0/96</code>). The trie is built once and
+ * lookups don't allocate any objects.
+ */
+final class IpPrefixTrie {
+
+	private static final int IPV4_MAPPED_PREFIX_LENGTH = 96;
+	private static final long IPV4_MAPPED_PREFIX = 0xffff00000000L;
+
+	private Node root;
+
+	/**
+	 * Adds the given prefix (e.g. <code>10.0.0.0/8</code>,
+	 * <code>2001:db8::/32</code> or a single address).
+	 */
+	void add(final String cidr, final long bits) throws IllegalArgumentException {
+		int slash = cidr.indexOf('/');
+		String address = slash != -1 ? cidr.substring(0, slash).trim() : cidr.trim();
+		boolean ipv4 = address.indexOf(':') == -1;
+		int length = ipv4 ? 32 : 128;
+		if (slash != -1) {
+			try {
+				length = Integer.parseInt(cidr.substring(slash + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+			}
+			if (length < 0 || length > (ipv4 ? 32 : 128)) {
+				throw new IllegalArgumentException("Invalid prefix length: " + cidr);
+			}
+		}
+		if (ipv4) {
+			length += IPV4_MAPPED_PREFIX_LENGTH;
+		}
+		insert(mask(parse(address, true), 0, length), mask(parse(address, false), 64, length), length, bits);
+	}
+
+	boolean isEmpty() {
+		return root == null;
+	}
+
+	/**
+	 * Returns the combined bit mask of all prefixes which contain the given
+	 * address, or 0 if the address is invalid or not contained in any prefix.
+	 */
+	long match(final String address) {
+		if (root == null || address == null) {
+			return 0;
+		}
+		long high;
+		long low;
+		try {
+			high = parse(address, true);
+			low = parse(address, false);
+		} catch (IllegalArgumentException e) {
+			return 0;
+		}
+		long bits = 0;
+		Node node = root;
+		while (node != null && commonPrefixLength(node.high, node.low, high, low) >= node.length) {
+			bits |= node.bits;
+			if (node.length == 128) {
+				break;
+			}
+			node = bit(high, low, node.length) == 0 ? node.zero : node.one;
+		}
+		return bits;
+	}
+
+	private void insert(final long high, final long low, final int length, final long bits) {
+		if (root == null) {
+			root = new Node(high, low, length, bits);
+			return;
+		}
+		Node parent = null;
+		Node node = root;
+		while (true) {
+			int common = Math.min(commonPrefixLength(node.high, node.low, high, low), Math.min(node.length, length));
+			if (common < node.length) {
+
+				// split the node at the common prefix
+				Node split = new Node(mask(high, 0, common), mask(low, 64, common), common, 0);
+				split.setChild(bit(node.high, node.low, common), node);
+				if (common == length) {
+					split.bits = bits;
+				} else {
+					split.setChild(bit(high, low, common), new Node(high, low, length, bits));
+				}
+				if (parent == null) {
+					root = split;
+				} else {
+					parent.setChild(bit(high, low, parent.length), split);
+				}
+				return;
+			}
+			if (node.length == length) {
+				node.bits |= bits;
+				return;
+			}
+			int bit = bit(high, low, node.length);
+			Node child = bit == 0 ? node.zero : node.one;
+			if (child == null) {
+				node.setChild(bit, new Node(high, low, length, bits));
+				return;
+			}
+			parent = node;
+			node = child;
+		}
+	}
+
+	private static int bit(final long high, final long low, final int index) {
+		return (int) (index < 64 ? (high >>> (63 - index)) & 1 : (low >>> (127 - index)) & 1);
+	}
+
+	private static int commonPrefixLength(final long high1, final long low1, final long high2, final long low2) {
+		if (high1 != high2) {
+			return Long.numberOfLeadingZeros(high1 ^ high2);
+		}
+		return 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+	}
+
+	/**
+	 * Clears all bits of the given 64 bit half (starting at the given bit offset)
+	 * behind the prefix length.
+	 */
+	private static long mask(final long value, final int offset, final int length) {
+		int bits = length - offset;
+		if (bits <= 0) {
+			return 0;
+		}
+		if (bits >= 64) {
+			return value;
+		}
+		return value & (-1L << (64 - bits));
+	}
+
+	/**
+	 * Parses the given IPv4 or IPv6 address (without allocating any objects) and
+	 * returns the high or low 64 bits of the 128 bit key.
+	 */
+	static long parse(final String address, final boolean high) throws IllegalArgumentException {
+		int start = 0;
+		int end = address.length();
+		if (end > 1 && address.charAt(0) == '[' && address.charAt(end - 1) == ']') {
+			start++;
+			end--;
+		}
+		int zone = address.indexOf('%', start);
+		if (zone != -1 && zone < end) {
+			end = zone;
+		}
+		int colon = address.indexOf(':', start);
+		if (colon == -1 || colon >= end) {
+			return high ? 0 : IPV4_MAPPED_PREFIX | parseIPv4(address, start, end);
+		}
+
+		// groups before "::" are accumulated in (high1, low1), groups after it in
+		// (high2, low2)
+		long high1 = 0, low1 = 0, high2 = 0, low2 = 0;
+		int groups = 0;
+		int groupsAfter = -1;
+		int i = start;
+		if (address.startsWith("::", start)) {
+			groupsAfter = 0;
+			i += 2;
+		}
+		while (i < end) {
+			int segmentEnd = i;
+			boolean dotted = false;
+			while (segmentEnd < end && address.charAt(segmentEnd) != ':') {
+				dotted |= address.charAt(segmentEnd) == '.';
+				segmentEnd++;
+			}
+			long value;
+			int count;
+			if (dotted) {
+				if (segmentEnd != end) {
+					throw new IllegalArgumentException("Invalid IPv6 address");
+				}
+				value = parseIPv4(address, i, segmentEnd);
+				count = 2;
+			} else {
+				value = parseHex(address, i, segmentEnd);
+				count = 1;
+			}
+			if (groupsAfter < 0) {
+				for (int j = 0; j < count; j++) {
+					high1 = high1 << 16 | low1 >>> 48;
+					low1 <<= 16;
+				}
+				low1 |= value;
+				groups += count;
+			} else {
+				for (int j = 0; j < count; j++) {
+					high2 = high2 << 16 | low2 >>> 48;
+					low2 <<= 16;
+				}
+				low2 |= value;
+				groupsAfter += count;
+			}
+			if (segmentEnd == end) {
+				break;
+			}
+			if (segmentEnd + 1 < end && address.charAt(segmentEnd + 1) == ':') {
+				if (groupsAfter >= 0) {
+					throw new IllegalArgumentException("Invalid IPv6 address");
+				}
+				groupsAfter = 0;
+				i = segmentEnd + 2;
+			} else {
+				i = segmentEnd + 1;
+				if (i == end) {
+					throw new IllegalArgumentException("Invalid IPv6 address");
+				}
+			}
+		}
+		if (groupsAfter < 0) {
+			if (groups != 8) {
+				throw new IllegalArgumentException("Invalid IPv6 address");
+			}
+			return high ? high1 : low1;
+		}
+		if (groups + groupsAfter > 7) {
+			throw new IllegalArgumentException("Invalid IPv6 address");
+		}
+		for (int j = groups + groupsAfter; j < 8; j++) {
+			high1 = high1 << 16 | low1 >>> 48;
+			low1 <<= 16;
+		}
+		for (int j = 0; j < groupsAfter; j++) {
+			high1 = high1 << 16 | low1 >>> 48;
+			low1 <<= 16;
+		}
+		return high ? high1 | high2 : low1 | low2;
+	}
+
+	private static long parseIPv4(final String address, final int start, final int end) {
+		long value = 0;
+		int octets = 0;
+		int i = start;
+		while (i < end) {
+			int octet = 0;
+			int digits = 0;
+			while (i < end && address.charAt(i) != '.') {
+				char c = address.charAt(i++);
+				if (c < '0' || c > '9' || ++digits > 3) {
+					throw new IllegalArgumentException("Invalid IPv4 address");
+				}
+				octet = octet * 10 + (c - '0');
+			}
+			if (digits == 0 || octet > 255 || ++octets > 4) {
+				throw new IllegalArgumentException("Invalid IPv4 address");
+			}
+			value = value << 8 | octet;
+			if (i < end) {
+				i++;
+				if (i == end) {
+					throw new IllegalArgumentException("Invalid IPv4 address");
+				}
+			}
+		}
+		if (octets != 4) {
+			throw new IllegalArgumentException("Invalid IPv4 address");
+		}
+		return value;
+	}
+
+	private static long parseHex(final String address, final int start, final int end) {
+		if (end == start || end - start > 4) {
+			throw new IllegalArgumentException("Invalid IPv6 address");
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(address.charAt(i), 16);
+			if (digit < 0) {
+				throw new IllegalArgumentException("Invalid IPv6 address");
+			}
+			value = value << 4 | digit;
+		}
+		return value;
+	}
+
+	private static class Node {
+
+		private final long high;
+		private final long low;
+		private final int length;
+		private long bits;
+		private Node zero;
+		private Node one;
+
+		Node(final long high, final long low, final int length, final long bits) {
+			this.high = high;
+			this.low = low;
+			this.length = length;
+			this.bits = bits;
+		}
+
+		void setChild(final int bit, final Node child) {
+			if (bit == 0) {
+				zero = child;
+			} else {
+				one = child;
+			}
+		}
+	}
+}
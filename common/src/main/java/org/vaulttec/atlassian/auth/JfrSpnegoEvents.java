@@ -0,0 +1,227 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR based implementation of {@link SpnegoEvents}. This class is only loaded
+ * if the JFR API is available.
+ * <p>
+ * The high-frequency URI decision and header check events are disabled by
+ * default, the others have a threshold. All of them can be configured via a
+ * JFR settings file.
+ */
+class JfrSpnegoEvents extends SpnegoEvents {
+
+	private static final String PREFIX = "org.vaulttec.atlassian.auth.";
+
+	private final EventType uriDecisionType;
+	private final EventType headerCheckType;
+	private final EventType acceptType;
+	private final EventType userLookupType;
+	private final EventType sessionType;
+
+	JfrSpnegoEvents() {
+		FlightRecorder.register(UriDecisionEvent.class);
+		FlightRecorder.register(HeaderCheckEvent.class);
+		FlightRecorder.register(AcceptEvent.class);
+		FlightRecorder.register(UserLookupEvent.class);
+		FlightRecorder.register(SessionEvent.class);
+		uriDecisionType = EventType.getEventType(UriDecisionEvent.class);
+		headerCheckType = EventType.getEventType(HeaderCheckEvent.class);
+		acceptType = EventType.getEventType(AcceptEvent.class);
+		userLookupType = EventType.getEventType(UserLookupEvent.class);
+		sessionType = EventType.getEventType(SessionEvent.class);
+	}
+
+	@Override
+	Object beginUriDecision() {
+		return uriDecisionType.isEnabled() ? begin(new UriDecisionEvent()) : null;
+	}
+
+	@Override
+	void endUriDecision(final Object event, final String uri, final String decision) {
+		if (event != null) {
+			UriDecisionEvent uriDecision = (UriDecisionEvent) event;
+			uriDecision.end();
+			if (uriDecision.shouldCommit()) {
+				uriDecision.uri = uri;
+				uriDecision.decision = decision;
+				uriDecision.commit();
+			}
+		}
+	}
+
+	@Override
+	Object beginHeaderCheck() {
+		return headerCheckType.isEnabled() ? begin(new HeaderCheckEvent()) : null;
+	}
+
+	@Override
+	void endHeaderCheck(final Object event, final boolean negotiate) {
+		if (event != null) {
+			HeaderCheckEvent headerCheck = (HeaderCheckEvent) event;
+			headerCheck.end();
+			if (headerCheck.shouldCommit()) {
+				headerCheck.negotiate = negotiate;
+				headerCheck.commit();
+			}
+		}
+	}
+
+	@Override
+	Object beginAccept() {
+		return acceptType.isEnabled() ? begin(new AcceptEvent()) : null;
+	}
+
+	@Override
+	void endAccept(final Object event, final String configName, final String result) {
+		if (event != null) {
+			AcceptEvent accept = (AcceptEvent) event;
+			accept.end();
+			if (accept.shouldCommit()) {
+				accept.configuration = configName;
+				accept.result = result;
+				accept.commit();
+			}
+		}
+	}
+
+	@Override
+	Object beginUserLookup() {
+		return userLookupType.isEnabled() ? begin(new UserLookupEvent()) : null;
+	}
+
+	@Override
+	void endUserLookup(final Object event, final String userName, final boolean found) {
+		if (event != null) {
+			UserLookupEvent userLookup = (UserLookupEvent) event;
+			userLookup.end();
+			if (userLookup.shouldCommit()) {
+				userLookup.userName = userName;
+				userLookup.found = found;
+				userLookup.commit();
+			}
+		}
+	}
+
+	@Override
+	Object beginSession() {
+		return sessionType.isEnabled() ? begin(new SessionEvent()) : null;
+	}
+
+	@Override
+	void endSession(final Object event, final String userName, final boolean authorised) {
+		if (event != null) {
+			SessionEvent session = (SessionEvent) event;
+			session.end();
+			if (session.shouldCommit()) {
+				session.userName = userName;
+				session.authorised = authorised;
+				session.commit();
+			}
+		}
+	}
+
+	private static Event begin(final Event event) {
+		event.begin();
+		return event;
+	}
+
+	@Name(PREFIX + "UriDecision")
+	@Label("SPNEGO URI Decision")
+	@Description("Matching of the request URI against the included and excluded URIs")
+	@Category({ "Atlassian", "SPNEGO" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class UriDecisionEvent extends Event {
+
+		@Label("URI")
+		String uri;
+
+		@Label("Decision")
+		String decision;
+	}
+
+	@Name(PREFIX + "HeaderCheck")
+	@Label("SPNEGO Header Check")
+	@Description("Check for a Negotiate authorization header, sends the challenge if missing")
+	@Category({ "Atlassian", "SPNEGO" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class HeaderCheckEvent extends Event {
+
+		@Label("Negotiate Header")
+		boolean negotiate;
+	}
+
+	@Name(PREFIX + "Accept")
+	@Label("SPNEGO Accept")
+	@Description("Acceptance of a SPNEGO token with a single configuration")
+	@Category({ "Atlassian", "SPNEGO" })
+	@Threshold("10 ms")
+	@StackTrace(false)
+	static class AcceptEvent extends Event {
+
+		@Label("Configuration")
+		String configuration;
+
+		@Label("Result")
+		String result;
+	}
+
+	@Name(PREFIX + "UserLookup")
+	@Label("SPNEGO User Lookup")
+	@Description("Lookup of the authenticated user in the product's user directory")
+	@Category({ "Atlassian", "SPNEGO" })
+	@Threshold("10 ms")
+	@StackTrace(false)
+	static class UserLookupEvent extends Event {
+
+		@Label("User Name")
+		String userName;
+
+		@Label("Found")
+		boolean found;
+	}
+
+	@Name(PREFIX + "Session")
+	@Label("SPNEGO Session Establishment")
+	@Description("Authorisation of the authenticated user and establishment of the session")
+	@Category({ "Atlassian", "SPNEGO" })
+	@Threshold("10 ms")
+	@StackTrace(false)
+	static class SessionEvent extends Event {
+
+		@Label("User Name")
+		String userName;
+
+		@Label("Authorised")
+		boolean authorised;
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Kerberos encryption types used by Active Directory: AES128-CTS-HMAC-SHA1-96
+ * and AES256-CTS-HMAC-SHA1-96 [RFC 3962] as well as RC4-HMAC [RFC 4757].
+ */
+final class KerberosCrypto {
+
+	static final int AES128_CTS_HMAC_SHA1_96 = 17;
+	static final int AES256_CTS_HMAC_SHA1_96 = 18;
+	static final int RC4_HMAC = 23;
+
+	static final int KEY_USAGE_TICKET = 2;
+	static final int KEY_USAGE_AUTHENTICATOR = 11;
+	static final int KEY_USAGE_AP_REP = 12;
+
+	private static final int AES_BLOCK_SIZE = 16;
+	private static final int AES_MAC_SIZE = 12;
+	private static final int RC4_CONFOUNDER_SIZE = 8;
+	private static final int RC4_MAC_SIZE = 16;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private KerberosCrypto() {
+	}
+
+	static boolean isSupported(final int etype) {
+		return etype == AES128_CTS_HMAC_SHA1_96 || etype == AES256_CTS_HMAC_SHA1_96 || etype == RC4_HMAC;
+	}
+
+	static byte[] decrypt(final int etype, final byte[] key, final int usage, final byte[] cipher)
+			throws GeneralSecurityException {
+		switch (etype) {
+		case AES128_CTS_HMAC_SHA1_96:
+		case AES256_CTS_HMAC_SHA1_96:
+			return decryptAes(key, usage, cipher);
+		case RC4_HMAC:
+			return decryptRc4(key, usage, cipher);
+		default:
+			throw new GeneralSecurityException("Unsupported encryption type " + etype);
+		}
+	}
+
+	static byte[] encrypt(final int etype, final byte[] key, final int usage, final byte[] plain)
+			throws GeneralSecurityException {
+		switch (etype) {
+		case AES128_CTS_HMAC_SHA1_96:
+		case AES256_CTS_HMAC_SHA1_96:
+			return encryptAes(key, usage, plain);
+		case RC4_HMAC:
+			return encryptRc4(key, usage, plain);
+		default:
+			throw new GeneralSecurityException("Unsupported encryption type " + etype);
+		}
+	}
+
+	private static byte[] decryptAes(final byte[] key, final int usage, final byte[] cipher)
+			throws GeneralSecurityException {
+		if (cipher.length < AES_BLOCK_SIZE + AES_MAC_SIZE) {
+			throw new GeneralSecurityException("Cipher text too short");
+		}
+		byte[] plain = ctsDecrypt(deriveKey(key, usage, 0xaa),
+				Arrays.copyOfRange(cipher, 0, cipher.length - AES_MAC_SIZE));
+		byte[] mac = hmac("HmacSHA1", deriveKey(key, usage, 0x55), plain);
+		if (!MessageDigest.isEqual(Arrays.copyOf(mac, AES_MAC_SIZE),
+				Arrays.copyOfRange(cipher, cipher.length - AES_MAC_SIZE, cipher.length))) {
+			throw new GeneralSecurityException("Integrity check failed");
+		}
+		return Arrays.copyOfRange(plain, AES_BLOCK_SIZE, plain.length);
+	}
+
+	private static byte[] encryptAes(final byte[] key, final int usage, final byte[] plain)
+			throws GeneralSecurityException {
+		byte[] data = new byte[AES_BLOCK_SIZE + plain.length];
+		RANDOM.nextBytes(data);
+		System.arraycopy(plain, 0, data, AES_BLOCK_SIZE, plain.length);
+		byte[] encrypted = ctsEncrypt(deriveKey(key, usage, 0xaa), data);
+		byte[] mac = hmac("HmacSHA1", deriveKey(key, usage, 0x55), data);
+		byte[] cipher = Arrays.copyOf(encrypted, encrypted.length + AES_MAC_SIZE);
+		System.arraycopy(mac, 0, cipher, encrypted.length, AES_MAC_SIZE);
+		return cipher;
+	}
+
+	/**
+	 * Derives the encryption (0xaa) or integrity (0x55) key for the given key
+	 * usage [RFC 3961, DK(key, usage | constant)].
+	 */
+	private static byte[] deriveKey(final byte[] key, final int usage, final int constant)
+			throws GeneralSecurityException {
+		byte[] input = nfold(new byte[] { (byte) (usage >>> 24), (byte) (usage >>> 16), (byte) (usage >>> 8),
+				(byte) usage, (byte) constant }, AES_BLOCK_SIZE);
+		Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+		byte[] derived = new byte[key.length];
+		for (int offset = 0; offset < derived.length; offset += AES_BLOCK_SIZE) {
+			input = cipher.doFinal(input);
+			System.arraycopy(input, 0, derived, offset, Math.min(AES_BLOCK_SIZE, derived.length - offset));
+		}
+		return derived;
+	}
+
+	/**
+	 * AES in CBC mode with ciphertext stealing (swapping the last two blocks)
+	 * and a zero IV [RFC 3962].
+	 */
+	private static byte[] ctsEncrypt(final byte[] key, final byte[] plain) throws GeneralSecurityException {
+		if (plain.length == AES_BLOCK_SIZE) {
+			Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+			return cipher.doFinal(plain);
+		}
+		int blocks = (plain.length + AES_BLOCK_SIZE - 1) / AES_BLOCK_SIZE;
+		int lastLength = plain.length - (blocks - 1) * AES_BLOCK_SIZE;
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[AES_BLOCK_SIZE]));
+		byte[] encrypted = cipher.doFinal(Arrays.copyOf(plain, blocks * AES_BLOCK_SIZE));
+		byte[] result = new byte[plain.length];
+		int secondLast = (blocks - 2) * AES_BLOCK_SIZE;
+		System.arraycopy(encrypted, 0, result, 0, secondLast);
+		System.arraycopy(encrypted, secondLast + AES_BLOCK_SIZE, result, secondLast, AES_BLOCK_SIZE);
+		System.arraycopy(encrypted, secondLast, result, secondLast + AES_BLOCK_SIZE, lastLength);
+		return result;
+	}
+
+	private static byte[] ctsDecrypt(final byte[] key, final byte[] cipherText) throws GeneralSecurityException {
+		SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+		Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+		ecb.init(Cipher.DECRYPT_MODE, keySpec);
+		if (cipherText.length == AES_BLOCK_SIZE) {
+			return ecb.doFinal(cipherText);
+		}
+		int blocks = (cipherText.length + AES_BLOCK_SIZE - 1) / AES_BLOCK_SIZE;
+		int lastLength = cipherText.length - (blocks - 1) * AES_BLOCK_SIZE;
+		int secondLast = (blocks - 2) * AES_BLOCK_SIZE;
+
+		// the second last block decrypts to the (zero padded) last plain block XOR
+		// the original second last cipher block, whose tail is therefore revealed
+		byte[] decrypted = ecb.doFinal(cipherText, secondLast, AES_BLOCK_SIZE);
+		byte[] original = new byte[blocks * AES_BLOCK_SIZE];
+		System.arraycopy(cipherText, 0, original, 0, secondLast);
+		System.arraycopy(cipherText, secondLast + AES_BLOCK_SIZE, original, secondLast, lastLength);
+		System.arraycopy(decrypted, lastLength, original, secondLast + lastLength, AES_BLOCK_SIZE - lastLength);
+		byte[] plain = new byte[cipherText.length];
+		for (int i = 0; i < lastLength; i++) {
+			plain[secondLast + AES_BLOCK_SIZE + i] = (byte) (decrypted[i] ^ original[secondLast + i]);
+		}
+		Cipher cbc = Cipher.getInstance("AES/CBC/NoPadding");
+		cbc.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(new byte[AES_BLOCK_SIZE]));
+		byte[] head = cbc.doFinal(original, 0, secondLast + AES_BLOCK_SIZE);
+		System.arraycopy(head, 0, plain, 0, head.length);
+		return plain;
+	}
+
+	private static byte[] decryptRc4(final byte[] key, final int usage, final byte[] cipher)
+			throws GeneralSecurityException {
+		if (cipher.length < RC4_MAC_SIZE + RC4_CONFOUNDER_SIZE) {
+			throw new GeneralSecurityException("Cipher text too short");
+		}
+		byte[] k1 = hmac("HmacMD5", key, rc4Usage(usage));
+		byte[] checksum = Arrays.copyOf(cipher, RC4_MAC_SIZE);
+		Cipher rc4 = Cipher.getInstance("ARCFOUR");
+		rc4.init(Cipher.DECRYPT_MODE, new SecretKeySpec(hmac("HmacMD5", k1, checksum), "ARCFOUR"));
+		byte[] data = rc4.doFinal(cipher, RC4_MAC_SIZE, cipher.length - RC4_MAC_SIZE);
+		if (!MessageDigest.isEqual(checksum, hmac("HmacMD5", k1, data))) {
+			throw new GeneralSecurityException("Integrity check failed");
+		}
+		return Arrays.copyOfRange(data, RC4_CONFOUNDER_SIZE, data.length);
+	}
+
+	private static byte[] encryptRc4(final byte[] key, final int usage, final byte[] plain)
+			throws GeneralSecurityException {
+		byte[] data = new byte[RC4_CONFOUNDER_SIZE + plain.length];
+		RANDOM.nextBytes(data);
+		System.arraycopy(plain, 0, data, RC4_CONFOUNDER_SIZE, plain.length);
+		byte[] k1 = hmac("HmacMD5", key, rc4Usage(usage));
+		byte[] checksum = hmac("HmacMD5", k1, data);
+		Cipher rc4 = Cipher.getInstance("ARCFOUR");
+		rc4.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(hmac("HmacMD5", k1, checksum), "ARCFOUR"));
+		byte[] encrypted = rc4.doFinal(data);
+		byte[] cipher = Arrays.copyOf(checksum, RC4_MAC_SIZE + encrypted.length);
+		System.arraycopy(encrypted, 0, cipher, RC4_MAC_SIZE, encrypted.length);
+		return cipher;
+	}
+
+	private static byte[] rc4Usage(final int usage) {
+
+		// RC4-HMAC uses the Microsoft key usage numbers, which only differ for 3
+		int msUsage = usage == 3 ? 8 : usage;
+		return new byte[] { (byte) msUsage, (byte) (msUsage >>> 8), (byte) (msUsage >>> 16), (byte) (msUsage >>> 24) };
+	}
+
+	private static byte[] hmac(final String algorithm, final byte[] key, final byte[] data)
+			throws GeneralSecurityException {
+		Mac mac = Mac.getInstance(algorithm);
+		mac.init(new SecretKeySpec(key, algorithm));
+		return mac.doFinal(data);
+	}
+
+	/**
+	 * Stretches or folds the given input to the given number of bytes [RFC 3961,
+	 * section 5.1].
+	 */
+	static byte[] nfold(final byte[] input, final int outLength) {
+		int inLength = input.length;
+		int lcm = outLength * inLength / gcd(outLength, inLength);
+		byte[] out = new byte[outLength];
+		int carry = 0;
+		for (int i = lcm - 1; i >= 0; i--) {
+			int msbit = ((inLength << 3) - 1 + (((inLength << 3) + 13) * (i / inLength))
+					+ ((inLength - (i % inLength)) << 3)) % (inLength << 3);
+			int value = ((((input[((inLength - 1) - (msbit >>> 3)) % inLength] & 0xff) << 8)
+					| (input[(inLength - (msbit >>> 3)) % inLength] & 0xff)) >>> ((msbit & 7) + 1)) & 0xff;
+			value += carry + (out[i % outLength] & 0xff);
+			out[i % outLength] = (byte) value;
+			carry = value >>> 8;
+		}
+		for (int i = outLength - 1; carry != 0 && i >= 0; i--) {
+			carry += out[i] & 0xff;
+			out[i] = (byte) carry;
+			carry >>>= 8;
+		}
+		return out;
+	}
+
+	private static int gcd(final int a, final int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+}
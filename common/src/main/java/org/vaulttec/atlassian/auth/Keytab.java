@@ -0,0 +1,157 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Service keys read from a keytab file in the MIT format (version 0x502, as
+ * created by <code>ktpass</code> or <code>ktutil</code>).
+ */
+final class Keytab {
+
+	private static final int VERSION = 0x502;
+
+	private final List<Entry> entries;
+
+	Keytab(final List<Entry> entries) {
+		this.entries = entries;
+	}
+
+	static Keytab read(final String keytabFile) throws IOException {
+		return parse(Files.readAllBytes(Paths.get(keytabFile)));
+	}
+
+	static Keytab parse(final byte[] data) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		List<Entry> entries = new ArrayList<Entry>();
+		try {
+			if ((buffer.getShort() & 0xffff) != VERSION) {
+				throw new IOException("Unsupported keytab version");
+			}
+			while (buffer.remaining() >= 4) {
+				int size = buffer.getInt();
+				if (size < 0) {
+
+					// deleted entry
+					buffer.position(buffer.position() - size);
+					continue;
+				}
+				if (size == 0 || size > buffer.remaining()) {
+					break;
+				}
+				int end = buffer.position() + size;
+				int components = buffer.getShort() & 0xffff;
+				String realm = readString(buffer);
+				StringBuilder principal = new StringBuilder();
+				for (int i = 0; i < components; i++) {
+					if (i > 0) {
+						principal.append('/');
+					}
+					principal.append(readString(buffer));
+				}
+				principal.append('@').append(realm);
+				buffer.getInt(); // name type
+				buffer.getInt(); // timestamp
+				int kvno = buffer.get() & 0xff;
+				int etype = buffer.getShort() & 0xffff;
+				byte[] key = new byte[buffer.getShort() & 0xffff];
+				buffer.get(key);
+
+				// optional 32 bit key version number
+				if (end - buffer.position() >= 4) {
+					int kvno32 = buffer.getInt();
+					if (kvno32 != 0) {
+						kvno = kvno32;
+					}
+				}
+				buffer.position(end);
+				entries.add(new Entry(principal.toString(), kvno, etype, key));
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Invalid keytab", e);
+		}
+		return new Keytab(Collections.unmodifiableList(entries));
+	}
+
+	private static String readString(final ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xffff];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the key of the given service principal (e.g.
+	 * <code>HTTP/www.example.com@EXAMPLE.COM</code>) and encryption type. If
+	 * there's no key with the requested version number (or the version is -1)
+	 * then the key with the highest version number is returned.
+	 */
+	byte[] getKey(final String principal, final int etype, final int kvno) {
+		Entry latest = null;
+		for (Entry entry : entries) {
+			if (entry.etype == etype && entry.principal.equalsIgnoreCase(principal)) {
+				if (entry.kvno == kvno) {
+					return entry.key;
+				}
+				if (latest == null || entry.kvno > latest.kvno) {
+					latest = entry;
+				}
+			}
+		}
+		return latest != null ? latest.key : null;
+	}
+
+	List<Entry> getEntries() {
+		return entries;
+	}
+
+	static class Entry {
+
+		private final String principal;
+		private final int kvno;
+		private final int etype;
+		private final byte[] key;
+
+		Entry(final String principal, final int kvno, final int etype, final byte[] key) {
+			this.principal = principal;
+			this.kvno = kvno;
+			this.etype = etype;
+			this.key = key;
+		}
+
+		String getPrincipal() {
+			return principal;
+		}
+
+		int getKvno() {
+			return kvno;
+		}
+
+		int getEtype() {
+			return etype;
+		}
+	}
+}
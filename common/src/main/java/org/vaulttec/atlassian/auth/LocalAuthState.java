@@ -0,0 +1,139 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-JVM implementation of {@link SharedAuthState}, i.e. the state is only
+ * shared by the threads of one node. It's the default if no shared state is
+ * configured, and it backs the stand-in server for multi-JVM tests.
+ */
+public class LocalAuthState implements SharedAuthState {
+
+	private static final String CONFIG_PARAM_SIZE = "shared.state.size";
+	private static final int DEFAULT_SIZE = 100000;
+
+	private final int maxSize;
+	private final ConcurrentHashMap<String, ExpiringCache<String, AtomicLong>> namespaces
+			= new ConcurrentHashMap<String, ExpiringCache<String, AtomicLong>>();
+
+	public LocalAuthState(final Map<String, String> params) {
+		this(params.get(CONFIG_PARAM_SIZE) != null ? Integer.parseInt(params.get(CONFIG_PARAM_SIZE).trim())
+				: DEFAULT_SIZE);
+	}
+
+	/**
+	 * Creates a state with the given maximum number of entries per namespace.
+	 */
+	LocalAuthState(final int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	@Override
+	public long get(final String namespace, final String key) {
+		AtomicLong value = namespace(namespace).get(key);
+		return value != null ? value.get() : 0;
+	}
+
+	@Override
+	public void put(final String namespace, final String key, final long value, final long ttlMillis) {
+		namespace(namespace).put(key, new AtomicLong(value), ttlMillis);
+	}
+
+	@Override
+	public boolean putIfAbsent(final String namespace, final String key, final long value, final long ttlMillis) {
+		return namespace(namespace).putIfAbsent(key, new AtomicLong(value), ttlMillis);
+	}
+
+	@Override
+	public long increment(final String namespace, final String key, final long ttlMillis) {
+		ExpiringCache<String, AtomicLong> entries = namespace(namespace);
+		AtomicLong value;
+		while ((value = entries.get(key)) == null) {
+			if (entries.putIfAbsent(key, new AtomicLong(), ttlMillis)) {
+				value = entries.get(key);
+				if (value != null) {
+					break;
+				}
+			}
+		}
+		long incremented = value.incrementAndGet();
+
+		// (re-)adding the counter extends its expiry
+		entries.put(key, value, ttlMillis);
+		return incremented;
+	}
+
+	@Override
+	public void remove(final String namespace, final String key) {
+		namespace(namespace).remove(key);
+	}
+
+	@Override
+	public int size(final String namespace) {
+		final int[] count = new int[1];
+		namespace(namespace).visit(new ExpiringCache.Visitor<String, AtomicLong>() {
+			@Override
+			public void visit(final String key, final AtomicLong value, final long expires) {
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * Passes all unexpired entries of the given namespace with their expiry time
+	 * to the given visitor.
+	 */
+	void visit(final String namespace, final ExpiringCache.Visitor<String, AtomicLong> visitor) {
+		namespace(namespace).visit(visitor);
+	}
+
+	/**
+	 * Adds the given entry with its original expiry time (e.g. from a snapshot),
+	 * see {@link ExpiringCache#restore(Object, Object, long)}.
+	 */
+	boolean restore(final String namespace, final String key, final long value, final long expires) {
+		return namespace(namespace).restore(key, new AtomicLong(value), expires);
+	}
+
+	@Override
+	public void setInvalidationListener(final InvalidationListener listener) {
+		// there are no other nodes
+	}
+
+	@Override
+	public void close() {
+		namespaces.clear();
+	}
+
+	private ExpiringCache<String, AtomicLong> namespace(final String namespace) {
+		ExpiringCache<String, AtomicLong> entries = namespaces.get(namespace);
+		if (entries == null) {
+			ExpiringCache<String, AtomicLong> created = new ExpiringCache<String, AtomicLong>(maxSize, 0);
+			entries = namespaces.putIfAbsent(namespace, created);
+			if (entries == null) {
+				entries = created;
+			}
+		}
+		return entries;
+	}
+}
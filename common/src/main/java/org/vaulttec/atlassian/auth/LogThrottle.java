@@ -0,0 +1,74 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rate limit for logging identical exceptions (same type, message and
+ * throwing code location), so a misbehaving client can't flood the log with
+ * stack traces.
+ */
+final class LogThrottle {
+
+	private static final int MAX_EXCEPTIONS = 100;
+
+	private final long intervalMillis;
+	private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+	LogThrottle(final long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * Returns the number of identical exceptions which were suppressed since the
+	 * given one was logged last time, or -1 if it should be suppressed now.
+	 */
+	long acquire(final Throwable exception) {
+		StackTraceElement[] stackTrace = exception.getStackTrace();
+		String key = exception.getClass().getName() + ':' + exception.getMessage() + '@'
+				+ (stackTrace.length > 0 ? stackTrace[0] : "");
+		Window window = windows.get(key);
+		if (window == null) {
+			if (windows.size() >= MAX_EXCEPTIONS) {
+				windows.clear();
+			}
+			Window existing = windows.putIfAbsent(key, window = new Window());
+			if (existing != null) {
+				window = existing;
+			}
+		}
+		long now = System.currentTimeMillis();
+		synchronized (window) {
+			if (window.logged != 0 && now - window.logged < intervalMillis) {
+				window.suppressed++;
+				return -1;
+			}
+			long suppressed = window.suppressed;
+			window.logged = now;
+			window.suppressed = 0;
+			return suppressed;
+		}
+	}
+
+	private static final class Window {
+
+		private long logged;
+		private long suppressed;
+	}
+}
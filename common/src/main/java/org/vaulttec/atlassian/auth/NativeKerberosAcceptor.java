@@ -0,0 +1,329 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.ietf.jgss.GSSException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Accepts SPNEGO / Kerberos tokens by validating the Kerberos AP-REQ directly
+ * with the service keys from a keytab, without JAAS login, JGSS and its
+ * synchronized internals [RFC 4120, RFC 4121, RFC 4178].
+ * <p>
+ * The ticket and authenticator are decrypted, the authenticator's client,
+ * timestamp (clock skew) and GSS checksum are checked, and replayed
+ * authenticators are rejected. Only single-token SPNEGO with an optimistic
+ * Kerberos token is supported, and delegated credentials are ignored.
+ */
+final class NativeKerberosAcceptor implements TokenAcceptor {
+
+	private static final Logger LOG = LoggerFactory.getLogger(NativeKerberosAcceptor.class);
+
+	static final String SPNEGO_OID = "1.3.6.1.5.5.2";
+	static final String KRB5_OID = "1.2.840.113554.1.2.2";
+	static final String KRB5_MS_OID = "1.2.840.48018.1.2.2";
+
+	private static final int GSS_CHECKSUM_TYPE = 0x8003;
+	private static final int GSS_C_DELEG_FLAG = 1;
+	private static final int GSS_C_MUTUAL_FLAG = 2;
+	private static final int AP_OPTION_MUTUAL_REQUIRED = 0x20000000;
+	private static final long DEFAULT_CLOCK_SKEW = 300;
+	private static final int REPLAY_CACHE_SIZE = 100000;
+
+	private final String name;
+	private final Keytab keytab;
+	private final String principal;
+	private final long clockSkewMillis;
+	private final SharedAuthState replayState;
+	private final boolean sharedReplayState;
+
+	/**
+	 * Creates an acceptor which detects replayed authenticators via the given
+	 * (cluster-wide) state, or with its own replay cache if it's
+	 * <code>null</code>.
+	 */
+	NativeKerberosAcceptor(final Map<String, String> config, final SharedAuthState replayState)
+			throws IOException {
+		this(config.get("name"), readKeytab(config), config.get("spnego.keytab.principal"),
+				config.get("spnego.clock.skew") != null ? Long.parseLong(config.get("spnego.clock.skew").trim())
+						: DEFAULT_CLOCK_SKEW,
+				replayState);
+	}
+
+	NativeKerberosAcceptor(final String name, final Keytab keytab, final String principal,
+			final long clockSkewSeconds) {
+		this(name, keytab, principal, clockSkewSeconds, null);
+	}
+
+	NativeKerberosAcceptor(final String name, final Keytab keytab, final String principal,
+			final long clockSkewSeconds, final SharedAuthState replayState) {
+		this.name = name;
+		this.keytab = keytab;
+		this.principal = principal;
+		this.clockSkewMillis = clockSkewSeconds * 1000;
+		this.replayState = replayState != null ? replayState : new LocalAuthState(REPLAY_CACHE_SIZE);
+		this.sharedReplayState = replayState != null;
+		LOG.debug("Created native Kerberos acceptor for configuration '{}' with {} keys", name,
+				keytab.getEntries().size());
+	}
+
+	private static Keytab readKeytab(final Map<String, String> config) throws IOException {
+		String keytabFile = config.get("spnego.keytab");
+		if (keytabFile == null) {
+			throw new IOException("No keytab configured for native engine");
+		}
+		return Keytab.read(keytabFile.trim());
+	}
+
+	@Override
+	public AcceptResult accept(final byte[] token, final boolean extractPac) throws GSSException {
+		try {
+			return acceptToken(token, extractPac);
+		} catch (IOException e) {
+			throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, e.getMessage());
+		} catch (GeneralSecurityException e) {
+			throw new GSSException(GSSException.FAILURE, -1, e.getMessage());
+		} catch (RuntimeException e) {
+
+			// a crafted token must be rejected instead of failing the request
+			throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, e.toString());
+		}
+	}
+
+	@Override
+	public void dispose() {
+
+		// a shared state is closed by its owner
+		if (!sharedReplayState) {
+			replayState.close();
+		}
+	}
+
+	private AcceptResult acceptToken(final byte[] token, final boolean extractPac)
+			throws IOException, GeneralSecurityException, GSSException {
+
+		// unwrap the AP-REQ from the SPNEGO NegTokenInit / Kerberos GSS token
+		DerReader gssToken = new DerReader(token).readApplication(0);
+		String mech = gssToken.readOid();
+		boolean spnego = SPNEGO_OID.equals(mech);
+		if (spnego) {
+			DerReader negTokenInit = gssToken.readContext(0).readSequence();
+			mech = negTokenInit.readContext(0).readSequence().readOid();
+			if (!isKerberos(mech)) {
+				throw new GSSException(GSSException.BAD_MECH, -1, "Preferred mechanism " + mech + " not supported");
+			}
+			negTokenInit.readOptional(1);
+			DerReader mechToken = negTokenInit.readOptional(2);
+			if (mechToken == null) {
+				throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "No optimistic Kerberos token");
+			}
+			gssToken = new DerReader(mechToken.readOctetString()).readApplication(0);
+			if (!isKerberos(gssToken.readOid())) {
+				throw new GSSException(GSSException.BAD_MECH);
+			}
+		} else if (!isKerberos(mech)) {
+			throw new GSSException(GSSException.BAD_MECH, -1, "Mechanism " + mech + " not supported");
+		}
+		byte[] krb5Token = gssToken.remaining();
+		if (krb5Token.length < 2 || krb5Token[0] != 1 || krb5Token[1] != 0) {
+			throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "No AP-REQ");
+		}
+		DerReader apReq = new DerReader(krb5Token, 2, krb5Token.length - 2).readApplication(14).readSequence();
+		if (apReq.readContext(0).readInteger() != 5 || apReq.readContext(1).readInteger() != 14) {
+			throw new GSSException(GSSException.DEFECTIVE_TOKEN, -1, "Invalid AP-REQ");
+		}
+		int apOptions = apReq.readContext(2).readFlags();
+
+		// decrypt the ticket with the service key
+		DerReader ticket = apReq.readContext(3).readApplication(1).readSequence();
+		ticket.readContext(0);
+		String serverRealm = ticket.readContext(1).readGeneralString();
+		String serverName = readPrincipalName(ticket.readContext(2)) + '@' + serverRealm;
+		if (principal != null && !principal.equalsIgnoreCase(serverName)) {
+			throw new GSSException(GSSException.NO_CRED, -1, "Ticket for unexpected service " + serverName);
+		}
+		EncryptedData encryptedTicket = new EncryptedData(ticket.readContext(3));
+		byte[] serviceKey = keytab.getKey(serverName, encryptedTicket.etype, encryptedTicket.kvno);
+		if (serviceKey == null) {
+			throw new GSSException(GSSException.NO_CRED, -1,
+					"No key for " + serverName + " with encryption type " + encryptedTicket.etype);
+		}
+		DerReader ticketPart = new DerReader(KerberosCrypto.decrypt(encryptedTicket.etype, serviceKey,
+				KerberosCrypto.KEY_USAGE_TICKET, encryptedTicket.cipher)).readApplication(3).readSequence();
+		ticketPart.readContext(0);
+		DerReader sessionKeyElement = ticketPart.readContext(1).readSequence();
+		int sessionKeyType = (int) sessionKeyElement.readContext(0).readInteger();
+		byte[] sessionKey = sessionKeyElement.readContext(1).readOctetString();
+		String clientRealm = ticketPart.readContext(2).readGeneralString();
+		String clientName = readPrincipalName(ticketPart.readContext(3)) + '@' + clientRealm;
+		ticketPart.readContext(4);
+		long authTime = ticketPart.readContext(5).readKerberosTime();
+		DerReader startTimeElement = ticketPart.readOptional(6);
+		long startTime = startTimeElement != null ? startTimeElement.readKerberosTime() : authTime;
+		long endTime = ticketPart.readContext(7).readKerberosTime();
+		ticketPart.readOptional(8);
+		ticketPart.readOptional(9);
+		DerReader authorizationData = ticketPart.readOptional(10);
+		long now = System.currentTimeMillis();
+		if (startTime - clockSkewMillis > now) {
+			throw new GSSException(GSSException.DEFECTIVE_CREDENTIAL, -1, "Ticket not yet valid");
+		}
+		if (endTime + clockSkewMillis < now) {
+			throw new GSSException(GSSException.CREDENTIALS_EXPIRED, -1, "Ticket expired");
+		}
+
+		// decrypt and check the authenticator with the session key
+		EncryptedData encryptedAuthenticator = new EncryptedData(apReq.readContext(4));
+		DerReader authenticator = new DerReader(KerberosCrypto.decrypt(sessionKeyType, sessionKey,
+				KerberosCrypto.KEY_USAGE_AUTHENTICATOR, encryptedAuthenticator.cipher)).readApplication(2)
+						.readSequence();
+		authenticator.readContext(0);
+		String authenticatorRealm = authenticator.readContext(1).readGeneralString();
+		String authenticatorName = readPrincipalName(authenticator.readContext(2)) + '@' + authenticatorRealm;
+		if (!clientName.equals(authenticatorName)) {
+			throw new GSSException(GSSException.BAD_NAME, -1, "Authenticator doesn't match ticket");
+		}
+		DerReader checksum = authenticator.readOptional(3);
+		long cusec = authenticator.readContext(4).readInteger();
+		long ctime = authenticator.readContext(5).readKerberosTime();
+		if (Math.abs(ctime - now) > clockSkewMillis) {
+			throw new GSSException(GSSException.FAILURE, -1, "Clock skew too great");
+		}
+		int gssFlags = readGssFlags(checksum);
+
+		// the same authenticator must not be accepted twice within the clock skew
+		if (!replayState.putIfAbsent(SharedAuthState.REPLAY, clientName + ' ' + serverName + ' ' + ctime + '.' + cusec,
+				1, 2 * clockSkewMillis)) {
+			throw new GSSException(GSSException.DUPLICATE_TOKEN, -1, "Replayed authenticator of " + clientName);
+		}
+		byte[] pac = extractPac && authorizationData != null ? findPac(authorizationData) : null;
+
+		// mutual authentication requires an AP-REP
+		byte[] responseToken = null;
+		if ((gssFlags & GSS_C_MUTUAL_FLAG) != 0 || (apOptions & AP_OPTION_MUTUAL_REQUIRED) != 0) {
+			responseToken = createApRep(sessionKeyType, sessionKey, ctime, cusec);
+		}
+		if (spnego) {
+			responseToken = DerWriter.context(1,
+					DerWriter.sequence(DerWriter.context(0, DerWriter.enumerated(0)),
+							DerWriter.context(1, DerWriter.oid(mech)),
+							responseToken != null ? DerWriter.context(2, DerWriter.octetString(responseToken))
+									: new byte[0]));
+		}
+		return new AcceptResult(clientName, responseToken, null, pac, encryptedTicket.etype, endTime,
+				(gssFlags & GSS_C_DELEG_FLAG) != 0);
+	}
+
+	private static boolean isKerberos(final String oid) {
+		return KRB5_OID.equals(oid) || KRB5_MS_OID.equals(oid);
+	}
+
+	private static String readPrincipalName(final DerReader element) throws IOException {
+		DerReader principalName = element.readSequence();
+		principalName.readContext(0);
+		DerReader components = principalName.readContext(1).readSequence();
+		StringBuilder name = new StringBuilder(components.readGeneralString());
+		while (components.hasMore()) {
+			name.append('/').append(components.readGeneralString());
+		}
+		return name.toString();
+	}
+
+	/**
+	 * Checks the GSS checksum of the authenticator [RFC 4121, section 4.1.1] and
+	 * returns its context flags. Channel bindings are not checked as they aren't
+	 * available for HTTP.
+	 */
+	private static int readGssFlags(final DerReader checksumElement) throws IOException, GSSException {
+		if (checksumElement == null) {
+			throw new GSSException(GSSException.FAILURE, -1, "No checksum in authenticator");
+		}
+		DerReader checksum = checksumElement.readSequence();
+		if (checksum.readContext(0).readInteger() != GSS_CHECKSUM_TYPE) {
+			throw new GSSException(GSSException.FAILURE, -1, "Unexpected checksum type in authenticator");
+		}
+		byte[] value = checksum.readContext(1).readOctetString();
+		if (value.length < 24 || littleEndianInt(value, 0) != 16) {
+			throw new GSSException(GSSException.FAILURE, -1, "Invalid GSS checksum");
+		}
+		return littleEndianInt(value, 20);
+	}
+
+	private static int littleEndianInt(final byte[] data, final int offset) {
+		return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16
+				| (data[offset + 3] & 0xff) << 24;
+	}
+
+	private byte[] findPac(final DerReader authorizationData) {
+		try {
+			DerReader entries = authorizationData.readSequence();
+			while (entries.hasMore()) {
+				DerReader entry = entries.readSequence();
+				int type = (int) entry.readContext(0).readInteger();
+				byte[] pac = PacDecoder.findPac(type, entry.readContext(1).readOctetString());
+				if (pac != null) {
+					return pac;
+				}
+			}
+		} catch (IOException e) {
+			LOG.warn("Reading authorization data with configuration '{}' failed: {}", name, e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Creates the Kerberos GSS token with the AP-REP for mutual authentication.
+	 */
+	private static byte[] createApRep(final int sessionKeyType, final byte[] sessionKey, final long ctime,
+			final long cusec) throws GeneralSecurityException {
+		byte[] encApRepPart = DerWriter.application(27,
+				DerWriter.sequence(DerWriter.context(0, DerWriter.kerberosTime(ctime)),
+						DerWriter.context(1, DerWriter.integer(cusec)),
+						DerWriter.context(3, DerWriter.integer(ThreadLocalRandom.current().nextInt(0x3fffffff)))));
+		byte[] apRep = DerWriter.application(15,
+				DerWriter.sequence(DerWriter.context(0, DerWriter.integer(5)),
+						DerWriter.context(1, DerWriter.integer(15)),
+						DerWriter.context(2,
+								DerWriter.sequence(DerWriter.context(0, DerWriter.integer(sessionKeyType)),
+										DerWriter.context(2, DerWriter.octetString(KerberosCrypto.encrypt(
+												sessionKeyType, sessionKey, KerberosCrypto.KEY_USAGE_AP_REP,
+												encApRepPart)))))));
+		return DerWriter.application(0, DerWriter.oid(KRB5_OID), new byte[] { 2, 0 }, apRep);
+	}
+
+	private static class EncryptedData {
+
+		private final int etype;
+		private final int kvno;
+		private final byte[] cipher;
+
+		EncryptedData(final DerReader element) throws IOException {
+			DerReader encryptedData = element.readSequence();
+			etype = (int) encryptedData.readContext(0).readInteger();
+			DerReader kvnoElement = encryptedData.readOptional(1);
+			kvno = kvnoElement != null ? (int) kvnoElement.readInteger() : -1;
+			cipher = encryptedData.readContext(2).readOctetString();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Near-cache in front of a {@link SharedAuthState} backend. Reads are answered
+ * from a short-lived local cache which is invalidated by the backend's
+ * invalidation messages, so e.g. checking a client which isn't in backoff
+ * doesn't need a roundtrip per request. A value read from the backend isn't
+ * cached if an invalidation arrived meanwhile. If an invalidation message is
+ * lost the cached value is stale for at most the cache's time-to-live.
+ * <p>
+ * Writes go to the backend and to a node-local copy. While the backend isn't
+ * available the node-local copy answers, i.e. the node falls back to its own
+ * state instead of failing the authentication.
+ */
+final class NearCachedAuthState implements SharedAuthState {
+
+	private static final Logger LOG = LoggerFactory.getLogger(NearCachedAuthState.class);
+
+	private static final LogThrottle LOG_THROTTLE = new LogThrottle(60000);
+
+	private final SharedAuthState backend;
+	private final ExpiringCache<String, Long> near;
+	private final LocalAuthState local;
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	NearCachedAuthState(final SharedAuthState backend, final int maxSize, final long ttlMillis) {
+		this.backend = backend;
+		this.near = new ExpiringCache<String, Long>(maxSize, ttlMillis);
+		this.local = new LocalAuthState(maxSize);
+		backend.setInvalidationListener(new InvalidationListener() {
+			@Override
+			public void invalidate(final String namespace, final String key) {
+				invalidateNear(namespace, key);
+			}
+		});
+	}
+
+	@Override
+	public long get(final String namespace, final String key) {
+		String nearKey = nearKey(namespace, key);
+		Long value = near.get(nearKey);
+		if (value != null) {
+			return value;
+		}
+		long generation = invalidations.get();
+		try {
+			long backendValue = backend.get(namespace, key);
+			if (invalidations.get() == generation) {
+				near.put(nearKey, backendValue);
+			}
+			return backendValue;
+		} catch (RuntimeException e) {
+			failed(e);
+			return local.get(namespace, key);
+		}
+	}
+
+	@Override
+	public void put(final String namespace, final String key, final long value, final long ttlMillis) {
+		local.put(namespace, key, value, ttlMillis);
+		invalidateNear(namespace, key);
+		try {
+			backend.put(namespace, key, value, ttlMillis);
+		} catch (RuntimeException e) {
+			failed(e);
+		}
+	}
+
+	@Override
+	public boolean putIfAbsent(final String namespace, final String key, final long value, final long ttlMillis) {
+
+		// an entry added by this node is found without a roundtrip
+		if (!local.putIfAbsent(namespace, key, value, ttlMillis)) {
+			return false;
+		}
+		invalidateNear(namespace, key);
+		try {
+			return backend.putIfAbsent(namespace, key, value, ttlMillis);
+		} catch (RuntimeException e) {
+			failed(e);
+			return true;
+		}
+	}
+
+	@Override
+	public long increment(final String namespace, final String key, final long ttlMillis) {
+		long localValue = local.increment(namespace, key, ttlMillis);
+		invalidateNear(namespace, key);
+		try {
+			return backend.increment(namespace, key, ttlMillis);
+		} catch (RuntimeException e) {
+			failed(e);
+			return localValue;
+		}
+	}
+
+	@Override
+	public void remove(final String namespace, final String key) {
+		local.remove(namespace, key);
+		invalidateNear(namespace, key);
+		try {
+			backend.remove(namespace, key);
+		} catch (RuntimeException e) {
+			failed(e);
+		}
+	}
+
+	@Override
+	public int size(final String namespace) {
+		try {
+			return backend.size(namespace);
+		} catch (RuntimeException e) {
+			failed(e);
+			return local.size(namespace);
+		}
+	}
+
+	@Override
+	public void setInvalidationListener(final InvalidationListener listener) {
+		// the near-cache itself is the backend's listener
+	}
+
+	@Override
+	public void close() {
+		try {
+			backend.close();
+		} catch (RuntimeException e) {
+			LOG.warn("Closing shared authentication state failed: {}", e.toString());
+		}
+		near.clear();
+		local.close();
+	}
+
+	long getHits() {
+		return near.getHits();
+	}
+
+	long getMisses() {
+		return near.getMisses();
+	}
+
+	long getFailures() {
+		return failures.get();
+	}
+
+	private void invalidateNear(final String namespace, final String key) {
+		invalidations.incrementAndGet();
+		near.remove(nearKey(namespace, key));
+	}
+
+	private static String nearKey(final String namespace, final String key) {
+		return namespace + '\n' + key;
+	}
+
+	private void failed(final RuntimeException e) {
+		failures.incrementAndGet();
+		long suppressed = LOG_THROTTLE.acquire(e);
+		if (suppressed >= 0) {
+			LOG.warn("Shared authentication state not available - using node-local state ({} identical errors "
+					+ "suppressed): {}", suppressed, e.toString());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return backend.toString();
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the group SIDs from the Microsoft Privilege Attribute Certificate
+ * (PAC) embedded in the authorization data of a Kerberos ticket [MS-PAC].
+ * <p>
+ * The PAC signatures are not verified here - the PAC is part of the encrypted
+ * ticket which was already validated by the acceptor.
+ */
+class PacDecoder {
+
+	static final int AD_IF_RELEVANT = 1;
+	static final int AD_WIN2K_PAC = 128;
+
+	private static final int PAC_LOGON_INFO = 1;
+
+	private PacDecoder() {
+	}
+
+	/**
+	 * Returns the PAC contained in the given Kerberos authorization data entry,
+	 * or <code>null</code> if there is none.
+	 */
+	static byte[] findPac(final int type, final byte[] data) throws IOException {
+		if (type == AD_WIN2K_PAC) {
+			return data;
+		}
+		if (type == AD_IF_RELEVANT) {
+
+			// AD-IF-RELEVANT contains a DER encoded "SEQUENCE OF AuthorizationData"
+			DerReader entries = new DerReader(data).readSequence();
+			while (entries.hasMore()) {
+				DerReader entry = entries.readSequence();
+				int entryType = (int) entry.readContext(0).readInteger();
+				byte[] entryData = entry.readContext(1).readOctetString();
+				byte[] pac = findPac(entryType, entryData);
+				if (pac != null) {
+					return pac;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the SIDs (in string format, e.g. <code>S-1-5-21-...-513</code>) of
+	 * all groups listed in the PAC's logon information buffer.
+	 */
+	static List<String> decodeGroupSids(final byte[] pac) throws IOException {
+		NdrReader reader = new NdrReader(pac, 0, pac.length);
+		int bufferCount = reader.readInt();
+		reader.readInt(); // version
+		for (int i = 0; i < bufferCount; i++) {
+			int type = reader.readInt();
+			int size = reader.readInt();
+			long offset = reader.readLong();
+			if (type == PAC_LOGON_INFO) {
+				if (offset < 0 || offset + size > pac.length) {
+					throw new IOException("Invalid PAC buffer offset");
+				}
+				return decodeLogonInfo(new NdrReader(pac, (int) offset, size));
+			}
+		}
+		return new ArrayList<String>();
+	}
+
+	/**
+	 * Decodes the NDR encoded <code>KERB_VALIDATION_INFO</code> structure.
+	 */
+	private static List<String> decodeLogonInfo(final NdrReader reader) throws IOException {
+
+		// common header (8 bytes), private header (8 bytes) and referent id of
+		// top-level pointer
+		reader.skip(16);
+		reader.readInt();
+
+		// LogonTime, LogoffTime, KickOffTime, PasswordLastSet, PasswordCanChange,
+		// PasswordMustChange
+		reader.skip(6 * 8);
+		boolean[] strings = new boolean[8];
+
+		// EffectiveName, FullName, LogonScript, ProfilePath, HomeDirectory,
+		// HomeDirectoryDrive
+		for (int i = 0; i < 6; i++) {
+			strings[i] = reader.readUnicodeStringHeader();
+		}
+		reader.skip(2 + 2); // LogonCount, BadPasswordCount
+		reader.readInt(); // UserId
+		reader.readInt(); // PrimaryGroupId
+		int groupCount = reader.readInt();
+		boolean hasGroupIds = reader.readInt() != 0;
+		reader.readInt(); // UserFlags
+		reader.skip(16); // UserSessionKey
+
+		// LogonServer, LogonDomainName
+		strings[6] = reader.readUnicodeStringHeader();
+		strings[7] = reader.readUnicodeStringHeader();
+		boolean hasLogonDomainId = reader.readInt() != 0;
+		reader.skip(2 * 4); // Reserved1
+		reader.readInt(); // UserAccountControl
+		reader.readInt(); // SubAuthStatus
+		reader.skip(8 + 8); // LastSuccessfulILogon, LastFailedILogon
+		reader.readInt(); // FailedILogonCount
+		reader.readInt(); // Reserved3
+		int extraSidCount = reader.readInt();
+		boolean hasExtraSids = reader.readInt() != 0;
+		boolean hasResourceGroupDomainSid = reader.readInt() != 0;
+		int resourceGroupCount = reader.readInt();
+		boolean hasResourceGroupIds = reader.readInt() != 0;
+
+		// deferred pointer data follows in order of the pointers above
+		for (int i = 0; i < 6; i++) {
+			if (strings[i]) {
+				reader.skipUnicodeString();
+			}
+		}
+		int[] groupIds = hasGroupIds ? reader.readGroupMembership(groupCount) : new int[0];
+		for (int i = 6; i < 8; i++) {
+			if (strings[i]) {
+				reader.skipUnicodeString();
+			}
+		}
+		String logonDomainId = hasLogonDomainId ? reader.readSid() : null;
+		List<String> sids = new ArrayList<String>();
+		if (logonDomainId != null) {
+			for (int groupId : groupIds) {
+				sids.add(logonDomainId + "-" + (groupId & 0xffffffffL));
+			}
+		}
+		if (hasExtraSids) {
+			int count = reader.readInt();
+			if (count != extraSidCount) {
+				throw new IOException("Invalid PAC extra SID count");
+			}
+			boolean[] extraSids = new boolean[count];
+			for (int i = 0; i < count; i++) {
+				extraSids[i] = reader.readInt() != 0;
+				reader.readInt(); // Attributes
+			}
+			for (int i = 0; i < count; i++) {
+				if (extraSids[i]) {
+					sids.add(reader.readSid());
+				}
+			}
+		}
+		String resourceGroupDomainSid = hasResourceGroupDomainSid ? reader.readSid() : null;
+		if (hasResourceGroupIds) {
+			int[] resourceGroupIds = reader.readGroupMembership(resourceGroupCount);
+			if (resourceGroupDomainSid != null) {
+				for (int groupId : resourceGroupIds) {
+					sids.add(resourceGroupDomainSid + "-" + (groupId & 0xffffffffL));
+				}
+			}
+		}
+		return sids;
+	}
+
+	/**
+	 * Little-endian NDR reader with 4 byte alignment relative to the start of
+	 * the buffer.
+	 */
+	private static class NdrReader {
+
+		private final byte[] data;
+		private final int start;
+		private final int end;
+		private int position;
+
+		NdrReader(final byte[] data, final int offset, final int length) {
+			this.data = data;
+			this.start = offset;
+			this.position = offset;
+			this.end = offset + length;
+		}
+
+		void skip(final int count) throws IOException {
+			require(count);
+			position += count;
+		}
+
+		void align() throws IOException {
+			int padding = (4 - ((position - start) & 3)) & 3;
+			skip(Math.min(padding, end - position));
+		}
+
+		int readByte() throws IOException {
+			require(1);
+			return data[position++] & 0xff;
+		}
+
+		int readInt() throws IOException {
+			align();
+			require(4);
+			int value = (data[position] & 0xff) | (data[position + 1] & 0xff) << 8
+					| (data[position + 2] & 0xff) << 16 | (data[position + 3] & 0xff) << 24;
+			position += 4;
+			return value;
+		}
+
+		long readLong() throws IOException {
+			long low = readInt() & 0xffffffffL;
+			long high = readInt() & 0xffffffffL;
+			return high << 32 | low;
+		}
+
+		/**
+		 * Reads a <code>RPC_UNICODE_STRING</code> and returns <code>true</code> if
+		 * the string's buffer pointer isn't null.
+		 */
+		boolean readUnicodeStringHeader() throws IOException {
+			require(4);
+			position += 4; // Length, MaximumLength
+			return readInt() != 0;
+		}
+
+		void skipUnicodeString() throws IOException {
+			readInt(); // MaximumCount
+			readInt(); // Offset
+			int actualCount = readInt();
+			if (actualCount < 0) {
+				throw new IOException("Invalid PAC string length");
+			}
+			skip(actualCount * 2);
+		}
+
+		int[] readGroupMembership(final int count) throws IOException {
+			if (readInt() != count || count < 0) {
+				throw new IOException("Invalid PAC group count");
+			}
+			int[] ids = new int[count];
+			for (int i = 0; i < count; i++) {
+				ids[i] = readInt(); // RelativeId
+				readInt(); // Attributes
+			}
+			return ids;
+		}
+
+		String readSid() throws IOException {
+			readInt(); // MaximumCount (sub-authority count)
+			int revision = readByte();
+			int subAuthorityCount = readByte();
+			long authority = 0;
+			for (int i = 0; i < 6; i++) {
+				authority = authority << 8 | readByte();
+			}
+			StringBuilder sid = new StringBuilder("S-").append(revision).append('-');
+			if (authority >= 1L << 32) {
+				sid.append("0x").append(Long.toHexString(authority));
+			} else {
+				sid.append(authority);
+			}
+			for (int i = 0; i < subAuthorityCount; i++) {
+				sid.append('-').append(readInt() & 0xffffffffL);
+			}
+			return sid.toString();
+		}
+
+		private void require(final int count) throws IOException {
+			if (count < 0 || position + count > end) {
+				throw new IOException("Unexpected end of PAC data");
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Table of group SIDs (from the Kerberos ticket's PAC) and the corresponding
+ * Confluence / JIRA group names, e.g.
+ * <code>S-1-5-21-1004336348-1177238915-682003330-513=jira-users</code>.
+ */
+public class PacGroupMapping {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PacGroupMapping.class);
+
+	private final Map<String, String> groups;
+
+	PacGroupMapping(final Map<String, String> groups) {
+		this.groups = groups;
+	}
+
+	static PacGroupMapping read(final String mappingFile) {
+		LOG.trace("Init: Loading PAC group mapping from '{}'", mappingFile);
+		try (FileInputStream in = new FileInputStream(mappingFile)) {
+			Properties properties = new Properties();
+			properties.load(in);
+			Map<String, String> groups = new HashMap<String, String>();
+			for (final String sid : properties.stringPropertyNames()) {
+				groups.put(sid.trim().toUpperCase(), properties.getProperty(sid).trim());
+			}
+			LOG.info("Init: PAC group mapping from '{}'={}", mappingFile, groups);
+			return new PacGroupMapping(groups);
+		} catch (IOException e) {
+			LOG.error("Error reading PAC group mapping file", e);
+		}
+		return null;
+	}
+
+	public Set<String> getGroups(final Collection<String> sids) {
+		Set<String> mappedGroups = new LinkedHashSet<String>();
+		for (String sid : sids) {
+			String group = groups.get(sid.toUpperCase());
+			if (group != null) {
+				mappedGroups.add(group);
+			}
+		}
+		return Collections.unmodifiableSet(mappedGroups);
+	}
+
+	public int size() {
+		return groups.size();
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Rules which decide if a request takes part in SPNEGO negotiation, e.g.
+ *
+ * <pre>
+ * skip method=OPTIONS|HEAD; skip header:X-Requested-With=XMLHttpRequest; skip !ip=10.0.0.0/8|fd00::/8
+ * </pre>
+ *
+ * Each rule consists of an action (<code>skip</code> or
+ * <code>challenge</code>) and one or more conditions (combined with "&amp;")
+ * on the HTTP method, header presence or values, User-Agent and client IP. The
+ * first rule whose conditions all match decides. If no rule matches then the
+ * request is challenged.
+ * <p>
+ * The rules are compiled once, evaluating them doesn't allocate any objects.
+ */
+final class RequestRules {
+
+	private static final int MAX_IP_CONDITIONS = 64;
+
+	private final Rule[] rules;
+	private final IpPrefixTrie ipPrefixes;
+
+	private RequestRules(final Rule[] rules, final IpPrefixTrie ipPrefixes) {
+		this.rules = rules;
+		this.ipPrefixes = ipPrefixes;
+	}
+
+	/**
+	 * Compiles the given semicolon-separated list of rules.
+	 */
+	static RequestRules compile(final String specification) throws IllegalArgumentException {
+		List<Rule> rules = new ArrayList<Rule>();
+		IpPrefixTrie ipPrefixes = new IpPrefixTrie();
+		int ipConditions = 0;
+		for (String ruleSpecification : specification.split(";")) {
+			ruleSpecification = ruleSpecification.trim();
+			if (ruleSpecification.isEmpty()) {
+				continue;
+			}
+			int space = ruleSpecification.indexOf(' ');
+			if (space == -1) {
+				throw new IllegalArgumentException("Rule without condition: " + ruleSpecification);
+			}
+			String action = ruleSpecification.substring(0, space);
+			if (!"skip".equals(action) && !"challenge".equals(action)) {
+				throw new IllegalArgumentException("Unknown rule action: " + action);
+			}
+			List<Condition> conditions = new ArrayList<Condition>();
+			for (String conditionSpecification : ruleSpecification.substring(space + 1).split("&")) {
+				conditionSpecification = conditionSpecification.trim();
+				boolean negate = conditionSpecification.startsWith("!");
+				if (negate) {
+					conditionSpecification = conditionSpecification.substring(1).trim();
+				}
+				Condition condition;
+				if (conditionSpecification.startsWith("method=")) {
+					condition = new MethodCondition(values(conditionSpecification, "method=".length()));
+				} else if (conditionSpecification.startsWith("user-agent=")) {
+					condition = new HeaderCondition("User-Agent",
+							patterns(values(conditionSpecification, "user-agent=".length())));
+				} else if (conditionSpecification.startsWith("header:")) {
+					int equals = conditionSpecification.indexOf('=');
+					if (equals == -1) {
+						condition = new HeaderCondition(conditionSpecification.substring("header:".length()).trim(),
+								null);
+					} else {
+						condition = new HeaderCondition(
+								conditionSpecification.substring("header:".length(), equals).trim(),
+								patterns(values(conditionSpecification, equals + 1)));
+					}
+				} else if (conditionSpecification.startsWith("ip=")) {
+					if (ipConditions == MAX_IP_CONDITIONS) {
+						throw new IllegalArgumentException("Too many IP conditions");
+					}
+					for (String cidr : values(conditionSpecification, "ip=".length())) {
+						ipPrefixes.add(cidr, 1L << ipConditions);
+					}
+					condition = new IpCondition(ipConditions++);
+				} else {
+					throw new IllegalArgumentException("Unknown rule condition: " + conditionSpecification);
+				}
+				condition.negate = negate;
+				conditions.add(condition);
+			}
+			rules.add(new Rule("skip".equals(action), conditions.toArray(new Condition[conditions.size()])));
+		}
+		return new RequestRules(rules.toArray(new Rule[rules.size()]), ipPrefixes.isEmpty() ? null : ipPrefixes);
+	}
+
+	private static String[] values(final String condition, final int start) {
+		String[] values = condition.substring(start).split("\\|");
+		for (int i = 0; i < values.length; i++) {
+			values[i] = values[i].trim();
+		}
+		return values;
+	}
+
+	private static WildcardPattern[] patterns(final String[] values) {
+		WildcardPattern[] patterns = new WildcardPattern[values.length];
+		for (int i = 0; i < values.length; i++) {
+			patterns[i] = new WildcardPattern(values[i], true);
+		}
+		return patterns;
+	}
+
+	/**
+	 * Returns <code>true</code> if the given request should be skipped, i.e. not
+	 * challenged for SPNEGO authentication.
+	 */
+	boolean isSkipped(final HttpServletRequest request) {
+		long ipMatches = ipPrefixes != null ? ipPrefixes.match(request.getRemoteAddr()) : 0;
+		for (Rule rule : rules) {
+			if (rule.matches(request, ipMatches)) {
+				return rule.skip;
+			}
+		}
+		return false;
+	}
+
+	int size() {
+		return rules.length;
+	}
+
+	private static final class Rule {
+
+		private final boolean skip;
+		private final Condition[] conditions;
+
+		Rule(final boolean skip, final Condition[] conditions) {
+			this.skip = skip;
+			this.conditions = conditions;
+		}
+
+		boolean matches(final HttpServletRequest request, final long ipMatches) {
+			for (Condition condition : conditions) {
+				if (condition.matches(request, ipMatches) == condition.negate) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private abstract static class Condition {
+
+		boolean negate;
+
+		abstract boolean matches(HttpServletRequest request, long ipMatches);
+	}
+
+	private static final class MethodCondition extends Condition {
+
+		private final String[] methods;
+
+		MethodCondition(final String[] methods) {
+			this.methods = methods;
+		}
+
+		@Override
+		boolean matches(final HttpServletRequest request, final long ipMatches) {
+			String method = request.getMethod();
+			for (String m : methods) {
+				if (m.equals(method)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static final class HeaderCondition extends Condition {
+
+		private final String name;
+		private final WildcardPattern[] patterns;
+
+		HeaderCondition(final String name, final WildcardPattern[] patterns) {
+			this.name = name;
+			this.patterns = patterns;
+		}
+
+		@Override
+		boolean matches(final HttpServletRequest request, final long ipMatches) {
+			String value = request.getHeader(name);
+			if (value == null) {
+				return false;
+			}
+			if (patterns == null) {
+				return true;
+			}
+			for (WildcardPattern pattern : patterns) {
+				if (pattern.matches(value)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static final class IpCondition extends Condition {
+
+		private final long bit;
+
+		IpCondition(final int index) {
+			this.bit = 1L << index;
+		}
+
+		@Override
+		boolean matches(final HttpServletRequest request, final long ipMatches) {
+			return (ipMatches & bit) != 0;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.Closeable;
+
+/**
+ * SPI for the authentication state which is shared by the nodes of a cluster
+ * (e.g. Jira or Confluence Data Center): replayed authenticators, clients in
+ * backoff and their failure counters. Entries are numbers with a
+ * time-to-live, grouped in namespaces.
+ * <p>
+ * Implementations are configured with the init-param <code>shared.state</code>
+ * and need a public constructor with the init-params as
+ * <code>Map&lt;String, String&gt;</code>. They're used via
+ * {@link NearCachedAuthState}, so they're called for every cache miss and
+ * write. If the backend isn't available they throw an unchecked exception
+ * (e.g. {@link java.io.UncheckedIOException}). Without a configured
+ * implementation every node uses its own {@link LocalAuthState}.
+ */
+public interface SharedAuthState extends Closeable {
+
+	/**
+	 * Authenticators accepted by the native engine, to detect replayed tokens.
+	 */
+	String REPLAY = "replay";
+
+	/**
+	 * Consecutive failed authentications per client.
+	 */
+	String FAILURES = "failures";
+
+	/**
+	 * Clients in backoff, the value is the end of the backoff.
+	 */
+	String BACKOFF = "backoff";
+
+	/**
+	 * Returns the value of the given entry, or 0 if there's no unexpired entry.
+	 */
+	long get(String namespace, String key);
+
+	void put(String namespace, String key, long value, long ttlMillis);
+
+	/**
+	 * Adds the given entry only if there's no unexpired entry for the key yet.
+	 * Returns <code>false</code> if there is one.
+	 */
+	boolean putIfAbsent(String namespace, String key, long value, long ttlMillis);
+
+	/**
+	 * Increments the value of the given entry (starting with 0), extends its
+	 * expiry and returns the new value.
+	 */
+	long increment(String namespace, String key, long ttlMillis);
+
+	void remove(String namespace, String key);
+
+	/**
+	 * Returns the number of unexpired entries in the given namespace.
+	 */
+	int size(String namespace);
+
+	/**
+	 * Registers the listener which is notified when another node changes or
+	 * removes an entry. Implementations without other nodes ignore it.
+	 */
+	void setInvalidationListener(InvalidationListener listener);
+
+	@Override
+	void close();
+
+	interface InvalidationListener {
+
+		void invalidate(String namespace, String key);
+	}
+}
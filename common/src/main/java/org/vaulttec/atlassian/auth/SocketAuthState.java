@@ -0,0 +1,241 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link SharedAuthState} client for a simple line-based TCP protocol, e.g. the
+ * stand-in server used to test multiple nodes (JVMs) on one machine. Commands
+ * are tab-separated lines (<code>GET</code>, <code>PUT</code>,
+ * <code>PIA</code> (put if absent), <code>INC</code>, <code>DEL</code>,
+ * <code>SIZE</code>), each answered by a single line. A second connection
+ * subscribes (<code>SUB</code>) to the <code>INV</code> lines the server sends
+ * for every changed entry.
+ * <p>
+ * Requests of all threads are sent over a single connection, so it's meant for
+ * testing and not for production clusters.
+ */
+public class SocketAuthState implements SharedAuthState {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SocketAuthState.class);
+
+	private static final String CONFIG_PARAM_ADDRESS = "shared.state.address";
+	private static final String CONFIG_PARAM_TIMEOUT = "shared.state.timeout";
+	private static final int DEFAULT_TIMEOUT = 500;
+	private static final long RECONNECT_INTERVAL = 1000;
+
+	private final InetSocketAddress address;
+	private final int timeoutMillis;
+	private Socket socket;
+	private BufferedReader in;
+	private OutputStream out;
+	private long reconnectAfter;
+	private volatile boolean closed;
+	private Thread subscriber;
+	private volatile Socket subscription;
+
+	public SocketAuthState(final Map<String, String> params) {
+		this(parseAddress(params.get(CONFIG_PARAM_ADDRESS)),
+				params.get(CONFIG_PARAM_TIMEOUT) != null ? Integer.parseInt(params.get(CONFIG_PARAM_TIMEOUT).trim())
+						: DEFAULT_TIMEOUT);
+	}
+
+	SocketAuthState(final InetSocketAddress address, final int timeoutMillis) {
+		this.address = address;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	private static InetSocketAddress parseAddress(final String address) {
+		if (address == null) {
+			throw new IllegalArgumentException("No shared state address configured");
+		}
+		int colon = address.lastIndexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException("Invalid shared state address: " + address);
+		}
+		return new InetSocketAddress(address.substring(0, colon).trim(),
+				Integer.parseInt(address.substring(colon + 1).trim()));
+	}
+
+	@Override
+	public long get(final String namespace, final String key) {
+		return Long.parseLong(call("GET\t" + namespace + '\t' + key));
+	}
+
+	@Override
+	public void put(final String namespace, final String key, final long value, final long ttlMillis) {
+		call("PUT\t" + namespace + '\t' + key + '\t' + value + '\t' + ttlMillis);
+	}
+
+	@Override
+	public boolean putIfAbsent(final String namespace, final String key, final long value, final long ttlMillis) {
+		return "1".equals(call("PIA\t" + namespace + '\t' + key + '\t' + value + '\t' + ttlMillis));
+	}
+
+	@Override
+	public long increment(final String namespace, final String key, final long ttlMillis) {
+		return Long.parseLong(call("INC\t" + namespace + '\t' + key + '\t' + ttlMillis));
+	}
+
+	@Override
+	public void remove(final String namespace, final String key) {
+		call("DEL\t" + namespace + '\t' + key);
+	}
+
+	@Override
+	public int size(final String namespace) {
+		return Integer.parseInt(call("SIZE\t" + namespace));
+	}
+
+	/**
+	 * Sends the given command and returns the server's reply. After a failure
+	 * no new connection is tried for a second, so requests don't wait for an
+	 * unavailable server again and again.
+	 */
+	private synchronized String call(final String command) {
+		if (closed) {
+			throw new IllegalStateException("Shared state closed");
+		}
+		try {
+			if (socket == null) {
+				if (System.currentTimeMillis() < reconnectAfter) {
+					throw new IOException("Shared state server " + address + " not available");
+				}
+				reconnectAfter = System.currentTimeMillis() + RECONNECT_INTERVAL;
+				socket = connect();
+				in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				out = socket.getOutputStream();
+			}
+			out.write((command + '\n').getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			String reply = in.readLine();
+			if (reply == null) {
+				throw new IOException("Shared state server " + address + " closed the connection");
+			}
+			if (reply.startsWith("ERR")) {
+				throw new IllegalStateException("Shared state server " + address + " failed: " + reply);
+			}
+			return reply;
+		} catch (IOException e) {
+			disconnect();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(address, timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+			socket.setTcpNoDelay(true);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	private void disconnect() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			socket = null;
+		}
+	}
+
+	/**
+	 * Starts the background thread which receives the invalidation messages and
+	 * reconnects if the server isn't available.
+	 */
+	@Override
+	public synchronized void setInvalidationListener(final InvalidationListener listener) {
+		if (subscriber != null || closed) {
+			return;
+		}
+		subscriber = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try (Socket socket = new Socket()) {
+						subscription = socket;
+						socket.connect(address, timeoutMillis);
+						socket.getOutputStream().write("SUB\n".getBytes(StandardCharsets.UTF_8));
+						socket.getOutputStream().flush();
+						BufferedReader reader = new BufferedReader(
+								new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+						String line;
+						while (!closed && (line = reader.readLine()) != null) {
+							String[] fields = line.split("\t", 3);
+							if (fields.length == 3 && "INV".equals(fields[0])) {
+								listener.invalidate(fields[1], fields[2]);
+							}
+						}
+					} catch (IOException e) {
+						LOG.debug("Subscription to shared state server {} failed: {}", address, e.toString());
+					}
+					try {
+						Thread.sleep(RECONNECT_INTERVAL);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "spnego-shared-state");
+		subscriber.setDaemon(true);
+		subscriber.start();
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		disconnect();
+		if (subscriber != null) {
+			subscriber.interrupt();
+			Socket subscription = this.subscription;
+			if (subscription != null) {
+				try {
+
+					// unblocks the subscriber's read
+					subscription.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "socket://" + address.getHostString() + ':' + address.getPort();
+	}
+}
@@ -34,9 +34,42 @@ public interface SpnegoAuthenticator {
 
 	Principal getUserFromSession(final HttpServletRequest request);
 
+	/**
+	 * Returns <code>true</code> if the given user passes the product's login
+	 * checks which don't depend on the user's groups, i.e. the user is active,
+	 * licensed and (where the product has one) granted the use permission. The
+	 * given user is the object resolved via {@link #getUser(String)} during the
+	 * login, so it isn't looked up again.
+	 */
+	boolean isLoginAllowed(final Principal user);
+
+	/**
+	 * Returns <code>true</code> if the groups from the user's Kerberos ticket
+	 * grant login. They only replace the group lookup in the user directory, so
+	 * an inactive or unlicensed user is never authorised via ticket groups.
+	 */
+	default boolean isAuthorisedViaTicketGroups(final Principal user) {
+		if (!getSupport().hasTicketLoginGroup(user.getName())) {
+			return false;
+		}
+		if (!isLoginAllowed(user)) {
+			getLogger().debug("Ticket groups ignored for inactive or unlicensed user: {}", user.getName());
+			return false;
+		}
+		getLogger().debug("User authorised via ticket groups: {}", user.getName());
+		return true;
+	}
+
 	boolean authoriseUserAndEstablishSession(final HttpServletRequest request, final HttpServletResponse response,
 			final Principal user);
 
+	/**
+	 * Returns <code>true</code> if the given user is authorised to log in, but
+	 * without establishing a session, adding a remember-me cookie or recording
+	 * the login (used for requests with a bearer token).
+	 */
+	boolean authoriseUser(final HttpServletRequest request, final Principal user);
+
 	default public Principal getUserViaSPNEGO(final HttpServletRequest request, final HttpServletResponse response) {
 
 		// check if the user is already logged in and use the current principal
@@ -46,6 +79,15 @@ public interface SpnegoAuthenticator {
 			return user;
 		}
 
+		// reuse the decision of a previous call within the same request, so a
+		// request is never challenged or authenticated twice (and the user of a
+		// request without a session is also found by calls without a response)
+		Object outcome = request.getAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE);
+		if (outcome != null) {
+			getLogger().trace("Reusing outcome '{}' for URI '{}'", outcome, request.getRequestURI());
+			return outcome instanceof Principal ? (Principal) outcome : null;
+		}
+
 		// we need a servlet response to respond with required authentication type
 		if (response == null) {
 			getLogger().trace("No response object in request for URI '{}' - no negotiation possible",
@@ -53,38 +95,144 @@ public interface SpnegoAuthenticator {
 			return null;
 		}
 
+		// trace the requests selected at runtime with log level INFO
+		boolean traced = getSupport().isTraced(request);
+		if (traced) {
+			TraceFilter.LOG.info("Request {} '{}' from client '{}' with {} header", request.getMethod(),
+					request.getRequestURI(), request.getRemoteAddr(),
+					TraceFilter.describeAuthorization(request.getHeader("Authorization")));
+		}
+
+		// API clients present a bearer token from the token exchange instead of
+		// negotiating, also for excluded URIs (e.g. the REST API)
+		long start = System.nanoTime();
+		String bearerUserName = getSupport().getBearerUserName(request);
+
 		// skip excluded URI - but only if it's not an included URI
-		if (getSupport().isIncludedUri(request)) {
-			if (getLogger().isDebugEnabled()) {
-				String queryString = request.getQueryString() != null ? "?" + request.getQueryString() : "";
-				getLogger().debug("Including URI '{}{}'", request.getRequestURI(), queryString);
-			}
+		SpnegoEvents events = SpnegoEvents.get();
+		Object uriDecisionEvent = events.beginUriDecision();
+		if (bearerUserName != null) {
+			events.endUriDecision(uriDecisionEvent, request.getRequestURI(), "bearer");
+			getLogger().debug("Bearer token of user '{}' in request for URI '{}'", bearerUserName,
+					request.getRequestURI());
+		} else if (getSupport().isIncludedUri(request)) {
+			events.endUriDecision(uriDecisionEvent, request.getRequestURI(), "included");
+			getLogger().debug("Including URI '{}' with query string '{}'", request.getRequestURI(),
+					request.getQueryString());
 		} else if (getSupport().isExcludedUri(request)) {
-			if (getLogger().isDebugEnabled()) {
-				String queryString = request.getQueryString() != null ? "?" + request.getQueryString() : "";
-				getLogger().debug("Excluding URI '{}{}'", request.getRequestURI(), queryString);
+			events.endUriDecision(uriDecisionEvent, request.getRequestURI(), "excluded");
+			getLogger().debug("Excluding URI '{}' with query string '{}'", request.getRequestURI(),
+					request.getQueryString());
+			if (traced) {
+				TraceFilter.LOG.info("Excluding URI '{}'", request.getRequestURI());
 			}
+			request.setAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE, SpnegoOutcome.EXCLUDED);
 			return null;
+		} else {
+			events.endUriDecision(uriDecisionEvent, request.getRequestURI(), "none");
 		}
 
-		// if no authentication header of type "Negotiate" present then request one
-		if (!getSupport().hasNegotiationAuthenticationHeader(request, response)) {
-			getLogger().debug("No authentication header in request for URI '{}' - starting negotiation",
-					request.getRequestURI());
+		// skip requests which shouldn't be challenged (e.g. XHR or API clients)
+		if (bearerUserName == null && getSupport().isSkippedRequest(request)) {
+			getLogger().debug("Skipping request for URI '{}' due to challenge rules", request.getRequestURI());
+			if (traced) {
+				TraceFilter.LOG.info("Skipping request for URI '{}' due to challenge rules", request.getRequestURI());
+			}
+			request.setAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE, SpnegoOutcome.SKIPPED);
 			return null;
 		}
 
-		// authenticate via SPNEGO
-		String userName = getSupport().authenticate(request, response);
-		if (userName != null) {
+		// re-establish a lost session from the assertion of a previous negotiation
+		String userName = bearerUserName != null ? bearerUserName : getSupport().getAssertedUserName(request);
+		boolean asserted = userName != null;
+		if (asserted) {
+			getLogger().debug("Asserted user '{}' in request for URI '{}'", userName, request.getRequestURI());
+		} else {
+
+			// if no authentication header of type "Negotiate" present then request one
+			Object headerCheckEvent = events.beginHeaderCheck();
+			boolean negotiate = getSupport().hasNegotiationAuthenticationHeader(request, response);
+			events.endHeaderCheck(headerCheckEvent, negotiate);
+			if (!negotiate) {
+				getLogger().debug("No authentication header in request for URI '{}' - starting negotiation",
+						request.getRequestURI());
+				if (traced) {
+					TraceFilter.LOG.info("Challenging request for URI '{}'", request.getRequestURI());
+				}
+				request.setAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE, SpnegoOutcome.CHALLENGED);
+				return null;
+			}
+
+			// authenticate via SPNEGO
+			userName = getSupport().authenticate(request, response);
+		}
+		traced = traced || (userName != null && getSupport().isTracedUser(userName));
+		if (traced) {
+			if (userName == null) {
+				TraceFilter.LOG.info("SPNEGO authentication failed for URI '{}'", request.getRequestURI());
+			} else {
+				TraceFilter.LOG.info("{} user '{}' with configuration '{}' for URI '{}'",
+						bearerUserName != null ? "Bearer" : asserted ? "Asserted" : "Authenticated", userName,
+						request.getAttribute(SpnegoSupport.CONFIG_NAME_ATTRIBUTE), request.getRequestURI());
+			}
+		}
+		if (userName == null) {
+			request.setAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE, SpnegoOutcome.FAILED);
+			getSupport().audit(request, null, AuditLog.FAILED, start);
+		} else {
+			Object userLookupEvent = events.beginUserLookup();
 			user = getUser(userName);
+			events.endUserLookup(userLookupEvent, userName, user != null);
+			if (traced) {
+				TraceFilter.LOG.info("User '{}' {}", userName, user != null ? "found: " + user : "not found");
+			}
 			if (user == null) {
 				getLogger().warn("User not found: {}", userName);
+				request.setAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE, SpnegoOutcome.FAILED);
+				getSupport().audit(request, userName, AuditLog.NOT_FOUND, start);
 				return null;
 			}
+			if (bearerUserName != null) {
+
+				// the token was already verified in memory, so an API call only checks
+				// the authorisation - the user is kept in the request instead of a session
+				Object sessionEvent = events.beginSession();
+				boolean authorised = authoriseUser(request, user);
+				events.endSession(sessionEvent, userName, authorised);
+				if (traced) {
+					TraceFilter.LOG.info("User '{}' {}", userName, authorised ? "authorised" : "not authorised");
+				}
+				if (!authorised) {
+					getLogger().warn("User not authorized: {}", userName);
+					request.setAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE, SpnegoOutcome.FAILED);
+					getSupport().audit(request, userName, AuditLog.UNAUTHORISED, start);
+					return null;
+				}
+				request.setAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE, user);
+				getSupport().audit(request, userName, AuditLog.BEARER, start);
+				return user;
+			}
 			getLogger().info("Authenticated user: {}", user);
-			if (!authoriseUserAndEstablishSession(request, response, user)) {
+			Object sessionEvent = events.beginSession();
+			boolean authorised = authoriseUserAndEstablishSession(request, response, user);
+			events.endSession(sessionEvent, userName, authorised);
+			if (traced) {
+				TraceFilter.LOG.info("User '{}' {}", userName,
+						authorised ? "authorised, session established" : "not authorised");
+			}
+			if (!authorised) {
 				getLogger().warn("User not authorized: " + userName);
+				getSupport().audit(request, userName, AuditLog.UNAUTHORISED, start);
+
+				// without a session later calls can't find the user there
+				request.setAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE, user);
+			} else if (!asserted) {
+				getSupport().bindDelegatedCredential(request, userName);
+				getSupport().issueAssertion(request, response, userName);
+				getSupport().exchangeToken(request, userName);
+				getSupport().audit(request, userName, AuditLog.AUTHENTICATED, start);
+			} else {
+				getSupport().audit(request, userName, AuditLog.ASSERTED, start);
 			}
 		}
 		return user;
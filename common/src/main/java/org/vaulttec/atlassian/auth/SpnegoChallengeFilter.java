@@ -0,0 +1,62 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Ends requests which were answered with a SPNEGO challenge by the
+ * authenticator (if <code>challenge.complete</code> is enabled) instead of
+ * rendering the requested page anonymously, and responds to requests for the
+ * token exchange URI with the issued bearer token. Has to be mapped after
+ * Seraph's security filter.
+ */
+public class SpnegoChallengeFilter implements Filter {
+
+	@Override
+	public void init(final FilterConfig filterConfig) throws ServletException {
+	}
+
+	@Override
+	public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+			throws IOException, ServletException {
+		Object token = request.getAttribute(SpnegoSupport.TOKEN_ATTRIBUTE);
+		if (token instanceof TokenExchange.Token && response instanceof HttpServletResponse
+				&& ((TokenExchange.Token) token).complete((HttpServletResponse) response)) {
+			return;
+		}
+		Object challenge = request.getAttribute(SpnegoSupport.CHALLENGE_ATTRIBUTE);
+		if (challenge instanceof ChallengeResponse && response instanceof HttpServletResponse
+				&& ((ChallengeResponse) challenge).complete((HttpServletResponse) response)) {
+			return;
+		}
+		chain.doFilter(request, response);
+	}
+
+	@Override
+	public void destroy() {
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits Java Flight Recorder events for the SPNEGO processing steps. If the JFR
+ * API isn't available in the JVM then all methods are no-ops.
+ * <p>
+ * Usage: the object returned by a <code>begin...()</code> method (which is
+ * <code>null</code> if the event type isn't enabled in any recording) has to be
+ * handed over to the corresponding <code>end...()</code> method.
+ */
+abstract class SpnegoEvents {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SpnegoEvents.class);
+
+	private static final SpnegoEvents INSTANCE = create();
+
+	static SpnegoEvents get() {
+		return INSTANCE;
+	}
+
+	private static SpnegoEvents create() {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			SpnegoEvents events = new JfrSpnegoEvents();
+			LOG.debug("JFR events registered");
+			return events;
+		} catch (ClassNotFoundException | LinkageError e) {
+			LOG.debug("JFR not available - no events emitted");
+			return new SpnegoEvents() {
+			};
+		}
+	}
+
+	Object beginUriDecision() {
+		return null;
+	}
+
+	void endUriDecision(final Object event, final String uri, final String decision) {
+	}
+
+	Object beginHeaderCheck() {
+		return null;
+	}
+
+	void endHeaderCheck(final Object event, final boolean negotiate) {
+	}
+
+	Object beginAccept() {
+		return null;
+	}
+
+	void endAccept(final Object event, final String configName, final String result) {
+	}
+
+	Object beginUserLookup() {
+		return null;
+	}
+
+	void endUserLookup(final Object event, final String userName, final boolean found) {
+	}
+
+	Object beginSession() {
+		return null;
+	}
+
+	void endSession(final Object event, final String userName, final boolean authorised) {
+	}
+}
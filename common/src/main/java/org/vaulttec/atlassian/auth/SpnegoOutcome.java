@@ -0,0 +1,29 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+/**
+ * Outcomes of {@link SpnegoAuthenticator#getUserViaSPNEGO} without a user,
+ * kept in the request attribute {@link SpnegoSupport#OUTCOME_ATTRIBUTE} so
+ * repeated calls within the same request reuse the first decision. An
+ * authenticated user which couldn't be authorised is kept as its principal.
+ */
+enum SpnegoOutcome {
+
+	EXCLUDED, SKIPPED, CHALLENGED, FAILED
+}
@@ -0,0 +1,295 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runtime statistics of a {@link SpnegoSupport} instance, registered as MBean
+ * <code>org.vaulttec.atlassian.auth:type=SpnegoStatistics,name=&lt;n&gt;</code>
+ * with a number unique per instance.
+ */
+public class SpnegoStatistics implements SpnegoStatisticsMBean {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SpnegoStatistics.class);
+
+	static final String OBJECT_NAME = "org.vaulttec.atlassian.auth:type=SpnegoStatistics";
+
+	private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+	private final SpnegoSupport support;
+
+	SpnegoStatistics(final SpnegoSupport support) {
+		this.support = support;
+	}
+
+	/**
+	 * Registers the statistics of the given instance under a name of its own.
+	 * Returns the name to unregister them with, or <code>null</code> if the
+	 * registration failed.
+	 */
+	static ObjectName register(final SpnegoSupport support) {
+		String name = OBJECT_NAME + ",name=" + INSTANCES.incrementAndGet();
+		try {
+			ObjectName objectName = new ObjectName(name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new SpnegoStatistics(support), objectName);
+			return objectName;
+		} catch (JMException | SecurityException e) {
+			LOG.warn("Registering MBean '{}' failed: {}", name, e.getMessage());
+			return null;
+		}
+	}
+
+	static void unregister(final ObjectName name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException | SecurityException e) {
+			LOG.warn("Unregistering MBean '{}' failed: {}", name, e.getMessage());
+		}
+	}
+
+	@Override
+	public int getBasicCacheSize() {
+		BasicCredentialCache cache = support.getBasicCredentialCache();
+		return cache != null ? cache.size() : 0;
+	}
+
+	@Override
+	public long getBasicCacheHits() {
+		BasicCredentialCache cache = support.getBasicCredentialCache();
+		return cache != null ? cache.getHits() : 0;
+	}
+
+	@Override
+	public long getBasicCacheMisses() {
+		BasicCredentialCache cache = support.getBasicCredentialCache();
+		return cache != null ? cache.getMisses() : 0;
+	}
+
+	@Override
+	public double getBasicCacheHitRate() {
+		long hits = getBasicCacheHits();
+		long total = hits + getBasicCacheMisses();
+		return total > 0 ? (double) hits / total : 0;
+	}
+
+	@Override
+	public String[] getCircuitBreakers() {
+		CircuitBreaker[] breakers = support.getCircuitBreakers();
+		if (breakers == null) {
+			return new String[0];
+		}
+		String[] states = new String[breakers.length];
+		for (int i = 0; i < breakers.length; i++) {
+			states[i] = breakers[i].toString();
+		}
+		return states;
+	}
+
+	@Override
+	public String[] getTicketMetrics() {
+		TicketMetrics[] metrics = support.getTicketMetrics();
+		if (metrics == null) {
+			return new String[0];
+		}
+		List<String> lines = new ArrayList<String>();
+		for (TicketMetrics configMetrics : metrics) {
+			lines.addAll(configMetrics.describe());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public int getWriteBehindPending() {
+		WriteBehindQueue queue = support.getWriteBehindQueue();
+		return queue != null ? queue.size() : 0;
+	}
+
+	@Override
+	public long getWriteBehindSubmitted() {
+		WriteBehindQueue queue = support.getWriteBehindQueue();
+		return queue != null ? queue.getSubmitted() : 0;
+	}
+
+	@Override
+	public long getWriteBehindCoalesced() {
+		WriteBehindQueue queue = support.getWriteBehindQueue();
+		return queue != null ? queue.getCoalesced() : 0;
+	}
+
+	@Override
+	public long getWriteBehindRejected() {
+		WriteBehindQueue queue = support.getWriteBehindQueue();
+		return queue != null ? queue.getRejected() : 0;
+	}
+
+	@Override
+	public long getWriteBehindFailed() {
+		WriteBehindQueue queue = support.getWriteBehindQueue();
+		return queue != null ? queue.getFailed() : 0;
+	}
+
+	@Override
+	public int getClientsInBackoff() {
+		ClientFailureTracker tracker = support.getClientFailureTracker();
+		return tracker != null ? tracker.getBackedOff() : 0;
+	}
+
+	@Override
+	public long getClientTokensSkipped() {
+		ClientFailureTracker tracker = support.getClientFailureTracker();
+		return tracker != null ? tracker.getSkipped() : 0;
+	}
+
+	@Override
+	public long getSharedStateHits() {
+		NearCachedAuthState sharedState = support.getSharedState();
+		return sharedState != null ? sharedState.getHits() : 0;
+	}
+
+	@Override
+	public long getSharedStateMisses() {
+		NearCachedAuthState sharedState = support.getSharedState();
+		return sharedState != null ? sharedState.getMisses() : 0;
+	}
+
+	@Override
+	public long getSharedStateFailures() {
+		NearCachedAuthState sharedState = support.getSharedState();
+		return sharedState != null ? sharedState.getFailures() : 0;
+	}
+
+	@Override
+	public long getTokensIssued() {
+		TokenExchange tokenExchange = support.getTokenExchange();
+		return tokenExchange != null ? tokenExchange.getIssued() : 0;
+	}
+
+	@Override
+	public long getTokensAccepted() {
+		TokenExchange tokenExchange = support.getTokenExchange();
+		return tokenExchange != null ? tokenExchange.getAccepted() : 0;
+	}
+
+	@Override
+	public long getTokensRejected() {
+		TokenExchange tokenExchange = support.getTokenExchange();
+		return tokenExchange != null ? tokenExchange.getRejected() : 0;
+	}
+
+	@Override
+	public long getAuditWritten() {
+		AuditLog auditLog = support.getAuditLog();
+		return auditLog != null ? auditLog.getWritten() : 0;
+	}
+
+	@Override
+	public long getAuditDropped() {
+		AuditLog auditLog = support.getAuditLog();
+		return auditLog != null ? auditLog.getDropped() : 0;
+	}
+
+	@Override
+	public long getChallenges() {
+		ChallengeResponse challengeResponse = support.getChallengeResponse();
+		return challengeResponse != null ? challengeResponse.getChallenges() : 0;
+	}
+
+	@Override
+	public long getChallengeRenderingsAvoided() {
+		ChallengeResponse challengeResponse = support.getChallengeResponse();
+		return challengeResponse != null ? challengeResponse.getRenderingsAvoided() : 0;
+	}
+
+	@Override
+	public int getDelegatedCredentials() {
+		DelegatedCredentialStore store = support.getDelegatedCredentialStore();
+		return store != null ? store.size() : 0;
+	}
+
+	@Override
+	public long getDelegatedCredentialsStored() {
+		DelegatedCredentialStore store = support.getDelegatedCredentialStore();
+		return store != null ? store.getStored() : 0;
+	}
+
+	@Override
+	public long getDelegatedCredentialsDisposed() {
+		DelegatedCredentialStore store = support.getDelegatedCredentialStore();
+		return store != null ? store.getDisposed() : 0;
+	}
+
+	@Override
+	public String[] getLearnedExclusions() {
+		ExclusionLearner learner = support.getExclusionLearner();
+		if (learner == null) {
+			return new String[0];
+		}
+		List<String> exclusions = learner.getExclusions();
+		Collections.sort(exclusions);
+		return exclusions.toArray(new String[exclusions.size()]);
+	}
+
+	@Override
+	public void clearLearnedExclusions() {
+		ExclusionLearner learner = support.getExclusionLearner();
+		if (learner != null) {
+			learner.clear();
+		}
+	}
+
+	@Override
+	public void resetTicketMetrics() {
+		TicketMetrics[] metrics = support.getTicketMetrics();
+		if (metrics != null) {
+			for (TicketMetrics configMetrics : metrics) {
+				configMetrics.reset();
+			}
+		}
+	}
+
+	@Override
+	public String getTrace() {
+		TraceFilter filter = support.getTraceFilter();
+		return filter != null ? filter.toString() : null;
+	}
+
+	@Override
+	public void startTrace(final String filter, final long minutes) {
+		support.startTrace(filter, minutes);
+	}
+
+	@Override
+	public void stopTrace() {
+		support.stopTrace();
+	}
+}
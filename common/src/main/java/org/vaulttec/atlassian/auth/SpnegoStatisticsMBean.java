@@ -0,0 +1,88 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+/**
+ * JMX interface of the authenticator's runtime statistics.
+ */
+public interface SpnegoStatisticsMBean {
+
+	int getBasicCacheSize();
+
+	long getBasicCacheHits();
+
+	long getBasicCacheMisses();
+
+	double getBasicCacheHitRate();
+
+	String[] getCircuitBreakers();
+
+	String[] getTicketMetrics();
+
+	String[] getLearnedExclusions();
+
+	int getWriteBehindPending();
+
+	long getWriteBehindSubmitted();
+
+	long getWriteBehindCoalesced();
+
+	long getWriteBehindRejected();
+
+	long getWriteBehindFailed();
+
+	int getClientsInBackoff();
+
+	long getClientTokensSkipped();
+
+	long getSharedStateHits();
+
+	long getSharedStateMisses();
+
+	long getSharedStateFailures();
+
+	long getTokensIssued();
+
+	long getTokensAccepted();
+
+	long getTokensRejected();
+
+	long getAuditWritten();
+
+	long getAuditDropped();
+
+	long getChallenges();
+
+	long getChallengeRenderingsAvoided();
+
+	int getDelegatedCredentials();
+
+	long getDelegatedCredentialsStored();
+
+	long getDelegatedCredentialsDisposed();
+
+	void clearLearnedExclusions();
+
+	void resetTicketMetrics();
+
+	String getTrace();
+
+	void startTrace(String filter, long minutes);
+
+	void stopTrace();
+}
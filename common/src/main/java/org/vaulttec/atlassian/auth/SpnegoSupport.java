@@ -20,54 +20,197 @@ package org.vaulttec.atlassian.auth;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.Principal;
 import java.security.PrivilegedActionException;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import javax.management.ObjectName;
 import javax.security.auth.login.LoginException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
+import org.ietf.jgss.GSSCredential;
 import org.ietf.jgss.GSSException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.sourceforge.spnego.SpnegoAuthenticator;
 import net.sourceforge.spnego.SpnegoHttpServletResponse;
+import net.sourceforge.spnego.SpnegoPrincipal;
 
 public class SpnegoSupport {
 
 	private static final Logger LOG = LoggerFactory.getLogger(SpnegoSupport.class);
 
+	// matches the scheme case-insensitive without an upper-case copy of the header
+	private static final WildcardPattern NEGOTIATE = new WildcardPattern("*NEGOTIATE*", true);
+
+	private static final LogThrottle LOG_THROTTLE = new LogThrottle(60000);
+
 	private static final String CONFIG_PARAM_CONFIG_FILES = "config.files";
 	private static final String CONFIG_PARAM_INCLUDE_URIS = "include.uris";
 	private static final String CONFIG_PARAM_EXCLUDE_URIS = "exclude.uris";
+	private static final String CONFIG_PARAM_CHALLENGE_RULES = "challenge.rules";
+	private static final String CONFIG_PARAM_CHALLENGE_COMPLETE = "challenge.complete";
+	private static final String CONFIG_PARAM_CHALLENGE_BODY_FILE = "challenge.body.file";
+	private static final String CONFIG_PARAM_PAC_GROUP_MAPPING = "pac.group.mapping";
+	private static final String CONFIG_PARAM_PAC_GROUP_TTL = "pac.group.ttl";
+	private static final String CONFIG_PARAM_PAC_LOGIN_GROUPS = "pac.login.groups";
+	private static final String CONFIG_PARAM_BASIC_CACHE_TTL = "basic.cache.ttl";
+	private static final String CONFIG_PARAM_BASIC_CACHE_SIZE = "basic.cache.size";
+	private static final String CONFIG_PARAM_BASIC_CACHE_ITERATIONS = "basic.cache.iterations";
+	private static final String CONFIG_PARAM_BREAKER_FAILURES = "breaker.failures";
+	private static final String CONFIG_PARAM_BREAKER_PROBE_INTERVAL = "breaker.probe.interval";
+	private static final String CONFIG_PARAM_LEARN_EXCLUSIONS_TTL = "learn.exclusions.ttl";
+	private static final String CONFIG_PARAM_LEARN_EXCLUSIONS_DEPTH = "learn.exclusions.depth";
+	private static final String CONFIG_PARAM_LEARN_EXCLUSIONS_THRESHOLD = "learn.exclusions.threshold";
+	private static final String CONFIG_PARAM_LEARN_EXCLUSIONS_SIZE = "learn.exclusions.size";
+	private static final String CONFIG_PARAM_WRITE_BEHIND_INTERVAL = "write.behind.interval";
+	private static final String CONFIG_PARAM_WRITE_BEHIND_SIZE = "write.behind.size";
+	private static final String CONFIG_PARAM_WRITE_BEHIND_BATCH = "write.behind.batch";
+	private static final String CONFIG_PARAM_CLIENT_BACKOFF = "client.backoff";
+	private static final String CONFIG_PARAM_CLIENT_BACKOFF_MAX = "client.backoff.max";
+	private static final String CONFIG_PARAM_CLIENT_BACKOFF_FAILURES = "client.backoff.failures";
+	private static final String CONFIG_PARAM_CLIENT_BACKOFF_SIZE = "client.backoff.size";
+	private static final String CONFIG_PARAM_SHARED_STATE = "shared.state";
+	private static final String CONFIG_PARAM_SHARED_STATE_SIZE = "shared.state.size";
+	private static final String CONFIG_PARAM_SHARED_STATE_NEAR_TTL = "shared.state.near.ttl";
+	private static final String CONFIG_PARAM_DELEGATION_STORE = "delegation.store";
+	private static final String CONFIG_PARAM_DELEGATION_TTL = "delegation.ttl";
+	private static final String CONFIG_PARAM_DELEGATION_SIZE = "delegation.size";
+	private static final String CONFIG_PARAM_AUDIT_FILE = "audit.file";
+	private static final String CONFIG_PARAM_AUDIT_FILE_SIZE = "audit.file.size";
+	private static final String CONFIG_PARAM_AUDIT_FILE_COUNT = "audit.file.count";
+	private static final String CONFIG_PARAM_AUDIT_BUFFER = "audit.buffer";
+	private static final String CONFIG_PARAM_SNAPSHOT_FILE = "snapshot.file";
+	private static final String CONFIG_PARAM_SNAPSHOT_INTERVAL = "snapshot.interval";
+	private static final String CONFIG_PARAM_TOKEN_EXCHANGE_URI = "token.exchange.uri";
+	private static final String CONFIG_PARAM_TOKEN_EXCHANGE_TTL = "token.exchange.ttl";
+	private static final String CONFIG_PARAM_TOKEN_EXCHANGE_KEY_FILE = "token.exchange.key.file";
+	private static final String CONFIG_PARAM_ASSERTION_KEY_FILE = "assertion.key.file";
+	private static final String CONFIG_PARAM_ASSERTION_COOKIE_NAME = "assertion.cookie.name";
+	private static final String CONFIG_PARAM_ASSERTION_COOKIE_TTL = "assertion.cookie.ttl";
 	private static final String INCLUDE_FILE_PROPERTY = "include.file";
+	private static final String ENGINE_PROPERTY = "spnego.engine";
+	private static final String ENGINE_NATIVE = "native";
+	private static final String TRACE_PROPERTY = "org.vaulttec.atlassian.auth.trace";
+	private static final String TRACE_MINUTES_PROPERTY = TRACE_PROPERTY + ".minutes";
+
+	private static final int PAC_GROUP_CACHE_SIZE = 10000;
+	private static final long DEFAULT_PAC_GROUP_TTL = 600;
+	private static final int DEFAULT_BASIC_CACHE_SIZE = 1000;
+	private static final int DEFAULT_BASIC_CACHE_ITERATIONS = 10000;
+	private static final int DEFAULT_BREAKER_FAILURES = 3;
+	private static final long DEFAULT_BREAKER_PROBE_INTERVAL = 30;
+	private static final int DEFAULT_LEARN_EXCLUSIONS_DEPTH = 3;
+	private static final int DEFAULT_LEARN_EXCLUSIONS_THRESHOLD = 50;
+	private static final int DEFAULT_LEARN_EXCLUSIONS_SIZE = 1000;
+	private static final int DEFAULT_WRITE_BEHIND_SIZE = 10000;
+	private static final int DEFAULT_WRITE_BEHIND_BATCH = 100;
+	private static final long DEFAULT_CLIENT_BACKOFF_MAX = 3600;
+	private static final int DEFAULT_CLIENT_BACKOFF_FAILURES = 3;
+	private static final int DEFAULT_CLIENT_BACKOFF_SIZE = 10000;
+	private static final int DEFAULT_SHARED_STATE_SIZE = 100000;
+	private static final long DEFAULT_SHARED_STATE_NEAR_TTL = 5;
+	private static final long DEFAULT_DELEGATION_TTL = 3600;
+	private static final int DEFAULT_DELEGATION_SIZE = 1000;
+	private static final long DEFAULT_AUDIT_FILE_SIZE = 10;
+	private static final int DEFAULT_AUDIT_FILE_COUNT = 10;
+	private static final int DEFAULT_AUDIT_BUFFER = 8192;
+	private static final long DEFAULT_SNAPSHOT_INTERVAL = 300;
+	private static final long SNAPSHOT_SHUTDOWN_TIMEOUT = 10;
+	private static final String DEFAULT_ASSERTION_COOKIE_NAME = "SPNEGO_ASSERTION";
+	private static final long DEFAULT_ASSERTION_COOKIE_TTL = 300;
+	private static final long DEFAULT_TRACE_MINUTES = 60;
+	private static final long DEFAULT_TOKEN_EXCHANGE_TTL = 600;
+
+	public static final String TICKET_GROUPS_ATTRIBUTE = SpnegoSupport.class.getName() + ".ticketGroups";
+	public static final String CONFIG_NAME_ATTRIBUTE = SpnegoSupport.class.getName() + ".configName";
+	public static final String OUTCOME_ATTRIBUTE = SpnegoSupport.class.getName() + ".outcome";
+	public static final String CHALLENGE_ATTRIBUTE = SpnegoSupport.class.getName() + ".challenge";
+	public static final String TOKEN_ATTRIBUTE = SpnegoSupport.class.getName() + ".token";
+	public static final String DELEGATED_CREDENTIAL_ATTRIBUTE = SpnegoSupport.class.getName()
+			+ ".delegatedCredential";
 
-	private boolean hasInit;
-	private List<Map<String, String>> configs;
-	private Set<String> includedUris;
-	private Set<String> excludedUris;
+	// all settings are kept in an immutable snapshot which is replaced as a
+	// whole by init(), so request threads read it without locking and see either
+	// the previous or the new settings but never a mix of both
+	private volatile State state;
+
+	// not part of the settings as it's changed at runtime (via JMX), checking it
+	// costs a single volatile read as long as no trace is active
+	private volatile TraceFilter traceFilter;
+
+	// registered by the first init() and kept for re-initializations, as the
+	// statistics MBean reads the current state
+	private ObjectName statisticsName;
 
 	public SpnegoSupport check() throws IllegalStateException {
-		if (!hasInit) {
+		if (state == null) {
 			throw new IllegalStateException("Init must be called before use");
 		}
 		return this;
 	}
 
-	public final void init(final Map<String, String> params) {
-		configs = initConfigs(params);
-		includedUris = initIncludedUris(params);
-		excludedUris = initExcludedUris(params);
-		hasInit = true;
+	/**
+	 * Applies the given settings. Re-initializations are serialized, so the
+	 * writers of two configurations (audit log, cache snapshot) never use the
+	 * same files at the same time.
+	 */
+	public final synchronized void init(final Map<String, String> params) {
+		State previous = state;
+		State next = new State(params, initConfigs(params));
+		if (previous != null) {
+
+			// the previous configuration's caches are written and restored before
+			// the new configuration is used, so it starts with them
+			previous.stopSnapshotWriter();
+			next.restoreSnapshot();
+		}
+		state = next;
+		if (statisticsName == null) {
+			statisticsName = SpnegoStatistics.register(this);
+		}
+		initTraceFilter();
+		if (previous != null) {
+			previous.destroy();
+		}
+
+		// the previous configuration's audit log is written on destroy, so the
+		// new writers are started now
+		next.start(previous == null);
+	}
+
+	private void initTraceFilter() {
+		String specification = System.getProperty(TRACE_PROPERTY);
+		if (specification != null) {
+			String minutes = System.getProperty(TRACE_MINUTES_PROPERTY);
+			try {
+				startTrace(specification,
+						minutes != null ? Long.parseLong(minutes.trim()) : DEFAULT_TRACE_MINUTES);
+			} catch (IllegalArgumentException e) {
+				LOG.error("Init: Invalid trace filter '{}': {}", specification, e.getMessage());
+			}
+		}
 	}
 
 	protected List<Map<String, String>> initConfigs(final Map<String, String> params) {
@@ -117,149 +260,1418 @@ public class SpnegoSupport {
 		return null;
 	}
 
-	private Set<String> initIncludedUris(final Map<String, String> params) {
-		Set<String> uris = new HashSet<String>();
-		String excludeUris = params.get(CONFIG_PARAM_INCLUDE_URIS);
-		if (excludeUris != null) {
-			for (String uri : excludeUris.split(",")) {
-				uris.add(uri.trim());
+	public boolean isIncludedUri(final HttpServletRequest request) {
+		State state = this.state;
+		return UriPattern.matches(state.includedUris, request) || isTokenExchange(state, request);
+	}
+
+	public boolean isExcludedUri(final HttpServletRequest request) {
+		State state = this.state;
+		return UriPattern.matches(state.excludedUris, request)
+				|| (state.exclusionLearner != null && state.exclusionLearner.isExcluded(request.getRequestURI()));
+	}
+
+	/**
+	 * Returns <code>true</code> if the configured challenge rules exclude the
+	 * given request from SPNEGO negotiation.
+	 */
+	public boolean isSkippedRequest(final HttpServletRequest request) {
+		State state = this.state;
+		return state.requestRules != null && state.requestRules.isSkipped(request)
+				&& !isTokenExchange(state, request);
+	}
+
+	private static boolean isTokenExchange(final State state, final HttpServletRequest request) {
+		return state.tokenExchange != null && state.tokenExchange.isExchangeUri(request);
+	}
+
+	/**
+	 * Returns <code>true</code> if the given request's client IP or URI matches
+	 * the active trace filter, so the request is traced with log level INFO.
+	 */
+	public boolean isTraced(final HttpServletRequest request) {
+		TraceFilter filter = traceFilter;
+		return filter != null && isActive(filter) && filter.matches(request);
+	}
+
+	/**
+	 * Returns <code>true</code> if the given user matches the active trace
+	 * filter.
+	 */
+	public boolean isTracedUser(final String userName) {
+		TraceFilter filter = traceFilter;
+		return filter != null && isActive(filter) && filter.matchesUser(userName);
+	}
+
+	private boolean isActive(final TraceFilter filter) {
+		if (filter.isExpired(System.currentTimeMillis())) {
+			if (traceFilter == filter) {
+				traceFilter = null;
+				LOG.info("Trace '{}' expired", filter);
 			}
+			return false;
 		}
-		LOG.info("Init: Included URIs '{}'", uris);
-		return uris;
+		return true;
 	}
 
-	private Set<String> initExcludedUris(final Map<String, String> params) {
-		Set<String> uris = new HashSet<String>();
-		String excludeUris = params.get(CONFIG_PARAM_EXCLUDE_URIS);
-		if (excludeUris != null) {
-			for (String uri : excludeUris.split(",")) {
-				uris.add(uri.trim());
-			}
+	/**
+	 * Traces the requests matching the given filter (see {@link TraceFilter}) for
+	 * the given number of minutes, replacing the currently active filter.
+	 */
+	void startTrace(final String specification, final long minutes) throws IllegalArgumentException {
+		if (minutes <= 0) {
+			throw new IllegalArgumentException("Invalid trace duration: " + minutes);
 		}
-		LOG.info("Init: Excluded URIs '{}'", uris);
-		return uris;
+		TraceFilter filter = TraceFilter.compile(specification,
+				System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(minutes));
+		traceFilter = filter;
+		LOG.info("Tracing '{}'", filter);
 	}
 
-	public boolean isIncludedUri(final HttpServletRequest request) {
-		return isUri(request, includedUris);
+	void stopTrace() {
+		TraceFilter filter = traceFilter;
+		if (filter != null) {
+			traceFilter = null;
+			LOG.info("Stopped trace '{}'", filter);
+		}
 	}
 
-	public boolean isExcludedUri(final HttpServletRequest request) {
-		return isUri(request, excludedUris);
+	TraceFilter getTraceFilter() {
+		TraceFilter filter = traceFilter;
+		return filter != null && isActive(filter) ? filter : null;
+	}
+
+	private void traceFailure(final HttpServletRequest request, final Map<String, String> config,
+			final Exception e) {
+		if (isTraced(request)) {
+			TraceFilter.LOG.info("SPNEGO authentication of client '{}' with configuration '{}' failed",
+					request.getRemoteAddr(), config.get("name"), e);
+		}
 	}
 
+	/**
+	 * Returns <code>true</code> if the given request matches one of the given
+	 * URIs (in the syntax of <code>include.uris</code>). The included and
+	 * excluded URIs are matched with their pre-compiled patterns instead, so
+	 * this and the following methods aren't used for them anymore.
+	 */
 	protected boolean isUri(final HttpServletRequest request, final Collection<String> uris) {
 		for (String uri : uris) {
 			int queryStringIndex = uri.indexOf('?');
 			if (queryStringIndex != -1) {
-				if (isQueryString(request, uri.substring(queryStringIndex + 1))) {
-					if (isUri(request, uri.substring(0, queryStringIndex))) {
-						return true;
-					}
-				}
-			} else {
-				if (isUri(request, uri)) {
+				if (isQueryString(request, uri.substring(queryStringIndex + 1))
+						&& isUri(request, uri.substring(0, queryStringIndex))) {
 					return true;
 				}
+			} else if (isUri(request, uri)) {
+				return true;
 			}
 		}
 		return false;
 	}
 
 	protected boolean isUri(final HttpServletRequest request, final String uri) {
-		if (uri.endsWith("*")) {
-			if (uri.startsWith("*")) {
-				if (request.getRequestURI().indexOf(uri.substring(1, uri.length() - 1)) != -1) {
-					return true;
-				}
-			} else {
-				if (request.getRequestURI().startsWith(uri.substring(0, uri.length() - 1))) {
-					return true;
-				}
-			}
-		} else if (uri.startsWith("*")) {
-			if (request.getRequestURI().endsWith(uri.substring(1))) {
-				return true;
-			}
-		} else {
-			if (request.getRequestURI().equals(uri)) {
-				return true;
-			}
-		}
-		return false;
+		return WildcardPattern.matches(uri, request.getRequestURI(), false);
 	}
 
 	protected boolean isQueryString(final HttpServletRequest request, final String queryString) {
-		if (request.getQueryString() != null) {
-			if (queryString.endsWith("*")) {
-				if (queryString.startsWith("*")) {
-					if (request.getQueryString().indexOf(queryString.substring(1, queryString.length() - 1)) != -1) {
-						return true;
-					}
-				} else {
-					if (request.getQueryString().startsWith(queryString.substring(0, queryString.length() - 1))) {
-						return true;
-					}
-				}
-			} else if (queryString.startsWith("*")) {
-				if (request.getQueryString().endsWith(queryString.substring(1))) {
-					return true;
-				}
-
-			} else {
-				if (request.getQueryString().equals(queryString)) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return WildcardPattern.matches(queryString, request.getQueryString(), false);
 	}
 
 	public boolean hasNegotiationAuthenticationHeader(final HttpServletRequest request,
 			final HttpServletResponse response) {
+		State state = this.state;
+		boolean basicAllowed = state != null && state.basicAllowed;
+		ExclusionLearner exclusionLearner = state != null ? state.exclusionLearner : null;
 		String header = request.getHeader("Authorization");
 		LOG.trace("Authorization header: {}", header);
-		if (header == null || header.toUpperCase().indexOf("NEGOTIATE") == -1) {
+		if (header == null || (!NEGOTIATE.matches(header)
+				&& !(basicAllowed && header.regionMatches(true, 0, "Basic ", 0, 6)))) {
+			if (exclusionLearner != null && exclusionLearner.recordChallenge(request.getRequestURI())) {
+				LOG.info("Excluding URIs {} - their challenges are never answered",
+						exclusionLearner.getUris(exclusionLearner.getPrefix(request.getRequestURI())));
+			}
 			try {
 				response.addHeader("WWW-Authenticate", "Negotiate");
 				response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+
+				// the response is completed by the SpnegoChallengeFilter
+				ChallengeResponse challengeResponse = state != null ? state.challengeResponse : null;
+				if (challengeResponse == null && state != null && isTokenExchange(state, request)) {
+					challengeResponse = state.tokenExchange.getChallengeResponse();
+				}
+				if (challengeResponse != null) {
+					challengeResponse.recordChallenge();
+					request.setAttribute(CHALLENGE_ATTRIBUTE, challengeResponse);
+				}
 				return false;
 			} catch (Exception e) {
 				LOG.error("Unable to write response");
 			}
 		}
+		if (exclusionLearner != null) {
+			exclusionLearner.recordNegotiation(request.getRequestURI());
+		}
 		return true;
 	}
 
 	public String authenticate(final HttpServletRequest request, final HttpServletResponse response) {
+		State state = this.state;
+		String header = request.getHeader("Authorization");
+		boolean negotiate = header != null && header.regionMatches(true, 0, "Negotiate ", 0, 10);
+		ClientFailureTracker clientFailures = negotiate ? state.clientFailures : null;
+		boolean traced = isTraced(request);
+		if (traced) {
+			TraceFilter.LOG.info("Authenticating client '{}' with {} header", request.getRemoteAddr(),
+					TraceFilter.describeAuthorization(header));
+		}
+		if (clientFailures == null) {
+			return authenticate(state, request, response, header, negotiate);
+		}
+
+		// skip the tokens of clients which failed repeatedly, they end up at the
+		// login form
+		String client = request.getRemoteAddr();
+		if (clientFailures.isBackedOff(client)) {
+			LOG.debug("Skipping SPNEGO token of client '{}' in backoff", client);
+			if (traced) {
+				TraceFilter.LOG.info("Skipping SPNEGO token of client '{}' in backoff", client);
+			}
+			return null;
+		}
+		String userName = authenticate(state, request, response, header, negotiate);
+		if (userName != null) {
+			clientFailures.recordSuccess(client);
+		} else if (isAllBreakersClosed(state)) {
+
+			// it's not the client's fault if a KDC isn't available
+			long backoff = clientFailures.recordFailure(client);
+			if (backoff > 0) {
+				LOG.warn("SPNEGO authentication of client '{}' failed repeatedly - skipping its tokens for {}s",
+						client, backoff / 1000);
+			}
+		}
+		return userName;
+	}
+
+	private String authenticate(final State state, final HttpServletRequest request,
+			final HttpServletResponse response, final String header, final boolean negotiate) {
+		if (state.acceptors != null && negotiate) {
+			return authenticateWithAcceptor(state, request, response, header.substring(10).trim());
+		}
+		if (state.basicCredentials != null) {
+			if (header != null && header.regionMatches(true, 0, "Basic ", 0, 6)) {
+				return authenticateWithBasicCache(state, request, response, header.substring(6).trim());
+			}
+		}
+		return authenticateWithLibrary(state, request, response, null, null);
+	}
+
+	private static boolean isAllBreakersClosed(final State state) {
+		for (CircuitBreaker breaker : state.breakers) {
+			if (!breaker.isClosed()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Logs the given exception with its stack trace, unless an identical one was
+	 * logged recently.
+	 */
+	private static void logAuthenticationError(final Exception e) {
+		long suppressed = LOG_THROTTLE.acquire(e);
+		if (suppressed > 0) {
+			LOG.error("SPNEGO authentication throws an exception ({} identical exceptions suppressed)", suppressed,
+					e);
+		} else if (suppressed == 0) {
+			LOG.error("SPNEGO authentication throws an exception", e);
+		} else {
+			LOG.debug("SPNEGO authentication throws an exception: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Checks the Basic credentials against the cache of verified credentials
+	 * first, and only if they aren't found there against the KDC.
+	 */
+	private String authenticateWithBasicCache(final State state, final HttpServletRequest request,
+			final HttpServletResponse response, final String encodedCredentials) {
+		String credentials;
+		try {
+			credentials = new String(Base64.getDecoder().decode(encodedCredentials), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			LOG.warn("Invalid Basic credentials in request for URI '{}'", request.getRequestURI());
+			return null;
+		}
+		int colon = credentials.indexOf(':');
+		if (colon <= 0) {
+			return authenticateWithLibrary(state, request, response, null, null);
+		}
+		String userName = credentials.substring(0, colon);
+		String password = credentials.substring(colon + 1);
+		try {
+			BasicCredentialCache.Entry entry = state.basicCredentials.verify(userName, password);
+			if (entry != null && (request.isSecure()
+					|| "true".equals(entry.getConfig().get("spnego.allow.unsecure.basic")))) {
+				LOG.debug("Cached Basic credentials of user '{}' from '{}'", userName, entry.getConfig().get("name"));
+				request.setAttribute(CONFIG_NAME_ATTRIBUTE, state.getConfigName(entry.getConfig()));
+
+				// remove domain from principal name
+				return entry.getPrincipalName().split("@")[0];
+			}
+		} catch (GeneralSecurityException e) {
+			LOG.error("Verifying cached Basic credentials failed", e);
+			return authenticateWithLibrary(state, request, response, null, null);
+		}
+		String user = authenticateWithLibrary(state, request, response, userName, password);
+		if (user == null) {
+			state.basicCredentials.invalidate(userName);
+		}
+		return user;
+	}
+
+	/**
+	 * Authenticates the request via the SPNEGO library. If Basic credentials are
+	 * given then they are added to the cache of verified credentials on success.
+	 */
+	private String authenticateWithLibrary(final State state, final HttpServletRequest request,
+			final HttpServletResponse response, final String basicUserName, final String basicPassword) {
 		Principal principal = null;
-		for (Map<String, String> config : configs) {
+		SpnegoEvents events = SpnegoEvents.get();
+		CircuitBreaker[] breakers = state.breakers;
+		for (int i = 0; i < state.configs.size(); i++) {
+			Map<String, String> config = state.configs.get(i);
+			if (isNativeEngine(config)) {
+
+				// the native engine only accepts Negotiate tokens via the acceptors
+				continue;
+			}
+			if (!breakers[i].isClosed()) {
+				LOG.debug("Skipping configuration '{}' due to open circuit breaker", config.get("name"));
+				continue;
+			}
+			SpnegoAuthenticator authenticator = state.getLibraryAuthenticator(i);
+			if (authenticator == null) {
+				LOG.debug("Skipping configuration '{}' - its SPNEGO authenticator isn't created yet",
+						config.get("name"));
+				continue;
+			}
 			LOG.debug("Executing SPNEGO authentication with configuration '{}' for URI '{}'", config.get("name"),
 					request.getRequestURI());
-			SpnegoAuthenticator authenticator = null;
+			Object acceptEvent = events.beginAccept();
+			String result = "rejected";
 			try {
-				authenticator = new SpnegoAuthenticator(config);
-				principal = authenticator.authenticate(request, new SpnegoHttpServletResponse(response));
+				long start = System.nanoTime();
+				principal = authenticator.authenticate(request,
+						new SpnegoHttpServletResponse(response));
+				breakers[i].recordSuccess();
 				if (principal != null) {
 					LOG.debug("SPENGO user in '{}': {}", config.get("name"), principal.getName());
+					result = "accepted";
+					request.setAttribute(CONFIG_NAME_ATTRIBUTE, state.getConfigName(config));
+					if (basicUserName != null) {
+						cacheBasicCredentials(state, basicUserName, basicPassword, principal.getName(), config);
+					}
 
 					// remove domain from principal name
-					return principal.getName().split("@")[0];
+					String userName = principal.getName().split("@")[0];
+					GSSCredential credential = principal instanceof SpnegoPrincipal
+							? ((SpnegoPrincipal) principal).getDelegatedCredential()
+							: null;
+					String header = request.getHeader("Authorization");
+					if (header != null && header.regionMatches(true, 0, "Negotiate ", 0, 10)) {
+
+						// the library doesn't expose the ticket itself
+						state.ticketMetrics[i].record(TicketMetrics.UNKNOWN, getDecodedLength(header, 10),
+								TicketMetrics.UNKNOWN, credential != null, System.nanoTime() - start);
+					}
+					retainDelegatedCredential(state, request, userName, credential);
+					return userName;
 				}
 			} catch (UnsupportedOperationException e) {
 				LOG.warn("NTLM is not supported");
+				result = "ntlm";
 				return null;
-			} catch (LoginException | IOException | GSSException | PrivilegedActionException | URISyntaxException e) {
-				LOG.error("SPNEGO authentication throws an exception", e);
+			} catch (IOException | GSSException e) {
+				result = "error";
+				traceFailure(request, config, e);
+				if (CircuitBreaker.isKdcFailure(e)) {
+
+					// continue with the next configuration (e.g. another realm)
+					LOG.error("KDC of configuration '{}' not available: {}", config.get("name"), e.getMessage());
+					breakers[i].recordFailure(e);
+					if (!breakers[i].isClosed()) {
+						state.startProber();
+					}
+					continue;
+				}
+				logAuthenticationError(e);
 				return null;
 			} finally {
-				if (authenticator != null) {
-					authenticator.dispose();
+				events.endAccept(acceptEvent, config.get("name"), result);
+			}
+		}
+		LOG.warn("No authentication information found in request");
+		return null;
+	}
+
+	/**
+	 * Disposes the authenticators and acceptors of all configurations and
+	 * unregisters the statistics MBean.
+	 */
+	public synchronized void destroy() {
+		State state = this.state;
+		if (state != null) {
+			state.destroy();
+		}
+		if (statisticsName != null) {
+			SpnegoStatistics.unregister(statisticsName);
+			statisticsName = null;
+		}
+	}
+
+	private void cacheBasicCredentials(final State state, final String userName, final String password,
+			final String principalName, final Map<String, String> config) {
+		try {
+			state.basicCredentials.put(userName, password, principalName, config);
+		} catch (GeneralSecurityException e) {
+			LOG.error("Caching Basic credentials failed", e);
+		}
+	}
+
+	/**
+	 * Accepts the token via our own acceptors (JGSS or native engine) which
+	 * provide access to the ticket's PAC, and caches the user's ticket groups.
+	 */
+	private String authenticateWithAcceptor(final State state, final HttpServletRequest request,
+			final HttpServletResponse response, final String encodedToken) {
+		if (encodedToken.startsWith("TlRMTVNTUA")) {
+			LOG.warn("NTLM is not supported");
+			return null;
+		}
+		byte[] token;
+		try {
+			token = Base64.getDecoder().decode(encodedToken);
+		} catch (IllegalArgumentException e) {
+			LOG.warn("Invalid SPNEGO token in request for URI '{}'", request.getRequestURI());
+			return null;
+		}
+		SpnegoEvents events = SpnegoEvents.get();
+		CircuitBreaker[] breakers = state.breakers;
+		for (int i = 0; i < state.configs.size(); i++) {
+			Map<String, String> config = state.configs.get(i);
+			if (!breakers[i].isClosed()) {
+				LOG.debug("Skipping configuration '{}' due to open circuit breaker", config.get("name"));
+				continue;
+			}
+			LOG.debug("Executing SPNEGO authentication with configuration '{}' for URI '{}'", config.get("name"),
+					request.getRequestURI());
+			Object acceptEvent = events.beginAccept();
+			String outcome = "rejected";
+			try {
+				TokenAcceptor acceptor = state.getAcceptor(i);
+				breakers[i].recordSuccess();
+				long start = System.nanoTime();
+				AcceptResult result = acceptor.accept(token, state.pacGroupMapping != null);
+				if (result != null) {
+					outcome = "accepted";
+					state.ticketMetrics[i].record(result.getEtype(), token.length,
+							result.getTicketEndTime() > 0
+									? Math.max(result.getTicketEndTime() - System.currentTimeMillis(), 0)
+									: TicketMetrics.UNKNOWN,
+							result.isDelegationRequested(), System.nanoTime() - start);
+					request.setAttribute(CONFIG_NAME_ATTRIBUTE, state.getConfigName(config));
+					LOG.debug("SPENGO user in '{}': {}", config.get("name"), result.getPrincipalName());
+					if (result.getResponseToken() != null) {
+						response.setHeader("WWW-Authenticate",
+								"Negotiate " + Base64.getEncoder().encodeToString(result.getResponseToken()));
+					}
+
+					// remove domain from principal name
+					String userName = result.getPrincipalName().split("@")[0];
+					retainDelegatedCredential(state, request, userName, result.getDelegatedCredential());
+					Set<String> groups = state.pacGroupMapping != null
+							? getPacGroups(state.pacGroupMapping, result.getPac())
+							: null;
+					if (groups != null) {
+						LOG.debug("Ticket groups of user '{}': {}", userName, groups);
+						state.ticketGroups.put(userName, groups);
+						request.setAttribute(TICKET_GROUPS_ATTRIBUTE, groups);
+					}
+					return userName;
+				}
+			} catch (GSSException e) {
+				LOG.debug("SPNEGO authentication with configuration '{}' failed: {}", config.get("name"),
+						e.getMessage());
+				traceFailure(request, config, e);
+			} catch (LoginException | PrivilegedActionException | IOException e) {
+				outcome = "error";
+				traceFailure(request, config, e);
+				if (CircuitBreaker.isKdcFailure(e)) {
+
+					// continue with the next configuration (e.g. another realm)
+					LOG.error("KDC of configuration '{}' not available: {}", config.get("name"), e.getMessage());
+					breakers[i].recordFailure(e);
+					if (!breakers[i].isClosed()) {
+						state.startProber();
+					}
+					continue;
 				}
+				logAuthenticationError(e);
+				return null;
+			} finally {
+				events.endAccept(acceptEvent, config.get("name"), outcome);
 			}
 		}
 		LOG.warn("No authentication information found in request");
 		return null;
 	}
+
+	/**
+	 * Returns the length of the Base64-decoded value of the given header which
+	 * starts at the given offset.
+	 */
+	private static int getDecodedLength(final String header, final int offset) {
+		int end = header.length();
+		while (end > offset && (header.charAt(end - 1) == '=' || header.charAt(end - 1) == ' ')) {
+			end--;
+		}
+		int start = offset;
+		while (start < end && header.charAt(start) == ' ') {
+			start++;
+		}
+		return (end - start) * 3 / 4;
+	}
+
+	/**
+	 * Keeps the delegated credential of the given user in the store (if
+	 * enabled), otherwise it's disposed right away.
+	 */
+	private void retainDelegatedCredential(final State state, final HttpServletRequest request,
+			final String userName, final GSSCredential credential) {
+		if (credential == null) {
+			return;
+		}
+		if (state.delegatedCredentials != null) {
+			LOG.debug("Storing delegated credential of user '{}'", userName);
+			state.delegatedCredentials.store(userName, credential);
+			request.setAttribute(DELEGATED_CREDENTIAL_ATTRIBUTE, credential);
+		} else {
+			try {
+				credential.dispose();
+			} catch (GSSException e) {
+				LOG.debug("Disposing delegated credential failed: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Binds the delegated credential received with the given request to the
+	 * user's session, so it's disposed when the session ends.
+	 */
+	public void bindDelegatedCredential(final HttpServletRequest request, final String userName) {
+		DelegatedCredentialStore delegatedCredentials = state.delegatedCredentials;
+		Object credential = request.getAttribute(DELEGATED_CREDENTIAL_ATTRIBUTE);
+		if (delegatedCredentials != null && credential instanceof GSSCredential) {
+			HttpSession session = request.getSession(false);
+			if (session != null) {
+				session.setAttribute(DELEGATED_CREDENTIAL_ATTRIBUTE,
+						delegatedCredentials.bindToSession(userName, (GSSCredential) credential));
+			}
+		}
+	}
+
+	/**
+	 * Returns the user's delegated Kerberos credential from the last
+	 * negotiation, or <code>null</code> if there's none or it expired. The
+	 * credential is disposed when it expires, is replaced by a newer one or the
+	 * user's session ends, so it shouldn't be kept by the caller.
+	 */
+	public GSSCredential getDelegatedCredential(final String userName) {
+		DelegatedCredentialStore delegatedCredentials = state.delegatedCredentials;
+		return delegatedCredentials != null ? delegatedCredentials.get(userName) : null;
+	}
+
+	private Set<String> getPacGroups(final PacGroupMapping pacGroupMapping, final byte[] pac) {
+		if (pac != null) {
+			try {
+				return pacGroupMapping.getGroups(PacDecoder.decodeGroupSids(pac));
+			} catch (IOException e) {
+				LOG.warn("Decoding PAC failed: {}", e.getMessage());
+			}
+		} else {
+			LOG.debug("No PAC found in ticket");
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the user name from a valid assertion cookie of a previous
+	 * negotiation, or <code>null</code> if there's none.
+	 */
+	public String getAssertedUserName(final HttpServletRequest request) {
+		State state = this.state;
+		return state.assertionCookie != null ? state.assertionCookie.verify(request, state.configNames) : null;
+	}
+
+	/**
+	 * Issues an assertion cookie for the user who was authenticated via
+	 * {@link #authenticate(HttpServletRequest, HttpServletResponse)} in the given
+	 * request.
+	 */
+	public void issueAssertion(final HttpServletRequest request, final HttpServletResponse response,
+			final String userName) {
+		Object configName = request.getAttribute(CONFIG_NAME_ATTRIBUTE);
+		AssertionCookie assertionCookie = state.assertionCookie;
+		if (assertionCookie != null && configName != null) {
+			assertionCookie.issue(request, response, userName, configName.toString());
+		}
+	}
+
+	/**
+	 * Returns the user name from a valid bearer token issued via the token
+	 * exchange, or <code>null</code> if there's none.
+	 */
+	public String getBearerUserName(final HttpServletRequest request) {
+		State state = this.state;
+		return state.tokenExchange != null ? state.tokenExchange.verify(request, state.configNames) : null;
+	}
+
+	/**
+	 * Issues a bearer token for the user who was authenticated via
+	 * {@link #authenticate(HttpServletRequest, HttpServletResponse)} if the given
+	 * request is a token exchange request. The token is written as response by
+	 * the {@link SpnegoChallengeFilter}.
+	 */
+	public void exchangeToken(final HttpServletRequest request, final String userName) {
+		State state = this.state;
+		Object configName = request.getAttribute(CONFIG_NAME_ATTRIBUTE);
+		if (isTokenExchange(state, request) && configName != null) {
+			LOG.debug("Issuing bearer token for user '{}'", userName);
+			request.setAttribute(TOKEN_ATTRIBUTE, state.tokenExchange.issue(request, userName, configName.toString()));
+		}
+	}
+
+	/**
+	 * Adds the result of a SPNEGO login (attempt) which started at the given
+	 * time (via {@link System#nanoTime()}) to the audit log, if configured.
+	 */
+	public void audit(final HttpServletRequest request, final String userName, final String result,
+			final long startNanos) {
+		AuditLog auditLog = state.auditLog;
+		if (auditLog != null) {
+			Object configName = request.getAttribute(CONFIG_NAME_ATTRIBUTE);
+			auditLog.append(System.currentTimeMillis(), result, userName,
+					configName != null ? configName.toString() : null, request.getRemoteAddr(),
+					System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the bookkeeping of successful logins is
+	 * written behind, see {@link #writeBehind(String, Runnable)}.
+	 */
+	public boolean isWriteBehind() {
+		return state.writeBehind != null;
+	}
+
+	/**
+	 * Executes the given bookkeeping task of a user's successful login (e.g.
+	 * recording the login in the database) in the background, coalesced with
+	 * the user's pending tasks. If the write-behind queue is full the task is
+	 * executed right away. Returns <code>false</code> (without executing the
+	 * task) if write-behind isn't configured.
+	 */
+	public boolean writeBehind(final String userName, final Runnable task) {
+		WriteBehindQueue writeBehind = state.writeBehind;
+		if (writeBehind == null) {
+			return false;
+		}
+		if (!writeBehind.submit(userName, task)) {
+			LOG.debug("Write-behind queue full - executing task of '{}' directly", userName);
+			task.run();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a copy of the given request which can be used by write-behind
+	 * tasks after the request is finished.
+	 */
+	public HttpServletRequest detach(final HttpServletRequest request) {
+		return DetachedRequest.snapshot(request);
+	}
+
+	WriteBehindQueue getWriteBehindQueue() {
+		return state.writeBehind;
+	}
+
+	ExclusionLearner getExclusionLearner() {
+		return state.exclusionLearner;
+	}
+
+	CircuitBreaker[] getCircuitBreakers() {
+		return state.breakers;
+	}
+
+	/**
+	 * Waits until the SPNEGO library's authenticators are created in the
+	 * background (e.g. before measuring them). Returns <code>false</code> if
+	 * that didn't happen within the given time.
+	 */
+	boolean awaitLibraryAuthenticators(final long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!state.isLibraryAuthenticatorsCreated()) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	TicketMetrics[] getTicketMetrics() {
+		return state.ticketMetrics;
+	}
+
+	BasicCredentialCache getBasicCredentialCache() {
+		return state.basicCredentials;
+	}
+
+	TokenExchange getTokenExchange() {
+		return state.tokenExchange;
+	}
+
+	AuditLog getAuditLog() {
+		return state.auditLog;
+	}
+
+	NearCachedAuthState getSharedState() {
+		return state.sharedState;
+	}
+
+	ClientFailureTracker getClientFailureTracker() {
+		return state.clientFailures;
+	}
+
+	ChallengeResponse getChallengeResponse() {
+		return state.challengeResponse;
+	}
+
+	DelegatedCredentialStore getDelegatedCredentialStore() {
+		return state.delegatedCredentials;
+	}
+
+	/**
+	 * Returns the (mapped) groups from the user's last Kerberos ticket, or
+	 * <code>null</code> if PAC support isn't configured or the cached groups
+	 * expired.
+	 */
+	public Set<String> getTicketGroups(final String userName) {
+		ExpiringCache<String, Set<String>> ticketGroups = state.ticketGroups;
+		return ticketGroups != null ? ticketGroups.get(userName) : null;
+	}
+
+	/**
+	 * Returns <code>true</code> if the groups from the user's last Kerberos
+	 * ticket contain one of the configured login groups - which means the user
+	 * can login without resolving the group memberships from the user directory.
+	 */
+	public boolean hasTicketLoginGroup(final String userName) {
+		State state = this.state;
+		Set<String> groups = state.ticketGroups != null ? state.ticketGroups.get(userName) : null;
+		return groups != null && !Collections.disjoint(groups, state.pacLoginGroups);
+	}
+
+	private static boolean isNativeEngine(final Map<String, String> config) {
+		return ENGINE_NATIVE.equals(config.get(ENGINE_PROPERTY));
+	}
+
+	private static ScheduledExecutorService newDaemonExecutor(final String name) {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Immutable snapshot of the settings (and the runtime objects created for
+	 * them) of one call of {@link SpnegoSupport#init(Map)}.
+	 */
+	private static final class State {
+
+		private final List<Map<String, String>> configs;
+		private final UriPattern[] includedUris;
+		private final UriPattern[] excludedUris;
+		private final ExclusionLearner exclusionLearner;
+		private final RequestRules requestRules;
+		private final ChallengeResponse challengeResponse;
+		private final PacGroupMapping pacGroupMapping;
+		private final Set<String> pacLoginGroups;
+		private final ExpiringCache<String, Set<String>> ticketGroups;
+		private final AtomicReferenceArray<TokenAcceptor> acceptors;
+		private final AtomicReferenceArray<SpnegoAuthenticator> libraryAuthenticators;
+		private final CircuitBreaker[] breakers;
+		private final TicketMetrics[] ticketMetrics;
+		private final NearCachedAuthState sharedState;
+		private final ClientFailureTracker clientFailures;
+		private final long probeInterval;
+		private final boolean basicAllowed;
+		private final BasicCredentialCache basicCredentials;
+		private final AssertionCookie assertionCookie;
+		private final TokenExchange tokenExchange;
+		private final Set<String> configNames;
+		private final WriteBehindQueue writeBehind;
+		private final DelegatedCredentialStore delegatedCredentials;
+		private final AuditLog auditLog;
+		private final CacheSnapshot snapshot;
+		private final long snapshotInterval;
+		private ScheduledExecutorService prober;
+		private ScheduledExecutorService authenticatorCreator;
+		private ScheduledExecutorService snapshotWriter;
+		private boolean destroyed;
+
+		State(final Map<String, String> params, final List<Map<String, String>> configs) {
+			this.configs = configs;
+			initKerberosConfig();
+			includedUris = initIncludedUris(params);
+			excludedUris = initExcludedUris(params);
+			exclusionLearner = initExclusionLearner(params);
+			requestRules = initRequestRules(params);
+			challengeResponse = initChallengeResponse(params);
+			pacGroupMapping = initPacGroupMapping(params);
+			ticketGroups = initTicketGroups(params);
+			pacLoginGroups = initPacLoginGroups(params);
+			acceptors = initAcceptors();
+			libraryAuthenticators = new AtomicReferenceArray<SpnegoAuthenticator>(configs.size());
+			breakers = initCircuitBreakers(params);
+			ticketMetrics = initTicketMetrics();
+			probeInterval = initProbeInterval(params);
+			sharedState = initSharedState(params);
+			clientFailures = initClientFailures(params);
+			basicAllowed = initBasicAllowed();
+			basicCredentials = initBasicCredentials(params);
+			assertionCookie = initAssertionCookie(params);
+			tokenExchange = initTokenExchange(params);
+			configNames = initConfigNames();
+			writeBehind = initWriteBehind(params);
+			delegatedCredentials = initDelegatedCredentials(params);
+			auditLog = initAuditLog(params);
+			snapshot = initSnapshot(params);
+			snapshotInterval = initSnapshotInterval(params);
+		}
+
+		/**
+		 * The JDK reads the Kerberos configuration (krb5.conf) only once per JVM,
+		 * and the SPNEGO library applies the krb5.conf and the JAAS login
+		 * configuration JVM-wide. So all configurations which don't use the
+		 * native engine have to share these files, otherwise the init fails.
+		 */
+		private void initKerberosConfig() {
+			Map<String, String> first = null;
+			for (Map<String, String> config : configs) {
+				if (isNativeEngine(config)) {
+					continue;
+				}
+				if (first == null) {
+					first = config;
+				} else {
+					checkSameFile(first, config, "spnego.krb5.conf");
+					checkSameFile(first, config, "spnego.login.conf");
+				}
+			}
+			String krb5Conf = first != null ? first.get("spnego.krb5.conf") : null;
+			if (krb5Conf != null) {
+				System.setProperty("java.security.krb5.conf", krb5Conf.trim());
+				LOG.info("Init: Kerberos configuration '{}'", krb5Conf.trim());
+			}
+		}
+
+		private void checkSameFile(final Map<String, String> first, final Map<String, String> config,
+				final String property) {
+			String file = first.get(property);
+			String configFile = config.get(property);
+			if (file != null ? configFile == null || !file.trim().equals(configFile.trim()) : configFile != null) {
+				throw new IllegalArgumentException("Configuration '" + getConfigName(config) + "' references '"
+						+ property + "=" + configFile + "' instead of '" + file + "' of configuration '"
+						+ getConfigName(first) + "' - the JVM supports only one (use 'spnego.engine=native' for "
+						+ "independent configurations)");
+			}
+		}
+
+		private UriPattern[] initIncludedUris(final Map<String, String> params) {
+			Set<String> uris = new LinkedHashSet<String>();
+			String excludeUris = params.get(CONFIG_PARAM_INCLUDE_URIS);
+			if (excludeUris != null) {
+				for (String uri : excludeUris.split(",")) {
+					uris.add(uri.trim());
+				}
+			}
+			LOG.info("Init: Included URIs '{}'", uris);
+			return UriPattern.compile(uris);
+		}
+
+		private UriPattern[] initExcludedUris(final Map<String, String> params) {
+			Set<String> uris = new LinkedHashSet<String>();
+			String excludeUris = params.get(CONFIG_PARAM_EXCLUDE_URIS);
+			if (excludeUris != null) {
+				for (String uri : excludeUris.split(",")) {
+					uris.add(uri.trim());
+				}
+			}
+			LOG.info("Init: Excluded URIs '{}'", uris);
+			return UriPattern.compile(uris);
+		}
+
+		private ExclusionLearner initExclusionLearner(final Map<String, String> params) {
+			String ttl = params.get(CONFIG_PARAM_LEARN_EXCLUSIONS_TTL);
+			if (ttl == null) {
+				return null;
+			}
+			String depth = params.get(CONFIG_PARAM_LEARN_EXCLUSIONS_DEPTH);
+			String threshold = params.get(CONFIG_PARAM_LEARN_EXCLUSIONS_THRESHOLD);
+			String size = params.get(CONFIG_PARAM_LEARN_EXCLUSIONS_SIZE);
+			ExclusionLearner learner = new ExclusionLearner(
+					depth != null ? Integer.parseInt(depth.trim()) : DEFAULT_LEARN_EXCLUSIONS_DEPTH,
+					threshold != null ? Integer.parseInt(threshold.trim()) : DEFAULT_LEARN_EXCLUSIONS_THRESHOLD,
+					Long.parseLong(ttl.trim()) * 1000,
+					size != null ? Integer.parseInt(size.trim()) : DEFAULT_LEARN_EXCLUSIONS_SIZE);
+			LOG.info("Init: Learning excluded URIs with TTL {}s", ttl.trim());
+			return learner;
+		}
+
+		private RequestRules initRequestRules(final Map<String, String> params) {
+			String rules = params.get(CONFIG_PARAM_CHALLENGE_RULES);
+			if (rules != null) {
+				try {
+					RequestRules requestRules = RequestRules.compile(rules);
+					LOG.info("Init: Challenge rules '{}'", rules);
+					return requestRules;
+				} catch (IllegalArgumentException e) {
+					LOG.error("Invalid challenge rules", e);
+				}
+			}
+			return null;
+		}
+
+		private ChallengeResponse initChallengeResponse(final Map<String, String> params) {
+			if (!"true".equals(params.get(CONFIG_PARAM_CHALLENGE_COMPLETE))) {
+				return null;
+			}
+			String bodyFile = params.get(CONFIG_PARAM_CHALLENGE_BODY_FILE);
+			bodyFile = bodyFile != null ? bodyFile.trim() : null;
+			try {
+				ChallengeResponse challengeResponse = ChallengeResponse.create(bodyFile);
+				LOG.info("Init: Completing challenge responses with body '{}'", bodyFile != null ? bodyFile : "default");
+				return challengeResponse;
+			} catch (IOException e) {
+				LOG.error("Reading challenge body file failed", e);
+			}
+			return null;
+		}
+
+		private PacGroupMapping initPacGroupMapping(final Map<String, String> params) {
+			String mappingFile = params.get(CONFIG_PARAM_PAC_GROUP_MAPPING);
+			return mappingFile != null ? PacGroupMapping.read(mappingFile.trim()) : null;
+		}
+
+		private ExpiringCache<String, Set<String>> initTicketGroups(final Map<String, String> params) {
+			if (pacGroupMapping == null) {
+				return null;
+			}
+			String ttl = params.get(CONFIG_PARAM_PAC_GROUP_TTL);
+			return new ExpiringCache<String, Set<String>>(PAC_GROUP_CACHE_SIZE,
+					(ttl != null ? Long.parseLong(ttl.trim()) : DEFAULT_PAC_GROUP_TTL) * 1000);
+		}
+
+		private Set<String> initPacLoginGroups(final Map<String, String> params) {
+			if (pacGroupMapping == null) {
+				return null;
+			}
+			Set<String> groups = new HashSet<String>();
+			String loginGroups = params.get(CONFIG_PARAM_PAC_LOGIN_GROUPS);
+			if (loginGroups != null) {
+				for (String group : loginGroups.split(",")) {
+					groups.add(group.trim());
+				}
+			}
+			LOG.info("Init: PAC login groups '{}'", groups);
+			return groups;
+		}
+
+		private AtomicReferenceArray<TokenAcceptor> initAcceptors() {
+			boolean nativeEngine = false;
+			for (Map<String, String> config : configs) {
+				nativeEngine |= isNativeEngine(config);
+			}
+			return pacGroupMapping != null || nativeEngine ? new AtomicReferenceArray<TokenAcceptor>(configs.size())
+					: null;
+		}
+
+		private CircuitBreaker[] initCircuitBreakers(final Map<String, String> params) {
+			String failures = params.get(CONFIG_PARAM_BREAKER_FAILURES);
+			int threshold = failures != null ? Integer.parseInt(failures.trim()) : DEFAULT_BREAKER_FAILURES;
+			CircuitBreaker[] breakers = new CircuitBreaker[configs.size()];
+			for (int i = 0; i < breakers.length; i++) {
+				breakers[i] = new CircuitBreaker(getConfigName(configs.get(i)), threshold);
+			}
+			LOG.info("Init: Circuit breakers open after {} KDC failures", threshold);
+			return breakers;
+		}
+
+		private TicketMetrics[] initTicketMetrics() {
+			TicketMetrics[] ticketMetrics = new TicketMetrics[configs.size()];
+			for (int i = 0; i < ticketMetrics.length; i++) {
+				ticketMetrics[i] = new TicketMetrics(getConfigName(configs.get(i)));
+			}
+			return ticketMetrics;
+		}
+
+		private long initProbeInterval(final Map<String, String> params) {
+			String interval = params.get(CONFIG_PARAM_BREAKER_PROBE_INTERVAL);
+			long probeInterval = interval != null ? Long.parseLong(interval.trim()) : DEFAULT_BREAKER_PROBE_INTERVAL;
+			LOG.info("Init: Circuit breaker probe interval {}s", probeInterval);
+			return probeInterval;
+		}
+
+		/**
+		 * Starts probing the KDCs when the first circuit breaker opens, so
+		 * there's no probe thread as long as all KDCs are available.
+		 */
+		synchronized void startProber() {
+			if (prober != null || destroyed) {
+				return;
+			}
+			prober = newDaemonExecutor("spnego-kdc-probe");
+			prober.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					probeCircuitBreakers();
+				}
+			}, probeInterval, probeInterval, TimeUnit.SECONDS);
+		}
+
+		/**
+		 * Probes the KDCs of all configurations with an open circuit breaker via a
+		 * JAAS login.
+		 */
+		private void probeCircuitBreakers() {
+			for (int i = 0; i < breakers.length; i++) {
+				final Map<String, String> config = configs.get(i);
+				breakers[i].probe(new CircuitBreaker.Probe() {
+					@Override
+					public void run() throws Exception {
+						GssContextAcceptor.login(config).logout();
+					}
+				});
+			}
+		}
+
+		private NearCachedAuthState initSharedState(final Map<String, String> params) {
+			String className = params.get(CONFIG_PARAM_SHARED_STATE);
+			if (className == null) {
+				return null;
+			}
+			String size = params.get(CONFIG_PARAM_SHARED_STATE_SIZE);
+			String ttl = params.get(CONFIG_PARAM_SHARED_STATE_NEAR_TTL);
+			try {
+				SharedAuthState backend = (SharedAuthState) Class.forName(className.trim()).getConstructor(Map.class)
+						.newInstance(params);
+				long nearTtl = ttl != null ? Long.parseLong(ttl.trim()) : DEFAULT_SHARED_STATE_NEAR_TTL;
+				LOG.info("Init: Shared authentication state '{}' with near-cache TTL {}s", backend, nearTtl);
+				return new NearCachedAuthState(backend,
+						size != null ? Integer.parseInt(size.trim()) : DEFAULT_SHARED_STATE_SIZE, nearTtl * 1000);
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				LOG.error("Creating shared authentication state failed - using node-local state", e);
+			}
+			return null;
+		}
+
+		private ClientFailureTracker initClientFailures(final Map<String, String> params) {
+			String backoff = params.get(CONFIG_PARAM_CLIENT_BACKOFF);
+			if (backoff == null) {
+				return null;
+			}
+			String maxBackoff = params.get(CONFIG_PARAM_CLIENT_BACKOFF_MAX);
+			String failures = params.get(CONFIG_PARAM_CLIENT_BACKOFF_FAILURES);
+			String size = params.get(CONFIG_PARAM_CLIENT_BACKOFF_SIZE);
+			LOG.info("Init: Backoff of failing clients starting with {}s", backoff.trim());
+			return new ClientFailureTracker(sharedState != null ? sharedState
+					: new LocalAuthState(size != null ? Integer.parseInt(size.trim()) : DEFAULT_CLIENT_BACKOFF_SIZE),
+					failures != null ? Integer.parseInt(failures.trim()) : DEFAULT_CLIENT_BACKOFF_FAILURES,
+					Long.parseLong(backoff.trim()) * 1000,
+					(maxBackoff != null ? Long.parseLong(maxBackoff.trim()) : DEFAULT_CLIENT_BACKOFF_MAX) * 1000);
+		}
+
+		private boolean initBasicAllowed() {
+			boolean basicAllowed = false;
+			for (Map<String, String> config : configs) {
+				basicAllowed |= "true".equals(config.get("spnego.allow.basic"));
+			}
+			return basicAllowed;
+		}
+
+		private BasicCredentialCache initBasicCredentials(final Map<String, String> params) {
+			String ttl = params.get(CONFIG_PARAM_BASIC_CACHE_TTL);
+			if (!basicAllowed || ttl == null) {
+				return null;
+			}
+			String size = params.get(CONFIG_PARAM_BASIC_CACHE_SIZE);
+			String iterations = params.get(CONFIG_PARAM_BASIC_CACHE_ITERATIONS);
+			LOG.info("Init: Basic credential cache with TTL {}s", ttl.trim());
+			return new BasicCredentialCache(size != null ? Integer.parseInt(size.trim()) : DEFAULT_BASIC_CACHE_SIZE,
+					Long.parseLong(ttl.trim()) * 1000,
+					iterations != null ? Integer.parseInt(iterations.trim()) : DEFAULT_BASIC_CACHE_ITERATIONS);
+		}
+
+		private AssertionCookie initAssertionCookie(final Map<String, String> params) {
+			String keyFile = params.get(CONFIG_PARAM_ASSERTION_KEY_FILE);
+			if (keyFile != null) {
+				TokenSigner signer = TokenSigner.read(keyFile.trim());
+				if (signer != null) {
+					String name = params.get(CONFIG_PARAM_ASSERTION_COOKIE_NAME);
+					String ttl = params.get(CONFIG_PARAM_ASSERTION_COOKIE_TTL);
+					LOG.info("Init: Assertion cookie with TTL {}s",
+							ttl != null ? ttl.trim() : DEFAULT_ASSERTION_COOKIE_TTL);
+					return new AssertionCookie(signer, name != null ? name.trim() : DEFAULT_ASSERTION_COOKIE_NAME,
+							ttl != null ? Long.parseLong(ttl.trim()) : DEFAULT_ASSERTION_COOKIE_TTL);
+				}
+			}
+			return null;
+		}
+
+		private TokenExchange initTokenExchange(final Map<String, String> params) {
+			String uri = params.get(CONFIG_PARAM_TOKEN_EXCHANGE_URI);
+			if (uri == null) {
+				return null;
+			}
+			String keyFile = params.get(CONFIG_PARAM_TOKEN_EXCHANGE_KEY_FILE);
+			if (keyFile == null) {
+				keyFile = params.get(CONFIG_PARAM_ASSERTION_KEY_FILE);
+			}
+			if (keyFile == null) {
+				LOG.error("Init: Token exchange requires '{}' or '{}'", CONFIG_PARAM_TOKEN_EXCHANGE_KEY_FILE,
+						CONFIG_PARAM_ASSERTION_KEY_FILE);
+				return null;
+			}
+			TokenSigner signer = TokenSigner.read(keyFile.trim());
+			if (signer == null) {
+				return null;
+			}
+			String ttl = params.get(CONFIG_PARAM_TOKEN_EXCHANGE_TTL);
+			LOG.info("Init: Token exchange on URI '{}' with TTL {}s", uri.trim(),
+					ttl != null ? ttl.trim() : DEFAULT_TOKEN_EXCHANGE_TTL);
+			return new TokenExchange(signer, uri.trim(),
+					ttl != null ? Long.parseLong(ttl.trim()) : DEFAULT_TOKEN_EXCHANGE_TTL);
+		}
+
+		private Set<String> initConfigNames() {
+			Set<String> names = new HashSet<String>();
+			for (Map<String, String> config : configs) {
+				names.add(getConfigName(config));
+			}
+			return names;
+		}
+
+		private WriteBehindQueue initWriteBehind(final Map<String, String> params) {
+			String interval = params.get(CONFIG_PARAM_WRITE_BEHIND_INTERVAL);
+			if (interval == null) {
+				return null;
+			}
+			String size = params.get(CONFIG_PARAM_WRITE_BEHIND_SIZE);
+			String batch = params.get(CONFIG_PARAM_WRITE_BEHIND_BATCH);
+			LOG.info("Init: Write-behind of login bookkeeping with flush interval {}s", interval.trim());
+			return new WriteBehindQueue(size != null ? Integer.parseInt(size.trim()) : DEFAULT_WRITE_BEHIND_SIZE,
+					batch != null ? Integer.parseInt(batch.trim()) : DEFAULT_WRITE_BEHIND_BATCH,
+					Long.parseLong(interval.trim()) * 1000);
+		}
+
+		private DelegatedCredentialStore initDelegatedCredentials(final Map<String, String> params) {
+			boolean delegationAllowed = false;
+			for (Map<String, String> config : configs) {
+				delegationAllowed |= "true".equals(config.get("spnego.allow.delegation"));
+			}
+			if (!delegationAllowed || "false".equals(params.get(CONFIG_PARAM_DELEGATION_STORE))) {
+				return null;
+			}
+			String ttl = params.get(CONFIG_PARAM_DELEGATION_TTL);
+			String size = params.get(CONFIG_PARAM_DELEGATION_SIZE);
+			LOG.info("Init: Delegated credential store with TTL {}s",
+					ttl != null ? ttl.trim() : DEFAULT_DELEGATION_TTL);
+			return new DelegatedCredentialStore(size != null ? Integer.parseInt(size.trim()) : DEFAULT_DELEGATION_SIZE,
+					(ttl != null ? Long.parseLong(ttl.trim()) : DEFAULT_DELEGATION_TTL) * 1000);
+		}
+
+		private AuditLog initAuditLog(final Map<String, String> params) {
+			String file = params.get(CONFIG_PARAM_AUDIT_FILE);
+			if (file == null) {
+				return null;
+			}
+			String size = params.get(CONFIG_PARAM_AUDIT_FILE_SIZE);
+			String count = params.get(CONFIG_PARAM_AUDIT_FILE_COUNT);
+			String buffer = params.get(CONFIG_PARAM_AUDIT_BUFFER);
+			LOG.info("Init: Audit log '{}'", file.trim());
+			AuditLog auditLog = new AuditLog(Paths.get(file.trim()),
+					buffer != null ? Integer.parseInt(buffer.trim()) : DEFAULT_AUDIT_BUFFER,
+					(size != null ? Long.parseLong(size.trim()) : DEFAULT_AUDIT_FILE_SIZE) * 1024 * 1024,
+					count != null ? Integer.parseInt(count.trim()) : DEFAULT_AUDIT_FILE_COUNT);
+			return auditLog;
+		}
+
+		private CacheSnapshot initSnapshot(final Map<String, String> params) {
+			String file = params.get(CONFIG_PARAM_SNAPSHOT_FILE);
+			if (file == null) {
+				return null;
+			}
+			if (ticketGroups == null && exclusionLearner == null
+					&& (clientFailures == null || clientFailures.getLocalState() == null)) {
+				LOG.warn("Init: No caches for snapshot '{}' enabled", file.trim());
+				return null;
+			}
+			LOG.info("Init: Cache snapshot '{}'", file.trim());
+			return new CacheSnapshot(Paths.get(file.trim()));
+		}
+
+		private long initSnapshotInterval(final Map<String, String> params) {
+			String interval = params.get(CONFIG_PARAM_SNAPSHOT_INTERVAL);
+			return interval != null ? Long.parseLong(interval.trim()) : DEFAULT_SNAPSHOT_INTERVAL;
+		}
+
+		/**
+		 * Starts the audit log's writer, creates the SPNEGO library's
+		 * authenticators in the background, restores the caches from the snapshot
+		 * (if requested) and writes the snapshot periodically. Called after the
+		 * previous state was destroyed, so their writers never use the same files
+		 * at the same time. Until then the audit log buffers the records.
+		 */
+		synchronized void start(final boolean restore) {
+			if (destroyed) {
+				return;
+			}
+			if (auditLog != null) {
+				auditLog.start();
+			}
+			startAuthenticatorCreator();
+			if (snapshot == null) {
+				return;
+			}
+			snapshotWriter = newDaemonExecutor("spnego-snapshot");
+			if (restore) {
+				snapshotWriter.execute(new Runnable() {
+					@Override
+					public void run() {
+						readSnapshot();
+					}
+				});
+			}
+			snapshotWriter.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					writeSnapshot();
+				}
+			}, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+		}
+
+		/**
+		 * Restores the caches from the snapshot (if configured) in the calling
+		 * thread, e.g. before a re-initialized state is used.
+		 */
+		void restoreSnapshot() {
+			if (snapshot != null) {
+				readSnapshot();
+			}
+		}
+
+		/**
+		 * Stops writing the snapshot periodically and writes it a last time.
+		 */
+		synchronized void stopSnapshotWriter() {
+			if (snapshotWriter != null) {
+				snapshotWriter.shutdown();
+				try {
+					snapshotWriter.awaitTermination(SNAPSHOT_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				snapshotWriter = null;
+				writeSnapshot();
+			}
+		}
+
+		private void readSnapshot() {
+			long start = System.currentTimeMillis();
+			try {
+				int restored = snapshot.read(ticketGroups, exclusionLearner, clientFailures);
+				if (restored >= 0) {
+					LOG.info("Restored {} cache entries from snapshot in {}ms", restored,
+							System.currentTimeMillis() - start);
+				}
+			} catch (IOException | RuntimeException e) {
+				LOG.warn("Restoring caches from snapshot failed", e);
+			}
+		}
+
+		private void writeSnapshot() {
+			try {
+				int written = snapshot.write(ticketGroups, exclusionLearner, clientFailures);
+				LOG.debug("Wrote {} cache entries to snapshot", written);
+			} catch (IOException | RuntimeException e) {
+				LOG.warn("Writing cache snapshot failed", e);
+			}
+		}
+
+		String getConfigName(final Map<String, String> config) {
+			String name = config.get("name");
+			return name != null ? name : "#" + configs.indexOf(config);
+		}
+
+		/**
+		 * Returns the SPNEGO library's authenticator of the given configuration,
+		 * or <code>null</code> if it isn't created yet. It's never created by a
+		 * request thread, as the library applies its settings JVM-wide.
+		 */
+		SpnegoAuthenticator getLibraryAuthenticator(final int index) {
+			return libraryAuthenticators.get(index);
+		}
+
+		boolean isLibraryAuthenticatorsCreated() {
+			for (int i = 0; i < configs.size(); i++) {
+				if (!isNativeEngine(configs.get(i)) && libraryAuthenticators.get(i) == null) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Creates the SPNEGO library's authenticators (with their JAAS login) of
+		 * all configurations which don't use the native engine on a background
+		 * thread, so an unavailable KDC doesn't block the startup.
+		 */
+		private void startAuthenticatorCreator() {
+			for (Map<String, String> config : configs) {
+				if (!isNativeEngine(config)) {
+					authenticatorCreator = newDaemonExecutor("spnego-init");
+					authenticatorCreator.execute(new Runnable() {
+						@Override
+						public void run() {
+							createLibraryAuthenticators(this);
+						}
+					});
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Creates the missing authenticators, and retries the failed ones after
+		 * the probe interval.
+		 */
+		private void createLibraryAuthenticators(final Runnable retry) {
+			boolean failed = false;
+			for (int i = 0; i < configs.size(); i++) {
+				Map<String, String> config = configs.get(i);
+				if (isNativeEngine(config) || libraryAuthenticators.get(i) != null) {
+					continue;
+				}
+				SpnegoAuthenticator authenticator;
+				try {
+					authenticator = new SpnegoAuthenticator(config);
+				} catch (LoginException | IOException | GSSException | PrivilegedActionException | URISyntaxException
+						| RuntimeException e) {
+					LOG.warn("Creating SPNEGO authenticator of configuration '{}' failed, retrying in {}s: {}",
+							getConfigName(config), probeInterval, e.getMessage());
+					failed = true;
+					continue;
+				}
+				synchronized (this) {
+					if (destroyed) {
+						authenticator.dispose();
+						return;
+					}
+					libraryAuthenticators.set(i, authenticator);
+				}
+				LOG.info("Created SPNEGO authenticator of configuration '{}'", getConfigName(config));
+			}
+			synchronized (this) {
+				if (failed && !destroyed) {
+					authenticatorCreator.schedule(retry, probeInterval, TimeUnit.SECONDS);
+				}
+			}
+		}
+
+		TokenAcceptor getAcceptor(final int index) throws LoginException, PrivilegedActionException, IOException {
+			TokenAcceptor acceptor = acceptors.get(index);
+			if (acceptor == null) {
+				synchronized (this) {
+					checkNotDestroyed();
+					acceptor = acceptors.get(index);
+					if (acceptor == null) {
+						Map<String, String> config = configs.get(index);
+						acceptor = isNativeEngine(config)
+								? new NativeKerberosAcceptor(config, sharedState)
+								: new GssContextAcceptor(config);
+						acceptors.set(index, acceptor);
+					}
+				}
+			}
+			return acceptor;
+		}
+
+		/**
+		 * Requests which still use a replaced snapshot must not create new
+		 * authenticators or acceptors - they wouldn't be disposed anymore.
+		 */
+		private void checkNotDestroyed() throws LoginException {
+			if (destroyed) {
+				throw new LoginException("SPNEGO configuration was replaced");
+			}
+		}
+
+		/**
+		 * Disposes the authenticators and acceptors of all configurations.
+		 */
+		synchronized void destroy() {
+			destroyed = true;
+			if (writeBehind != null) {
+				writeBehind.close();
+			}
+			if (auditLog != null) {
+				auditLog.close();
+			}
+			stopSnapshotWriter();
+			if (prober != null) {
+				prober.shutdownNow();
+			}
+			if (authenticatorCreator != null) {
+				authenticatorCreator.shutdownNow();
+			}
+			if (delegatedCredentials != null) {
+				delegatedCredentials.clear();
+			}
+			for (int i = 0; i < libraryAuthenticators.length(); i++) {
+				SpnegoAuthenticator authenticator = libraryAuthenticators.getAndSet(i, null);
+				if (authenticator != null) {
+					authenticator.dispose();
+				}
+			}
+			if (acceptors != null) {
+				for (int i = 0; i < acceptors.length(); i++) {
+					TokenAcceptor acceptor = acceptors.getAndSet(i, null);
+					if (acceptor != null) {
+						acceptor.dispose();
+					}
+				}
+			}
+			if (sharedState != null) {
+				sharedState.close();
+			}
+		}
+	}
 }
@@ -0,0 +1,179 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the tickets accepted with a configuration, bucketed by
+ * encryption type, token size and remaining ticket lifetime, plus the number
+ * of tickets with requested delegation. Each bucket keeps the sum of the
+ * accept times of its tickets, so e.g. large tokens (many groups in the PAC)
+ * or RC4 tickets can be correlated with slow accepts.
+ * <p>
+ * Recording a ticket only increments array slots, it doesn't allocate any
+ * objects.
+ */
+final class TicketMetrics {
+
+	static final int UNKNOWN = -1;
+
+	private static final int MAX_ETYPE = 31;
+	private static final int ETYPE_OTHER = MAX_ETYPE + 1;
+	private static final int ETYPE_UNKNOWN = MAX_ETYPE + 2;
+
+	private static final int[] TOKEN_SIZES = { 1024, 2048, 4096, 8192, 12288, 16384, 24576, 32768, 49152, 65536 };
+	private static final int[] LIFETIME_MINUTES = { 5, 15, 30, 60, 120, 240, 480, 600 };
+
+	// slots of the counters, each with the sum of the accept times in the
+	// following slot
+	private static final int TOTAL = 0;
+	private static final int DELEGATION = 2;
+	private static final int ETYPES = 4;
+	private static final int TOKEN_SIZE_BUCKETS = ETYPES + 2 * (ETYPE_UNKNOWN + 1);
+	private static final int LIFETIME_BUCKETS = TOKEN_SIZE_BUCKETS + 2 * (TOKEN_SIZES.length + 1);
+	private static final int LIFETIME_UNKNOWN = LIFETIME_MINUTES.length + 1;
+	private static final int SLOTS = LIFETIME_BUCKETS + 2 * (LIFETIME_UNKNOWN + 1);
+
+	private final String name;
+	private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+	TicketMetrics(final String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records an accepted ticket.
+	 *
+	 * @param etype
+	 *            Kerberos encryption type or {@link #UNKNOWN}
+	 * @param tokenSize
+	 *            size of the decoded token in bytes
+	 * @param remainingMillis
+	 *            remaining lifetime of the ticket or {@link #UNKNOWN}
+	 * @param delegation
+	 *            <code>true</code> if the client requested delegation
+	 * @param acceptNanos
+	 *            time spent accepting the token
+	 */
+	void record(final int etype, final int tokenSize, final long remainingMillis, final boolean delegation,
+			final long acceptNanos) {
+		add(TOTAL, acceptNanos);
+		if (delegation) {
+			add(DELEGATION, acceptNanos);
+		}
+		add(ETYPES + 2 * (etype < 0 ? ETYPE_UNKNOWN : etype > MAX_ETYPE ? ETYPE_OTHER : etype), acceptNanos);
+		add(TOKEN_SIZE_BUCKETS + 2 * bucket(TOKEN_SIZES, tokenSize), acceptNanos);
+		add(LIFETIME_BUCKETS + 2 * (remainingMillis < 0 ? LIFETIME_UNKNOWN
+				: bucket(LIFETIME_MINUTES, TimeUnit.MILLISECONDS.toMinutes(remainingMillis))), acceptNanos);
+	}
+
+	private static int bucket(final int[] bounds, final long value) {
+		int i = 0;
+		while (i < bounds.length && value > bounds[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	private void add(final int slot, final long nanos) {
+		slots.incrementAndGet(slot);
+		slots.addAndGet(slot + 1, nanos);
+	}
+
+	long getTickets() {
+		return slots.get(TOTAL);
+	}
+
+	long getDelegations() {
+		return slots.get(DELEGATION);
+	}
+
+	long getTickets(final int etype) {
+		return slots.get(ETYPES + 2 * (etype < 0 ? ETYPE_UNKNOWN : etype > MAX_ETYPE ? ETYPE_OTHER : etype));
+	}
+
+	void reset() {
+		for (int i = 0; i < SLOTS; i++) {
+			slots.set(i, 0);
+		}
+	}
+
+	/**
+	 * Returns a line per non-empty bucket, e.g.
+	 * <code>EXAMPLE.COM enctype aes256-cts-hmac-sha1-96: 42 tickets (84%), 1.25 ms avg accept</code>.
+	 */
+	List<String> describe() {
+		List<String> lines = new ArrayList<String>();
+		long total = slots.get(TOTAL);
+		describe(lines, "tickets", TOTAL, total);
+		describe(lines, "delegation requested", DELEGATION, total);
+		for (int i = 0; i <= ETYPE_UNKNOWN; i++) {
+			String etype = i == ETYPE_OTHER ? "other" : i == ETYPE_UNKNOWN ? "unknown" : getEtypeName(i);
+			describe(lines, "enctype " + etype, ETYPES + 2 * i, total);
+		}
+		for (int i = 0; i <= TOKEN_SIZES.length; i++) {
+			describe(lines, "token size " + (i < TOKEN_SIZES.length ? "<= " + TOKEN_SIZES[i] / 1024 + "K"
+					: "> " + TOKEN_SIZES[TOKEN_SIZES.length - 1] / 1024 + "K"), TOKEN_SIZE_BUCKETS + 2 * i, total);
+		}
+		for (int i = 0; i <= LIFETIME_UNKNOWN; i++) {
+			describe(lines, "remaining lifetime " + (i < LIFETIME_MINUTES.length ? "<= " + LIFETIME_MINUTES[i] + "m"
+					: i == LIFETIME_UNKNOWN ? "unknown" : "> " + LIFETIME_MINUTES[LIFETIME_MINUTES.length - 1] + "m"),
+					LIFETIME_BUCKETS + 2 * i, total);
+		}
+		return lines;
+	}
+
+	private void describe(final List<String> lines, final String bucket, final int slot, final long total) {
+		long count = slots.get(slot);
+		if (count > 0) {
+			lines.add(String.format("%s %s: %d tickets (%d%%), %.2f ms avg accept", name, bucket, count,
+					total > count ? 100 * count / total : 100, slots.get(slot + 1) / 1e6 / count));
+		}
+	}
+
+	/**
+	 * Returns the name of the given Kerberos encryption type (RFC 3961, RFC 4757
+	 * and RFC 8009).
+	 */
+	static String getEtypeName(final int etype) {
+		switch (etype) {
+		case 1:
+			return "des-cbc-crc";
+		case 3:
+			return "des-cbc-md5";
+		case 17:
+			return "aes128-cts-hmac-sha1-96";
+		case 18:
+			return "aes256-cts-hmac-sha1-96";
+		case 19:
+			return "aes128-cts-hmac-sha256-128";
+		case 20:
+			return "aes256-cts-hmac-sha384-192";
+		case 23:
+			return "rc4-hmac";
+		case 24:
+			return "rc4-hmac-exp";
+		default:
+			return "etype-" + etype;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import org.ietf.jgss.GSSException;
+
+/**
+ * Engine which accepts SPNEGO / Kerberos tokens of a single SPNEGO
+ * configuration.
+ */
+interface TokenAcceptor {
+
+	/**
+	 * Accepts the given token and returns the result or <code>null</code> if the
+	 * context couldn't be established with a single token.
+	 */
+	AcceptResult accept(byte[] token, boolean extractPac) throws GSSException;
+
+	void dispose();
+}
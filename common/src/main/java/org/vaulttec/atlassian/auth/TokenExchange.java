@@ -0,0 +1,182 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exchange of a single SPNEGO negotiation for a short-lived bearer token, so
+ * API clients (e.g. <code>curl --negotiate</code>) don't need a Kerberos
+ * round-trip per request. A client which negotiated successfully on the
+ * exchange URI receives the token as JSON response:
+ *
+ * <pre>
+ * {"access_token":"...","token_type":"Bearer","expires_in":600}
+ * </pre>
+ *
+ * The token is signed via {@link TokenSigner} and bound to the user name, the
+ * SPNEGO configuration and the client's IP address. Later requests present it
+ * via <code>Authorization: Bearer ...</code> and are verified in memory.
+ */
+final class TokenExchange {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TokenExchange.class);
+
+	// both use the same claims and possibly the same key, so the token type is
+	// signed as well and an assertion cookie is never accepted as bearer token
+	private static final String TYPE = "bearer";
+	private static final String VERSION = "1";
+	private static final String BINDING = "bearer\n";
+
+	private final TokenSigner signer;
+	private final String uri;
+	private final long ttlSeconds;
+	private final ChallengeResponse challengeResponse;
+	private final AtomicLong issued = new AtomicLong();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	TokenExchange(final TokenSigner signer, final String uri, final long ttlSeconds) {
+		this.signer = signer;
+		this.uri = uri;
+		this.ttlSeconds = ttlSeconds;
+		this.challengeResponse = new ChallengeResponse(ChallengeResponse.DEFAULT_BODY);
+	}
+
+	boolean isExchangeUri(final HttpServletRequest request) {
+		return uri.equals(request.getRequestURI());
+	}
+
+	/**
+	 * Returns the response which completes a challenged request for the exchange
+	 * URI, so API clients receive the 401 status instead of a rendered page.
+	 */
+	ChallengeResponse getChallengeResponse() {
+		return challengeResponse;
+	}
+
+	Token issue(final HttpServletRequest request, final String userName, final String configName) {
+		long expires = System.currentTimeMillis() / 1000 + ttlSeconds;
+		String claims = TYPE + '\n' + VERSION + '\n' + expires + '\n' + configName + '\n' + userName;
+		issued.incrementAndGet();
+		return new Token(signer.sign(claims, BINDING + request.getRemoteAddr()), ttlSeconds);
+	}
+
+	/**
+	 * Returns the user name from a valid bearer token, or <code>null</code> if
+	 * there's none or it's expired, forged, presented by a different client or
+	 * issued for an unknown SPNEGO configuration. Bearer tokens of other issuers
+	 * (e.g. personal access tokens) are ignored.
+	 */
+	String verify(final HttpServletRequest request, final Collection<String> configNames) {
+		String header = request.getHeader("Authorization");
+		if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+			return null;
+		}
+		String claims = signer.verify(header.substring(7).trim(), BINDING + request.getRemoteAddr());
+		if (claims == null) {
+			return null;
+		}
+		String[] values = claims.split("\n", 5);
+		if (values.length != 5 || !TYPE.equals(values[0]) || !VERSION.equals(values[1])) {
+			rejected.incrementAndGet();
+			return null;
+		}
+		try {
+			if (Long.parseLong(values[2]) < System.currentTimeMillis() / 1000) {
+				LOG.debug("Expired bearer token of user '{}'", values[4]);
+				rejected.incrementAndGet();
+				return null;
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (!configNames.contains(values[3])) {
+			rejected.incrementAndGet();
+			return null;
+		}
+		accepted.incrementAndGet();
+		return values[4];
+	}
+
+	long getIssued() {
+		return issued.get();
+	}
+
+	long getAccepted() {
+		return accepted.get();
+	}
+
+	long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Bearer token issued for the exchange request. The
+	 * {@link SpnegoChallengeFilter} writes it as response.
+	 */
+	static final class Token {
+
+		private final String value;
+		private final long ttlSeconds;
+
+		Token(final String value, final long ttlSeconds) {
+			this.value = value;
+			this.ttlSeconds = ttlSeconds;
+		}
+
+		String getValue() {
+			return value;
+		}
+
+		boolean complete(final HttpServletResponse response) throws IOException {
+			if (response.isCommitted()) {
+				return false;
+			}
+			String body = "{\"access_token\":\"" + value + "\",\"token_type\":\"Bearer\",\"expires_in\":"
+					+ ttlSeconds + "}";
+			PrintWriter writer;
+			try {
+				response.resetBuffer();
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType("application/json");
+				response.setCharacterEncoding("UTF-8");
+				response.setHeader("Cache-Control", "no-store");
+				response.setContentLength(body.getBytes(StandardCharsets.UTF_8).length);
+				writer = response.getWriter();
+			} catch (IllegalStateException e) {
+
+				// output stream already in use
+				return false;
+			}
+			writer.write(body);
+			response.flushBuffer();
+			return true;
+		}
+	}
+}
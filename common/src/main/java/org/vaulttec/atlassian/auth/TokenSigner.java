@@ -0,0 +1,160 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Signs and verifies tokens of the form <code>base64url(claims) "."
+ * base64url(HMAC-SHA256(claims, binding))</code>. The binding (e.g. a client
+ * fingerprint) isn't part of the token, it has to be provided again when the
+ * token is verified.
+ * <p>
+ * The key is read from a file, which is created with a random key if it
+ * doesn't exist. All cluster nodes sharing this file accept each other's
+ * tokens.
+ */
+final class TokenSigner {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TokenSigner.class);
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int KEY_LENGTH = 32;
+
+	private final SecretKeySpec key;
+
+	TokenSigner(final byte[] key) {
+		this.key = new SecretKeySpec(key, ALGORITHM);
+	}
+
+	static TokenSigner read(final String keyFile) {
+		LOG.trace("Init: Loading signing key from '{}'", keyFile);
+		Path path = Paths.get(keyFile);
+		try {
+			if (!Files.exists(path)) {
+				createKeyFile(path);
+			}
+			byte[] key = Files.readAllBytes(path);
+			if (key.length < KEY_LENGTH) {
+				LOG.error("Signing key in '{}' is shorter than {} bytes", keyFile, KEY_LENGTH);
+				return null;
+			}
+			return new TokenSigner(key);
+		} catch (IOException e) {
+			LOG.error("Error reading signing key file", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Writes a random key to a private temporary file, which is then published
+	 * atomically. So neither the key is readable by others nor another cluster
+	 * node reads a partially written key.
+	 */
+	private static void createKeyFile(final Path path) throws IOException {
+		byte[] key = new byte[KEY_LENGTH];
+		new SecureRandom().nextBytes(key);
+		Path directory = path.toAbsolutePath().getParent();
+		Path temp;
+		try {
+			temp = Files.createTempFile(directory, ".spnego-key", ".tmp",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+
+			// no POSIX file system
+			temp = Files.createTempFile(directory, ".spnego-key", ".tmp");
+		}
+		try {
+			Files.write(temp, key);
+			try {
+
+				// in contrast to a move a link never replaces the key file of another
+				// cluster node which other nodes may have read already
+				Files.createLink(path, temp);
+			} catch (FileAlreadyExistsException e) {
+
+				// created concurrently by another cluster node
+				return;
+			} catch (UnsupportedOperationException | FileSystemException e) {
+
+				// no hard links supported
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+			}
+			LOG.info("Init: Created signing key file '{}'", path);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	String sign(final String claims, final String binding) {
+		byte[] claimBytes = claims.getBytes(StandardCharsets.UTF_8);
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		return encoder.encodeToString(claimBytes) + "." + encoder.encodeToString(mac(claimBytes, binding));
+	}
+
+	/**
+	 * Returns the claims of the given token, or <code>null</code> if the token is
+	 * malformed or its signature doesn't match the given binding.
+	 */
+	String verify(final String token, final String binding) {
+		int dot = token.indexOf('.');
+		if (dot <= 0) {
+			return null;
+		}
+		try {
+			Base64.Decoder decoder = Base64.getUrlDecoder();
+			byte[] claimBytes = decoder.decode(token.substring(0, dot));
+			if (MessageDigest.isEqual(decoder.decode(token.substring(dot + 1)), mac(claimBytes, binding))) {
+				return new String(claimBytes, StandardCharsets.UTF_8);
+			}
+		} catch (IllegalArgumentException e) {
+			LOG.debug("Malformed token: {}", e.getMessage());
+		}
+		return null;
+	}
+
+	private byte[] mac(final byte[] claims, final String binding) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			mac.update(claims);
+			mac.update((byte) 0);
+			return mac.doFinal(binding.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " not available", e);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Filter which selects the requests to be traced in detail (with log level
+ * INFO) without enabling DEBUG logging for all requests, e.g.
+ *
+ * <pre>
+ * user=jdoe|asmith; ip=10.1.2.0/24; uri=/secure/Dashboard.jspa
+ * </pre>
+ *
+ * A request is traced if any of the conditions matches: one of the user names
+ * (case-insensitive, known only after the user is authenticated), one of the
+ * client IP addresses or prefixes (CIDR notation) or one of the URI prefixes.
+ * The filter is active until its expiry time.
+ */
+final class TraceFilter {
+
+	static final Logger LOG = LoggerFactory.getLogger(TraceFilter.class);
+
+	private final String specification;
+	private final String[] users;
+	private final IpPrefixTrie ips;
+	private final String[] uris;
+	private final long expires;
+
+	private TraceFilter(final String specification, final String[] users, final IpPrefixTrie ips,
+			final String[] uris, final long expires) {
+		this.specification = specification;
+		this.users = users;
+		this.ips = ips;
+		this.uris = uris;
+		this.expires = expires;
+	}
+
+	/**
+	 * Compiles the given semicolon-separated list of conditions into a filter
+	 * which is active until the given time.
+	 */
+	static TraceFilter compile(final String specification, final long expires) throws IllegalArgumentException {
+		List<String> users = new ArrayList<String>();
+		IpPrefixTrie ips = new IpPrefixTrie();
+		List<String> uris = new ArrayList<String>();
+		for (String condition : specification.split(";")) {
+			condition = condition.trim();
+			if (condition.isEmpty()) {
+				continue;
+			}
+			int equals = condition.indexOf('=');
+			if (equals == -1) {
+				throw new IllegalArgumentException("Trace condition without value: " + condition);
+			}
+			String type = condition.substring(0, equals).trim();
+			for (String value : condition.substring(equals + 1).split("\\|")) {
+				value = value.trim();
+				if (value.isEmpty()) {
+					continue;
+				}
+				if ("user".equals(type)) {
+					users.add(value);
+				} else if ("ip".equals(type)) {
+					ips.add(value, 1);
+				} else if ("uri".equals(type)) {
+					uris.add(value);
+				} else {
+					throw new IllegalArgumentException("Unknown trace condition: " + condition);
+				}
+			}
+		}
+		if (users.isEmpty() && ips.isEmpty() && uris.isEmpty()) {
+			throw new IllegalArgumentException("Trace filter without conditions: " + specification);
+		}
+		return new TraceFilter(specification.trim(), users.toArray(new String[users.size()]),
+				ips.isEmpty() ? null : ips, uris.toArray(new String[uris.size()]), expires);
+	}
+
+	boolean isExpired(final long now) {
+		return now >= expires;
+	}
+
+	/**
+	 * Returns <code>true</code> if the given request's client IP or URI matches.
+	 */
+	boolean matches(final HttpServletRequest request) {
+		if (ips != null && ips.match(request.getRemoteAddr()) != 0) {
+			return true;
+		}
+		if (uris.length > 0) {
+			String uri = request.getRequestURI();
+			if (uri != null) {
+				for (String prefix : uris) {
+					if (uri.startsWith(prefix)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	boolean matchesUser(final String userName) {
+		if (userName != null) {
+			for (String user : users) {
+				if (user.equalsIgnoreCase(userName)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the scheme and length of the given Authorization header, so the
+	 * trace doesn't contain any tokens or passwords.
+	 */
+	static String describeAuthorization(final String header) {
+		if (header == null) {
+			return "none";
+		}
+		int space = header.indexOf(' ');
+		if (space == -1) {
+			return "(" + header.length() + " chars)";
+		}
+		return header.substring(0, space) + " (" + header.substring(space + 1).trim().length() + " chars)";
+	}
+
+	@Override
+	public String toString() {
+		return specification + " (until " + Instant.ofEpochMilli(expires) + ")";
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.Collection;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Pre-compiled URI from the <code>include.uris</code> or
+ * <code>exclude.uris</code> parameter, e.g. <code>/rest/*</code> or
+ * <code>/login.jsp?*os_destination=*</code>. The URI and the optional query
+ * string are {@link WildcardPattern}s, so matching a request doesn't allocate
+ * any objects.
+ */
+final class UriPattern {
+
+	static final UriPattern[] NONE = new UriPattern[0];
+
+	private final WildcardPattern uri;
+	private final WildcardPattern queryString;
+
+	UriPattern(final String pattern) {
+		int queryStringIndex = pattern.indexOf('?');
+		if (queryStringIndex != -1) {
+			uri = new WildcardPattern(pattern.substring(0, queryStringIndex), false);
+			queryString = new WildcardPattern(pattern.substring(queryStringIndex + 1), false);
+		} else {
+			uri = new WildcardPattern(pattern, false);
+			queryString = null;
+		}
+	}
+
+	static UriPattern[] compile(final Collection<String> patterns) {
+		UriPattern[] uris = new UriPattern[patterns.size()];
+		int i = 0;
+		for (String pattern : patterns) {
+			uris[i++] = new UriPattern(pattern);
+		}
+		return uris;
+	}
+
+	static boolean matches(final UriPattern[] uris, final HttpServletRequest request) {
+		for (UriPattern uri : uris) {
+			if (uri.matches(request)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	boolean matches(final HttpServletRequest request) {
+		return (queryString == null || queryString.matches(request.getQueryString()))
+				&& uri.matches(request.getRequestURI());
+	}
+
+	@Override
+	public String toString() {
+		return queryString != null ? uri + "?" + queryString : uri.toString();
+	}
+}
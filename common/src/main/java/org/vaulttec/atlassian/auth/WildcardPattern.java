@@ -0,0 +1,101 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+/**
+ * Pre-compiled pattern with optional leading and trailing wildcards ("*"), e.g.
+ * <code>/startswith/*</code>, <code>*&#47;endswith</code> or
+ * <code>*substring*</code>. Matching doesn't allocate any objects.
+ */
+final class WildcardPattern {
+
+	private static final int EXACT = 0;
+	private static final int PREFIX = 1;
+	private static final int SUFFIX = 2;
+	private static final int CONTAINS = 3;
+
+	private final String pattern;
+	private final String literal;
+	private final int type;
+	private final boolean ignoreCase;
+
+	WildcardPattern(final String pattern, final boolean ignoreCase) {
+		this.pattern = pattern;
+		this.ignoreCase = ignoreCase;
+		boolean leading = pattern.startsWith("*");
+		boolean trailing = pattern.length() > 1 && pattern.endsWith("*");
+		if (leading && trailing) {
+			type = CONTAINS;
+			literal = pattern.substring(1, pattern.length() - 1);
+		} else if (trailing) {
+			type = PREFIX;
+			literal = pattern.substring(0, pattern.length() - 1);
+		} else if (leading) {
+			type = SUFFIX;
+			literal = pattern.substring(1);
+		} else {
+			type = EXACT;
+			literal = pattern;
+		}
+	}
+
+	boolean matches(final String value) {
+		return matches(value, literal, 0, literal.length(), type, ignoreCase);
+	}
+
+	/**
+	 * Matches the given value against the given pattern without compiling it
+	 * (e.g. for a pattern which is used only once), also without allocating any
+	 * objects.
+	 */
+	static boolean matches(final String pattern, final String value, final boolean ignoreCase) {
+		boolean leading = pattern.startsWith("*");
+		boolean trailing = pattern.length() > 1 && pattern.endsWith("*");
+		int offset = leading ? 1 : 0;
+		int length = pattern.length() - offset - (trailing ? 1 : 0);
+		int type = leading ? (trailing ? CONTAINS : SUFFIX) : (trailing ? PREFIX : EXACT);
+		return matches(value, pattern, offset, length, type, ignoreCase);
+	}
+
+	private static boolean matches(final String value, final String literal, final int offset, final int length,
+			final int type, final boolean ignoreCase) {
+		if (value == null) {
+			return false;
+		}
+		switch (type) {
+		case PREFIX:
+			return value.regionMatches(ignoreCase, 0, literal, offset, length);
+		case SUFFIX:
+			return value.regionMatches(ignoreCase, value.length() - length, literal, offset, length);
+		case CONTAINS:
+			for (int i = 0; i <= value.length() - length; i++) {
+				if (value.regionMatches(ignoreCase, i, literal, offset, length)) {
+					return true;
+				}
+			}
+			return false;
+		default:
+			return value.length() == length && value.regionMatches(ignoreCase, 0, literal, offset, length);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return pattern;
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of bookkeeping tasks (e.g. database writes after a successful
+ * login) which are executed in batches by a background thread. Only the latest
+ * pending task per key (user name) is kept. If the queue is full the task is
+ * rejected, and the caller has to execute it itself.
+ */
+final class WriteBehindQueue {
+
+	private static final Logger LOG = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+	private static final long SHUTDOWN_TIMEOUT = 10;
+
+	private final int batchSize;
+	private final ConcurrentHashMap<String, Runnable> pending = new ConcurrentHashMap<String, Runnable>();
+	private final BlockingQueue<String> keys;
+	private final ScheduledExecutorService flusher;
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile boolean closed;
+
+	WriteBehindQueue(final int capacity, final int batchSize, final long flushIntervalMillis) {
+		this.batchSize = batchSize;
+		this.keys = new ArrayBlockingQueue<String>(capacity);
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, "spnego-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues the given task, replacing a pending task with the same key. Returns
+	 * <code>false</code> if the queue is full or closed.
+	 */
+	boolean submit(final String key, final Runnable task) {
+		if (closed) {
+			return false;
+		}
+		submitted.incrementAndGet();
+
+		// the key is queued within the atomic update of its pending task, so a
+		// pending task always has a queued key (or is about to be flushed)
+		final boolean[] accepted = new boolean[1];
+		pending.compute(key, new BiFunction<String, Runnable, Runnable>() {
+			@Override
+			public Runnable apply(final String k, final Runnable previous) {
+				if (previous != null) {
+
+					// the key is still queued, so the replaced task won't be executed
+					coalesced.incrementAndGet();
+					accepted[0] = true;
+					return task;
+				}
+				accepted[0] = keys.offer(key);
+				return accepted[0] ? task : null;
+			}
+		});
+		if (!accepted[0]) {
+			rejected.incrementAndGet();
+		}
+		return accepted[0];
+	}
+
+	/**
+	 * Executes all pending tasks, in batches of the configured size.
+	 */
+	void flush() {
+		List<String> batch = new ArrayList<String>(batchSize);
+		while (keys.drainTo(batch, batchSize) > 0) {
+			for (String key : batch) {
+				Runnable task = pending.remove(key);
+				if (task != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						failed.incrementAndGet();
+						LOG.warn("Write-behind task of '{}' failed", key, e);
+					}
+				}
+			}
+			LOG.debug("Write-behind batch of {} tasks executed", batch.size());
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Stops the background thread and executes the pending tasks.
+	 */
+	void close() {
+		closed = true;
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	int size() {
+		return keys.size();
+	}
+
+	long getSubmitted() {
+		return submitted.get();
+	}
+
+	long getCoalesced() {
+		return coalesced.get();
+	}
+
+	long getRejected() {
+		return rejected.get();
+	}
+
+	long getFailed() {
+		return failed.get();
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the throughput of the SPNEGO library, the JGSS acceptor and the
+ * native Kerberos acceptor side by side. All three accept the same kind of
+ * tokens (AES256, SPNEGO with mutual authentication) for a service whose key
+ * is provided via keytab, so no KDC is needed.
+ * <p>
+ * Usage: <code>AcceptorBenchmark [tokens per engine] [threads]</code>
+ */
+public class AcceptorBenchmark {
+
+	private static final String[] ENGINES = { "library", "jgss", "native" };
+
+	public static void main(final String[] args) throws Exception {
+		int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		File dir = Files.createTempDirectory("spnego-benchmark").toFile();
+		KerberosTokenBuilder builder = new KerberosTokenBuilder().withService("HTTP/www.example.com", "EXAMPLE.COM");
+		Files.write(new File(dir, "http.keytab").toPath(), builder.keytab());
+		write(dir, "krb5.conf", "[libdefaults]\n default_realm = EXAMPLE.COM\n\n[realms]\n EXAMPLE.COM = {\n"
+				+ "  kdc = localhost\n }\n");
+		write(dir, "login.conf",
+				"spnego-client {\n com.sun.security.auth.module.Krb5LoginModule required;\n};\n\n"
+						+ "spnego-server {\n com.sun.security.auth.module.Krb5LoginModule required\n"
+						+ "  storeKey=true useKeyTab=true isInitiator=false\n  keyTab=\""
+						+ new File(dir, "http.keytab").getPath() + "\"\n  principal=\"" + builder.getPrincipal()
+						+ "\";\n};\n");
+		write(dir, "pac-groups.properties", "");
+		System.out.printf("%-8s %10s %10s %12s %10s%n", "engine", "tokens", "accepted", "ops/s", "us/op");
+		for (String engine : ENGINES) {
+			SpnegoSupport support = createSupport(dir, engine);
+			run(support, builder, Math.min(tokens, 2000), threads);
+			long start = System.nanoTime();
+			int accepted = run(support, builder, tokens, threads);
+			long nanos = System.nanoTime() - start;
+			System.out.printf("%-8s %10d %10d %12.0f %10.1f%n", engine, tokens, accepted, tokens * 1e9 / nanos,
+					nanos / 1e3 / tokens * threads);
+		}
+	}
+
+	private static SpnegoSupport createSupport(final File dir, final String engine)
+			throws IOException, InterruptedException {
+		StringBuilder config = new StringBuilder();
+		config.append("name=").append(engine).append('\n');
+		config.append("spnego.allow.basic=false\nspnego.allow.unsecure.basic=false\nspnego.allow.localhost=true\n");
+		config.append("spnego.prompt.ntlm=false\nspnego.allow.delegation=false\nspnego.logger.level=1\n");
+		config.append("spnego.login.client.module=spnego-client\nspnego.login.server.module=spnego-server\n");
+		config.append("spnego.krb5.conf=").append(new File(dir, "krb5.conf").getPath()).append('\n');
+		config.append("spnego.login.conf=").append(new File(dir, "login.conf").getPath()).append('\n');
+		if ("native".equals(engine)) {
+			config.append("spnego.engine=native\n");
+			config.append("spnego.keytab=").append(new File(dir, "http.keytab").getPath()).append('\n');
+		}
+		write(dir, engine + ".properties", config.toString());
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("config.files", new File(dir, engine + ".properties").getPath());
+		if (!"library".equals(engine)) {
+
+			// the JGSS acceptor is only used if PAC groups are enabled
+			params.put("pac.group.mapping", new File(dir, "pac-groups.properties").getPath());
+		}
+		SpnegoSupport support = new SpnegoSupport();
+		support.init(params);
+		if (!support.awaitLibraryAuthenticators(10000)) {
+			throw new IllegalStateException("SPNEGO authenticator of engine '" + engine + "' not created");
+		}
+		return support;
+	}
+
+	private static int run(final SpnegoSupport support, final KerberosTokenBuilder builder, final int tokens,
+			final int threads) throws Exception {
+
+		// tokens are created upfront, each one with a unique authenticator
+		final List<String> headers = new ArrayList<String>(tokens);
+		for (int i = 0; i < tokens; i++) {
+			headers.add("Negotiate " + Base64.getEncoder().encodeToString(builder.build()));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				results.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						int accepted = 0;
+						for (int i = thread; i < tokens; i += threads) {
+							MockRequest request = new MockRequest("/index.jsp").withHeader("Authorization",
+									headers.get(i));
+							if (support.authenticate(request, new MockResponse()) != null) {
+								accepted++;
+							}
+						}
+						return accepted;
+					}
+				}));
+			}
+			int accepted = 0;
+			for (Future<Integer> result : results) {
+				accepted += result.get();
+			}
+			return accepted;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void write(final File dir, final String name, final String content) throws IOException {
+		Files.write(new File(dir, name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+}
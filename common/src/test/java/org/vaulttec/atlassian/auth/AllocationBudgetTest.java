@@ -0,0 +1,193 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Fails if the paths of {@link SpnegoAuthenticator#getUserViaSPNEGO} which run
+ * for nearly every request (user already logged in, excluded URI and challenge
+ * of an unauthenticated request) allocate more bytes per call than their
+ * budget. The allocated bytes are measured via the HotSpot
+ * {@link com.sun.management.ThreadMXBean}.
+ */
+public class AllocationBudgetTest {
+
+	private static final int WARMUP_CALLS = 20000;
+	private static final int MEASURED_CALLS = 10000;
+
+	private static final long SESSION_BUDGET = 0;
+	private static final long EXCLUDED_BUDGET = 0;
+	private static final long CHALLENGE_BUDGET = 0;
+
+	// below the size of the smallest object, so an allocation per call still
+	// fails but occasional allocations while measuring (e.g. by the JIT
+	// compiler or a deoptimization) don't
+	private static final long TOLERANCE = 8;
+
+	private static final Principal USER = new Principal() {
+		@Override
+		public String getName() {
+			return "jdoe";
+		}
+	};
+
+	private com.sun.management.ThreadMXBean threads;
+	private SpnegoSupport support;
+
+	@Before
+	public void setUp() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("include.uris", "/login.jsp?*os_destination=*");
+		params.put("exclude.uris", "/login.jsp*, /rest/api/*, */download/*, *.css");
+		support = new SpnegoSupport();
+		support.init(params);
+	}
+
+	@After
+	public void tearDown() {
+		if (support != null) {
+			support.destroy();
+		}
+	}
+
+	@Test
+	public void testSessionHit() {
+		BudgetAuthenticator authenticator = new BudgetAuthenticator(support, USER);
+		HttpServletRequest request = new BudgetRequest("/secure/Dashboard.jspa", null, null);
+		HttpServletResponse response = new BudgetResponse();
+		assertSame(USER, authenticator.getUserViaSPNEGO(request, response));
+		assertBudget("session hit", SESSION_BUDGET, authenticator, request, response);
+	}
+
+	@Test
+	public void testExcludedUri() {
+		BudgetAuthenticator authenticator = new BudgetAuthenticator(support, null);
+		HttpServletRequest request = new BudgetRequest("/s/1234/_/download/batch/app.js", "locale=en", null);
+		BudgetResponse response = new BudgetResponse();
+		assertNull(authenticator.getUserViaSPNEGO(request, response));
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertBudget("excluded URI", EXCLUDED_BUDGET, authenticator, request, response);
+	}
+
+	@Test
+	public void testChallenge() {
+		BudgetAuthenticator authenticator = new BudgetAuthenticator(support, null);
+
+		// the authorization header of a client which doesn't support SPNEGO is scanned as well
+		HttpServletRequest request = new BudgetRequest("/login.jsp", "os_destination=%2Fbrowse%2FTEST-1",
+				"Bearer eyJhbGciOiJIUzI1NiJ9");
+		BudgetResponse response = new BudgetResponse();
+		assertNull(authenticator.getUserViaSPNEGO(request, response));
+		assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.getStatus());
+		assertBudget("challenge", CHALLENGE_BUDGET, authenticator, request, response);
+	}
+
+	private void assertBudget(final String path, final long budget, final SpnegoAuthenticator authenticator,
+			final HttpServletRequest request, final HttpServletResponse response) {
+		for (int i = 0; i < WARMUP_CALLS; i++) {
+			authenticator.getUserViaSPNEGO(request, response);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < MEASURED_CALLS; i++) {
+			authenticator.getUserViaSPNEGO(request, response);
+		}
+		long bytesPerCall = (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_CALLS;
+		if (bytesPerCall > budget + TOLERANCE) {
+			throw new AssertionError("Path '" + path + "' allocates " + bytesPerCall + " bytes per call (budget "
+					+ budget + ", tolerance " + TOLERANCE + ")");
+		}
+	}
+
+	private static class BudgetAuthenticator extends MockSpnegoAuthenticator {
+
+		private final SpnegoSupport support;
+		private final Principal sessionUser;
+
+		BudgetAuthenticator(final SpnegoSupport support, final Principal sessionUser) {
+			this.support = support;
+			this.sessionUser = sessionUser;
+		}
+
+		@Override
+		public SpnegoSupport getSupport() {
+			return support;
+		}
+
+		@Override
+		public Principal getUserFromSession(final HttpServletRequest request) {
+			return sessionUser;
+		}
+	}
+
+	// the mocks' header and attribute maps would allocate themselves
+
+	private static class BudgetRequest extends MockRequest {
+
+		private final String authorization;
+
+		BudgetRequest(final String uri, final String queryString, final String authorization) {
+			super(uri, queryString);
+			this.authorization = authorization;
+		}
+
+		@Override
+		public String getHeader(final String name) {
+			return "Authorization".equals(name) ? authorization : null;
+		}
+
+		// every measured call has to go through the whole decision again
+		@Override
+		public Object getAttribute(final String name) {
+			return null;
+		}
+
+		@Override
+		public void setAttribute(final String name, final Object o) {
+		}
+	}
+
+	private static class BudgetResponse extends MockResponse {
+
+		@Override
+		public void addHeader(final String name, final String value) {
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.servlet.http.Cookie;
+
+import org.junit.Test;
+
+public class AssertionCookieTest {
+
+	private static final Collection<String> CONFIG_NAMES = Arrays.asList("Kerberos Server 1", "Kerberos Server 2");
+
+	@Test
+	public void testIssueAndVerify() {
+		AssertionCookie assertionCookie = new AssertionCookie(new TokenSigner(new byte[32]), "SPNEGO_ASSERTION", 300);
+		Cookie cookie = issue(assertionCookie, "user1", "Kerberos Server 2");
+		assertEquals("SPNEGO_ASSERTION", cookie.getName());
+		assertEquals(300, cookie.getMaxAge());
+		assertTrue(cookie.isHttpOnly());
+
+		assertEquals("user1", assertionCookie.verify(request().withCookies(cookie), CONFIG_NAMES));
+		assertNull(assertionCookie.verify(request(), CONFIG_NAMES));
+		assertNull(assertionCookie.verify(request().withCookies(cookie), Collections.singleton("Kerberos Server 1")));
+	}
+
+	@Test
+	public void testDifferentClient() {
+		AssertionCookie assertionCookie = new AssertionCookie(new TokenSigner(new byte[32]), "SPNEGO_ASSERTION", 300);
+		Cookie cookie = issue(assertionCookie, "user1", "Kerberos Server 1");
+
+		assertNull(assertionCookie.verify(request().withCookies(cookie).withRemoteAddr("10.0.0.2"), CONFIG_NAMES));
+		assertNull(assertionCookie.verify(request().withCookies(cookie).withHeader("User-Agent", "curl/7.64.1"),
+				CONFIG_NAMES));
+	}
+
+	@Test
+	public void testForgedAndExpired() {
+		AssertionCookie assertionCookie = new AssertionCookie(new TokenSigner(new byte[32]), "SPNEGO_ASSERTION", 300);
+		Cookie cookie = issue(assertionCookie, "user1", "Kerberos Server 1");
+		AssertionCookie otherKey = new AssertionCookie(new TokenSigner(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11,
+				12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32 }), "SPNEGO_ASSERTION",
+				300);
+		assertNull(otherKey.verify(request().withCookies(cookie), CONFIG_NAMES));
+
+		String value = cookie.getValue();
+		Cookie tampered = new Cookie(cookie.getName(), "x" + value.substring(1));
+		assertNull(assertionCookie.verify(request().withCookies(tampered), CONFIG_NAMES));
+
+		AssertionCookie expired = new AssertionCookie(new TokenSigner(new byte[32]), "SPNEGO_ASSERTION", -1);
+		cookie = issue(expired, "user1", "Kerberos Server 1");
+		assertNull(expired.verify(request().withCookies(cookie), CONFIG_NAMES));
+	}
+
+	@Test
+	public void testSharedKeyFile() throws IOException {
+		File keyFile = new File(System.getProperty("java.io.tmpdir"), "spnego-assertion-" + System.nanoTime() + ".key");
+		try {
+			TokenSigner signer = TokenSigner.read(keyFile.getPath());
+			assertNotNull(signer);
+			assertEquals(32, keyFile.length());
+			String token = signer.sign("claims", "binding");
+			assertEquals("claims", TokenSigner.read(keyFile.getPath()).verify(token, "binding"));
+			assertNull(signer.verify(token, "other binding"));
+		} finally {
+			keyFile.delete();
+		}
+	}
+
+	@Test
+	public void testPrivateKeyFile() throws IOException {
+		File directory = Files.createTempDirectory("spnego-key").toFile();
+		File keyFile = new File(directory, "assertion.key");
+		try {
+			assertNotNull(TokenSigner.read(keyFile.getPath()));
+			assertEquals(32, keyFile.length());
+			assertEquals(Collections.singletonList("assertion.key"), Arrays.asList(directory.list()));
+			try {
+				assertEquals("rw-------",
+						PosixFilePermissions.toString(Files.getPosixFilePermissions(keyFile.toPath())));
+			} catch (UnsupportedOperationException e) {
+				// no POSIX file system
+			}
+
+			// an existing key is never replaced
+			byte[] key = Files.readAllBytes(keyFile.toPath());
+			assertNotNull(TokenSigner.read(keyFile.getPath()));
+			assertArrayEquals(key, Files.readAllBytes(keyFile.toPath()));
+		} finally {
+			keyFile.delete();
+			directory.delete();
+		}
+	}
+
+	private static MockRequest request() {
+		return new MockRequest("/index.jsp").withHeader("User-Agent", "Mozilla/5.0").withRemoteAddr("10.0.0.1");
+	}
+
+	private static Cookie issue(final AssertionCookie assertionCookie, final String userName,
+			final String configName) {
+		MockResponse response = new MockResponse();
+		assertionCookie.issue(request(), response, userName, configName);
+		assertEquals(1, response.getCookies().size());
+		return response.getCookies().get(0);
+	}
+}
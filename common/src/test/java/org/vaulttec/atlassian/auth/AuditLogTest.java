@@ -0,0 +1,122 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AuditLogTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRecords() throws IOException {
+		Path file = new File(folder.getRoot(), "audit.log").toPath();
+		AuditLog auditLog = new AuditLog(file, 16, 1024 * 1024, 3);
+		assertTrue(auditLog.append(0, AuditLog.AUTHENTICATED, "jdoe", "default", "10.0.0.1", 1500000));
+		assertTrue(auditLog.append(1000, AuditLog.FAILED, null, null, "10.0.0.2", 2000));
+		assertTrue(auditLog.append(2000, AuditLog.NOT_FOUND, "j\tdoe\n", "default", "10.0.0.3", 0));
+		auditLog.close();
+
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(0).startsWith("#"));
+		assertEquals("1970-01-01T00:00:00Z\tauthenticated\tjdoe\tdefault\t10.0.0.1\t1500", lines.get(1));
+		assertEquals("1970-01-01T00:00:01Z\tfailed\t-\t-\t10.0.0.2\t2", lines.get(2));
+		assertEquals("1970-01-01T00:00:02Z\tnot-found\tj doe \tdefault\t10.0.0.3\t0", lines.get(3));
+		assertEquals(3, auditLog.getWritten());
+		assertEquals(0, auditLog.getDropped());
+	}
+
+	@Test
+	public void testFullBuffer() throws IOException {
+		Path file = new File(folder.getRoot(), "audit.log").toPath();
+		AuditLog auditLog = new AuditLog(file, 4, 1024 * 1024, 3);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(auditLog.append(i, AuditLog.AUTHENTICATED, "user" + i, null, null, 0));
+		}
+		assertFalse(auditLog.append(4, AuditLog.AUTHENTICATED, "user4", null, null, 0));
+		assertEquals(1, auditLog.getDropped());
+
+		// writing frees the buffer again
+		auditLog.write();
+		assertTrue(auditLog.append(5, AuditLog.AUTHENTICATED, "user5", null, null, 0));
+		auditLog.close();
+		assertEquals(5, auditLog.getWritten());
+		assertEquals(6, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+	}
+
+	@Test
+	public void testRolling() throws IOException {
+		Path file = new File(folder.getRoot(), "audit.log").toPath();
+		AuditLog auditLog = new AuditLog(file, 16, 100, 2);
+		for (int i = 0; i < 4; i++) {
+			auditLog.append(i, AuditLog.AUTHENTICATED, "user" + i, "default", "10.0.0.1", 0);
+			auditLog.append(i, AuditLog.AUTHENTICATED, "user" + i, "default", "10.0.0.1", 0);
+			auditLog.write();
+		}
+		auditLog.close();
+
+		assertFalse(Files.exists(file));
+		assertTrue(Files.exists(file.resolveSibling("audit.log.1")));
+		assertTrue(Files.exists(file.resolveSibling("audit.log.2")));
+		assertFalse(Files.exists(file.resolveSibling("audit.log.3")));
+		List<String> lines = Files.readAllLines(file.resolveSibling("audit.log.1"), StandardCharsets.UTF_8);
+		assertTrue(lines.get(1).contains("user3"));
+	}
+
+	@Test
+	public void testReinit() throws IOException {
+		Path file = new File(folder.getRoot(), "audit.log").toPath();
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("audit.file", file.toString());
+		SpnegoSupport support = new SpnegoSupport();
+		support.init(params);
+		AuditLog previous = support.getAuditLog();
+		support.audit(new MockRequest("/"), "user1", AuditLog.AUTHENTICATED, System.nanoTime());
+
+		// the previous audit log is closed before the new one writes to the file
+		support.init(params);
+		assertNotSame(previous, support.getAuditLog());
+		assertEquals(1, previous.getWritten());
+		assertEquals(2, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+		support.audit(new MockRequest("/"), "user2", AuditLog.AUTHENTICATED, System.nanoTime());
+		support.destroy();
+
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(1).contains("user1"));
+		assertTrue(lines.get(2).contains("user2"));
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BasicCredentialCacheTest {
+
+	private static final Map<String, String> CONFIG = Collections.singletonMap("name", "Kerberos Server 1");
+
+	@Test
+	public void testVerify() throws GeneralSecurityException {
+		BasicCredentialCache cache = new BasicCredentialCache(10, 60000, 1000);
+		assertNull(cache.verify("user1", "secret"));
+
+		cache.put("user1", "secret", "user1@EXAMPLE.COM", CONFIG);
+		BasicCredentialCache.Entry entry = cache.verify("user1", "secret");
+		assertNotNull(entry);
+		assertEquals("user1@EXAMPLE.COM", entry.getPrincipalName());
+		assertEquals(CONFIG, entry.getConfig());
+		assertNull(cache.verify("user2", "secret"));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testWrongPasswordInvalidates() throws GeneralSecurityException {
+		BasicCredentialCache cache = new BasicCredentialCache(10, 60000, 1000);
+		cache.put("user1", "secret", "user1@EXAMPLE.COM", CONFIG);
+
+		assertNull(cache.verify("user1", "wrong"));
+		assertEquals(0, cache.size());
+		assertNull(cache.verify("user1", "secret"));
+	}
+
+	@Test
+	public void testExpiry() throws GeneralSecurityException, InterruptedException {
+		BasicCredentialCache cache = new BasicCredentialCache(10, 50, 1000);
+		cache.put("user1", "secret", "user1@EXAMPLE.COM", CONFIG);
+
+		Thread.sleep(100);
+		assertNull(cache.verify("user1", "secret"));
+	}
+}
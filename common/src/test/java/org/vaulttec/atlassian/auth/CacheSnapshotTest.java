@@ -0,0 +1,143 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		long expires = System.currentTimeMillis() + 60000;
+		ExpiringCache<String, Set<String>> ticketGroups = new ExpiringCache<String, Set<String>>(10, 60000);
+		ticketGroups.restore("jdoe", new HashSet<String>(Arrays.asList("jira-users", "developers")), expires);
+		ticketGroups.restore("expired", Collections.singleton("jira-users"), System.currentTimeMillis() - 1);
+		ExclusionLearner learner = new ExclusionLearner(2, 3, 60000, 10);
+		learner.restore("/rest/poll", expires);
+
+		CacheSnapshot snapshot = new CacheSnapshot(new File(folder.getRoot(), "snapshot").toPath());
+		assertEquals(2, snapshot.write(ticketGroups, learner, null));
+
+		ExpiringCache<String, Set<String>> restoredGroups = new ExpiringCache<String, Set<String>>(10, 60000);
+		ExclusionLearner restoredLearner = new ExclusionLearner(2, 3, 60000, 10);
+		assertEquals(2, snapshot.read(restoredGroups, restoredLearner, null));
+		assertEquals(new HashSet<String>(Arrays.asList("jira-users", "developers")), restoredGroups.get("jdoe"));
+		assertNull(restoredGroups.get("expired"));
+		assertTrue(restoredLearner.isExcluded("/rest/poll/1"));
+		assertEquals(Long.valueOf(expires), restoredLearner.getExclusionExpiries().get("/rest/poll"));
+	}
+
+	@Test
+	public void testExistingEntriesKept() throws IOException {
+		long expires = System.currentTimeMillis() + 60000;
+		ExpiringCache<String, Set<String>> ticketGroups = new ExpiringCache<String, Set<String>>(10, 60000);
+		ticketGroups.restore("jdoe", Collections.singleton("old"), expires);
+		CacheSnapshot snapshot = new CacheSnapshot(new File(folder.getRoot(), "snapshot").toPath());
+		snapshot.write(ticketGroups, null, null);
+
+		ExpiringCache<String, Set<String>> current = new ExpiringCache<String, Set<String>>(10, 60000);
+		current.put("jdoe", Collections.singleton("new"));
+		assertEquals(0, snapshot.read(current, new ExclusionLearner(2, 3, 60000, 10), null));
+		assertEquals(Collections.singleton("new"), current.get("jdoe"));
+	}
+
+	@Test
+	public void testMissingOrCorruptedSnapshot() throws IOException {
+		Path file = new File(folder.getRoot(), "snapshot").toPath();
+		CacheSnapshot snapshot = new CacheSnapshot(file);
+		ExpiringCache<String, Set<String>> ticketGroups = new ExpiringCache<String, Set<String>>(10, 60000);
+		assertEquals(-1, snapshot.read(ticketGroups, null, null));
+
+		ticketGroups.put("jdoe", Collections.singleton("jira-users"));
+		snapshot.write(ticketGroups, null, null);
+		byte[] bytes = Files.readAllBytes(file);
+
+		// flipped payload bit
+		bytes[12] ^= 1;
+		Files.write(file, bytes);
+		assertEquals(-1, snapshot.read(new ExpiringCache<String, Set<String>>(10, 60000), null, null));
+
+		// other format version
+		bytes[12] ^= 1;
+		bytes[5] = (byte) (CacheSnapshot.VERSION + 1);
+		Files.write(file, bytes);
+		assertEquals(-1, snapshot.read(new ExpiringCache<String, Set<String>>(10, 60000), null, null));
+		assertFalse(Files.exists(file.resolveSibling("snapshot.tmp")));
+	}
+
+	@Test
+	public void testClientFailures() throws IOException {
+		ClientFailureTracker clientFailures = new ClientFailureTracker(10, 2, 60000, 600000);
+		clientFailures.recordFailure("10.0.0.1");
+		clientFailures.recordFailure("10.0.0.1");
+		clientFailures.recordFailure("10.0.0.2");
+
+		CacheSnapshot snapshot = new CacheSnapshot(new File(folder.getRoot(), "snapshot").toPath());
+		assertEquals(3, snapshot.write(null, null, clientFailures));
+
+		// the backoff continues after a restart, and a further failure extends it
+		ClientFailureTracker restored = new ClientFailureTracker(10, 2, 60000, 600000);
+		assertEquals(3, snapshot.read(null, null, restored));
+		assertTrue(restored.isBackedOff("10.0.0.1"));
+		assertFalse(restored.isBackedOff("10.0.0.2"));
+		assertEquals(120000, restored.recordFailure("10.0.0.1"));
+		assertEquals(60000, restored.recordFailure("10.0.0.2"));
+
+		// a cluster-wide state isn't written
+		assertEquals(0, snapshot.write(null, null,
+				new ClientFailureTracker(new NearCachedAuthState(new LocalAuthState(10), 10, 1000), 2, 60000, 600000)));
+	}
+
+	@Test
+	public void testReinit() {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("snapshot.file", new File(folder.getRoot(), "snapshot.bin").getPath());
+		params.put("learn.exclusions.ttl", "600");
+		params.put("learn.exclusions.threshold", "1");
+		SpnegoSupport support = new SpnegoSupport();
+		support.init(params);
+		support.hasNegotiationAuthenticationHeader(new MockRequest("/rest/poll"), new MockResponse());
+		assertTrue(support.isExcludedUri(new MockRequest("/rest/poll")));
+
+		// the new configuration starts with the previous one's caches
+		support.init(params);
+		assertTrue(support.isExcludedUri(new MockRequest("/rest/poll")));
+		support.destroy();
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import javax.security.auth.login.LoginException;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	private static final Exception KDC_FAILURE = loginException(new SocketTimeoutException("Receive timed out"));
+
+	@Test
+	public void testOpenAfterConsecutiveFailures() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 3);
+		breaker.recordFailure(KDC_FAILURE);
+		breaker.recordFailure(KDC_FAILURE);
+		breaker.recordSuccess();
+		breaker.recordFailure(KDC_FAILURE);
+		breaker.recordFailure(KDC_FAILURE);
+		assertTrue(breaker.isClosed());
+
+		breaker.recordFailure(KDC_FAILURE);
+		assertFalse(breaker.isClosed());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testProbe() {
+		CircuitBreaker breaker = new CircuitBreaker("test", 1);
+		breaker.probe(new CircuitBreaker.Probe() {
+			@Override
+			public void run() throws Exception {
+				throw new IllegalStateException("Probe of closed breaker");
+			}
+		});
+		assertTrue(breaker.isClosed());
+
+		breaker.recordFailure(KDC_FAILURE);
+		breaker.probe(new CircuitBreaker.Probe() {
+			@Override
+			public void run() throws Exception {
+				throw KDC_FAILURE;
+			}
+		});
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		breaker.probe(new CircuitBreaker.Probe() {
+			@Override
+			public void run() throws Exception {
+			}
+		});
+		assertTrue(breaker.isClosed());
+	}
+
+	@Test
+	public void testIsKdcFailure() {
+		assertTrue(CircuitBreaker.isKdcFailure(KDC_FAILURE));
+		assertTrue(CircuitBreaker.isKdcFailure(new LoginException("Cannot locate KDC")));
+		assertFalse(CircuitBreaker.isKdcFailure(new LoginException("Pre-authentication information was invalid (24)")));
+		assertFalse(CircuitBreaker.isKdcFailure(new IOException("Unable to read keytab")));
+	}
+
+	private static LoginException loginException(final Throwable cause) {
+		LoginException exception = new LoginException(cause.getMessage());
+		exception.initCause(cause);
+		return exception;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ClientFailureTrackerTest {
+
+	@Test
+	public void testExponentialBackoff() {
+		ClientFailureTracker tracker = new ClientFailureTracker(10, 3, 1000, 5000);
+		assertEquals(0, tracker.recordFailure("10.0.0.1"));
+		assertEquals(0, tracker.recordFailure("10.0.0.1"));
+		assertFalse(tracker.isBackedOff("10.0.0.1"));
+		assertEquals(1000, tracker.recordFailure("10.0.0.1"));
+		assertTrue(tracker.isBackedOff("10.0.0.1"));
+		assertFalse(tracker.isBackedOff("10.0.0.2"));
+		assertEquals(2000, tracker.recordFailure("10.0.0.1"));
+		assertEquals(4000, tracker.recordFailure("10.0.0.1"));
+		assertEquals(5000, tracker.recordFailure("10.0.0.1"));
+		assertEquals(1, tracker.getBackedOff());
+		assertEquals(1, tracker.getSkipped());
+	}
+
+	@Test
+	public void testSuccessResets() {
+		ClientFailureTracker tracker = new ClientFailureTracker(10, 1, 1000, 5000);
+		assertEquals(1000, tracker.recordFailure("10.0.0.1"));
+		assertTrue(tracker.isBackedOff("10.0.0.1"));
+		tracker.recordSuccess("10.0.0.1");
+		assertFalse(tracker.isBackedOff("10.0.0.1"));
+		assertEquals(1000, tracker.recordFailure("10.0.0.1"));
+	}
+
+	@Test
+	public void testBoundedClients() {
+		ClientFailureTracker tracker = new ClientFailureTracker(2, 1, 1000, 5000);
+		tracker.recordFailure("10.0.0.1");
+		tracker.recordFailure("10.0.0.2");
+		tracker.recordFailure("10.0.0.3");
+		assertFalse(tracker.isBackedOff("10.0.0.1"));
+		assertTrue(tracker.isBackedOff("10.0.0.3"));
+		assertEquals(2, tracker.getBackedOff());
+	}
+
+	@Test
+	public void testLogThrottle() {
+		LogThrottle throttle = new LogThrottle(60000);
+		assertEquals(0, throttle.acquire(exception("Clock skew too great")));
+		assertEquals(-1, throttle.acquire(exception("Clock skew too great")));
+		assertEquals(-1, throttle.acquire(exception("Clock skew too great")));
+		assertEquals(0, throttle.acquire(exception("Checksum failed")));
+	}
+
+	private static Exception exception(final String message) {
+		return new IllegalStateException(message);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.ietf.jgss.GSSCredential;
+import org.junit.Test;
+
+public class DelegatedCredentialStoreTest {
+
+	private final Set<GSSCredential> disposed = new HashSet<GSSCredential>();
+
+	@Test
+	public void testReplaceDisposesPrevious() {
+		DelegatedCredentialStore store = new DelegatedCredentialStore(10, 60000);
+		GSSCredential first = credential(3600);
+		GSSCredential second = credential(3600);
+		store.store("jdoe", first);
+		store.store("jdoe", second);
+		assertSame(second, store.get("jdoe"));
+		assertTrue(disposed.contains(first));
+		assertFalse(disposed.contains(second));
+		assertEquals(1, store.size());
+		assertEquals(2, store.getStored());
+		assertEquals(1, store.getDisposed());
+
+		store.clear();
+		assertTrue(disposed.contains(second));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void testEvictOldest() {
+		DelegatedCredentialStore store = new DelegatedCredentialStore(2, 60000);
+		GSSCredential first = credential(3600);
+		store.store("user1", first);
+		store.store("user2", credential(3600));
+		store.store("user3", credential(3600));
+		assertNull(store.get("user1"));
+		assertTrue(disposed.contains(first));
+		assertEquals(2, store.size());
+	}
+
+	@Test
+	public void testExpireWithCredentialLifetime() {
+		DelegatedCredentialStore store = new DelegatedCredentialStore(10, 60000);
+		GSSCredential expired = credential(0);
+		store.store("jdoe", expired);
+		assertNull(store.get("jdoe"));
+		assertTrue(disposed.contains(expired));
+	}
+
+	@Test
+	public void testReleaseWithSession() {
+		DelegatedCredentialStore store = new DelegatedCredentialStore(10, 60000);
+		GSSCredential first = credential(3600);
+		store.store("jdoe", first);
+		HttpSessionBindingListener firstSession = (HttpSessionBindingListener) store.bindToSession("jdoe", first);
+		GSSCredential second = credential(3600);
+		store.store("jdoe", second);
+		HttpSessionBindingListener secondSession = (HttpSessionBindingListener) store.bindToSession("jdoe",
+				second);
+
+		// the end of the first session mustn't release the newer credential
+		firstSession.valueUnbound(null);
+		assertSame(second, store.get("jdoe"));
+
+		secondSession.valueUnbound(null);
+		assertNull(store.get("jdoe"));
+		assertTrue(disposed.contains(second));
+	}
+
+	private GSSCredential credential(final int lifetime) {
+		return (GSSCredential) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { GSSCredential.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args) {
+						if ("dispose".equals(method.getName())) {
+							disposed.add((GSSCredential) proxy);
+						} else if ("getRemainingLifetime".equals(method.getName())) {
+							return lifetime;
+						} else if ("hashCode".equals(method.getName())) {
+							return System.identityHashCode(proxy);
+						} else if ("equals".equals(method.getName())) {
+							return proxy == args[0];
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ExclusionLearnerTest {
+
+	@Test
+	public void testPrefix() {
+		ExclusionLearner learner = new ExclusionLearner(2, 3, 60000, 10);
+		assertEquals("/rest/api", learner.getPrefix("/rest/api/2/issue"));
+		assertEquals("/rest/api", learner.getPrefix("/rest/api"));
+		assertEquals("/rest", learner.getPrefix("/rest"));
+		assertEquals("/", learner.getPrefix("/"));
+	}
+
+	@Test
+	public void testUris() {
+		ExclusionLearner learner = new ExclusionLearner(2, 3, 60000, 10);
+		assertEquals(Arrays.asList("/rest/api", "/rest/api/*"), learner.getUris("/rest/api"));
+		assertEquals(Collections.singletonList("/rest/"), learner.getUris("/rest/"));
+		assertEquals(Collections.singletonList("/rest"), learner.getUris("/rest"));
+		assertEquals(Collections.singletonList("/"), learner.getUris("/"));
+
+		// the URIs in the syntax of exclude.uris match exactly the excluded ones
+		UriPattern[] patterns = UriPattern.compile(learner.getUris("/rest/api"));
+		for (String uri : new String[] { "/rest/api", "/rest/api/", "/rest/api/2/issue", "/rest/apis", "/rest" }) {
+			assertEquals(uri, learner.getPrefix(uri).equals("/rest/api"),
+					UriPattern.matches(patterns, new MockRequest(uri)));
+		}
+	}
+
+	@Test
+	public void testExcludeUnansweredChallenges() {
+		ExclusionLearner learner = new ExclusionLearner(2, 3, 60000, 10);
+		assertFalse(learner.recordChallenge("/rest/poll/1"));
+		assertFalse(learner.recordChallenge("/rest/poll/2"));
+		assertFalse(learner.isExcluded("/rest/poll/3"));
+		assertTrue(learner.recordChallenge("/rest/poll/3"));
+		assertTrue(learner.isExcluded("/rest/poll/4"));
+		assertFalse(learner.isExcluded("/rest/api/4"));
+		assertEquals(Arrays.asList("/rest/poll", "/rest/poll/*"), learner.getExclusions());
+
+		learner.clear();
+		assertFalse(learner.isExcluded("/rest/poll/4"));
+	}
+
+	@Test
+	public void testNegotiatedPrefixNotExcluded() {
+		ExclusionLearner learner = new ExclusionLearner(2, 3, 60000, 10);
+		for (int i = 0; i < 10; i++) {
+			assertFalse(learner.recordChallenge("/secure/Dashboard.jspa"));
+			learner.recordNegotiation("/secure/Dashboard.jspa");
+		}
+		assertFalse(learner.isExcluded("/secure/Dashboard.jspa"));
+	}
+
+	@Test
+	public void testExclusionExpires() throws InterruptedException {
+		ExclusionLearner learner = new ExclusionLearner(2, 1, 10, 10);
+		assertTrue(learner.recordChallenge("/rest/poll"));
+		Thread.sleep(20);
+		assertFalse(learner.isExcluded("/rest/poll"));
+		assertTrue(learner.getExclusions().isEmpty());
+	}
+
+	@Test
+	public void testBoundedCounters() {
+		ExclusionLearner learner = new ExclusionLearner(1, 3, 60000, 2);
+		learner.recordChallenge("/a");
+		learner.recordChallenge("/a");
+		learner.recordChallenge("/b");
+
+		// "/c" takes over the counter of "/b" - its count includes the one of "/b"
+		learner.recordChallenge("/c");
+		learner.recordChallenge("/c");
+		assertFalse(learner.isExcluded("/c"));
+		assertTrue(learner.recordChallenge("/c"));
+		assertTrue(learner.recordChallenge("/a"));
+	}
+
+	@Test
+	public void testConcurrentChallenges() throws InterruptedException {
+		final ExclusionLearner learner = new ExclusionLearner(1, 5000, 60000, 4);
+		final AtomicInteger excluded = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						if (learner.recordChallenge("/rest")) {
+							excluded.incrementAndGet();
+						}
+
+						// unique prefixes keep taking over the other counters
+						learner.recordChallenge("/" + getName() + j);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, excluded.get());
+		assertTrue(learner.isExcluded("/rest"));
+		assertEquals(Arrays.asList("/rest", "/rest/*"), learner.getExclusions());
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Measures the login latency and the thread usage of
+ * {@link SpnegoSupport#authenticate} with two SPNEGO configurations (realm A
+ * first, realm B second) while faults are injected into their
+ * {@link KdcStandIn}s. The clients present tokens for realm B, so every login
+ * tries realm A first. The KDCs are contacted when the JGSS acceptors of the
+ * configurations are created (JAAS login with password and
+ * <code>isInitiator=true</code>), i.e. by the first logins after init and by
+ * the circuit breaker's probes.
+ * <p>
+ * The scenarios depend on timing and on the JVM-wide Kerberos configuration,
+ * so they only run in their own JVM if enabled:
+ * <code>mvn test -Dtest=KdcScenarioTest -Dspnego.kdc.scenarios=true</code>
+ */
+public class KdcScenarioTest {
+
+	private static final String SERVICE = "HTTP/www.example.com";
+	private static final long KDC_TIMEOUT = 1000;
+	private static final int THREADS = 8;
+	private static final int LOGINS_PER_THREAD = 5;
+
+	private static KdcStandIn kdcA;
+	private static KdcStandIn kdcB;
+	private static File dir;
+	private static KerberosTokenBuilder builder;
+
+	private SpnegoSupport support;
+
+	@BeforeClass
+	public static void startKdcs() throws Exception {
+		assumeTrue(Boolean.getBoolean("spnego.kdc.scenarios"));
+		kdcA = new KdcStandIn("A.EXAMPLE.COM").withPrincipal(SERVICE, "secretA").start();
+		kdcB = new KdcStandIn("B.EXAMPLE.COM").withPrincipal(SERVICE, "secretB").start();
+		dir = Files.createTempDirectory("spnego-kdc").toFile();
+		write("krb5.conf",
+				"[libdefaults]\n default_realm = A.EXAMPLE.COM\n kdc_timeout = " + KDC_TIMEOUT
+						+ "\n max_retries = 1\n\n[realms]\n A.EXAMPLE.COM = {\n  kdc = 127.0.0.1:" + kdcA.getPort()
+						+ "\n }\n B.EXAMPLE.COM = {\n  kdc = 127.0.0.1:" + kdcB.getPort() + "\n }\n");
+		write("login.conf", "spnego-server {\n com.sun.security.auth.module.Krb5LoginModule required\n"
+				+ "  storeKey=true isInitiator=true;\n};\n");
+		write("pac-groups.properties", "");
+		writeConfig(kdcA, "secretA");
+		writeConfig(kdcB, "secretB");
+		builder = new KerberosTokenBuilder().withService(SERVICE, kdcB.getRealm())
+				.withServiceKey(kdcB.getKey(SERVICE, KerberosCrypto.AES256_CTS_HMAC_SHA1_96));
+		System.out.printf("%-30s %7s %8s %8s %8s %8s %8s %7s %7s%n", "scenario", "ok", "p50 ms", "p99 ms", "max ms",
+				"peak thr", "blocked", "kdc A", "kdc B");
+	}
+
+	@AfterClass
+	public static void stopKdcs() {
+		if (kdcA != null) {
+			kdcA.close();
+			kdcB.close();
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (support != null) {
+			support.destroy();
+		}
+		kdcA.heal();
+		kdcB.heal();
+	}
+
+	@Test
+	public void testHealthy() throws Exception {
+		Result result = run("healthy");
+		assertEquals(result.logins, result.ok);
+		assertTrue(result.percentile(50) < KDC_TIMEOUT);
+	}
+
+	@Test
+	public void testRealmDown() throws Exception {
+		kdcA.setDown(true);
+		Result result = run("realm A down (refused)");
+		assertEquals(result.logins, result.ok);
+		assertTrue(support.getCircuitBreakers()[0].toString(), !support.getCircuitBreakers()[0].isClosed());
+	}
+
+	@Test
+	public void testRealmBlackhole() throws Exception {
+		kdcA.setLossRate(1);
+		Result result = run("realm A unreachable (timeout)");
+		assertEquals(result.logins, result.ok);
+		assertTrue(!support.getCircuitBreakers()[0].isClosed());
+
+		// only the logins until the breaker opens wait for the timeout
+		assertTrue(result.max() >= KDC_TIMEOUT);
+		assertTrue(result.percentile(50) < KDC_TIMEOUT);
+	}
+
+	@Test
+	public void testPacketLoss() throws Exception {
+		kdcA.setLossRate(0.5);
+		kdcB.setLossRate(0.5);
+		run("50% UDP loss in both realms");
+
+		// the JDK retries lost requests via UDP until max_retries is exceeded
+		assertTrue(kdcA.getDropped() + kdcB.getDropped() > 0);
+	}
+
+	@Test
+	public void testSlowKdc() throws Exception {
+		kdcB.setLatency(KDC_TIMEOUT / 2);
+		Result result = run("realm B slow (500 ms)");
+		assertEquals(result.logins, result.ok);
+		assertTrue(result.max() >= KDC_TIMEOUT / 2);
+	}
+
+	@Test
+	public void testErrorReplies() throws Exception {
+		kdcA.setErrorCode(KdcStandIn.KDC_ERR_SVC_UNAVAILABLE);
+		Result result = run("realm A error replies");
+
+		// an error reply isn't an outage, it must fail fast
+		assertTrue(result.max() < KDC_TIMEOUT);
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		kdcA.setDown(true);
+		Result result = run("realm A down, then up");
+		assertEquals(result.logins, result.ok);
+		kdcA.setDown(false);
+
+		// the probe closes the breaker again (probe interval 1s)
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!support.getCircuitBreakers()[0].isClosed() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+		}
+		assertTrue(support.getCircuitBreakers()[0].isClosed());
+	}
+
+	private Result run(final String scenario) throws Exception {
+		long requestsA = kdcA.getRequests();
+		long requestsB = kdcB.getRequests();
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("config.files",
+				new File(dir, "A.EXAMPLE.COM.properties").getPath() + "," + new File(dir, "B.EXAMPLE.COM.properties"));
+		params.put("pac.group.mapping", new File(dir, "pac-groups.properties").getPath());
+		params.put("breaker.failures", "3");
+		params.put("breaker.probe.interval", "1");
+		support = new SpnegoSupport();
+		support.init(params);
+
+		final long[] latencies = new long[THREADS * LOGINS_PER_THREAD];
+		final AtomicInteger ok = new AtomicInteger();
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> clients = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			Thread client = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < LOGINS_PER_THREAD; i++) {
+							MockRequest request = new MockRequest("/index.jsp").withHeader("Authorization",
+									"Negotiate " + Base64.getEncoder().encodeToString(builder.build()));
+							long begin = System.nanoTime();
+							String userName = support.authenticate(request, new MockResponse());
+							latencies[next.getAndIncrement()] = System.nanoTime() - begin;
+							if ("user1".equals(userName)) {
+								ok.incrementAndGet();
+							}
+						}
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}, "kdc-scenario-client-" + t);
+			clients.add(client);
+			client.start();
+		}
+
+		ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		threadMXBean.resetPeakThreadCount();
+		start.countDown();
+		int maxBlocked = 0;
+		for (Thread client : clients) {
+			while (client.isAlive()) {
+				int blocked = 0;
+				for (Thread c : clients) {
+					if (c.getState() == Thread.State.BLOCKED) {
+						blocked++;
+					}
+				}
+				maxBlocked = Math.max(maxBlocked, blocked);
+				client.join(5);
+			}
+		}
+		Result result = new Result(latencies, ok.get());
+		System.out.printf("%-30s %3d/%-3d %8d %8d %8d %8d %8d %7d %7d%n", scenario, result.ok, result.logins,
+				result.percentile(50), result.percentile(99), result.max(), threadMXBean.getPeakThreadCount(),
+				maxBlocked, kdcA.getRequests() - requestsA, kdcB.getRequests() - requestsB);
+		return result;
+	}
+
+	private static void writeConfig(final KdcStandIn kdc, final String password) throws IOException {
+		StringBuilder config = new StringBuilder();
+		config.append("name=").append(kdc.getRealm()).append('\n');
+		config.append("spnego.allow.basic=false\nspnego.allow.unsecure.basic=false\nspnego.allow.localhost=true\n");
+		config.append("spnego.prompt.ntlm=false\nspnego.allow.delegation=false\nspnego.logger.level=1\n");
+		config.append("spnego.login.client.module=spnego-server\nspnego.login.server.module=spnego-server\n");
+		config.append("spnego.krb5.conf=").append(new File(dir, "krb5.conf").getPath()).append('\n');
+		config.append("spnego.login.conf=").append(new File(dir, "login.conf").getPath()).append('\n');
+		config.append("spnego.preauth.username=").append(SERVICE).append('@').append(kdc.getRealm()).append('\n');
+		config.append("spnego.preauth.password=").append(password).append('\n');
+		write(kdc.getRealm() + ".properties", config.toString());
+	}
+
+	private static void write(final String name, final String content) throws IOException {
+		Files.write(new File(dir, name).toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static final class Result {
+
+		private final long[] latencies;
+		private final int logins;
+		private final int ok;
+
+		Result(final long[] latencies, final int ok) {
+			this.latencies = latencies.clone();
+			Arrays.sort(this.latencies);
+			this.logins = latencies.length;
+			this.ok = ok;
+		}
+
+		long percentile(final int percentile) {
+			return TimeUnit.NANOSECONDS.toMillis(latencies[(latencies.length - 1) * percentile / 100]);
+		}
+
+		long max() {
+			return TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length - 1]);
+		}
+	}
+}
@@ -0,0 +1,486 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * In-process stand-in for the KDC of a single realm, listening on UDP and TCP
+ * of the same (ephemeral) loopback port. It answers AS requests (the JAAS
+ * login with user name and password) for the registered principals with
+ * AES keys derived from their passwords, so the JDK's Kerberos login module
+ * treats it like a real KDC. TGS requests aren't supported.
+ * <p>
+ * Faults can be injected at any time:
+ * <ul>
+ * <li>latency - every reply is delayed</li>
+ * <li>loss rate - the given ratio of UDP requests isn't answered at all (TCP
+ * retransmits lost packets, so TCP requests are always answered)</li>
+ * <li>error code - every request is answered with a KRB-ERROR</li>
+ * <li>down - the sockets are closed, so requests are refused immediately</li>
+ * </ul>
+ */
+public class KdcStandIn implements Closeable {
+
+	public static final int KDC_ERR_C_PRINCIPAL_UNKNOWN = 6;
+	public static final int KDC_ERR_ETYPE_NOSUPP = 14;
+	public static final int KDC_ERR_SVC_UNAVAILABLE = 29;
+	public static final int KRB_ERR_GENERIC = 60;
+
+	private static final int PA_ETYPE_INFO2 = 19;
+	private static final int KEY_USAGE_AS_REP = 3;
+	private static final int AES_ITERATIONS = 4096;
+	private static final int KVNO = 3;
+	private static final long TICKET_LIFETIME = 10 * 3600 * 1000;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final String realm;
+	private final Map<String, String> passwords = new ConcurrentHashMap<String, String>();
+	private final ExecutorService workers;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private volatile long latencyMillis;
+	private volatile double lossRate;
+	private volatile int errorCode;
+	private int port;
+	private DatagramSocket udpSocket;
+	private ServerSocket tcpSocket;
+
+	public KdcStandIn(final String realm) {
+		this.realm = realm;
+		this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, "kdc-" + realm);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Registers a principal (without realm, e.g. <code>HTTP/www.example.com</code>)
+	 * with its password.
+	 */
+	public KdcStandIn withPrincipal(final String principal, final String password) {
+		passwords.put(principal, password);
+		return this;
+	}
+
+	public synchronized KdcStandIn start() throws IOException {
+		if (udpSocket == null) {
+			openSockets();
+		}
+		return this;
+	}
+
+	public String getRealm() {
+		return realm;
+	}
+
+	public synchronized int getPort() {
+		return port;
+	}
+
+	public void setLatency(final long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	public void setLossRate(final double lossRate) {
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 * Answers all requests with the given error code, or as usual if it's 0.
+	 */
+	public void setErrorCode(final int errorCode) {
+		this.errorCode = errorCode;
+	}
+
+	/**
+	 * Closes the sockets (so requests are refused) or opens them again on the
+	 * same port.
+	 */
+	public synchronized void setDown(final boolean down) throws IOException {
+		if (down) {
+			closeSockets();
+		} else if (udpSocket == null) {
+			openSockets();
+		}
+	}
+
+	/**
+	 * Resets all faults.
+	 */
+	public void heal() throws IOException {
+		latencyMillis = 0;
+		lossRate = 0;
+		errorCode = 0;
+		setDown(false);
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * Returns the default salt of the given principal (realm and the principal's
+	 * components without separators).
+	 */
+	public String getSalt(final String principal) {
+		return realm + principal.replace("/", "");
+	}
+
+	/**
+	 * Returns the key of the given principal for the given encryption type (as
+	 * derived by the JDK's login module from the password).
+	 */
+	public byte[] getKey(final String principal, final int etype) throws GeneralSecurityException {
+		return stringToKey(etype, passwords.get(principal), getSalt(principal));
+	}
+
+	@Override
+	public synchronized void close() {
+		closeSockets();
+		workers.shutdownNow();
+	}
+
+	private void openSockets() throws IOException {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		for (int attempt = 0;; attempt++) {
+			DatagramSocket udp = new DatagramSocket(new InetSocketAddress(loopback, port));
+			ServerSocket tcp = new ServerSocket();
+			try {
+				tcp.setReuseAddress(true);
+				tcp.bind(new InetSocketAddress(loopback, udp.getLocalPort()));
+			} catch (IOException e) {
+				tcp.close();
+				udp.close();
+				if (port != 0 || attempt == 10) {
+					throw e;
+				}
+				continue;
+			}
+			port = udp.getLocalPort();
+			udpSocket = udp;
+			tcpSocket = tcp;
+			break;
+		}
+		final DatagramSocket udp = udpSocket;
+		final ServerSocket tcp = tcpSocket;
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				serveUdp(udp);
+			}
+		});
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				serveTcp(tcp);
+			}
+		});
+	}
+
+	private void closeSockets() {
+		if (udpSocket != null) {
+			udpSocket.close();
+			try {
+				tcpSocket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			udpSocket = null;
+			tcpSocket = null;
+		}
+	}
+
+	private void serveUdp(final DatagramSocket socket) {
+		byte[] buffer = new byte[65535];
+		while (!socket.isClosed()) {
+			final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+			try {
+				socket.receive(packet);
+			} catch (IOException e) {
+				return;
+			}
+			final byte[] request = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+					packet.getOffset() + packet.getLength());
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					byte[] reply = respond(request, true);
+					if (reply != null) {
+						try {
+							socket.send(new DatagramPacket(reply, reply.length, packet.getSocketAddress()));
+						} catch (IOException e) {
+							// closed in the meantime
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private void serveTcp(final ServerSocket serverSocket) {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try (Socket connection = socket) {
+						DataInputStream in = new DataInputStream(connection.getInputStream());
+						byte[] request = new byte[in.readInt()];
+						in.readFully(request);
+						byte[] reply = respond(request, false);
+						DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+						out.writeInt(reply.length);
+						out.write(reply);
+						out.flush();
+					} catch (SocketException e) {
+						// closed by the client
+					} catch (IOException e) {
+						// malformed request
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the reply to the given request with the configured faults applied,
+	 * or <code>null</code> if the request is lost.
+	 */
+	byte[] respond(final byte[] request, final boolean udp) {
+		requests.incrementAndGet();
+		if (udp && lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+			dropped.incrementAndGet();
+			return null;
+		}
+		long latency = latencyMillis;
+		if (latency > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		int error = errorCode;
+		if (error != 0) {
+			errors.incrementAndGet();
+			return error(error, "Injected fault");
+		}
+		try {
+			return handleAsRequest(request);
+		} catch (IOException | GeneralSecurityException e) {
+			errors.incrementAndGet();
+			return error(KRB_ERR_GENERIC, e.getMessage());
+		}
+	}
+
+	private byte[] handleAsRequest(final byte[] request) throws IOException, GeneralSecurityException {
+		DerReader asReq = new DerReader(request).readApplication(10).readSequence();
+		asReq.readContext(1);
+		asReq.readContext(2);
+		asReq.readOptional(3);
+		DerReader body = asReq.readContext(4).readSequence();
+		int options = body.readContext(0).readFlags();
+		DerReader cnameReader = body.readContext(1).readSequence();
+		int cnameType = (int) cnameReader.readContext(0).readInteger();
+		List<String> cname = readStrings(cnameReader.readContext(1).readSequence());
+		String requestedRealm = body.readContext(2).readGeneralString();
+		body.readOptional(3);
+		body.readOptional(4);
+		long till = body.readContext(5).readKerberosTime();
+		DerReader rtime = body.readOptional(6);
+		long renewTill = rtime != null ? rtime.readKerberosTime() : 0;
+		long nonce = body.readContext(7).readInteger();
+		DerReader etypes = body.readContext(8).readSequence();
+
+		String principal = String.join("/", cname);
+		String password = passwords.get(principal);
+		if (!realm.equals(requestedRealm) || password == null) {
+			errors.incrementAndGet();
+			return error(KDC_ERR_C_PRINCIPAL_UNKNOWN, "Unknown principal " + principal);
+		}
+		int etype = 0;
+		while (etypes.hasMore() && etype == 0) {
+			int requested = (int) etypes.readInteger();
+			if (requested == KerberosCrypto.AES256_CTS_HMAC_SHA1_96
+					|| requested == KerberosCrypto.AES128_CTS_HMAC_SHA1_96) {
+				etype = requested;
+			}
+		}
+		if (etype == 0) {
+			errors.incrementAndGet();
+			return error(KDC_ERR_ETYPE_NOSUPP, "No AES encryption type requested");
+		}
+
+		long now = System.currentTimeMillis();
+		long end = till > now && till < now + TICKET_LIFETIME ? till : now + TICKET_LIFETIME;
+		boolean renewable = (options & 0x00800000) != 0;
+
+		// the ticket flags mirror the requested options, plus "initial"
+		int flags = (options & 0x7f800000) | 0x00400000;
+		byte[] sessionKey = randomKey(etype);
+		byte[] tgsName = principalName(2, Arrays.asList("krbtgt", realm));
+		byte[] encAsRepPart = DerWriter.application(25,
+				DerWriter.sequence(
+						DerWriter.context(0,
+								DerWriter.sequence(DerWriter.context(0, DerWriter.integer(etype)),
+										DerWriter.context(1, DerWriter.octetString(sessionKey)))),
+						DerWriter.context(1,
+								DerWriter.sequence(DerWriter.sequence(DerWriter.context(0, DerWriter.integer(0)),
+										DerWriter.context(1, DerWriter.kerberosTime(now))))),
+						DerWriter.context(2, DerWriter.integer(nonce)), DerWriter.context(4, DerWriter.flags(flags)),
+						DerWriter.context(5, DerWriter.kerberosTime(now)),
+						DerWriter.context(6, DerWriter.kerberosTime(now)),
+						DerWriter.context(7, DerWriter.kerberosTime(end)),
+						renewable ? DerWriter.context(8, DerWriter.kerberosTime(Math.max(renewTill, end)))
+								: new byte[0],
+						DerWriter.context(9, DerWriter.generalString(realm)), DerWriter.context(10, tgsName)));
+
+		// the client doesn't decrypt the TGT
+		byte[] ticketCipher = new byte[128];
+		RANDOM.nextBytes(ticketCipher);
+		byte[] ticket = DerWriter.application(1,
+				DerWriter.sequence(DerWriter.context(0, DerWriter.integer(5)),
+						DerWriter.context(1, DerWriter.generalString(realm)), DerWriter.context(2, tgsName),
+						DerWriter.context(3, encryptedData(etype, 1, ticketCipher))));
+
+		String salt = getSalt(principal);
+		byte[] etypeInfo = DerWriter.sequence(DerWriter.sequence(DerWriter.context(0, DerWriter.integer(etype)),
+				DerWriter.context(1, DerWriter.generalString(salt))));
+		return DerWriter.application(11, DerWriter.sequence(DerWriter.context(0, DerWriter.integer(5)),
+				DerWriter.context(1, DerWriter.integer(11)),
+				DerWriter.context(2,
+						DerWriter.sequence(DerWriter.sequence(DerWriter.context(1, DerWriter.integer(PA_ETYPE_INFO2)),
+								DerWriter.context(2, DerWriter.octetString(etypeInfo))))),
+				DerWriter.context(3, DerWriter.generalString(realm)), DerWriter.context(4, principalName(cnameType, cname)),
+				DerWriter.context(5, ticket),
+				DerWriter.context(6, encryptedData(etype, KVNO, KerberosCrypto.encrypt(etype,
+						stringToKey(etype, password, salt), KEY_USAGE_AS_REP, encAsRepPart)))));
+	}
+
+	private byte[] error(final int code, final String text) {
+		long now = System.currentTimeMillis();
+		return DerWriter.application(30,
+				DerWriter.sequence(DerWriter.context(0, DerWriter.integer(5)),
+						DerWriter.context(1, DerWriter.integer(30)),
+						DerWriter.context(4, DerWriter.kerberosTime(now)),
+						DerWriter.context(5, DerWriter.integer(0)), DerWriter.context(6, DerWriter.integer(code)),
+						DerWriter.context(9, DerWriter.generalString(realm)),
+						DerWriter.context(10, principalName(2, Arrays.asList("krbtgt", realm))),
+						DerWriter.context(11, DerWriter.generalString(text != null ? text : "Error"))));
+	}
+
+	/**
+	 * Derives the key from the given password like the AES string-to-key
+	 * function of RFC 3962: PBKDF2-HMAC-SHA1 followed by the derivation with the
+	 * constant "kerberos".
+	 */
+	public static byte[] stringToKey(final int etype, final String password, final String salt)
+			throws GeneralSecurityException {
+		int length = etype == KerberosCrypto.AES256_CTS_HMAC_SHA1_96 ? 32 : 16;
+		byte[] baseKey = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1")
+				.generateSecret(new PBEKeySpec(password.toCharArray(), salt.getBytes(StandardCharsets.UTF_8),
+						AES_ITERATIONS, length * 8))
+				.getEncoded();
+		Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(baseKey, "AES"));
+		byte[] block = KerberosCrypto.nfold("kerberos".getBytes(StandardCharsets.US_ASCII), 16);
+		byte[] key = new byte[length];
+		for (int offset = 0; offset < length; offset += block.length) {
+			block = cipher.doFinal(block);
+			System.arraycopy(block, 0, key, offset, Math.min(block.length, length - offset));
+		}
+		return key;
+	}
+
+	private static List<String> readStrings(final DerReader strings) throws IOException {
+		List<String> components = new ArrayList<String>();
+		while (strings.hasMore()) {
+			components.add(strings.readGeneralString());
+		}
+		return components;
+	}
+
+	private static byte[] principalName(final int nameType, final List<String> components) {
+		byte[][] strings = new byte[components.size()][];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = DerWriter.generalString(components.get(i));
+		}
+		return DerWriter.sequence(DerWriter.context(0, DerWriter.integer(nameType)),
+				DerWriter.context(1, DerWriter.sequence(strings)));
+	}
+
+	private static byte[] encryptedData(final int etype, final int kvno, final byte[] cipher) {
+		return DerWriter.sequence(DerWriter.context(0, DerWriter.integer(etype)),
+				DerWriter.context(1, DerWriter.integer(kvno)), DerWriter.context(2, DerWriter.octetString(cipher)));
+	}
+
+	private static byte[] randomKey(final int etype) {
+		byte[] key = new byte[etype == KerberosCrypto.AES256_CTS_HMAC_SHA1_96 ? 32 : 16];
+		RANDOM.nextBytes(key);
+		return key;
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates keytabs and SPNEGO / Kerberos tokens (AP-REQ) like a KDC and a
+ * client would do.
+ */
+public class KerberosTokenBuilder {
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private static final AtomicInteger MICROSECONDS = new AtomicInteger();
+
+	private String service = "HTTP/www.example.com";
+	private String realm = "EXAMPLE.COM";
+	private String client = "user1";
+	private String authenticatorClient;
+	private int etype = KerberosCrypto.AES256_CTS_HMAC_SHA1_96;
+	private int kvno = 3;
+	private byte[] serviceKey;
+	private long clientTime = System.currentTimeMillis();
+	private long endTime = System.currentTimeMillis() + 10 * 3600 * 1000;
+	private boolean spnego = true;
+	private boolean mutual = true;
+	private boolean checksum = true;
+	private byte[] pac;
+
+	public KerberosTokenBuilder withService(final String service, final String realm) {
+		this.service = service;
+		this.realm = realm;
+		return this;
+	}
+
+	public KerberosTokenBuilder withClient(final String client) {
+		this.client = client;
+		return this;
+	}
+
+	public KerberosTokenBuilder withAuthenticatorClient(final String authenticatorClient) {
+		this.authenticatorClient = authenticatorClient;
+		return this;
+	}
+
+	/**
+	 * Uses the given encryption type with a new random service key.
+	 */
+	public KerberosTokenBuilder withEtype(final int etype) {
+		this.etype = etype;
+		this.serviceKey = null;
+		return this;
+	}
+
+	public KerberosTokenBuilder withServiceKey(final byte[] serviceKey) {
+		this.serviceKey = serviceKey;
+		return this;
+	}
+
+	public KerberosTokenBuilder withClientTime(final long clientTime) {
+		this.clientTime = clientTime;
+		return this;
+	}
+
+	public KerberosTokenBuilder withEndTime(final long endTime) {
+		this.endTime = endTime;
+		return this;
+	}
+
+	public KerberosTokenBuilder withSpnego(final boolean spnego) {
+		this.spnego = spnego;
+		return this;
+	}
+
+	public KerberosTokenBuilder withMutual(final boolean mutual) {
+		this.mutual = mutual;
+		return this;
+	}
+
+	public KerberosTokenBuilder withChecksum(final boolean checksum) {
+		this.checksum = checksum;
+		return this;
+	}
+
+	public KerberosTokenBuilder withPac(final byte[] pac) {
+		this.pac = pac;
+		return this;
+	}
+
+	public String getPrincipal() {
+		return service + "@" + realm;
+	}
+
+	public byte[] getServiceKey() {
+		if (serviceKey == null) {
+			serviceKey = randomKey(etype);
+		}
+		return serviceKey;
+	}
+
+	/**
+	 * Returns a keytab (MIT format) with the service key.
+	 */
+	public byte[] keytab() throws IOException {
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(entry);
+		String[] components = service.split("/");
+		out.writeShort(components.length);
+		writeString(out, realm);
+		for (String component : components) {
+			writeString(out, component);
+		}
+		out.writeInt(1);
+		out.writeInt((int) (System.currentTimeMillis() / 1000));
+		out.writeByte(kvno);
+		out.writeShort(etype);
+		out.writeShort(getServiceKey().length);
+		out.write(getServiceKey());
+		out.writeInt(kvno);
+		ByteArrayOutputStream keytab = new ByteArrayOutputStream();
+		DataOutputStream keytabOut = new DataOutputStream(keytab);
+		keytabOut.writeShort(0x502);
+		keytabOut.writeInt(entry.size());
+		keytabOut.write(entry.toByteArray());
+		return keytab.toByteArray();
+	}
+
+	private static void writeString(final DataOutputStream out, final String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Returns a new token with a unique authenticator.
+	 */
+	public byte[] build() throws GeneralSecurityException {
+		byte[] sessionKey = randomKey(etype);
+		long now = System.currentTimeMillis();
+		byte[] encTicketPart = DerWriter.application(3,
+				DerWriter.sequence(DerWriter.context(0, DerWriter.flags(0x40e10000)),
+						DerWriter.context(1,
+								DerWriter.sequence(DerWriter.context(0, DerWriter.integer(etype)),
+										DerWriter.context(1, DerWriter.octetString(sessionKey)))),
+						DerWriter.context(2, DerWriter.generalString(realm)),
+						DerWriter.context(3, principalName(1, client)),
+						DerWriter.context(4,
+								DerWriter.sequence(DerWriter.context(0, DerWriter.integer(0)),
+										DerWriter.context(1, DerWriter.octetString(new byte[0])))),
+						DerWriter.context(5, DerWriter.kerberosTime(now - 60000)),
+						DerWriter.context(6, DerWriter.kerberosTime(now - 60000)),
+						DerWriter.context(7, DerWriter.kerberosTime(endTime)),
+						pac != null ? DerWriter.context(10, authorizationData(pac)) : new byte[0]));
+		byte[] ticket = DerWriter.application(1,
+				DerWriter.sequence(DerWriter.context(0, DerWriter.integer(5)),
+						DerWriter.context(1, DerWriter.generalString(realm)),
+						DerWriter.context(2, principalName(2, service)),
+						DerWriter.context(3, encryptedData(etype, kvno, KerberosCrypto.encrypt(etype, getServiceKey(),
+								KerberosCrypto.KEY_USAGE_TICKET, encTicketPart)))));
+
+		// GSS checksum with zero channel bindings and the context flags
+		byte[] gssChecksum = new byte[24];
+		gssChecksum[0] = 16;
+		gssChecksum[20] = (byte) (mutual ? 0x3e : 0x3c);
+		byte[] authenticator = DerWriter.application(2,
+				DerWriter.sequence(DerWriter.context(0, DerWriter.integer(5)),
+						DerWriter.context(1, DerWriter.generalString(realm)),
+						DerWriter.context(2,
+								principalName(1, authenticatorClient != null ? authenticatorClient : client)),
+						checksum ? DerWriter.context(3,
+								DerWriter.sequence(DerWriter.context(0, DerWriter.integer(0x8003)),
+										DerWriter.context(1, DerWriter.octetString(gssChecksum))))
+								: new byte[0],
+						DerWriter.context(4, DerWriter.integer(MICROSECONDS.incrementAndGet() % 1000000)),
+						DerWriter.context(5, DerWriter.kerberosTime(clientTime)),
+						DerWriter.context(7, DerWriter.integer(RANDOM.nextInt(0x3fffffff)))));
+		byte[] apReq = DerWriter.application(14,
+				DerWriter.sequence(DerWriter.context(0, DerWriter.integer(5)),
+						DerWriter.context(1, DerWriter.integer(14)),
+						DerWriter.context(2, DerWriter.flags(mutual ? 0x20000000 : 0)),
+						DerWriter.context(3, ticket),
+						DerWriter.context(4, encryptedData(etype, -1, KerberosCrypto.encrypt(etype, sessionKey,
+								KerberosCrypto.KEY_USAGE_AUTHENTICATOR, authenticator)))));
+		byte[] krb5Token = DerWriter.application(0, DerWriter.oid(NativeKerberosAcceptor.KRB5_OID),
+				new byte[] { 1, 0 }, apReq);
+		if (!spnego) {
+			return krb5Token;
+		}
+		return DerWriter.application(0, DerWriter.oid(NativeKerberosAcceptor.SPNEGO_OID),
+				DerWriter.context(0,
+						DerWriter.sequence(
+								DerWriter.context(0,
+										DerWriter.sequence(DerWriter.oid(NativeKerberosAcceptor.KRB5_MS_OID),
+												DerWriter.oid(NativeKerberosAcceptor.KRB5_OID))),
+								DerWriter.context(2, DerWriter.octetString(krb5Token)))));
+	}
+
+	private static byte[] principalName(final int nameType, final String name) {
+		String[] components = name.split("/");
+		byte[][] strings = new byte[components.length][];
+		for (int i = 0; i < components.length; i++) {
+			strings[i] = DerWriter.generalString(components[i]);
+		}
+		return DerWriter.sequence(DerWriter.context(0, DerWriter.integer(nameType)),
+				DerWriter.context(1, DerWriter.sequence(strings)));
+	}
+
+	private static byte[] encryptedData(final int etype, final int kvno, final byte[] cipher) {
+		return DerWriter.sequence(DerWriter.context(0, DerWriter.integer(etype)),
+				kvno != -1 ? DerWriter.context(1, DerWriter.integer(kvno)) : new byte[0],
+				DerWriter.context(2, DerWriter.octetString(cipher)));
+	}
+
+	private static byte[] authorizationData(final byte[] pac) {
+		byte[] ifRelevant = DerWriter.sequence(DerWriter.sequence(
+				DerWriter.context(0, DerWriter.integer(PacDecoder.AD_WIN2K_PAC)),
+				DerWriter.context(1, DerWriter.octetString(pac))));
+		return DerWriter.sequence(
+				DerWriter.sequence(DerWriter.context(0, DerWriter.integer(PacDecoder.AD_IF_RELEVANT)),
+						DerWriter.context(1, DerWriter.octetString(ifRelevant))));
+	}
+
+	private static byte[] randomKey(final int etype) {
+		byte[] key = new byte[etype == KerberosCrypto.AES256_CTS_HMAC_SHA1_96 ? 32 : 16];
+		RANDOM.nextBytes(key);
+		return key;
+	}
+}
@@ -22,7 +22,9 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 
@@ -45,6 +47,11 @@ public class MockRequest implements HttpServletRequest {
 
 	private final String uri;
 	private final String queryString;
+	private final Map<String, String> headers = new HashMap<String, String>();
+	private String method = "GET";
+	private String remoteAddr;
+	private Cookie[] cookies;
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
 	
 	public MockRequest(String uri) {
 		this(uri, null);
@@ -55,9 +62,29 @@ public class MockRequest implements HttpServletRequest {
 		this.queryString = queryString;
 	}
 
+	public MockRequest withMethod(String method) {
+		this.method = method;
+		return this;
+	}
+
+	public MockRequest withHeader(String name, String value) {
+		headers.put(name.toLowerCase(), value);
+		return this;
+	}
+
+	public MockRequest withRemoteAddr(String remoteAddr) {
+		this.remoteAddr = remoteAddr;
+		return this;
+	}
+
+	public MockRequest withCookies(Cookie... cookies) {
+		this.cookies = cookies;
+		return this;
+	}
+
 	@Override
 	public Object getAttribute(String name) {
-		return null;
+		return attributes.get(name);
 	}
 
 	@Override
@@ -143,8 +170,7 @@ public class MockRequest implements HttpServletRequest {
 
 	@Override
 	public String getRemoteAddr() {
-		// TODO Auto-generated method stub
-		return null;
+		return remoteAddr;
 	}
 
 	@Override
@@ -154,10 +180,12 @@ public class MockRequest implements HttpServletRequest {
 
 	@Override
 	public void setAttribute(String name, Object o) {
+		attributes.put(name, o);
 	}
 
 	@Override
 	public void removeAttribute(String name) {
+		attributes.remove(name);
 	}
 
 	@Override
@@ -249,7 +277,7 @@ public class MockRequest implements HttpServletRequest {
 
 	@Override
 	public Cookie[] getCookies() {
-		return null;
+		return cookies;
 	}
 
 	@Override
@@ -259,17 +287,18 @@ public class MockRequest implements HttpServletRequest {
 
 	@Override
 	public String getHeader(String name) {
-		return null;
+		return headers.get(name.toLowerCase());
 	}
 
 	@Override
 	public Enumeration<String> getHeaders(String name) {
-		return null;
+		String value = headers.get(name.toLowerCase());
+		return Collections.enumeration(value != null ? Collections.singletonList(value) : Collections.<String>emptyList());
 	}
 
 	@Override
 	public Enumeration<String> getHeaderNames() {
-		return null;
+		return Collections.enumeration(headers.keySet());
 	}
 
 	@Override
@@ -279,7 +308,7 @@ public class MockRequest implements HttpServletRequest {
 
 	@Override
 	public String getMethod() {
-		return null;
+		return method;
 	}
 
 	@Override
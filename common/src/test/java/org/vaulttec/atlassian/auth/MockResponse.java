@@ -0,0 +1,245 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+public class MockResponse implements HttpServletResponse {
+
+	private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+	private final List<Cookie> cookies = new ArrayList<Cookie>();
+	private int status = SC_OK;
+	private String contentType;
+	private StringWriter body = new StringWriter();
+	private boolean committed;
+
+	public List<Cookie> getCookies() {
+		return cookies;
+	}
+
+	public String getBody() {
+		return body.toString();
+	}
+
+	@Override
+	public String getCharacterEncoding() {
+		return null;
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		return null;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		return new PrintWriter(body);
+	}
+
+	@Override
+	public void setCharacterEncoding(String charset) {
+	}
+
+	@Override
+	public void setContentLength(int len) {
+	}
+
+	@Override
+	public void setContentLengthLong(long len) {
+	}
+
+	@Override
+	public void setContentType(String type) {
+		contentType = type;
+	}
+
+	@Override
+	public void setBufferSize(int size) {
+	}
+
+	@Override
+	public int getBufferSize() {
+		return 0;
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		committed = true;
+	}
+
+	@Override
+	public void resetBuffer() {
+		body = new StringWriter();
+	}
+
+	@Override
+	public boolean isCommitted() {
+		return committed;
+	}
+
+	@Override
+	public void reset() {
+		headers.clear();
+		cookies.clear();
+		status = SC_OK;
+		contentType = null;
+		body = new StringWriter();
+		committed = false;
+	}
+
+	@Override
+	public void setLocale(Locale loc) {
+	}
+
+	@Override
+	public Locale getLocale() {
+		return null;
+	}
+
+	@Override
+	public void addCookie(Cookie cookie) {
+		cookies.add(cookie);
+	}
+
+	@Override
+	public boolean containsHeader(String name) {
+		return headers.containsKey(name.toLowerCase());
+	}
+
+	@Override
+	public String encodeURL(String url) {
+		return url;
+	}
+
+	@Override
+	public String encodeRedirectURL(String url) {
+		return url;
+	}
+
+	@Override
+	public String encodeUrl(String url) {
+		return url;
+	}
+
+	@Override
+	public String encodeRedirectUrl(String url) {
+		return url;
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		status = sc;
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+		status = sc;
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+		status = SC_FOUND;
+		setHeader("Location", location);
+	}
+
+	@Override
+	public void setDateHeader(String name, long date) {
+		setHeader(name, String.valueOf(date));
+	}
+
+	@Override
+	public void addDateHeader(String name, long date) {
+		addHeader(name, String.valueOf(date));
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		headers.remove(name.toLowerCase());
+		addHeader(name, value);
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		List<String> values = headers.get(name.toLowerCase());
+		if (values == null) {
+			values = new ArrayList<String>();
+			headers.put(name.toLowerCase(), values);
+		}
+		values.add(value);
+	}
+
+	@Override
+	public void setIntHeader(String name, int value) {
+		setHeader(name, String.valueOf(value));
+	}
+
+	@Override
+	public void addIntHeader(String name, int value) {
+		addHeader(name, String.valueOf(value));
+	}
+
+	@Override
+	public void setStatus(int sc) {
+		status = sc;
+	}
+
+	@Override
+	public void setStatus(int sc, String sm) {
+		status = sc;
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	@Override
+	public String getHeader(String name) {
+		List<String> values = headers.get(name.toLowerCase());
+		return values != null ? values.get(0) : null;
+	}
+
+	@Override
+	public Collection<String> getHeaders(String name) {
+		List<String> values = headers.get(name.toLowerCase());
+		return values != null ? values : Collections.<String>emptyList();
+	}
+
+	@Override
+	public Collection<String> getHeaderNames() {
+		return headers.keySet();
+	}
+}
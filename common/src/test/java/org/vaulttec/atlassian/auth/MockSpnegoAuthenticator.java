@@ -49,9 +49,19 @@ public class MockSpnegoAuthenticator implements SpnegoAuthenticator {
 		return null;
 	}
 
+	@Override
+	public boolean isLoginAllowed(Principal user) {
+		return true;
+	}
+
 	@Override
 	public boolean authoriseUserAndEstablishSession(HttpServletRequest request, HttpServletResponse response,
 			Principal user) {
 		return false;
 	}
+
+	@Override
+	public boolean authoriseUser(HttpServletRequest request, Principal user) {
+		return false;
+	}
 }
\ No newline at end of file
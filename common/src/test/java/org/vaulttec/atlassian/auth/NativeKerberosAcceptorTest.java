@@ -0,0 +1,229 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import org.ietf.jgss.GSSException;
+import org.junit.Test;
+
+public class NativeKerberosAcceptorTest {
+
+	@Test
+	public void testAccept() throws Exception {
+		for (int etype : new int[] { KerberosCrypto.AES256_CTS_HMAC_SHA1_96, KerberosCrypto.AES128_CTS_HMAC_SHA1_96,
+				KerberosCrypto.RC4_HMAC }) {
+			long endTime = System.currentTimeMillis() + 3600 * 1000;
+			KerberosTokenBuilder builder = new KerberosTokenBuilder().withEtype(etype).withEndTime(endTime);
+			AcceptResult result = acceptor(builder).accept(builder.build(), false);
+
+			assertNotNull(result);
+			assertEquals("user1@EXAMPLE.COM", result.getPrincipalName());
+			assertNotNull(result.getResponseToken());
+			assertNull(result.getPac());
+			assertEquals(etype, result.getEtype());
+			assertEquals(endTime / 1000, result.getTicketEndTime() / 1000);
+			assertFalse(result.isDelegationRequested());
+		}
+	}
+
+	@Test
+	public void testAcceptKerberosToken() throws Exception {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder().withSpnego(false).withMutual(false);
+		AcceptResult result = acceptor(builder).accept(builder.build(), false);
+
+		assertEquals("user1@EXAMPLE.COM", result.getPrincipalName());
+		assertNull(result.getResponseToken());
+	}
+
+	@Test
+	public void testMutualAuthentication() throws Exception {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder();
+		AcceptResult result = acceptor(builder).accept(builder.build(), false);
+
+		// NegTokenResp with accept-completed and the Kerberos AP-REP
+		DerReader negTokenResp = new DerReader(result.getResponseToken()).readContext(1).readSequence();
+		assertEquals(0, negTokenResp.readContext(0).read(DerReader.TAG_ENUMERATED).remaining()[0]);
+		assertEquals(NativeKerberosAcceptor.KRB5_MS_OID, negTokenResp.readContext(1).readOid());
+		DerReader krb5Token = new DerReader(negTokenResp.readContext(2).readOctetString()).readApplication(0);
+		assertEquals(NativeKerberosAcceptor.KRB5_OID, krb5Token.readOid());
+		byte[] apRep = krb5Token.remaining();
+		assertEquals(2, apRep[0]);
+		assertEquals(0x6f, apRep[2] & 0xff);
+	}
+
+	@Test
+	public void testExtractPac() throws Exception {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder().withPac(PacDecoderTest.createPac());
+		AcceptResult result = acceptor(builder).accept(builder.build(), true);
+
+		assertArrayEquals(PacDecoderTest.createPac(), result.getPac());
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder();
+		NativeKerberosAcceptor acceptor = acceptor(builder);
+		byte[] token = builder.build();
+		acceptor.accept(token, false);
+
+		assertRejected(acceptor, token, GSSException.DUPLICATE_TOKEN);
+		assertNotNull(acceptor.accept(builder.build(), false));
+	}
+
+	@Test
+	public void testReplayAcrossNodes() throws Exception {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder();
+		SharedAuthState replayState = new LocalAuthState(10);
+		NativeKerberosAcceptor node1 = new NativeKerberosAcceptor("test", Keytab.parse(builder.keytab()), null, 300,
+				replayState);
+		NativeKerberosAcceptor node2 = new NativeKerberosAcceptor("test", Keytab.parse(builder.keytab()), null, 300,
+				replayState);
+		byte[] token = builder.build();
+		node1.accept(token, false);
+
+		assertRejected(node2, token, GSSException.DUPLICATE_TOKEN);
+		node1.dispose();
+		assertEquals(1, replayState.size(SharedAuthState.REPLAY));
+	}
+
+	@Test
+	public void testWrongKey() throws Exception {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder();
+		NativeKerberosAcceptor acceptor = acceptor(builder);
+		builder.withEtype(KerberosCrypto.AES256_CTS_HMAC_SHA1_96);
+
+		assertRejected(acceptor, builder.build(), GSSException.FAILURE);
+		assertRejected(acceptor, builder.withEtype(KerberosCrypto.RC4_HMAC).build(), GSSException.NO_CRED);
+	}
+
+	@Test
+	public void testClockSkew() throws Exception {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder();
+		NativeKerberosAcceptor acceptor = acceptor(builder);
+
+		assertRejected(acceptor, builder.withClientTime(System.currentTimeMillis() - 600000).build(),
+				GSSException.FAILURE);
+		assertNotNull(acceptor.accept(builder.withClientTime(System.currentTimeMillis() - 60000).build(), false));
+		assertRejected(acceptor,
+				builder.withClientTime(System.currentTimeMillis()).withEndTime(System.currentTimeMillis() - 600000)
+						.build(),
+				GSSException.CREDENTIALS_EXPIRED);
+	}
+
+	@Test
+	public void testInvalidAuthenticator() throws Exception {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder();
+		NativeKerberosAcceptor acceptor = acceptor(builder);
+
+		assertRejected(acceptor, builder.withChecksum(false).build(), GSSException.FAILURE);
+		assertRejected(acceptor, builder.withChecksum(true).withAuthenticatorClient("user2").build(),
+				GSSException.BAD_NAME);
+	}
+
+	@Test
+	public void testUnexpectedService() throws Exception {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder();
+		NativeKerberosAcceptor acceptor = new NativeKerberosAcceptor("test", Keytab.parse(builder.keytab()),
+				"HTTP/other.example.com@EXAMPLE.COM", 300);
+
+		assertRejected(acceptor, builder.build(), GSSException.NO_CRED);
+	}
+
+	@Test
+	public void testOversizedLength() throws Exception {
+		NativeKerberosAcceptor acceptor = acceptor(new KerberosTokenBuilder());
+
+		// NegTokenInit whose skipped reqFlags [1] have a 4-byte length near
+		// Integer.MAX_VALUE, which must not overflow the bounds check
+		assertRejected(acceptor, hex("602106062b0601050502a0173015a00d300b06092a864886f712010202a1847fffffff"),
+				GSSException.DEFECTIVE_TOKEN);
+	}
+
+	@Test
+	public void testKeytab() throws IOException {
+		KerberosTokenBuilder builder = new KerberosTokenBuilder().withEtype(KerberosCrypto.AES128_CTS_HMAC_SHA1_96);
+		Keytab keytab = Keytab.parse(builder.keytab());
+
+		assertEquals(1, keytab.getEntries().size());
+		assertEquals("HTTP/www.example.com@EXAMPLE.COM", keytab.getEntries().get(0).getPrincipal());
+		assertEquals(3, keytab.getEntries().get(0).getKvno());
+		assertArrayEquals(builder.getServiceKey(),
+				keytab.getKey("HTTP/www.example.com@EXAMPLE.COM", KerberosCrypto.AES128_CTS_HMAC_SHA1_96, 3));
+		assertArrayEquals(builder.getServiceKey(),
+				keytab.getKey("HTTP/www.example.com@EXAMPLE.COM", KerberosCrypto.AES128_CTS_HMAC_SHA1_96, -1));
+		assertNull(keytab.getKey("HTTP/www.example.com@EXAMPLE.COM", KerberosCrypto.RC4_HMAC, 3));
+	}
+
+	@Test
+	public void testNfold() {
+
+		// test vectors from RFC 3961, appendix A.1
+		assertArrayEquals(hex("be072631276b1955"), KerberosCrypto.nfold("012345".getBytes(), 8));
+		assertArrayEquals(hex("78a07b6caf85fa"), KerberosCrypto.nfold("password".getBytes(), 7));
+		assertArrayEquals(hex("59e4a8ca7c0385c3c37b3f6d2000247cb6e6bd5b3e"),
+				KerberosCrypto.nfold("password".getBytes(), 21));
+		assertArrayEquals(hex("6b65726265726f737b9b5b2b93132b93"), KerberosCrypto.nfold("kerberos".getBytes(), 16));
+	}
+
+	@Test
+	public void testEncryptDecrypt() throws GeneralSecurityException {
+		byte[] key = new byte[32];
+		for (int length : new int[] { 0, 1, 15, 16, 17, 31, 32, 100 }) {
+			byte[] plain = new byte[length];
+			for (int i = 0; i < length; i++) {
+				plain[i] = (byte) i;
+			}
+			for (int etype : new int[] { KerberosCrypto.AES256_CTS_HMAC_SHA1_96, KerberosCrypto.RC4_HMAC }) {
+				byte[] etypeKey = etype == KerberosCrypto.RC4_HMAC ? new byte[16] : key;
+				assertArrayEquals(plain, KerberosCrypto.decrypt(etype, etypeKey, 11,
+						KerberosCrypto.encrypt(etype, etypeKey, 11, plain)));
+			}
+		}
+	}
+
+	private static NativeKerberosAcceptor acceptor(final KerberosTokenBuilder builder) throws IOException {
+		return new NativeKerberosAcceptor("test", Keytab.parse(builder.keytab()), null, 300);
+	}
+
+	private static void assertRejected(final NativeKerberosAcceptor acceptor, final byte[] token,
+			final int majorCode) {
+		try {
+			acceptor.accept(token, false);
+			fail("Token accepted");
+		} catch (GSSException e) {
+			assertEquals(e.getMessage(), majorCode, e.getMajor());
+		}
+	}
+
+	private static byte[] hex(final String value) {
+		byte[] bytes = new byte[value.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(value.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PacDecoderTest {
+
+	static final String DOMAIN_SID = "S-1-5-21-1004336348-1177238915-682003330";
+
+	@Test
+	public void testDecodeGroupSids() throws IOException {
+		List<String> sids = PacDecoder.decodeGroupSids(createPac());
+
+		assertEquals(Arrays.asList(DOMAIN_SID + "-513", DOMAIN_SID + "-1105", "S-1-18-1",
+				"S-1-5-21-1-2-3-4000"), sids);
+	}
+
+	@Test
+	public void testFindPac() throws IOException {
+		byte[] pac = createPac();
+
+		// AD-IF-RELEVANT { AuthorizationData { ad-type 128, ad-data PAC } }
+		byte[] adType = der(0xa0, der(0x02, new byte[] { 0x00, (byte) 0x80 }));
+		byte[] adData = der(0xa1, der(0x04, pac));
+		byte[] ifRelevant = der(0x30, der(0x30, concat(adType, adData)));
+
+		assertArrayEquals(pac, PacDecoder.findPac(PacDecoder.AD_IF_RELEVANT, ifRelevant));
+		assertNull(PacDecoder.findPac(5, ifRelevant));
+	}
+
+	@Test
+	public void testGroupMapping() throws IOException {
+		Map<String, String> groups = new HashMap<String, String>();
+		groups.put(DOMAIN_SID + "-513", "jira-users");
+		groups.put("S-1-18-1", "authenticated");
+		PacGroupMapping mapping = new PacGroupMapping(groups);
+
+		assertEquals(new LinkedHashSet<String>(Arrays.asList("jira-users", "authenticated")),
+				mapping.getGroups(PacDecoder.decodeGroupSids(createPac())));
+	}
+
+	static byte[] createPac() {
+		NdrWriter info = new NdrWriter();
+		info.bytes(0x01, 0x10, 0x08, 0x00, 0xcc, 0xcc, 0xcc, 0xcc); // common header
+		info.int32(0).int32(0); // private header (length patched below)
+		info.int32(0x20000); // referent id
+		for (int i = 0; i < 6; i++) {
+			info.int32(0).int32(0); // FILETIMEs
+		}
+		info.string("user1", 0x20004); // EffectiveName
+		info.string("User One", 0x20008); // FullName
+		for (int i = 0; i < 4; i++) {
+			info.string(null, 0);
+		}
+		info.int16(1).int16(0); // LogonCount, BadPasswordCount
+		info.int32(1104).int32(513); // UserId, PrimaryGroupId
+		info.int32(2).int32(0x2000c); // GroupCount, GroupIds
+		info.int32(0x20); // UserFlags
+		info.bytes(new int[16]); // UserSessionKey
+		info.string("DC1", 0x20010); // LogonServer
+		info.string("EXAMPLE", 0x20014); // LogonDomainName
+		info.int32(0x20018); // LogonDomainId
+		info.int32(0).int32(0).int32(0x10).int32(0); // Reserved1, UserAccountControl, SubAuthStatus
+		info.int32(0).int32(0).int32(0).int32(0).int32(0).int32(0); // LastSuccessfulILogon .. Reserved3
+		info.int32(1).int32(0x2001c); // SidCount, ExtraSids
+		info.int32(0x20020).int32(1).int32(0x20024); // ResourceGroupDomainSid, Count, ResourceGroupIds
+
+		// deferred data
+		info.chars("user1").chars("User One");
+		info.int32(2).int32(513).int32(7).int32(1105).int32(7);
+		info.chars("DC1").chars("EXAMPLE");
+		info.sid(5, 21, 1004336348, 1177238915, 682003330);
+		info.int32(1).int32(0x20028).int32(7);
+		info.sid(18, 1);
+		info.sid(5, 21, 1, 2, 3);
+		info.int32(1).int32(4000).int32(7);
+		byte[] logonInfo = info.toByteArray();
+		int objectLength = logonInfo.length - 16;
+		logonInfo[8] = (byte) objectLength;
+		logonInfo[9] = (byte) (objectLength >> 8);
+
+		NdrWriter pac = new NdrWriter();
+		pac.int32(2).int32(0); // cBuffers, Version
+		pac.int32(10).int32(0).int32(0).int32(0); // client info (ignored)
+		pac.int32(1).int32(logonInfo.length).int32(40).int32(0); // logon info
+		return concat(pac.toByteArray(), logonInfo);
+	}
+
+	private static byte[] der(final int tag, final byte[] content) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(tag);
+		if (content.length < 0x80) {
+			out.write(content.length);
+		} else {
+			out.write(0x82);
+			out.write(content.length >> 8);
+			out.write(content.length);
+		}
+		out.write(content, 0, content.length);
+		return out.toByteArray();
+	}
+
+	private static byte[] concat(final byte[] first, final byte[] second) {
+		byte[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+	private static class NdrWriter {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		NdrWriter bytes(final int... values) {
+			for (int value : values) {
+				out.write(value);
+			}
+			return this;
+		}
+
+		NdrWriter int16(final int value) {
+			return bytes(value & 0xff, (value >> 8) & 0xff);
+		}
+
+		NdrWriter int32(final int value) {
+			while (out.size() % 4 != 0) {
+				out.write(0);
+			}
+			return bytes(value & 0xff, (value >> 8) & 0xff, (value >> 16) & 0xff, (value >> 24) & 0xff);
+		}
+
+		NdrWriter string(final String value, final int referentId) {
+			int length = value != null ? value.length() * 2 : 0;
+			return int16(length).int16(length).int32(referentId);
+		}
+
+		NdrWriter chars(final String value) {
+			int32(value.length()).int32(0).int32(value.length());
+			for (char c : value.toCharArray()) {
+				int16(c);
+			}
+			return this;
+		}
+
+		NdrWriter sid(final int authority, final int... subAuthorities) {
+			int32(subAuthorities.length);
+			bytes(1, subAuthorities.length, 0, 0, 0, 0, 0, authority);
+			for (int subAuthority : subAuthorities) {
+				int32(subAuthority);
+			}
+			return this;
+		}
+
+		byte[] toByteArray() {
+			return out.toByteArray();
+		}
+	}
+}
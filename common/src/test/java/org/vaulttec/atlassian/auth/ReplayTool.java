@@ -0,0 +1,315 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replays a recorded request stream through the decision logic of
+ * {@link SpnegoSupport} (included / excluded URIs, challenge rules, learned
+ * exclusions and the header check) without any Kerberos, and reports the
+ * throughput, the allocated bytes per request and the decisions which differ
+ * between two configurations.
+ * <p>
+ * The request stream is a tab-separated file with the columns URI, query
+ * string, authorization scheme (e.g. <code>Negotiate</code> or
+ * <code>Basic</code>), User-Agent and client IP - empty columns or
+ * <code>-</code> mean "not present". The configurations are properties files
+ * with the authenticator's init-params (<code>config.files</code> isn't
+ * needed).
+ * <p>
+ * Usage: <code>ReplayTool &lt;requests.tsv&gt; &lt;params.properties&gt; [&lt;other-params.properties&gt;] [passes]</code>
+ */
+public class ReplayTool {
+
+	private static final String EXCLUDED = "excluded";
+	private static final String SKIPPED = "skipped";
+	private static final String CHALLENGED = "challenged";
+	private static final String AUTHENTICATED = "authenticated";
+	private static final String[] DECISIONS = { EXCLUDED, SKIPPED, CHALLENGED, AUTHENTICATED };
+	private static final int DIFF_SAMPLES = 5;
+
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: ReplayTool <requests.tsv> <params.properties> [<other-params.properties>] [passes]");
+			System.exit(1);
+		}
+		List<MockRequest> requests = readRequests(args[0]);
+		List<String> paramFiles = new ArrayList<String>();
+		int passes = 5;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].matches("\\d+")) {
+				passes = Integer.parseInt(args[i]);
+			} else {
+				paramFiles.add(args[i]);
+			}
+		}
+		System.out.printf("%d requests, %d passes%n%n", requests.size(), passes);
+		System.out.printf("%-30s %12s %12s", "configuration", "req/s", "bytes/req");
+		for (String decision : DECISIONS) {
+			System.out.printf(" %13s", decision);
+		}
+		System.out.println();
+		List<String[]> decisions = new ArrayList<String[]>();
+		for (String paramFile : paramFiles) {
+			decisions.add(replay(paramFile, requests, Math.max(passes, 2)));
+		}
+		if (decisions.size() == 2) {
+			printDiff(paramFiles, requests, decisions.get(0), decisions.get(1));
+		}
+	}
+
+	private static List<MockRequest> readRequests(final String file) throws IOException {
+		List<MockRequest> requests = new ArrayList<MockRequest>();
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] columns = line.split("\t", -1);
+				MockRequest request = new MockRequest(columns[0], column(columns, 1));
+				String scheme = column(columns, 2);
+				if (scheme != null) {
+					request.withHeader("Authorization", "Basic".equalsIgnoreCase(scheme)
+							? "Basic cmVwbGF5OnJlcGxheQ==" : scheme + " YIIBhgYGKwYBBQUCoIIBejCCAXag");
+				}
+				String userAgent = column(columns, 3);
+				if (userAgent != null) {
+					request.withHeader("User-Agent", userAgent);
+				}
+				request.withRemoteAddr(column(columns, 4));
+				requests.add(request);
+			}
+		}
+		return requests;
+	}
+
+	private static String column(final String[] columns, final int index) {
+		if (index >= columns.length) {
+			return null;
+		}
+		String value = columns[index].trim();
+		return value.isEmpty() || "-".equals(value) ? null : value;
+	}
+
+	/**
+	 * Replays the requests with the given configuration. The first pass records
+	 * the decisions (and warms up the JIT), the other passes are measured.
+	 */
+	private static String[] replay(final String paramFile, final List<MockRequest> requests, final int passes)
+			throws IOException {
+		Properties properties = new Properties();
+		try (FileInputStream in = new FileInputStream(paramFile)) {
+			properties.load(in);
+		}
+		Map<String, String> params = new HashMap<String, String>();
+		for (String name : properties.stringPropertyNames()) {
+			params.put(name, properties.getProperty(name));
+		}
+		ReplaySupport support = new ReplaySupport();
+		support.init(params);
+		ReplayAuthenticator authenticator = new ReplayAuthenticator(support);
+		MockResponse response = new MockResponse();
+		try {
+			String[] decisions = new String[requests.size()];
+			Map<String, Integer> counts = new HashMap<String, Integer>();
+			for (int i = 0; i < decisions.length; i++) {
+				response.reset();
+				requests.get(i).removeAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE);
+				support.decision = CHALLENGED;
+				authenticator.getUserViaSPNEGO(requests.get(i), response);
+				decisions[i] = support.decision;
+				Integer count = counts.get(support.decision);
+				counts.put(support.decision, count != null ? count + 1 : 1);
+			}
+			com.sun.management.ThreadMXBean threads = threadMXBean();
+			long threadId = Thread.currentThread().getId();
+			long allocated = threads != null ? threads.getThreadAllocatedBytes(threadId) : 0;
+			long start = System.nanoTime();
+			for (int pass = 1; pass < passes; pass++) {
+				for (int i = 0; i < decisions.length; i++) {
+					response.reset();
+					requests.get(i).removeAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE);
+					authenticator.getUserViaSPNEGO(requests.get(i), response);
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			long replayed = (long) (passes - 1) * decisions.length;
+			String bytesPerRequest = threads != null
+					? String.valueOf((threads.getThreadAllocatedBytes(threadId) - allocated) / Math.max(replayed, 1))
+					: "n/a";
+			System.out.printf("%-30s %12.0f %12s", Paths.get(paramFile).getFileName(),
+					replayed * 1e9 / Math.max(nanos, 1), bytesPerRequest);
+			for (String decision : DECISIONS) {
+				Integer count = counts.get(decision);
+				System.out.printf(" %13d", count != null ? count : 0);
+			}
+			System.out.println();
+			return decisions;
+		} finally {
+			support.destroy();
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean threadMXBean() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+			((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+			return (com.sun.management.ThreadMXBean) threads;
+		}
+		return null;
+	}
+
+	private static void printDiff(final List<String> paramFiles, final List<MockRequest> requests,
+			final String[] before, final String[] after) {
+		Map<String, List<String>> changes = new TreeMap<String, List<String>>();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < before.length; i++) {
+			if (!before[i].equals(after[i])) {
+				String change = before[i] + " -> " + after[i];
+				Integer count = counts.get(change);
+				counts.put(change, count != null ? count + 1 : 1);
+				List<String> samples = changes.get(change);
+				if (samples == null) {
+					samples = new ArrayList<String>();
+					changes.put(change, samples);
+				}
+				MockRequest request = requests.get(i);
+				String uri = request.getRequestURI()
+						+ (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+				if (samples.size() < DIFF_SAMPLES && !samples.contains(uri)) {
+					samples.add(uri);
+				}
+			}
+		}
+		System.out.printf("%nDecision changes from '%s' to '%s':%n", paramFiles.get(0), paramFiles.get(1));
+		if (changes.isEmpty()) {
+			System.out.println("  none");
+		}
+		for (Map.Entry<String, List<String>> change : changes.entrySet()) {
+			System.out.printf("  %-30s %10d  e.g. %s%n", change.getKey(), counts.get(change.getKey()),
+					change.getValue());
+		}
+	}
+
+	/**
+	 * Records the decisions of the request and fakes the Kerberos part.
+	 */
+	private static class ReplaySupport extends SpnegoSupport {
+
+		private String decision;
+
+		@Override
+		public boolean isExcludedUri(final HttpServletRequest request) {
+			boolean excluded = super.isExcludedUri(request);
+			if (excluded) {
+				decision = EXCLUDED;
+			}
+			return excluded;
+		}
+
+		@Override
+		public boolean isSkippedRequest(final HttpServletRequest request) {
+			boolean skipped = super.isSkippedRequest(request);
+			if (skipped) {
+				decision = SKIPPED;
+			}
+			return skipped;
+		}
+
+		@Override
+		public String authenticate(final HttpServletRequest request, final HttpServletResponse response) {
+			decision = AUTHENTICATED;
+			return "replay";
+		}
+	}
+
+	private static class ReplayAuthenticator implements SpnegoAuthenticator {
+
+		private static final Logger LOGGER = LoggerFactory.getLogger(ReplayAuthenticator.class);
+		private static final Principal USER = new Principal() {
+			@Override
+			public String getName() {
+				return "replay";
+			}
+		};
+
+		private final SpnegoSupport support;
+
+		ReplayAuthenticator(final SpnegoSupport support) {
+			this.support = support;
+		}
+
+		@Override
+		public Logger getLogger() {
+			return LOGGER;
+		}
+
+		@Override
+		public SpnegoSupport getSupport() throws IllegalStateException {
+			return support;
+		}
+
+		@Override
+		public Principal getUser(final String userName) {
+			return USER;
+		}
+
+		@Override
+		public Principal getUserFromSession(final HttpServletRequest request) {
+			return null;
+		}
+
+		@Override
+		public boolean isLoginAllowed(final Principal user) {
+			return true;
+		}
+
+		@Override
+		public boolean authoriseUserAndEstablishSession(final HttpServletRequest request,
+				final HttpServletResponse response, final Principal user) {
+			return true;
+		}
+
+		@Override
+		public boolean authoriseUser(final HttpServletRequest request, final Principal user) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RequestRulesTest {
+
+	@Test
+	public void testParseAddress() {
+		assertEquals(0L, IpPrefixTrie.parse("10.1.2.3", true));
+		assertEquals(0xffff0a010203L, IpPrefixTrie.parse("10.1.2.3", false));
+		assertEquals(0x20010db800000000L, IpPrefixTrie.parse("2001:db8::1", true));
+		assertEquals(1L, IpPrefixTrie.parse("2001:db8::1", false));
+		assertEquals(1L, IpPrefixTrie.parse("[::1]", false));
+		assertEquals(0xfe80000000000000L, IpPrefixTrie.parse("fe80::1%eth0", true));
+		assertEquals(0xffff0a010203L, IpPrefixTrie.parse("::ffff:10.1.2.3", false));
+		assertEquals(0x0001000200030004L, IpPrefixTrie.parse("1:2:3:4:5:6:7:8", true));
+		assertEquals(0x0005000600070008L, IpPrefixTrie.parse("1:2:3:4:5:6:7:8", false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseInvalidAddress() {
+		IpPrefixTrie.parse("10.1.2.300", false);
+	}
+
+	@Test
+	public void testTrieMatch() {
+		IpPrefixTrie trie = new IpPrefixTrie();
+		trie.add("10.0.0.0/8", 1);
+		trie.add("10.1.0.0/16", 2);
+		trie.add("10.1.2.3", 4);
+		trie.add("192.168.0.0/16", 8);
+		trie.add("2001:db8::/32", 16);
+		trie.add("0.0.0.0/0", 32);
+
+		assertEquals(1 | 32, trie.match("10.2.0.1"));
+		assertEquals(1 | 2 | 32, trie.match("10.1.200.1"));
+		assertEquals(1 | 2 | 4 | 32, trie.match("10.1.2.3"));
+		assertEquals(8 | 32, trie.match("192.168.10.10"));
+		assertEquals(32, trie.match("172.16.0.1"));
+		assertEquals(16, trie.match("2001:db8:1::10"));
+		assertEquals(0, trie.match("2001:db9::10"));
+		assertEquals(0, trie.match("invalid"));
+		assertEquals(0, trie.match(null));
+	}
+
+	@Test
+	public void testRules() {
+		RequestRules rules = RequestRules.compile("skip method=OPTIONS|HEAD; "
+				+ "skip header:X-Requested-With=XMLHttpRequest; skip user-agent=*curl*|Java*; "
+				+ "challenge ip=10.1.0.0/16 & header:Accept=*text/html*; skip !ip=10.0.0.0/8|fd00::/8");
+
+		assertEquals(5, rules.size());
+		assertFalse(rules.isSkipped(new MockRequest("/").withRemoteAddr("10.1.2.3")));
+		assertTrue(rules.isSkipped(new MockRequest("/").withMethod("HEAD").withRemoteAddr("10.1.2.3")));
+		assertTrue(rules.isSkipped(new MockRequest("/").withHeader("X-Requested-With", "XMLHttpRequest")
+				.withRemoteAddr("10.1.2.3")));
+		assertTrue(rules.isSkipped(
+				new MockRequest("/").withHeader("User-Agent", "CURL/7.58.0").withRemoteAddr("10.1.2.3")));
+		assertTrue(rules.isSkipped(
+				new MockRequest("/").withHeader("User-Agent", "Java/1.8.0_221").withRemoteAddr("10.1.2.3")));
+		assertFalse(rules.isSkipped(new MockRequest("/").withHeader("User-Agent", "Mozilla/5.0")
+				.withRemoteAddr("fd00::1")));
+		assertTrue(rules.isSkipped(new MockRequest("/").withRemoteAddr("192.168.1.1")));
+		assertFalse(rules.isSkipped(new MockRequest("/").withHeader("Accept", "text/html,application/xhtml+xml")
+				.withRemoteAddr("10.1.2.3")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidRule() {
+		RequestRules.compile("deny method=GET");
+	}
+}
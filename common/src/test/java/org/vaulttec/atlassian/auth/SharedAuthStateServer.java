@@ -0,0 +1,243 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in server for the protocol of {@link SocketAuthState}, so multiple
+ * nodes (JVMs, or multiple {@link SpnegoSupport}s in one JVM) can share their
+ * authentication state on a single machine. The entries are kept in a
+ * {@link LocalAuthState}, and every change is sent as invalidation message to
+ * all subscribed nodes (including the one which made the change).
+ * <p>
+ * Usage: <code>SharedAuthStateServer [port]</code>
+ */
+public class SharedAuthStateServer implements Closeable {
+
+	private int port;
+	private final LocalAuthState state = new LocalAuthState(100000);
+	private final List<OutputStream> subscribers = new CopyOnWriteArrayList<OutputStream>();
+	private final List<Socket> connections = new CopyOnWriteArrayList<Socket>();
+	private final ExecutorService workers;
+	private final AtomicLong commands = new AtomicLong();
+	private ServerSocket serverSocket;
+
+	public SharedAuthStateServer(final int port) {
+		this.port = port;
+		this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, "shared-state-server");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public static void main(final String[] args) throws Exception {
+		SharedAuthStateServer server = new SharedAuthStateServer(args.length > 0 ? Integer.parseInt(args[0]) : 7777)
+				.start();
+		System.out.println("Shared authentication state server listening on localhost:" + server.getPort());
+		Thread.currentThread().join();
+	}
+
+	public synchronized SharedAuthStateServer start() throws IOException {
+		if (serverSocket == null) {
+			final ServerSocket socket = new ServerSocket();
+			try {
+				socket.setReuseAddress(true);
+				socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+
+			// a restarted server keeps the port
+			port = socket.getLocalPort();
+			serverSocket = socket;
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					accept(socket);
+				}
+			});
+		}
+		return this;
+	}
+
+	public synchronized int getPort() {
+		return port;
+	}
+
+	public String getAddress() {
+		return "localhost:" + getPort();
+	}
+
+	public int getSubscribers() {
+		return subscribers.size();
+	}
+
+	public long getCommands() {
+		return commands.get();
+	}
+
+	/**
+	 * Closes the server and all connections, so the nodes have to fall back to
+	 * their own state. The server can be started again on the same port.
+	 */
+	@Override
+	public synchronized void close() {
+		if (serverSocket != null) {
+			close(serverSocket);
+			serverSocket = null;
+		}
+		for (Socket connection : connections) {
+			close(connection);
+		}
+		connections.clear();
+		subscribers.clear();
+	}
+
+	private void accept(final ServerSocket serverSocket) {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket connection = serverSocket.accept();
+				synchronized (this) {
+					if (this.serverSocket != serverSocket) {
+						close(connection);
+						return;
+					}
+					connections.add(connection);
+				}
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						serve(connection);
+					}
+				});
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private void serve(final Socket connection) {
+		try {
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+			OutputStream out = connection.getOutputStream();
+			String line;
+			while ((line = in.readLine()) != null) {
+
+				// a command read while the server is closed isn't executed
+				if (connection.isClosed()) {
+					break;
+				}
+				if ("SUB".equals(line)) {
+					subscribers.add(out);
+					continue;
+				}
+				commands.incrementAndGet();
+				String reply;
+				try {
+					reply = execute(line.split("\t"));
+				} catch (RuntimeException e) {
+					reply = "ERR " + e;
+				}
+				synchronized (out) {
+					out.write((reply + '\n').getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			// disconnected
+		} finally {
+			connections.remove(connection);
+			close(connection);
+		}
+	}
+
+	private String execute(final String[] command) {
+		String namespace = command[1];
+		switch (command[0]) {
+		case "GET":
+			return String.valueOf(state.get(namespace, command[2]));
+		case "PUT":
+			state.put(namespace, command[2], Long.parseLong(command[3]), Long.parseLong(command[4]));
+			invalidate(namespace, command[2]);
+			return "OK";
+		case "PIA":
+			boolean added = state.putIfAbsent(namespace, command[2], Long.parseLong(command[3]),
+					Long.parseLong(command[4]));
+			if (added) {
+				invalidate(namespace, command[2]);
+			}
+			return added ? "1" : "0";
+		case "INC":
+			long value = state.increment(namespace, command[2], Long.parseLong(command[3]));
+			invalidate(namespace, command[2]);
+			return String.valueOf(value);
+		case "DEL":
+			state.remove(namespace, command[2]);
+			invalidate(namespace, command[2]);
+			return "OK";
+		case "SIZE":
+			return String.valueOf(state.size(namespace));
+		default:
+			throw new IllegalArgumentException("Unknown command: " + command[0]);
+		}
+	}
+
+	private void invalidate(final String namespace, final String key) {
+		byte[] message = ("INV\t" + namespace + '\t' + key + '\n').getBytes(StandardCharsets.UTF_8);
+		for (OutputStream subscriber : subscribers) {
+			try {
+				synchronized (subscriber) {
+					subscriber.write(message);
+					subscriber.flush();
+				}
+			} catch (IOException e) {
+				subscribers.remove(subscriber);
+			}
+		}
+	}
+
+	private static void close(final Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.BindException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedAuthStateTest {
+
+	private static final long NEAR_TTL = 60000;
+
+	private SharedAuthStateServer server;
+	private NearCachedAuthState node1;
+	private NearCachedAuthState node2;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new SharedAuthStateServer(0).start();
+		node1 = node();
+		node2 = node();
+
+		awaitSubscribers();
+	}
+
+	@After
+	public void tearDown() {
+		node1.close();
+		node2.close();
+		server.close();
+	}
+
+	@Test
+	public void testLocalState() throws Exception {
+		LocalAuthState state = new LocalAuthState(2);
+		assertEquals(0, state.get(SharedAuthState.FAILURES, "10.0.0.1"));
+		assertEquals(1, state.increment(SharedAuthState.FAILURES, "10.0.0.1", 1000));
+		assertEquals(2, state.increment(SharedAuthState.FAILURES, "10.0.0.1", 1000));
+		assertEquals(0, state.get(SharedAuthState.BACKOFF, "10.0.0.1"));
+		assertTrue(state.putIfAbsent(SharedAuthState.REPLAY, "a", 1, 1000));
+		assertFalse(state.putIfAbsent(SharedAuthState.REPLAY, "a", 1, 1000));
+		state.put(SharedAuthState.BACKOFF, "10.0.0.1", 42, 20);
+		assertEquals(42, state.get(SharedAuthState.BACKOFF, "10.0.0.1"));
+		assertEquals(1, state.size(SharedAuthState.BACKOFF));
+		Thread.sleep(50);
+		assertEquals(0, state.get(SharedAuthState.BACKOFF, "10.0.0.1"));
+		assertEquals(0, state.size(SharedAuthState.BACKOFF));
+		state.remove(SharedAuthState.FAILURES, "10.0.0.1");
+		assertEquals(0, state.get(SharedAuthState.FAILURES, "10.0.0.1"));
+	}
+
+	@Test
+	public void testReplayAcrossNodes() {
+		assertTrue(node1.putIfAbsent(SharedAuthState.REPLAY, "user1 HTTP/www 1.2", 1, 1000));
+		assertFalse(node1.putIfAbsent(SharedAuthState.REPLAY, "user1 HTTP/www 1.2", 1, 1000));
+		assertFalse(node2.putIfAbsent(SharedAuthState.REPLAY, "user1 HTTP/www 1.2", 1, 1000));
+		assertTrue(node2.putIfAbsent(SharedAuthState.REPLAY, "user1 HTTP/www 1.3", 1, 1000));
+	}
+
+	@Test
+	public void testNearCacheInvalidation() throws Exception {
+		assertEquals(0, node2.get(SharedAuthState.BACKOFF, "10.0.0.1"));
+		long commands = server.getCommands();
+		assertEquals(0, node2.get(SharedAuthState.BACKOFF, "10.0.0.1"));
+		assertEquals(commands, server.getCommands());
+		assertEquals(1, node2.getHits());
+
+		// the cached entry is replaced long before its TTL expires
+		node1.put(SharedAuthState.BACKOFF, "10.0.0.1", 42, 1000);
+		assertTrue(await(node2, SharedAuthState.BACKOFF, "10.0.0.1", 42));
+		node1.remove(SharedAuthState.BACKOFF, "10.0.0.1");
+		assertTrue(await(node2, SharedAuthState.BACKOFF, "10.0.0.1", 0));
+	}
+
+	@Test
+	public void testBackoffAcrossNodes() throws Exception {
+		ClientFailureTracker tracker1 = new ClientFailureTracker(node1, 2, 1000, 5000);
+		ClientFailureTracker tracker2 = new ClientFailureTracker(node2, 2, 1000, 5000);
+		assertFalse(tracker2.isBackedOff("10.0.0.1"));
+		assertEquals(0, tracker1.recordFailure("10.0.0.1"));
+		assertEquals(1000, tracker2.recordFailure("10.0.0.1"));
+		assertTrue(tracker1.isBackedOff("10.0.0.1"));
+		assertEquals(1, tracker1.getBackedOff());
+
+		tracker1.recordSuccess("10.0.0.1");
+		assertTrue(await(node2, SharedAuthState.BACKOFF, "10.0.0.1", 0));
+		assertFalse(tracker2.isBackedOff("10.0.0.1"));
+	}
+
+	@Test
+	public void testFallbackToLocalState() throws Exception {
+		assertEquals(1, node1.increment(SharedAuthState.FAILURES, "10.0.0.1", 10000));
+		server.close();
+
+		// the node continues with its own state
+		assertEquals(2, node1.increment(SharedAuthState.FAILURES, "10.0.0.1", 10000));
+		assertEquals(2, node1.get(SharedAuthState.FAILURES, "10.0.0.1"));
+		assertTrue(node1.putIfAbsent(SharedAuthState.REPLAY, "a", 1, 1000));
+		assertFalse(node1.putIfAbsent(SharedAuthState.REPLAY, "a", 1, 1000));
+		assertTrue(node1.getFailures() > 0);
+
+		// and uses the shared state again once the server is back
+		restart(server);
+		awaitSubscribers();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (node1.get(SharedAuthState.BACKOFF, "10.0.0.2") != 42 && System.currentTimeMillis() < deadline) {
+			node2.put(SharedAuthState.BACKOFF, "10.0.0.2", 42, 10000);
+			Thread.sleep(10);
+		}
+		assertEquals(42, node1.get(SharedAuthState.BACKOFF, "10.0.0.2"));
+	}
+
+	@Test
+	public void testSupport() throws Exception {
+		SpnegoSupport support = new SpnegoSupport();
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("shared.state", SocketAuthState.class.getName());
+		params.put("shared.state.address", server.getAddress());
+		params.put("client.backoff", "10");
+		params.put("client.backoff.failures", "1");
+		support.init(params);
+		try {
+			assertEquals(server.getAddress(), support.getSharedState().toString().substring("socket://".length()));
+			support.getClientFailureTracker().recordFailure("10.0.0.1");
+			assertTrue(await(node1, SharedAuthState.BACKOFF, "10.0.0.1", -1));
+		} finally {
+			support.destroy();
+		}
+	}
+
+	/**
+	 * Invalidation messages are only received once the nodes are subscribed.
+	 */
+	private void awaitSubscribers() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (server.getSubscribers() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Starts the closed server again on the same port, which is possible only
+	 * after the nodes closed their connections too.
+	 */
+	private static void restart(final SharedAuthStateServer server) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (true) {
+			try {
+				server.start();
+				return;
+			} catch (BindException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	private NearCachedAuthState node() {
+		return new NearCachedAuthState(new SocketAuthState(
+				Collections.singletonMap("shared.state.address", server.getAddress())), 100, NEAR_TTL);
+	}
+
+	/**
+	 * Waits until the given node sees the expected value (-1 for any value but
+	 * 0).
+	 */
+	private static boolean await(final SharedAuthState node, final String namespace, final String key,
+			final long expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline) {
+			long value = node.get(namespace, key);
+			if (expected == -1 ? value != 0 : value == expected) {
+				return true;
+			}
+			Thread.sleep(10);
+		}
+		return false;
+	}
+}
@@ -21,6 +21,9 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -56,4 +59,111 @@ public class SpnegoAuthenticatorTest {
 
 		assertEquals(user, authenticator.getUserViaSPNEGO(request, response));
 	}
+
+	@Test
+	public void testGetUserReusesOutcome() {
+		HttpServletRequest request = new MockRequest("/secure/Dashboard.jspa");
+		HttpServletResponse response = new MockResponse();
+
+		SpnegoSupport support = mock(SpnegoSupport.class);
+		when(support.hasNegotiationAuthenticationHeader(any(), any())).thenReturn(false);
+
+		SpnegoAuthenticator authenticator = spy(new MockSpnegoAuthenticator());
+		when(authenticator.getSupport()).thenReturn(support);
+
+		assertNull(authenticator.getUserViaSPNEGO(request, response));
+		assertNull(authenticator.getUserViaSPNEGO(request, response));
+		assertEquals(SpnegoOutcome.CHALLENGED, request.getAttribute(SpnegoSupport.OUTCOME_ATTRIBUTE));
+		verify(support, times(1)).hasNegotiationAuthenticationHeader(any(), any());
+	}
+
+	@Test
+	public void testGetUserReusesUnauthorisedUser() {
+		Principal user = mock(Principal.class);
+		HttpServletRequest request = new MockRequest("/secure/Dashboard.jspa");
+		HttpServletResponse response = new MockResponse();
+
+		SpnegoSupport support = mock(SpnegoSupport.class);
+		when(support.hasNegotiationAuthenticationHeader(any(), any())).thenReturn(true);
+		when(support.authenticate(any(), any())).thenReturn("user1");
+
+		SpnegoAuthenticator authenticator = spy(new MockSpnegoAuthenticator());
+		when(authenticator.getUser("user1")).thenReturn(user);
+		when(authenticator.getSupport()).thenReturn(support);
+
+		assertEquals(user, authenticator.getUserViaSPNEGO(request, response));
+		assertEquals(user, authenticator.getUserViaSPNEGO(request, response));
+		verify(support, times(1)).authenticate(any(), any());
+	}
+
+	@Test
+	public void testResolvedUserPassedToSession() {
+		final Principal user = mock(Principal.class);
+		when(user.getName()).thenReturn("user1");
+		HttpServletRequest request = new MockRequest("/secure/Dashboard.jspa");
+		HttpServletResponse response = new MockResponse();
+
+		SpnegoSupport support = mock(SpnegoSupport.class);
+		when(support.hasNegotiationAuthenticationHeader(any(), any())).thenReturn(true);
+		when(support.authenticate(any(), any())).thenReturn("user1");
+
+		final List<Principal> resolved = new ArrayList<Principal>();
+		SpnegoAuthenticator authenticator = spy(new MockSpnegoAuthenticator() {
+			@Override
+			public boolean authoriseUserAndEstablishSession(final HttpServletRequest request,
+					final HttpServletResponse response, final Principal user) {
+				resolved.add(user);
+				return true;
+			}
+		});
+		when(authenticator.getUser("user1")).thenReturn(user);
+		when(authenticator.getSupport()).thenReturn(support);
+
+		assertEquals(user, authenticator.getUserViaSPNEGO(request, response));
+		assertEquals(Arrays.asList(user), resolved);
+		verify(authenticator, times(1)).getUser("user1");
+	}
+
+	@Test
+	public void testBearerUserWithoutSession() {
+		Principal user = mock(Principal.class);
+		HttpServletRequest request = new MockRequest("/rest/api/2/myself");
+		HttpServletResponse response = new MockResponse();
+
+		SpnegoSupport support = mock(SpnegoSupport.class);
+		when(support.getBearerUserName(any())).thenReturn("user1");
+
+		SpnegoAuthenticator authenticator = spy(new MockSpnegoAuthenticator());
+		when(authenticator.getUser("user1")).thenReturn(user);
+		when(authenticator.getSupport()).thenReturn(support);
+		when(authenticator.authoriseUser(any(), any())).thenReturn(true);
+
+		assertEquals(user, authenticator.getUserViaSPNEGO(request, response));
+
+		// later calls without a response (e.g. from Seraph's request wrapper) find the user in the request
+		assertEquals(user, authenticator.getUserViaSPNEGO(request, null));
+		verify(authenticator, never()).authoriseUserAndEstablishSession(any(), any(), any());
+		verify(support, never()).authenticate(any(), any());
+		verify(support).audit(eq(request), eq("user1"), eq(AuditLog.BEARER), anyLong());
+	}
+
+	@Test
+	public void testTicketGroupsOfInactiveUser() {
+		Principal user = mock(Principal.class);
+		when(user.getName()).thenReturn("jdoe");
+
+		SpnegoSupport support = mock(SpnegoSupport.class);
+		when(support.hasTicketLoginGroup("jdoe")).thenReturn(true);
+
+		SpnegoAuthenticator authenticator = spy(new MockSpnegoAuthenticator());
+		when(authenticator.getSupport()).thenReturn(support);
+		when(authenticator.isLoginAllowed(user)).thenReturn(false);
+		assertFalse(authenticator.isAuthorisedViaTicketGroups(user));
+
+		when(authenticator.isLoginAllowed(user)).thenReturn(true);
+		assertTrue(authenticator.isAuthorisedViaTicketGroups(user));
+
+		when(support.hasTicketLoginGroup("jdoe")).thenReturn(false);
+		assertFalse(authenticator.isAuthorisedViaTicketGroups(user));
+	}
 }
@@ -0,0 +1,129 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpnegoChallengeFilterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SpnegoSupport support;
+	private boolean rendered;
+
+	@After
+	public void tearDown() {
+		if (support != null) {
+			support.destroy();
+		}
+	}
+
+	@Test
+	public void testCompleteChallenge() throws IOException, ServletException {
+		init(null);
+		MockRequest request = new MockRequest("/secure/Dashboard.jspa");
+		MockResponse response = new MockResponse();
+		assertFalse(support.hasNegotiationAuthenticationHeader(request, response));
+
+		new SpnegoChallengeFilter().doFilter(request, response, chain());
+		assertFalse(rendered);
+		assertTrue(response.isCommitted());
+		assertEquals(HttpServletResponse.SC_UNAUTHORIZED, response.getStatus());
+		assertEquals("Negotiate", response.getHeader("WWW-Authenticate"));
+		assertEquals("<html><body>Authentication required</body></html>", response.getBody());
+		assertEquals(1, support.getChallengeResponse().getChallenges());
+		assertEquals(1, support.getChallengeResponse().getRenderingsAvoided());
+	}
+
+	@Test
+	public void testBodyFile() throws IOException, ServletException {
+		File bodyFile = folder.newFile("challenge.html");
+		String body = "<html><body><a href=\"/login.jsp?nosso\">Login</a></body></html>";
+		Files.write(bodyFile.toPath(), body.getBytes(StandardCharsets.UTF_8));
+		init(bodyFile.getPath());
+		MockRequest request = new MockRequest("/secure/Dashboard.jspa");
+		MockResponse response = new MockResponse();
+		assertFalse(support.hasNegotiationAuthenticationHeader(request, response));
+
+		new SpnegoChallengeFilter().doFilter(request, response, chain());
+		assertFalse(rendered);
+		assertEquals(body, response.getBody());
+	}
+
+	@Test
+	public void testChangedResponseRendered() throws IOException, ServletException {
+		init(null);
+		MockRequest request = new MockRequest("/secure/Dashboard.jspa");
+		MockResponse response = new MockResponse();
+		assertFalse(support.hasNegotiationAuthenticationHeader(request, response));
+		response.sendRedirect("/login.jsp");
+
+		new SpnegoChallengeFilter().doFilter(request, response, chain());
+		assertTrue(rendered);
+		assertEquals(0, support.getChallengeResponse().getRenderingsAvoided());
+	}
+
+	@Test
+	public void testNotChallengedRendered() throws IOException, ServletException {
+		MockRequest request = new MockRequest("/secure/Dashboard.jspa");
+		new SpnegoChallengeFilter().doFilter(request, new MockResponse(), chain());
+		assertTrue(rendered);
+		assertNull(request.getAttribute(SpnegoSupport.CHALLENGE_ATTRIBUTE));
+	}
+
+	private void init(final String bodyFile) {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("challenge.complete", "true");
+		if (bodyFile != null) {
+			params.put("challenge.body.file", bodyFile);
+		}
+		support = new SpnegoSupport();
+		support.init(params);
+	}
+
+	private FilterChain chain() {
+		return new FilterChain() {
+			@Override
+			public void doFilter(final ServletRequest request, final ServletResponse response) {
+				rendered = true;
+			}
+		};
+	}
+}
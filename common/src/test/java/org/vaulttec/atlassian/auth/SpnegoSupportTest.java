@@ -21,15 +21,19 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.lang.management.ManagementFactory;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -67,6 +71,19 @@ public class SpnegoSupportTest {
 		assertEquals("user2", configs.get(1).get("spnego.preauth.username"));
 	}
 
+	@Test
+	public void testDifferentKerberosConfigRejected() {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("config.files", "src/test/resources/spnego1.properties, src/test/resources/spnego2.properties");
+		SpnegoSupport spnegoSupport = new SpnegoSupport();
+		try {
+			spnegoSupport.init(params);
+			fail("Configurations with different krb5.conf accepted");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("path2/krb5.conf"));
+		}
+	}
+
 	@Test
 	public void testIsUri() {
 		List<String> uris = Arrays.asList("/startwith/*", "*/endswith", "*/substring/*", "/exactmatch",
@@ -118,4 +135,22 @@ public class SpnegoSupportTest {
 		verify(response).addHeader("WWW-Authenticate", "Negotiate");
 		verify(response).setStatus(HttpServletResponse.SC_UNAUTHORIZED);
 	}
+
+	@Test
+	public void testStatisticsRegisteredPerInstance() throws JMException {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("config.files", "src/test/resources/spnego1.properties");
+		ObjectName pattern = new ObjectName(SpnegoStatistics.OBJECT_NAME + ",*");
+		int registered = ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).size();
+		SpnegoSupport spnegoSupport1 = new SpnegoSupport();
+		SpnegoSupport spnegoSupport2 = new SpnegoSupport();
+		spnegoSupport1.init(params);
+		spnegoSupport2.init(params);
+		spnegoSupport2.init(params);
+		assertEquals(registered + 2, ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).size());
+
+		spnegoSupport1.destroy();
+		spnegoSupport2.destroy();
+		assertEquals(registered, ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).size());
+	}
 }
@@ -0,0 +1,81 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TicketMetricsTest {
+
+	private static final long MINUTE = 60 * 1000;
+
+	@Test
+	public void testRecord() {
+		TicketMetrics metrics = new TicketMetrics("EXAMPLE.COM");
+		metrics.record(KerberosCrypto.AES256_CTS_HMAC_SHA1_96, 1500, 600 * MINUTE, false, 1000000);
+		metrics.record(KerberosCrypto.AES256_CTS_HMAC_SHA1_96, 1800, 30 * MINUTE, true, 3000000);
+		metrics.record(KerberosCrypto.RC4_HMAC, 20000, 2 * MINUTE, false, 8000000);
+		metrics.record(TicketMetrics.UNKNOWN, 100000, TicketMetrics.UNKNOWN, false, 4000000);
+
+		assertEquals(4, metrics.getTickets());
+		assertEquals(1, metrics.getDelegations());
+		assertEquals(2, metrics.getTickets(KerberosCrypto.AES256_CTS_HMAC_SHA1_96));
+		assertEquals(1, metrics.getTickets(KerberosCrypto.RC4_HMAC));
+		assertEquals(1, metrics.getTickets(TicketMetrics.UNKNOWN));
+
+		List<String> lines = metrics.describe();
+		assertTrue(lines.contains("EXAMPLE.COM tickets: 4 tickets (100%), 4.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM delegation requested: 1 tickets (25%), 3.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM enctype aes256-cts-hmac-sha1-96: 2 tickets (50%), 2.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM enctype rc4-hmac: 1 tickets (25%), 8.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM enctype unknown: 1 tickets (25%), 4.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM token size <= 2K: 2 tickets (50%), 2.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM token size <= 24K: 1 tickets (25%), 8.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM token size > 64K: 1 tickets (25%), 4.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM remaining lifetime <= 5m: 1 tickets (25%), 8.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM remaining lifetime <= 30m: 1 tickets (25%), 3.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM remaining lifetime <= 600m: 1 tickets (25%), 1.00 ms avg accept"));
+		assertTrue(lines.contains("EXAMPLE.COM remaining lifetime unknown: 1 tickets (25%), 4.00 ms avg accept"));
+		assertEquals(12, lines.size());
+	}
+
+	@Test
+	public void testUnnamedEtype() {
+		TicketMetrics metrics = new TicketMetrics("test");
+		metrics.record(25, 1000, MINUTE, false, 0);
+		metrics.record(65, 1000, MINUTE, false, 0);
+
+		List<String> lines = metrics.describe();
+		assertTrue(lines.contains("test enctype etype-25: 1 tickets (50%), 0.00 ms avg accept"));
+		assertTrue(lines.contains("test enctype other: 1 tickets (50%), 0.00 ms avg accept"));
+	}
+
+	@Test
+	public void testReset() {
+		TicketMetrics metrics = new TicketMetrics("test");
+		metrics.record(KerberosCrypto.AES128_CTS_HMAC_SHA1_96, 1000, MINUTE, true, 1000);
+		metrics.reset();
+		assertEquals(0, metrics.getTickets());
+		assertEquals(0, metrics.getDelegations());
+		assertTrue(metrics.describe().isEmpty());
+	}
+}
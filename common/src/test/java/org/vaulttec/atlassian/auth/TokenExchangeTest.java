@@ -0,0 +1,168 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TokenExchangeTest {
+
+	private static final Collection<String> CONFIG_NAMES = Arrays.asList("Kerberos Server 1", "Kerberos Server 2");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testIssueAndVerify() {
+		TokenExchange exchange = new TokenExchange(new TokenSigner(new byte[32]), "/spnego/token", 600);
+		assertTrue(exchange.isExchangeUri(new MockRequest("/spnego/token")));
+		assertFalse(exchange.isExchangeUri(new MockRequest("/spnego/token/other")));
+
+		String token = exchange.issue(request(), "user1", "Kerberos Server 2").getValue();
+		assertEquals("user1", exchange.verify(request().withHeader("Authorization", "Bearer " + token), CONFIG_NAMES));
+		assertEquals("user1", exchange.verify(request().withHeader("Authorization", "bearer " + token), CONFIG_NAMES));
+		assertNull(exchange.verify(request(), CONFIG_NAMES));
+		assertNull(exchange.verify(request().withHeader("Authorization", "Bearer " + token),
+				Collections.singleton("Kerberos Server 1")));
+		assertEquals(1, exchange.getIssued());
+		assertEquals(2, exchange.getAccepted());
+		assertEquals(1, exchange.getRejected());
+	}
+
+	@Test
+	public void testDifferentClientAndForeignTokens() {
+		TokenExchange exchange = new TokenExchange(new TokenSigner(new byte[32]), "/spnego/token", 600);
+		String token = exchange.issue(request(), "user1", "Kerberos Server 1").getValue();
+		assertNull(exchange.verify(request().withHeader("Authorization", "Bearer " + token).withRemoteAddr("10.0.0.2"),
+				CONFIG_NAMES));
+
+		// e.g. a personal access token of the product
+		assertNull(exchange.verify(request().withHeader("Authorization", "Bearer NjE2NDQ3MjI4MDQ2On"),
+				CONFIG_NAMES));
+		assertNull(exchange.verify(request().withHeader("Authorization", "Negotiate " + token), CONFIG_NAMES));
+	}
+
+	@Test
+	public void testNoCrossUseWithAssertionCookie() {
+		TokenSigner signer = new TokenSigner(new byte[32]);
+		TokenExchange exchange = new TokenExchange(signer, "/spnego/token", 600);
+		AssertionCookie assertionCookie = new AssertionCookie(signer, "SPNEGO_ASSERTION", 300);
+
+		// an assertion cookie issued to a client claiming "bearer" as User-Agent
+		// matches the binding of a bearer token
+		MockResponse response = new MockResponse();
+		assertionCookie.issue(request().withHeader("User-Agent", "bearer"), response, "user1", "Kerberos Server 1");
+		Cookie cookie = response.getCookies().get(0);
+		assertNull(exchange.verify(request().withHeader("Authorization", "Bearer " + cookie.getValue()),
+				CONFIG_NAMES));
+		assertEquals(1, exchange.getRejected());
+
+		String token = exchange.issue(request(), "user1", "Kerberos Server 1").getValue();
+		assertNull(assertionCookie.verify(
+				request().withHeader("User-Agent", "bearer").withCookies(new Cookie("SPNEGO_ASSERTION", token)),
+				CONFIG_NAMES));
+	}
+
+	@Test
+	public void testExpired() {
+		TokenExchange exchange = new TokenExchange(new TokenSigner(new byte[32]), "/spnego/token", -1);
+		String token = exchange.issue(request(), "user1", "Kerberos Server 1").getValue();
+		assertNull(exchange.verify(request().withHeader("Authorization", "Bearer " + token), CONFIG_NAMES));
+		assertEquals(1, exchange.getRejected());
+	}
+
+	@Test
+	public void testFilterWritesToken() throws IOException, ServletException {
+		TokenExchange exchange = new TokenExchange(new TokenSigner(new byte[32]), "/spnego/token", 600);
+		MockRequest request = new MockRequest("/spnego/token");
+		TokenExchange.Token token = exchange.issue(request, "user1", "Kerberos Server 1");
+		request.setAttribute(SpnegoSupport.TOKEN_ATTRIBUTE, token);
+		MockResponse response = new MockResponse();
+		response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+
+		new SpnegoChallengeFilter().doFilter(request, response, new FilterChain() {
+			@Override
+			public void doFilter(final ServletRequest request, final ServletResponse response) {
+				throw new AssertionError("Token exchange request rendered");
+			}
+		});
+		assertTrue(response.isCommitted());
+		assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+		assertEquals("{\"access_token\":\"" + token.getValue() + "\",\"token_type\":\"Bearer\",\"expires_in\":600}",
+				response.getBody());
+	}
+
+	@Test
+	public void testExchangeUriNeverExcludedOrSkipped() {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("exclude.uris", "/rest/*");
+		params.put("challenge.rules", "skip header:X-Atlassian-Token");
+		params.put("token.exchange.uri", "/rest/spnego/token");
+		params.put("token.exchange.key.file", new File(folder.getRoot(), "token.key").getPath());
+		SpnegoSupport support = new SpnegoSupport();
+		support.init(params);
+		try {
+			MockRequest request = new MockRequest("/rest/spnego/token").withHeader("X-Atlassian-Token", "no-check");
+			assertTrue(support.isIncludedUri(request));
+			assertFalse(support.isSkippedRequest(request));
+			assertTrue(support.isSkippedRequest(
+					new MockRequest("/rest/api/2/myself").withHeader("X-Atlassian-Token", "no-check")));
+
+			// the exchange URI is challenged without rendering a page
+			MockResponse response = new MockResponse();
+			assertFalse(support.hasNegotiationAuthenticationHeader(request, response));
+			assertEquals(support.getTokenExchange().getChallengeResponse(),
+					request.getAttribute(SpnegoSupport.CHALLENGE_ATTRIBUTE));
+
+			request.setAttribute(SpnegoSupport.CONFIG_NAME_ATTRIBUTE, "Kerberos Server 1");
+			support.exchangeToken(request, "user1");
+			TokenExchange.Token token = (TokenExchange.Token) request.getAttribute(SpnegoSupport.TOKEN_ATTRIBUTE);
+			support.exchangeToken(new MockRequest("/secure/Dashboard.jspa"), "user1");
+			assertEquals(1, support.getTokenExchange().getIssued());
+			assertNull(support.getBearerUserName(
+					new MockRequest("/rest/api/2/myself").withHeader("Authorization", "Bearer " + token.getValue())));
+		} finally {
+			support.destroy();
+		}
+	}
+
+	private static MockRequest request() {
+		return new MockRequest("/rest/api/2/myself").withRemoteAddr("10.0.0.1");
+	}
+}
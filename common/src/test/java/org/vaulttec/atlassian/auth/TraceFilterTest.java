@@ -0,0 +1,82 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TraceFilterTest {
+
+	@Test
+	public void testMatches() {
+		TraceFilter filter = TraceFilter.compile("user=jdoe|asmith; ip=10.1.2.0/24; uri=/secure/Dashboard",
+				Long.MAX_VALUE);
+		assertTrue(filter.matches(new MockRequest("/browse/TEST-1").withRemoteAddr("10.1.2.3")));
+		assertTrue(filter.matches(new MockRequest("/secure/Dashboard.jspa").withRemoteAddr("10.9.9.9")));
+		assertFalse(filter.matches(new MockRequest("/browse/TEST-1").withRemoteAddr("10.1.3.3")));
+		assertTrue(filter.matchesUser("JDoe"));
+		assertTrue(filter.matchesUser("asmith"));
+		assertFalse(filter.matchesUser("bsmith"));
+		assertFalse(filter.matchesUser(null));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownCondition() {
+		TraceFilter.compile("host=example.com", Long.MAX_VALUE);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyFilter() {
+		TraceFilter.compile(" ; ", Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testDescribeAuthorization() {
+		assertEquals("none", TraceFilter.describeAuthorization(null));
+		assertEquals("Negotiate (8 chars)", TraceFilter.describeAuthorization("Negotiate YIIGhgYG"));
+		assertEquals("Basic (12 chars)", TraceFilter.describeAuthorization("Basic amRvZTpzZWNy"));
+	}
+
+	@Test
+	public void testTraceLifecycle() {
+		SpnegoSupport support = new SpnegoSupport();
+		MockRequest request = new MockRequest("/browse/TEST-1").withRemoteAddr("10.1.2.3");
+		assertFalse(support.isTraced(request));
+
+		support.startTrace("ip=10.1.2.3", 10);
+		assertNotNull(support.getTraceFilter());
+		assertTrue(support.isTraced(request));
+		assertFalse(support.isTracedUser("jdoe"));
+
+		support.stopTrace();
+		assertNull(support.getTraceFilter());
+		assertFalse(support.isTraced(request));
+	}
+
+	@Test
+	public void testExpiry() {
+		TraceFilter filter = TraceFilter.compile("user=jdoe", 1000);
+		assertFalse(filter.isExpired(999));
+		assertTrue(filter.isExpired(1000));
+	}
+}
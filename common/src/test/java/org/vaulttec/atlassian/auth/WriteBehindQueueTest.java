@@ -0,0 +1,158 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+
+	@Test
+	public void testCoalescePerKey() {
+		final List<String> executed = new ArrayList<String>();
+		WriteBehindQueue queue = new WriteBehindQueue(10, 10, 60000);
+		assertTrue(queue.submit("user1", task(executed, "user1-1")));
+		assertTrue(queue.submit("user2", task(executed, "user2-1")));
+		assertTrue(queue.submit("user1", task(executed, "user1-2")));
+		assertEquals(2, queue.size());
+		assertTrue(executed.isEmpty());
+
+		queue.flush();
+		assertEquals(2, executed.size());
+		assertTrue(executed.contains("user1-2"));
+		assertTrue(executed.contains("user2-1"));
+		assertEquals(1, queue.getCoalesced());
+		queue.close();
+	}
+
+	@Test
+	public void testRejectIfFull() {
+		final List<String> executed = new ArrayList<String>();
+		WriteBehindQueue queue = new WriteBehindQueue(2, 10, 60000);
+		assertTrue(queue.submit("user1", task(executed, "user1")));
+		assertTrue(queue.submit("user2", task(executed, "user2")));
+		assertFalse(queue.submit("user3", task(executed, "user3")));
+		assertTrue(queue.submit("user2", task(executed, "user2")));
+		assertEquals(1, queue.getRejected());
+		queue.close();
+	}
+
+	@Test
+	public void testConcurrentSubmitOfFullQueue() throws InterruptedException {
+		final WriteBehindQueue queue = new WriteBehindQueue(2, 10, 60000);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 20000; j++) {
+
+						// a new task per submit, as the rejected task has to be told apart from
+						// a concurrent replacement
+						Runnable task = new Runnable() {
+							@Override
+							public void run() {
+							}
+						};
+						if (!queue.submit("user" + j % 4, task)) {
+							task.run();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		queue.flush();
+
+		// a task left pending without a queued key would swallow later submits
+		long coalesced = queue.getCoalesced();
+		for (int i = 0; i < 4; i++) {
+			queue.submit("user" + i, task(new ArrayList<String>(), "user" + i));
+		}
+		assertEquals(coalesced, queue.getCoalesced());
+		queue.close();
+	}
+
+	@Test
+	public void testFlushOnClose() {
+		final List<String> executed = new ArrayList<String>();
+		WriteBehindQueue queue = new WriteBehindQueue(10, 1, 60000);
+		queue.submit("user1", task(executed, "user1"));
+		queue.submit("user2", new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("Database not available");
+			}
+		});
+		queue.submit("user3", task(executed, "user3"));
+		queue.close();
+		assertEquals(2, executed.size());
+		assertEquals(1, queue.getFailed());
+		assertFalse(queue.submit("user4", task(executed, "user4")));
+	}
+
+	@Test
+	public void testDetachedRequest() {
+		HttpServletRequest request = DetachedRequest.snapshot(new MockRequest("/index.jsp", "os_password=secret")
+				.withRemoteAddr("10.0.0.1").withHeader("User-Agent", "Mozilla/5.0")
+				.withHeader("Authorization", "Basic dXNlcjE6c2VjcmV0").withHeader("Cookie", "JSESSIONID=1234"));
+		assertEquals("/index.jsp", request.getRequestURI());
+		assertEquals("10.0.0.1", request.getRemoteAddr());
+		assertEquals("Mozilla/5.0", request.getHeader("user-agent"));
+		assertFalse(request.isSecure());
+
+		// credentials aren't kept in the write-behind queue
+		assertNull(request.getQueryString());
+		assertNull(request.getHeader("Authorization"));
+		assertNull(request.getHeader("Cookie"));
+		assertEquals(Collections.singletonList("user-agent"), Collections.list(request.getHeaderNames()));
+
+		// a login recording can use the request's and session's attributes
+		request.setAttribute("loginResult", "OK");
+		assertEquals("OK", request.getAttribute("loginResult"));
+		HttpSession session = request.getSession();
+		assertNotNull(session);
+		assertNull(session.getId());
+		session.setAttribute("user", "user1");
+		assertEquals("user1", request.getSession(false).getAttribute("user"));
+	}
+
+	private static Runnable task(final List<String> executed, final String name) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				executed.add(name);
+			}
+		};
+	}
+}
@@ -26,9 +26,15 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.atlassian.confluence.security.Permission;
+import com.atlassian.confluence.security.PermissionManager;
 import com.atlassian.confluence.user.ConfluenceAuthenticator;
 import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.confluence.util.UserChecker;
 import com.atlassian.seraph.config.SecurityConfig;
+import com.atlassian.seraph.elevatedsecurity.ElevatedSecurityGuard;
+import com.atlassian.spring.container.ContainerManager;
 
 public class ConfluenceSpnegoAuthenticator extends ConfluenceAuthenticator implements SpnegoAuthenticator {
 
@@ -44,6 +50,12 @@ public class ConfluenceSpnegoAuthenticator extends ConfluenceAuthenticator imple
 		support.init(params);
 	}
 
+	@Override
+	public void destroy() {
+		support.destroy();
+		super.destroy();
+	}
+
 	@Override
 	public Logger getLogger() {
 		return LOG;
@@ -80,4 +92,88 @@ public class ConfluenceSpnegoAuthenticator extends ConfluenceAuthenticator imple
 		}
 		return false;
 	}
+
+	@Override
+	public boolean authoriseUser(final HttpServletRequest request, final Principal user) {
+		return isAuthorised(request, user);
+	}
+
+	/**
+	 * Returns the product's guard, which records a successful login in the
+	 * user's login info (last login, login count). With write-behind configured
+	 * these writes are queued instead of letting the request wait for the
+	 * database.
+	 */
+	@Override
+	protected ElevatedSecurityGuard getElevatedSecurityGuard() {
+		ElevatedSecurityGuard guard = super.getElevatedSecurityGuard();
+		return getSupport().isWriteBehind() ? new WriteBehindSecurityGuard(guard, getSupport()) : guard;
+	}
+
+	@Override
+	protected boolean isAuthorised(final HttpServletRequest request, final Principal user) {
+
+		// skip the group lookup in the user directory if the groups from the user's
+		// Kerberos ticket already grant login (to an active and licensed user)
+		return isAuthorisedViaTicketGroups(user) || super.isAuthorised(request, user);
+	}
+
+	@Override
+	public boolean isLoginAllowed(final Principal user) {
+		ConfluenceUser confluenceUser = user instanceof ConfluenceUser ? (ConfluenceUser) user
+				: getUser(user.getName());
+		if (confluenceUser == null) {
+			return false;
+		}
+		UserAccessor userAccessor = (UserAccessor) ContainerManager.getComponent("userAccessor");
+		UserChecker userChecker = (UserChecker) ContainerManager.getComponent("userChecker");
+		PermissionManager permissionManager = (PermissionManager) ContainerManager.getComponent("permissionManager");
+		return !userAccessor.isDeactivated(confluenceUser) && !userChecker.hasTooManyUsers()
+				&& permissionManager.hasPermission(confluenceUser, Permission.VIEW, PermissionManager.TARGET_APPLICATION);
+	}
+
+	/**
+	 * Defers the recording of successful logins to the write-behind queue. The
+	 * task gets a copy of the request's client information as the original one
+	 * is recycled when the request is finished. The product's guard only reads
+	 * the client address and headers and sets attributes, which the copy (and
+	 * its stand-in session) provides. Failed logins are still recorded right
+	 * away.
+	 */
+	private static final class WriteBehindSecurityGuard implements ElevatedSecurityGuard {
+
+		private final ElevatedSecurityGuard guard;
+		private final SpnegoSupport support;
+
+		WriteBehindSecurityGuard(final ElevatedSecurityGuard guard, final SpnegoSupport support) {
+			this.guard = guard;
+			this.support = support;
+		}
+
+		@Override
+		public void init(final Map<String, String> params, final SecurityConfig config) {
+			guard.init(params, config);
+		}
+
+		@Override
+		public boolean performElevatedSecurityCheck(final HttpServletRequest request, final String userName) {
+			return guard.performElevatedSecurityCheck(request, userName);
+		}
+
+		@Override
+		public void onFailedLoginAttempt(final HttpServletRequest request, final String userName) {
+			guard.onFailedLoginAttempt(request, userName);
+		}
+
+		@Override
+		public void onSuccessfulLoginAttempt(final HttpServletRequest request, final String userName) {
+			final HttpServletRequest detachedRequest = support.detach(request);
+			support.writeBehind(userName, new Runnable() {
+				@Override
+				public void run() {
+					guard.onSuccessfulLoginAttempt(detachedRequest, userName);
+				}
+			});
+		}
+	}
 }
@@ -0,0 +1,64 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.I_Result;
+
+/**
+ * A request thread which sees the result of <code>init()</code> must see all
+ * of its settings.
+ */
+@JCStressTest
+@Outcome(id = "-1", expect = ACCEPTABLE, desc = "Init not visible yet")
+@Outcome(id = "1", expect = ACCEPTABLE, desc = "Init visible with all settings")
+@Outcome(expect = FORBIDDEN, desc = "Init visible but settings missing")
+@State
+public class InitPublicationTest {
+
+	private final SpnegoSupport support = new SpnegoSupport();
+	private final MockRequest request = StressFixtures.request("/a/resource");
+
+	@Actor
+	public void init() {
+		support.init(StressFixtures.params("/a/*"));
+	}
+
+	@Actor
+	public void request(final I_Result result) {
+		try {
+			support.check();
+		} catch (IllegalStateException e) {
+			result.r1 = -1;
+			return;
+		}
+		result.r1 = support.isExcludedUri(request) ? 1 : 0;
+	}
+
+	@Arbiter
+	public void destroy() {
+		support.destroy();
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * Request threads see either the previous or the new settings of a
+ * reconfiguration, and once they saw the new settings they never see the
+ * previous ones again.
+ */
+@JCStressTest
+@Outcome(id = "1, 0", expect = ACCEPTABLE, desc = "Previous settings")
+@Outcome(id = "0, 1", expect = ACCEPTABLE, desc = "New settings")
+@Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "Reconfigured between both checks")
+@Outcome(expect = FORBIDDEN, desc = "Previous settings after new ones, or partial settings")
+@State
+public class ReconfigurationTest {
+
+	private final SpnegoSupport support = new SpnegoSupport();
+	private final MockRequest previousUri = StressFixtures.request("/a/resource");
+	private final MockRequest newUri = StressFixtures.request("/b/resource");
+
+	public ReconfigurationTest() {
+		support.init(StressFixtures.params("/a/*"));
+	}
+
+	@Actor
+	public void reconfigure() {
+		support.init(StressFixtures.params("/b/*"));
+	}
+
+	@Actor
+	public void request(final II_Result result) {
+		result.r1 = support.isExcludedUri(previousUri) ? 1 : 0;
+		result.r2 = support.isExcludedUri(newUri) ? 1 : 0;
+	}
+
+	@Arbiter
+	public void destroy() {
+		support.destroy();
+	}
+}
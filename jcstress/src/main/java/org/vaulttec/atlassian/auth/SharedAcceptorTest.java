@@ -0,0 +1,62 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * Concurrent requests share the lazily created acceptor of a configuration
+ * (including its replay cache) and are all accepted.
+ */
+@JCStressTest
+@Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "Both requests accepted")
+@Outcome(expect = FORBIDDEN, desc = "Request rejected")
+@State
+public class SharedAcceptorTest {
+
+	private final SpnegoSupport support = new SpnegoSupport();
+	private final MockRequest request1 = StressFixtures.negotiateRequest();
+	private final MockRequest request2 = StressFixtures.negotiateRequest();
+
+	public SharedAcceptorTest() {
+		support.init(StressFixtures.nativeParams());
+	}
+
+	@Actor
+	public void request1(final II_Result result) {
+		result.r1 = support.authenticate(request1, new MockResponse()) != null ? 1 : 0;
+	}
+
+	@Actor
+	public void request2(final II_Result result) {
+		result.r2 = support.authenticate(request2, new MockResponse()) != null ? 1 : 0;
+	}
+
+	@Arbiter
+	public void destroy() {
+		support.destroy();
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE;
+import static org.openjdk.jcstress.annotations.Expect.ACCEPTABLE_INTERESTING;
+import static org.openjdk.jcstress.annotations.Expect.FORBIDDEN;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.openjdk.jcstress.annotations.Actor;
+import org.openjdk.jcstress.annotations.Arbiter;
+import org.openjdk.jcstress.annotations.JCStressTest;
+import org.openjdk.jcstress.annotations.Outcome;
+import org.openjdk.jcstress.annotations.State;
+import org.openjdk.jcstress.infra.results.II_Result;
+
+/**
+ * Learned exclusions survive reconfigurations which overlap each other and
+ * requests, i.e. the snapshot written by a replaced configuration is restored
+ * by the next one and never overwritten by an older one.
+ */
+@JCStressTest
+@Outcome(id = "1, 1", expect = ACCEPTABLE, desc = "Both exclusions kept")
+@Outcome(id = "1, 0", expect = ACCEPTABLE_INTERESTING,
+		desc = "Racing exclusion learned by a replaced configuration after its last snapshot")
+@Outcome(expect = FORBIDDEN, desc = "Exclusion learned before the reconfigurations lost, or snapshot unusable")
+@State
+public class SnapshotReconfigurationTest {
+
+	private final SpnegoSupport support = new SpnegoSupport();
+	private final Map<String, String> params = StressFixtures.snapshotParams();
+
+	public SnapshotReconfigurationTest() {
+		support.init(params);
+		support.hasNegotiationAuthenticationHeader(StressFixtures.request("/learned/resource"), new MockResponse());
+	}
+
+	@Actor
+	public void reconfigure1() {
+		support.init(params);
+	}
+
+	@Actor
+	public void reconfigure2() {
+		support.init(params);
+	}
+
+	@Actor
+	public void request() {
+		support.hasNegotiationAuthenticationHeader(StressFixtures.request("/racing/resource"), new MockResponse());
+	}
+
+	@Arbiter
+	public void check(final II_Result result) {
+		support.destroy();
+		Path file = Paths.get(params.get("snapshot.file"));
+		ExclusionLearner learner = new ExclusionLearner(3, 1, 600000, 10);
+		try {
+			if (new CacheSnapshot(file).read(null, learner, null) < 0) {
+				result.r1 = -1;
+				return;
+			}
+			Files.delete(file);
+		} catch (IOException e) {
+			result.r1 = -1;
+			return;
+		}
+		result.r1 = learner.isExcluded("/learned/resource") ? 1 : 0;
+		result.r2 = learner.isExcluded("/racing/resource") ? 1 : 0;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Atlassian SPNEGO Authenticator
+ * Copyright (c) 2019 Torsten Juergeleit
+ * mailto:torsten AT vaulttec DOT org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaulttec.atlassian.auth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared init-params and requests of the stress tests. The SPNEGO
+ * configuration uses the native engine with a generated keytab, so no KDC is
+ * needed.
+ */
+final class StressFixtures {
+
+	static final KerberosTokenBuilder TOKENS = new KerberosTokenBuilder().withService("HTTP/www.example.com",
+			"EXAMPLE.COM");
+
+	private static final File DIR;
+	private static final String CONFIG_FILE;
+
+	static {
+		try {
+			File dir = Files.createTempDirectory("spnego-jcstress").toFile();
+			DIR = dir;
+			File keytab = new File(dir, "http.keytab");
+			Files.write(keytab.toPath(), TOKENS.keytab());
+			File config = new File(dir, "native.properties");
+			Files.write(config.toPath(), ("name=native\nspnego.engine=native\nspnego.keytab=" + keytab.getPath()
+					+ "\n").getBytes(StandardCharsets.UTF_8));
+			CONFIG_FILE = config.getPath();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private StressFixtures() {
+	}
+
+	static Map<String, String> params(final String excludedUris) {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("exclude.uris", excludedUris);
+		return params;
+	}
+
+	static Map<String, String> nativeParams() {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("config.files", CONFIG_FILE);
+		return params;
+	}
+
+	/**
+	 * Returns init-params with a cache snapshot in a new file, which learn an
+	 * exclusion with the first challenge.
+	 */
+	static Map<String, String> snapshotParams() {
+		File snapshot;
+		try {
+			snapshot = File.createTempFile("snapshot", ".bin", DIR);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		snapshot.delete();
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("snapshot.file", snapshot.getPath());
+		params.put("learn.exclusions.ttl", "600");
+		params.put("learn.exclusions.threshold", "1");
+		return params;
+	}
+
+	static MockRequest request(final String uri) {
+		return new MockRequest(uri);
+	}
+
+	static MockRequest negotiateRequest() {
+		try {
+			return new MockRequest("/index.jsp").withHeader("Authorization",
+					"Negotiate " + Base64.getEncoder().encodeToString(TOKENS.build()));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -26,8 +26,12 @@ import javax.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.atlassian.jira.application.ApplicationRoleManager;
+import com.atlassian.jira.component.ComponentAccessor;
 import com.atlassian.jira.security.login.JiraSeraphAuthenticator;
+import com.atlassian.jira.user.ApplicationUser;
 import com.atlassian.seraph.config.SecurityConfig;
+import com.atlassian.seraph.elevatedsecurity.ElevatedSecurityGuard;
 
 public class JiraSpnegoAuthenticator extends JiraSeraphAuthenticator implements SpnegoAuthenticator {
 
@@ -43,6 +47,12 @@ public class JiraSpnegoAuthenticator extends JiraSeraphAuthenticator implements
 		support.init(params);
 	}
 
+	@Override
+	public void destroy() {
+		support.destroy();
+		super.destroy();
+	}
+
 	@Override
 	public Logger getLogger() {
 		return LOG;
@@ -79,4 +89,87 @@ public class JiraSpnegoAuthenticator extends JiraSeraphAuthenticator implements
 		}
 		return false;
 	}
+
+	@Override
+	public boolean authoriseUser(final HttpServletRequest request, final Principal user) {
+		return isAuthorised(request, user);
+	}
+
+	/**
+	 * Returns the product's guard, which records a successful login in the
+	 * user's login info (last login, login count). With write-behind configured
+	 * these writes are queued instead of letting the request wait for the
+	 * database.
+	 */
+	@Override
+	protected ElevatedSecurityGuard getElevatedSecurityGuard() {
+		ElevatedSecurityGuard guard = super.getElevatedSecurityGuard();
+		return getSupport().isWriteBehind() ? new WriteBehindSecurityGuard(guard, getSupport()) : guard;
+	}
+
+	@Override
+	protected boolean isAuthorised(final HttpServletRequest request, final Principal user) {
+
+		// skip the group lookup in the user directory if the groups from the user's
+		// Kerberos ticket already grant login (to an active and licensed user)
+		return isAuthorisedViaTicketGroups(user) || super.isAuthorised(request, user);
+	}
+
+	@Override
+	public boolean isLoginAllowed(final Principal user) {
+		ApplicationUser applicationUser = user instanceof ApplicationUser ? (ApplicationUser) user
+				: ComponentAccessor.getUserManager().getUserByName(user.getName());
+		if (applicationUser == null || !applicationUser.isActive()) {
+			return false;
+		}
+
+		// application access replaces the global use permission and counts the seats
+		ApplicationRoleManager roleManager = ComponentAccessor.getComponent(ApplicationRoleManager.class);
+		return roleManager.hasAnyRole(applicationUser) && !roleManager.hasExceededAllRoles(applicationUser);
+	}
+
+	/**
+	 * Defers the recording of successful logins to the write-behind queue. The
+	 * task gets a copy of the request's client information as the original one
+	 * is recycled when the request is finished. The product's guard only reads
+	 * the client address and headers and sets attributes, which the copy (and
+	 * its stand-in session) provides. Failed logins are still recorded right
+	 * away.
+	 */
+	private static final class WriteBehindSecurityGuard implements ElevatedSecurityGuard {
+
+		private final ElevatedSecurityGuard guard;
+		private final SpnegoSupport support;
+
+		WriteBehindSecurityGuard(final ElevatedSecurityGuard guard, final SpnegoSupport support) {
+			this.guard = guard;
+			this.support = support;
+		}
+
+		@Override
+		public void init(final Map<String, String> params, final SecurityConfig config) {
+			guard.init(params, config);
+		}
+
+		@Override
+		public boolean performElevatedSecurityCheck(final HttpServletRequest request, final String userName) {
+			return guard.performElevatedSecurityCheck(request, userName);
+		}
+
+		@Override
+		public void onFailedLoginAttempt(final HttpServletRequest request, final String userName) {
+			guard.onFailedLoginAttempt(request, userName);
+		}
+
+		@Override
+		public void onSuccessfulLoginAttempt(final HttpServletRequest request, final String userName) {
+			final HttpServletRequest detachedRequest = support.detach(request);
+			support.writeBehind(userName, new Runnable() {
+				@Override
+				public void run() {
+					guard.onSuccessfulLoginAttempt(detachedRequest, userName);
+				}
+			});
+		}
+	}
 }